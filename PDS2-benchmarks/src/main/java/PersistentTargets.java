@@ -0,0 +1,98 @@
+import pds.bench.ArrayTarget;
+import pds.bench.ListTarget;
+import pds.bench.MapTarget;
+import pds.bench.TargetFactory;
+
+import java.util.Iterator;
+
+/**
+ * Persistent structures under benchmark, in the unnamed package of the structures.
+ */
+public class PersistentTargets implements TargetFactory {
+
+    @Override
+    public ArrayTarget array() {
+        PersistentArray<Object> array = new PersistentArray<>();
+        return new ArrayTarget() {
+            @Override
+            public int add(Object value) {
+                return array.add(value);
+            }
+
+            @Override
+            public int set(int index, Object value) {
+                return array.replace(index, value);
+            }
+
+            @Override
+            public Object get(int index, int version) {
+                return array.get(index, version);
+            }
+
+            @Override
+            public int currentVersion() {
+                return array.getCurrentVersion();
+            }
+        };
+    }
+
+    @Override
+    public ListTarget list() {
+        PersistentLinkedList<Object> list = new PersistentLinkedList<>();
+        return new ListTarget() {
+            @Override
+            public int add(Object value) {
+                list.add(value);
+                return list.getCurrentVersion();
+            }
+
+            @Override
+            public int set(int index, Object value) {
+                list.set(index, value);
+                return list.getCurrentVersion();
+            }
+
+            @Override
+            public Object get(int index, int version) {
+                return list.get(index, version);
+            }
+
+            @Override
+            public Iterator<?> iterator(int version) {
+                return list.iterator(version);
+            }
+
+            @Override
+            public int currentVersion() {
+                return list.getCurrentVersion();
+            }
+        };
+    }
+
+    @Override
+    public MapTarget map() {
+        PersistentMap<Object, Object> map = new PersistentMap<>();
+        return new MapTarget() {
+            @Override
+            public int put(Object key, Object value) {
+                map.put(key, value);
+                return map.getCurrentVersion();
+            }
+
+            @Override
+            public Object get(Object key, int version) {
+                return map.get(key, version);
+            }
+
+            @Override
+            public Iterator<?> entries(int version) {
+                return map.entrySet(version).iterator();
+            }
+
+            @Override
+            public int currentVersion() {
+                return map.getCurrentVersion();
+            }
+        };
+    }
+}
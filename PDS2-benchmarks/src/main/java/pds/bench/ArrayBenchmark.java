@@ -0,0 +1,97 @@
+package pds.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and writes of {@code PersistentArray} against {@code ArrayList}.
+ * The array is filled with {@code size} elements, then {@code versions} random replacements deepen its history;
+ * historical reads pick versions uniformly among those replacements.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class ArrayBenchmark {
+    private static final Object VALUE = new Object();
+
+    @Param({Targets.PERSISTENT, "ArrayList"})
+    public String implementation;
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    @Param({"0", "100000"})
+    public int versions;
+
+    @Param({Workload.LATEST, Workload.HISTORICAL})
+    public String access;
+
+    @Param({Workload.RANDOM, Workload.SEQUENTIAL})
+    public String pattern;
+
+    @Param({"0.1"})
+    public double updateRatio;
+
+    private ArrayTarget array;
+    private int[] indices;
+    private int[] historicalVersions;
+    private boolean[] updates;
+    private boolean historical;
+    private int next;
+
+    /**
+     * Rebuilds the array every iteration, so that the writes of an iteration do not deepen the history of the next one.
+     */
+    @Setup(Level.Iteration)
+    public void setUp() {
+        array = Targets.array(implementation);
+        for (int i = 0; i < size; i++) {
+            array.add(i);
+        }
+        int filled = array.currentVersion();
+        Random random = new Random(size);
+        for (int i = 0; i < versions; i++) {
+            array.set(random.nextInt(size), i);
+        }
+        indices = Workload.indices(size, pattern);
+        historicalVersions = Workload.versions(filled, array.currentVersion());
+        updates = Workload.updates(updateRatio);
+        historical = Workload.historical(access);
+    }
+
+    @Benchmark
+    public Object get() {
+        int i = next++ & Workload.MASK;
+        return array.get(indices[i], historical ? historicalVersions[i] : array.currentVersion());
+    }
+
+    @Benchmark
+    public Object set() {
+        int i = next++ & Workload.MASK;
+        return array.set(indices[i], VALUE);
+    }
+
+    @Benchmark
+    public Object readWrite() {
+        int i = next++ & Workload.MASK;
+        if (updates[i])
+            return array.set(indices[i], VALUE);
+        return array.get(indices[i], historical ? historicalVersions[i] : array.currentVersion());
+    }
+}
@@ -0,0 +1,21 @@
+package pds.bench;
+
+/**
+ * Array under benchmark: a persistent array, or a baseline whose every version is its latest state.
+ */
+public interface ArrayTarget {
+
+    /**
+     * Appends the specified value and returns the new version.
+     */
+    int add(Object value);
+
+    /**
+     * Replaces the value at the specified index and returns the new version.
+     */
+    int set(int index, Object value);
+
+    Object get(int index, int version);
+
+    int currentVersion();
+}
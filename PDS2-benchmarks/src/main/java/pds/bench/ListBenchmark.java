@@ -0,0 +1,110 @@
+package pds.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends, reads and traversals of {@code PersistentLinkedList} against {@code LinkedList} and {@code ArrayList}.
+ * The list is filled with {@code size} elements, then {@code versions} random replacements deepen its history;
+ * historical reads and traversals pick versions uniformly among those replacements.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class ListBenchmark {
+    private static final Object VALUE = new Object();
+
+    @Param({Targets.PERSISTENT, "LinkedList", "ArrayList"})
+    public String implementation;
+
+    @Param({"100", "10000"})
+    public int size;
+
+    @Param({"0", "10000"})
+    public int versions;
+
+    @Param({Workload.LATEST, Workload.HISTORICAL})
+    public String access;
+
+    @Param({Workload.RANDOM, Workload.SEQUENTIAL})
+    public String pattern;
+
+    @Param({"0.1"})
+    public double updateRatio;
+
+    private ListTarget list;
+    private int[] indices;
+    private int[] historicalVersions;
+    private boolean[] updates;
+    private boolean historical;
+    private int next;
+
+    /**
+     * Rebuilds the list every iteration, so that the writes of an iteration do not deepen the history of the next one.
+     */
+    @Setup(Level.Iteration)
+    public void setUp() {
+        list = Targets.list(implementation);
+        for (int i = 0; i < size; i++) {
+            list.add(i);
+        }
+        int filled = list.currentVersion();
+        Random random = new Random(size);
+        for (int i = 0; i < versions; i++) {
+            list.set(random.nextInt(size), i);
+        }
+        indices = Workload.indices(size, pattern);
+        historicalVersions = Workload.versions(filled, list.currentVersion());
+        updates = Workload.updates(updateRatio);
+        historical = Workload.historical(access);
+    }
+
+    private int version(int i) {
+        return historical ? historicalVersions[i] : list.currentVersion();
+    }
+
+    @Benchmark
+    public int add() {
+        return list.add(VALUE);
+    }
+
+    @Benchmark
+    public Object get() {
+        int i = next++ & Workload.MASK;
+        return list.get(indices[i], version(i));
+    }
+
+    @Benchmark
+    public void iterate(Blackhole blackhole) {
+        Iterator<?> iterator = list.iterator(version(next++ & Workload.MASK));
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+    }
+
+    @Benchmark
+    public Object readWrite() {
+        int i = next++ & Workload.MASK;
+        if (updates[i])
+            return list.set(indices[i], VALUE);
+        return list.get(indices[i], version(i));
+    }
+}
@@ -0,0 +1,25 @@
+package pds.bench;
+
+import java.util.Iterator;
+
+/**
+ * List under benchmark: a persistent list, or a baseline whose every version is its latest state.
+ */
+public interface ListTarget {
+
+    /**
+     * Appends the specified value and returns the new version.
+     */
+    int add(Object value);
+
+    /**
+     * Replaces the value at the specified index and returns the new version.
+     */
+    int set(int index, Object value);
+
+    Object get(int index, int version);
+
+    Iterator<?> iterator(int version);
+
+    int currentVersion();
+}
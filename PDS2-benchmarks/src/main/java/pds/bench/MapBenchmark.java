@@ -0,0 +1,115 @@
+package pds.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Puts, gets and entry set traversals of {@code PersistentMap} against {@code TreeMap} and {@code HashMap}.
+ * The map is filled with {@code size} integer keys, then {@code versions} random overwrites deepen its history;
+ * historical reads and traversals pick versions uniformly among those overwrites.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class MapBenchmark {
+    private static final Object VALUE = new Object();
+
+    @Param({Targets.PERSISTENT, "TreeMap", "HashMap"})
+    public String implementation;
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    @Param({"0", "100000"})
+    public int versions;
+
+    @Param({Workload.LATEST, Workload.HISTORICAL})
+    public String access;
+
+    @Param({Workload.RANDOM, Workload.SEQUENTIAL})
+    public String pattern;
+
+    @Param({"0.1"})
+    public double updateRatio;
+
+    private MapTarget map;
+    private Integer[] keys;
+    private int[] indices;
+    private int[] historicalVersions;
+    private boolean[] updates;
+    private boolean historical;
+    private int next;
+
+    /**
+     * Rebuilds the map every iteration, so that the writes of an iteration do not deepen the history of the next one.
+     */
+    @Setup(Level.Iteration)
+    public void setUp() {
+        map = Targets.map(implementation);
+        // boxed once, so that lookups do not measure boxing
+        keys = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = i;
+            map.put(keys[i], i);
+        }
+        int filled = map.currentVersion();
+        Random random = new Random(size);
+        for (int i = 0; i < versions; i++) {
+            map.put(keys[random.nextInt(size)], i);
+        }
+        indices = Workload.indices(size, pattern);
+        historicalVersions = Workload.versions(filled, map.currentVersion());
+        updates = Workload.updates(updateRatio);
+        historical = Workload.historical(access);
+    }
+
+    private int version(int i) {
+        return historical ? historicalVersions[i] : map.currentVersion();
+    }
+
+    @Benchmark
+    public int put() {
+        int i = next++ & Workload.MASK;
+        return map.put(keys[indices[i]], VALUE);
+    }
+
+    @Benchmark
+    public Object get() {
+        int i = next++ & Workload.MASK;
+        return map.get(keys[indices[i]], version(i));
+    }
+
+    @Benchmark
+    public void entrySet(Blackhole blackhole) {
+        Iterator<?> iterator = map.entries(version(next++ & Workload.MASK));
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+    }
+
+    @Benchmark
+    public Object readWrite() {
+        int i = next++ & Workload.MASK;
+        if (updates[i])
+            return map.put(keys[indices[i]], VALUE);
+        return map.get(keys[indices[i]], version(i));
+    }
+}
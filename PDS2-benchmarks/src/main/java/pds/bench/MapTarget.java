@@ -0,0 +1,23 @@
+package pds.bench;
+
+import java.util.Iterator;
+
+/**
+ * Map under benchmark: a persistent map, or a baseline whose every version is its latest state.
+ */
+public interface MapTarget {
+
+    /**
+     * Associates the specified value with the specified key and returns the new version.
+     */
+    int put(Object key, Object value);
+
+    Object get(Object key, int version);
+
+    /**
+     * Returns an iterator over the entry set of the specified version.
+     */
+    Iterator<?> entries(int version);
+
+    int currentVersion();
+}
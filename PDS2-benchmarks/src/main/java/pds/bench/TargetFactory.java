@@ -0,0 +1,13 @@
+package pds.bench;
+
+/**
+ * Factory of the persistent structures under benchmark, implemented by {@code PersistentTargets} next to the structures.
+ */
+public interface TargetFactory {
+
+    ArrayTarget array();
+
+    ListTarget list();
+
+    MapTarget map();
+}
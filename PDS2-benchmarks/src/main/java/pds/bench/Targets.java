@@ -0,0 +1,141 @@
+package pds.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Structures under benchmark by name: "persistent" for the structures of PDS2, or the name of a java.util baseline.
+ * The structures of PDS2 are in the unnamed package, which JMH does not accept for benchmarks and which named packages cannot import,
+ * so they are reached through {@link TargetFactory}, loaded by name once per setup. Baselines go through the same interfaces,
+ * so every implementation pays the same monomorphic interface call.
+ */
+public final class Targets {
+    public static final String PERSISTENT = "persistent";
+
+    private static final String FACTORY = "PersistentTargets";
+
+    private Targets() {
+    }
+
+    public static ArrayTarget array(String implementation) {
+        switch (implementation) {
+            case PERSISTENT:
+                return factory().array();
+            case "ArrayList":
+                return new ListBaseline(new ArrayList<>());
+            default:
+                throw new IllegalArgumentException(implementation);
+        }
+    }
+
+    public static ListTarget list(String implementation) {
+        switch (implementation) {
+            case PERSISTENT:
+                return factory().list();
+            case "LinkedList":
+                return new ListBaseline(new LinkedList<>());
+            case "ArrayList":
+                return new ListBaseline(new ArrayList<>());
+            default:
+                throw new IllegalArgumentException(implementation);
+        }
+    }
+
+    public static MapTarget map(String implementation) {
+        switch (implementation) {
+            case PERSISTENT:
+                return factory().map();
+            case "TreeMap":
+                return new MapBaseline(new TreeMap<>());
+            case "HashMap":
+                return new MapBaseline(new HashMap<>());
+            default:
+                throw new IllegalArgumentException(implementation);
+        }
+    }
+
+    private static TargetFactory factory() {
+        try {
+            return (TargetFactory) Class.forName(FACTORY).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Mutable list counting its writes as versions.
+     */
+    private static final class ListBaseline implements ArrayTarget, ListTarget {
+        private final List<Object> list;
+        private int version;
+
+        ListBaseline(List<Object> list) {
+            this.list = list;
+        }
+
+        @Override
+        public int add(Object value) {
+            list.add(value);
+            return ++version;
+        }
+
+        @Override
+        public int set(int index, Object value) {
+            list.set(index, value);
+            return ++version;
+        }
+
+        @Override
+        public Object get(int index, int version) {
+            return list.get(index);
+        }
+
+        @Override
+        public Iterator<?> iterator(int version) {
+            return list.iterator();
+        }
+
+        @Override
+        public int currentVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * Mutable map counting its writes as versions.
+     */
+    private static final class MapBaseline implements MapTarget {
+        private final Map<Object, Object> map;
+        private int version;
+
+        MapBaseline(Map<Object, Object> map) {
+            this.map = map;
+        }
+
+        @Override
+        public int put(Object key, Object value) {
+            map.put(key, value);
+            return ++version;
+        }
+
+        @Override
+        public Object get(Object key, int version) {
+            return map.get(key);
+        }
+
+        @Override
+        public Iterator<?> entries(int version) {
+            return map.entrySet().iterator();
+        }
+
+        @Override
+        public int currentVersion() {
+            return version;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package pds.bench;
+
+import java.util.Random;
+
+/**
+ * Precomputed sequences of operations, so that benchmarks spend no time drawing random numbers.
+ * Sequences have {@link #LENGTH} elements and are walked cyclically with {@link #MASK}.
+ */
+final class Workload {
+    static final int LENGTH = 1 << 16;
+    static final int MASK = LENGTH - 1;
+
+    static final String RANDOM = "random";
+    static final String SEQUENTIAL = "sequential";
+    static final String LATEST = "latest";
+    static final String HISTORICAL = "historical";
+
+    private static final long SEED = 42;
+
+    private Workload() {
+    }
+
+    /**
+     * Returns indices below the specified bound, uniformly random or in increasing order.
+     */
+    static int[] indices(int bound, String pattern) {
+        Random random = new Random(SEED);
+        int[] indices = new int[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            switch (pattern) {
+                case RANDOM:
+                    indices[i] = random.nextInt(bound);
+                    break;
+                case SEQUENTIAL:
+                    indices[i] = i % bound;
+                    break;
+                default:
+                    throw new IllegalArgumentException(pattern);
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Returns versions uniformly random between the specified ones, both inclusive.
+     */
+    static int[] versions(int from, int to) {
+        Random random = new Random(SEED + 1);
+        int[] versions = new int[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            versions[i] = from + random.nextInt(to - from + 1);
+        }
+        return versions;
+    }
+
+    /**
+     * Returns which operations are updates, the specified share of them.
+     */
+    static boolean[] updates(double ratio) {
+        Random random = new Random(SEED + 2);
+        boolean[] updates = new boolean[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            updates[i] = random.nextDouble() < ratio;
+        }
+        return updates;
+    }
+
+    static boolean historical(String access) {
+        switch (access) {
+            case LATEST:
+                return false;
+            case HISTORICAL:
+                return true;
+            default:
+                throw new IllegalArgumentException(access);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered reader of the binary history format from an NIO channel, the counterpart of {@link BinaryWriter}.
+ */
+public class BinaryReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    /**
+     * Constructs a reader from the specified channel.
+     *
+     * @param channel channel to read from
+     */
+    public BinaryReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.flip();
+    }
+
+    /**
+     * Constructs a reader of the remaining bytes of the specified buffer, which are read in place without copying.
+     */
+    BinaryReader(ByteBuffer buffer) {
+        this.channel = null;
+        this.buffer = buffer;
+    }
+
+    public int readByte() throws IOException {
+        ensure(1);
+        return buffer.get() & 0xFF;
+    }
+
+    public int readInt() throws IOException {
+        ensure(4);
+        return buffer.getInt();
+    }
+
+    public long readLong() throws IOException {
+        ensure(8);
+        return buffer.getLong();
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+    }
+
+    public long readSignedVarLong() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads a value written by {@link BinaryWriter#writeNullable}.
+     *
+     * @param codec codec of the value
+     * @param <T>   type of the value
+     * @return the value or null
+     * @throws IOException if the channel fails or the tag is not a value tag
+     */
+    public <T> T readNullable(Codec<T> codec) throws IOException {
+        int tag = readByte();
+        if (tag == BinaryWriter.NULL)
+            return null;
+        if (tag != BinaryWriter.PRESENT)
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+        return codec.read(this);
+    }
+
+    /**
+     * Reads a state written by {@link BinaryWriter#writeState}, {@link PersistentMap#REMOVED} for a removed key.
+     *
+     * @param codec codec of the values
+     * @return the state of the key
+     * @throws IOException if the channel fails or the tag is not a state tag
+     */
+    Object readState(Codec<?> codec) throws IOException {
+        int tag = readByte();
+        if (tag == BinaryWriter.ABSENT)
+            return PersistentMap.REMOVED;
+        if (tag == BinaryWriter.NULL)
+            return null;
+        if (tag != BinaryWriter.PRESENT)
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+        return codec.read(this);
+    }
+
+    public byte[] readBytes() throws IOException {
+        return readFully(readVarInt());
+    }
+
+    /**
+     * Reads a byte array which cannot be longer than the specified bound, as when it ends a file of known size.
+     *
+     * @param maxLength largest length the array can have
+     * @return the bytes
+     * @throws EOFException if the length read is beyond the bound, so the array was cut short
+     */
+    byte[] readBytes(long maxLength) throws IOException {
+        int length = readVarInt();
+        if (length < 0 || length > maxLength)
+            throw new EOFException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+        return readFully(length);
+    }
+
+    private byte[] readFully(int count) throws IOException {
+        byte[] bytes = new byte[count];
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining())
+                fill();
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.get(bytes, offset, length);
+            offset += length;
+        }
+        return bytes;
+    }
+
+    public String readString() throws IOException {
+        return new String(readBytes(), StandardCharsets.UTF_8);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        while (buffer.remaining() < bytes) {
+            fill();
+        }
+    }
+
+    private void fill() throws IOException {
+        if (null == channel)
+            throw new EOFException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+        buffer.compact();
+        int read = channel.read(buffer);
+        buffer.flip();
+        if (read < 0)
+            throw new EOFException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+    }
+}
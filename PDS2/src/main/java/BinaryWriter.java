@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered writer of the binary history format to an NIO channel.
+ * Integers are written as varints, seven bits per byte with the high bit marking a continuation, so small numbers such as version gaps take one byte.
+ * Values which may be null or removed are written behind a one byte tag, shared by every file format.
+ */
+public class BinaryWriter {
+    /**
+     * Tag of a removed key.
+     */
+    static final int ABSENT = 0;
+    /**
+     * Tag of a null value.
+     */
+    static final int NULL = 1;
+    /**
+     * Tag of a value written by its codec.
+     */
+    static final int PRESENT = 2;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long drained;
+
+    /**
+     * Constructs a writer to the specified channel.
+     *
+     * @param channel channel to write to
+     */
+    public BinaryWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public void writeByte(int value) throws IOException {
+        ensure(1);
+        buffer.put((byte) value);
+    }
+
+    public void writeInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        ensure(8);
+        buffer.putLong(value);
+    }
+
+    public void writeDouble(double value) throws IOException {
+        writeLong(Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Writes a non-negative int in one to five bytes.
+     *
+     * @param value non-negative value
+     * @throws IOException if the channel fails
+     */
+    public void writeVarInt(int value) throws IOException {
+        ensure(5);
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Writes a non-negative long in one to ten bytes.
+     *
+     * @param value non-negative value
+     * @throws IOException if the channel fails
+     */
+    public void writeVarLong(long value) throws IOException {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Writes a signed long zigzag-encoded as a varint, so that values of small magnitude take few bytes whatever their sign.
+     *
+     * @param value value
+     * @throws IOException if the channel fails
+     */
+    public void writeSignedVarLong(long value) throws IOException {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Returns the number of bytes the specified non-negative int takes as a varint.
+     *
+     * @param value non-negative value
+     * @return the number of bytes of the varint
+     */
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a value which may be null behind its tag.
+     *
+     * @param value value or null
+     * @param codec codec of the value
+     * @param <T>   type of the value
+     * @throws IOException if the channel fails
+     */
+    public <T> void writeNullable(T value, Codec<? super T> codec) throws IOException {
+        if (null == value) {
+            writeByte(NULL);
+        } else {
+            writeByte(PRESENT);
+            codec.write(this, value);
+        }
+    }
+
+    /**
+     * Writes the state of a map key behind its tag: {@link PersistentMap#REMOVED}, null or a value.
+     *
+     * @param state state of the key
+     * @param codec codec of the values
+     * @param <T>   type of the values
+     * @throws IOException if the channel fails
+     */
+    @SuppressWarnings("unchecked")
+    <T> void writeState(Object state, Codec<T> codec) throws IOException {
+        if (state == PersistentMap.REMOVED)
+            writeByte(ABSENT);
+        else
+            writeNullable((T) state, codec);
+    }
+
+    public void writeBytes(byte[] bytes) throws IOException {
+        writeVarInt(bytes.length);
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining())
+                drain();
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    public void writeString(String value) throws IOException {
+        writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes the buffered bytes to the channel.
+     *
+     * @throws IOException if the channel fails
+     */
+    public void flush() throws IOException {
+        drain();
+    }
+
+    /**
+     * Returns the number of bytes written so far, including the buffered ones.
+     *
+     * @return the number of bytes written by this writer
+     */
+    public long position() {
+        return drained + buffer.position();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes)
+            drain();
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        drained += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over key hash codes, telling which segments of an {@link LsmPersistentMap} cannot hold a key.
+ * It never answers false for an added key, and answers true for an absent one with about a one percent chance at ten bits per key.
+ * Keys are hashed by their {@link Object#hashCode}, which must be the same in every process, as it is for strings and boxed numbers.
+ */
+class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASH_COUNT = 7;
+
+    private final long[] bits;
+
+    BloomFilter(int expectedKeys) {
+        bits = new long[Math.max(1, (int) (((long) expectedKeys * BITS_PER_KEY + 63) / 64))];
+    }
+
+    private BloomFilter(long[] bits) {
+        this.bits = bits;
+    }
+
+    void add(Object key) {
+        long hash = mix(key.hashCode());
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        long length = bits.length * 64L;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long bit = Integer.toUnsignedLong(first + i * second) % length;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(Object key) {
+        long hash = mix(key.hashCode());
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        long length = bits.length * 64L;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long bit = Integer.toUnsignedLong(first + i * second) % length;
+            if ((bits[(int) (bit >>> 6)] & 1L << bit) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    void write(BinaryWriter out) throws IOException {
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    static BloomFilter read(ByteBuffer buffer, int position) throws IOException {
+        int length = buffer.getInt(position);
+        if (length <= 0 || (long) position + 4 + 8L * length > buffer.limit())
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+        long[] bits = new long[length];
+        for (int i = 0; i < length; i++) {
+            bits[i] = buffer.getLong(position + 4 + 8 * i);
+        }
+        return new BloomFilter(bits);
+    }
+
+    /**
+     * Spreads a hash code over 64 bits, the finalizer of SplitMix64.
+     */
+    private static long mix(int hashCode) {
+        long z = hashCode + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
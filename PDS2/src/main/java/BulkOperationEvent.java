@@ -0,0 +1,43 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Creation of a version by a bulk write: {@code putAll}, {@code replaceAll} and {@code clear} of maps, {@code addAll},
+ * {@code removeAll}, {@code retainAll}, {@code replaceAll} and {@code clear} of lists.
+ * Only the writes lasting at least 1 ms are recorded by default.
+ */
+@Name("pds.BulkOperation")
+@Label("Bulk Operation")
+@Threshold("1 ms")
+public class BulkOperationEvent extends StructureEvent {
+    @Label("Operation")
+    String operation;
+
+    @Label("Version")
+    int version;
+
+    @Label("Elements")
+    @Description("Number of elements passed to the operation, or cleared")
+    int elements;
+
+    @Label("Size Delta")
+    @Description("Number of elements added to the structure, negative if removed")
+    int sizeDelta;
+
+    /**
+     * Ends the event and commits it if it is recorded.
+     */
+    void complete(Object structure, String operation, int version, int elements, int sizeDelta) {
+        end();
+        if (shouldCommit()) {
+            setStructure(structure);
+            this.operation = operation;
+            this.version = version;
+            this.elements = elements;
+            this.sizeDelta = sizeDelta;
+            commit();
+        }
+    }
+}
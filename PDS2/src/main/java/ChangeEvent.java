@@ -0,0 +1,40 @@
+/**
+ * Change delivered by a {@link ChangeFeed}: the version which made it and the key or index which was added, removed or changed.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public final class ChangeEvent<K, V> {
+    private final int version;
+    private final DiffEntry<K, V> entry;
+
+    ChangeEvent(int version, DiffEntry<K, V> entry) {
+        this.version = version;
+        this.entry = entry;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public DiffEntry.Kind getKind() {
+        return entry.getKind();
+    }
+
+    public K getKey() {
+        return entry.getKey();
+    }
+
+    public V getOldValue() {
+        return entry.getOldValue();
+    }
+
+    public V getNewValue() {
+        return entry.getNewValue();
+    }
+
+    @Override
+    public String toString() {
+        return version + ": " + entry;
+    }
+}
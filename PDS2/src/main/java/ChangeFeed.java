@@ -0,0 +1,191 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiFunction;
+
+/**
+ * Feed of the changes of a persistent structure, delivered to subscribed listeners in version order.
+ * The writer only announces new version numbers: the events of a version are computed by the subscriber's own thread
+ * from the diff of that version against the previous one, so nothing is copied while writing and a subscriber's buffer
+ * is simply the range of versions it has not consumed yet.
+ * A subscription is bounded by its capacity in versions, when it falls that far behind the writer waits for it.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public class ChangeFeed<K, V> {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final BiFunction<Integer, Integer, Iterator<DiffEntry<K, V>>> diff;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile int version;
+
+    /**
+     * Constructs a feed of the structure with the specified diff.
+     *
+     * @param diff differences between two published versions of the structure
+     */
+    ChangeFeed(BiFunction<Integer, Integer, Iterator<DiffEntry<K, V>>> diff) {
+        this.diff = diff;
+    }
+
+    /**
+     * Subscribes the specified listener to the versions published from now on, one version per call, with the default capacity.
+     *
+     * @param listener listener to be subscribed
+     * @return the new subscription
+     */
+    public Subscription subscribe(ChangeListener<K, V> listener) {
+        return subscribe(listener, DEFAULT_CAPACITY, false);
+    }
+
+    /**
+     * Subscribes the specified listener to the versions published from now on.
+     * In batching mode all versions pending at delivery time are coalesced into one call with at most one event per key,
+     * the version of those events being the newest one, so a slow listener catches up in one step instead of replaying every version.
+     *
+     * @param listener listener to be subscribed
+     * @param capacity number of versions the listener may fall behind before the writer waits for it
+     * @param batching true to coalesce pending versions
+     * @return the new subscription
+     */
+    public Subscription subscribe(ChangeListener<K, V> listener, int capacity, boolean batching) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.ILLEGAL_CAPACITY);
+        Subscription subscription = new Subscription(listener, capacity, batching);
+        subscriptions.add(subscription);
+        subscription.start(version);
+        return subscription;
+    }
+
+    /**
+     * Announces the specified published version to every subscription, waiting for those which are too far behind.
+     * Called by the writer of the structure.
+     *
+     * @param version newly published version
+     */
+    void publish(int version) {
+        this.version = version;
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(version);
+        }
+    }
+
+    /**
+     * Subscription of a listener, delivered by its own daemon thread.
+     */
+    public final class Subscription implements AutoCloseable {
+        private final ChangeListener<K, V> listener;
+        private final int capacity;
+        private final boolean batching;
+        private final Thread thread;
+        private int latest = -1;
+        private volatile int delivered = -1;
+        private boolean closed;
+
+        private Subscription(ChangeListener<K, V> listener, int capacity, boolean batching) {
+            this.listener = listener;
+            this.capacity = capacity;
+            this.batching = batching;
+            thread = new Thread(this::run, "change-feed");
+            thread.setDaemon(true);
+        }
+
+        private synchronized void start(int version) {
+            // the writer may already have offered a newer version
+            if (latest < version)
+                latest = version;
+            delivered = version;
+            thread.start();
+        }
+
+        /**
+         * Returns the newest version whose changes were delivered to the listener.
+         *
+         * @return the newest delivered version
+         */
+        public int getDeliveredVersion() {
+            return delivered;
+        }
+
+        /**
+         * Waits until the changes of the specified version are delivered or the subscription is closed.
+         *
+         * @param version version to wait for
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public synchronized void awaitDelivered(int version) throws InterruptedException {
+            while (!closed && delivered < version) {
+                wait();
+            }
+        }
+
+        /**
+         * Stops the delivery and releases the writer if it waits for this subscription.
+         */
+        @Override
+        public void close() {
+            subscriptions.remove(this);
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+        }
+
+        private synchronized void offer(int version) {
+            if (version <= latest)
+                return;
+            latest = version;
+            notifyAll();
+            if (delivered < 0)
+                return;
+            boolean interrupted = false;
+            while (!closed && latest - delivered > capacity) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        private void run() {
+            while (true) {
+                int from;
+                int to;
+                synchronized (this) {
+                    while (!closed && delivered == latest) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            closed = true;
+                        }
+                    }
+                    if (closed)
+                        return;
+                    from = delivered;
+                    to = batching ? latest : from + 1;
+                }
+                List<ChangeEvent<K, V>> events = new ArrayList<>();
+                Iterator<DiffEntry<K, V>> entries = diff.apply(from, to);
+                while (entries.hasNext()) {
+                    events.add(new ChangeEvent<>(to, entries.next()));
+                }
+                try {
+                    if (!events.isEmpty())
+                        listener.onChanges(events);
+                } catch (RuntimeException | Error e) {
+                    close();
+                    throw e;
+                }
+                synchronized (this) {
+                    delivered = to;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+import java.util.List;
+
+/**
+ * Receiver of the changes of a persistent structure, see {@link ChangeFeed}.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+@FunctionalInterface
+public interface ChangeListener<K, V> {
+
+    /**
+     * Receives the changes of one version, or of several coalesced versions in batching mode, in version order.
+     *
+     * @param events changes, never empty
+     */
+    void onChanges(List<ChangeEvent<K, V>> events);
+}
@@ -0,0 +1,417 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Coordinator of a persistent map partitioned across several processes, each serving its part with {@link PersistentMapServer},
+ * such as {@link PersistentMapPartition}s on the loopback interface. Keys are hashed into {@link #BUCKET_COUNT} buckets and every bucket
+ * is owned by one partition, which holds the keys of the bucket.
+ * <p>
+ * The coordinator is the only writer of the partitions and allocates global versions: every write creates the next global version
+ * and records which version of its partition it created. A global version thus maps to one version of every partition, the newest one
+ * created at or before it, and {@code get(key, version)} reads that version of the partition owning the key at that version,
+ * so any global version is a consistent state of the whole map.
+ * <p>
+ * Buckets are moved between partitions as one global version, which copies the mappings of the bucket to the new owner and removes them
+ * from the old one; reads of older versions still go to the old owner, whose history is kept. A move which fails is undone on both
+ * partitions, at once or before they are written again, so only recorded partition versions are ever read. Partitions can be added
+ * at any time and {@link #rebalance()} evens the buckets out across them. All operations are serialized by the coordinator.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public class ClusterCoordinator<K, V> implements AutoCloseable {
+    public static final int BUCKET_COUNT = 64;
+
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final List<PersistentMapClient<K, V>> partitions = new ArrayList<>();
+    /**
+     * The version of every partition holding its state at each global version.
+     */
+    private final List<VersionHistory<Integer>> partitionVersions = new ArrayList<>();
+    /**
+     * The partition owning every bucket at each global version.
+     */
+    private final List<VersionHistory<Integer>> owners = new ArrayList<>();
+    /**
+     * The writes undoing a failed bucket move on every partition, a value of {@link PersistentMap#REMOVED} removes the key.
+     */
+    private final List<Map<K, Object>> repairs = new ArrayList<>();
+    private int currentVersion = 0;
+
+    private ClusterCoordinator(Codec<K> keyCodec, Codec<V> valueCodec) {
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+    }
+
+    /**
+     * Connects to the partitions at the specified addresses, assigning the buckets to them in turn.
+     * The partitions must not be written by anything else than the coordinator from now on.
+     *
+     * @param addresses  addresses of the partitions
+     * @param keyCodec   codec of the keys
+     * @param valueCodec codec of the values
+     * @return the connected coordinator, at global version 0
+     * @throws IOException if a partition cannot be reached
+     */
+    public static <K, V> ClusterCoordinator<K, V> connect(List<InetSocketAddress> addresses, Codec<K> keyCodec, Codec<V> valueCodec)
+            throws IOException {
+        if (addresses.isEmpty())
+            throw new IllegalArgumentException(PersistentExceptionsMessege.ILLEGAL_SHARD_COUNT);
+        ClusterCoordinator<K, V> coordinator = new ClusterCoordinator<>(keyCodec, valueCodec);
+        try {
+            for (InetSocketAddress address : addresses) {
+                coordinator.addPartition(address);
+            }
+        } catch (IOException e) {
+            coordinator.close();
+            throw e;
+        }
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            coordinator.owners.add(new VersionHistory<>(0, bucket % addresses.size()));
+        }
+        return coordinator;
+    }
+
+    /**
+     * Returns the bucket of the specified key.
+     *
+     * @param key key
+     * @return the bucket of the key
+     */
+    public static int bucketOf(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Returns the latest global version.
+     *
+     * @return the latest global version
+     */
+    public synchronized int getCurrentVersion() {
+        return currentVersion;
+    }
+
+    /**
+     * Returns the number of partitions.
+     *
+     * @return the number of partitions
+     */
+    public synchronized int getPartitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * Returns the partition owning the specified bucket in the specified global version.
+     *
+     * @param bucket  bucket
+     * @param version global version
+     * @return the index of the owning partition
+     */
+    public synchronized int getOwner(int bucket, int version) {
+        checkVersion(version);
+        return owners.get(bucket).get(version);
+    }
+
+    /**
+     * Returns the partition owning the specified bucket in the latest global version.
+     *
+     * @param bucket bucket
+     * @return the index of the owning partition
+     */
+    public synchronized int getOwner(int bucket) {
+        return getOwner(bucket, currentVersion);
+    }
+
+    /**
+     * Connects to a new partition, which owns no bucket until buckets are moved to it.
+     *
+     * @param address address of the partition
+     * @return the index of the new partition
+     * @throws IOException if the partition cannot be reached
+     */
+    public synchronized int addPartition(InetSocketAddress address) throws IOException {
+        PersistentMapClient<K, V> client = PersistentMapClient.connect(address, keyCodec, valueCodec);
+        try {
+            partitionVersions.add(new VersionHistory<>(0, client.getCurrentVersion()));
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+        partitions.add(client);
+        repairs.add(new LinkedHashMap<>());
+        return partitions.size() - 1;
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped in the specified global version, or null if there is no mapping for the key.
+     *
+     * @param key     the key whose associated value is to be returned
+     * @param version global version
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     * @throws IOException if the partition cannot be reached
+     */
+    public synchronized V get(K key, int version) throws IOException {
+        checkVersion(version);
+        int partition = owners.get(bucketOf(key)).get(version);
+        return partitions.get(partition).get(key, partitionVersions.get(partition).get(version));
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped in the latest global version, or null if there is no mapping for the key.
+     *
+     * @param key the key whose associated value is to be returned
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     * @throws IOException if the partition cannot be reached
+     */
+    public synchronized V get(K key) throws IOException {
+        return get(key, currentVersion);
+    }
+
+    /**
+     * Returns the number of mappings in the specified global version, the sum of the sizes of the partitions in it.
+     *
+     * @param version global version
+     * @return number of mappings in the specified global version
+     * @throws IOException if a partition cannot be reached
+     */
+    public synchronized int size(int version) throws IOException {
+        checkVersion(version);
+        int size = 0;
+        for (int partition = 0; partition < partitions.size(); partition++) {
+            size += partitions.get(partition).size(partitionVersions.get(partition).get(version));
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of mappings in the latest global version.
+     *
+     * @return number of mappings in the latest global version
+     * @throws IOException if a partition cannot be reached
+     */
+    public synchronized int size() throws IOException {
+        return size(currentVersion);
+    }
+
+    /**
+     * Associates the specified value with the specified key in a new global version.
+     *
+     * @param key   key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @return the new global version
+     * @throws IOException if the partition cannot be reached
+     */
+    public synchronized int put(K key, V value) throws IOException {
+        int partition = owners.get(bucketOf(key)).get(currentVersion);
+        repair(partition);
+        return record(partition, partitions.get(partition).put(key, value));
+    }
+
+    /**
+     * Removes the mapping for the specified key in a new global version.
+     *
+     * @param key key whose mapping is to be removed
+     * @return the new global version
+     * @throws IOException if the partition cannot be reached
+     */
+    public synchronized int remove(K key) throws IOException {
+        int partition = owners.get(bucketOf(key)).get(currentVersion);
+        repair(partition);
+        return record(partition, partitions.get(partition).remove(key));
+    }
+
+    /**
+     * Moves the specified bucket to the specified partition in a new global version.
+     * If a partition fails during the move, the writes already made are undone, or undone before the next write to the partition
+     * if it cannot be reached, and the bucket stays with its owner.
+     *
+     * @param bucket    bucket to be moved
+     * @param partition index of the new owner
+     * @return the new global version, or the latest one if the partition already owns the bucket
+     * @throws IOException if a partition cannot be reached
+     */
+    public synchronized int moveBucket(int bucket, int partition) throws IOException {
+        if (partition < 0 || partition >= partitions.size())
+            throw new IllegalArgumentException(PersistentExceptionsMessege.NO_SUCH_PARTITION);
+        int from = owners.get(bucket).get(currentVersion);
+        if (from == partition)
+            return currentVersion;
+        return move(bucket, from, partition, scanBuckets(from).get(bucket));
+    }
+
+    /**
+     * Moves buckets from the partitions owning the most buckets to those owning the fewest until they differ by at most one.
+     * The moves are planned first, so every bucket moves at most once and every partition giving buckets away is scanned once.
+     *
+     * @return the latest global version after the moves
+     * @throws IOException if a partition cannot be reached
+     */
+    public synchronized int rebalance() throws IOException {
+        int[] planned = new int[BUCKET_COUNT];
+        int[] counts = new int[partitions.size()];
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            planned[bucket] = owners.get(bucket).get(currentVersion);
+            counts[planned[bucket]]++;
+        }
+        while (true) {
+            int most = 0;
+            int fewest = 0;
+            for (int partition = 1; partition < counts.length; partition++) {
+                if (counts[partition] > counts[most])
+                    most = partition;
+                if (counts[partition] < counts[fewest])
+                    fewest = partition;
+            }
+            if (counts[most] - counts[fewest] <= 1)
+                break;
+            for (int bucket = BUCKET_COUNT - 1; bucket >= 0; bucket--) {
+                if (planned[bucket] == most) {
+                    planned[bucket] = fewest;
+                    counts[most]--;
+                    counts[fewest]++;
+                    break;
+                }
+            }
+        }
+        for (int from = 0; from < partitions.size(); from++) {
+            Map<Integer, List<Map.Entry<K, V>>> entries = null;
+            for (int bucket = BUCKET_COUNT - 1; bucket >= 0; bucket--) {
+                if (owners.get(bucket).get(currentVersion) != from || planned[bucket] == from)
+                    continue;
+                if (null == entries)
+                    entries = scanBuckets(from);
+                move(bucket, from, planned[bucket], entries.get(bucket));
+            }
+        }
+        return currentVersion;
+    }
+
+    /**
+     * Closes the connections to the partitions.
+     *
+     * @throws IOException if a connection cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (PersistentMapClient<K, V> partition : partitions) {
+            partition.close();
+        }
+    }
+
+    /**
+     * Returns the mappings of the specified partition in the latest global version grouped by bucket, read with a single scan.
+     */
+    private Map<Integer, List<Map.Entry<K, V>>> scanBuckets(int partition) throws IOException {
+        Map<Integer, List<Map.Entry<K, V>>> buckets = new HashMap<>();
+        for (Map.Entry<K, V> entry : partitions.get(partition).scan(null, null, partitionVersions.get(partition).get(currentVersion), 0)) {
+            buckets.computeIfAbsent(bucketOf(entry.getKey()), bucket -> new ArrayList<>()).add(entry);
+        }
+        return buckets;
+    }
+
+    /**
+     * Copies the specified mappings of the bucket to its new owner, removes them from the old one and records both in a new global version.
+     * On failure the writes made are recorded as repairs of their partitions, which are applied at once and otherwise
+     * before the partition is written again, so the bucket is never split between two owners.
+     */
+    private int move(int bucket, int from, int partition, List<Map.Entry<K, V>> entries) throws IOException {
+        repair(from);
+        repair(partition);
+        int copied = -1;
+        int removed = -1;
+        if (null != entries) {
+            Map<K, Object> copies = new LinkedHashMap<>();
+            Map<K, Object> removals = new LinkedHashMap<>();
+            try {
+                PersistentMapClient<K, V>.Pipeline pipeline = partitions.get(partition).pipeline();
+                List<PersistentMapClient.Reply<Integer>> replies = new ArrayList<>();
+                for (Map.Entry<K, V> entry : entries) {
+                    replies.add(pipeline.put(entry.getKey(), entry.getValue()));
+                    copies.put(entry.getKey(), PersistentMap.REMOVED);
+                }
+                copied = sync(pipeline, replies);
+                pipeline = partitions.get(from).pipeline();
+                replies.clear();
+                for (Map.Entry<K, V> entry : entries) {
+                    replies.add(pipeline.remove(entry.getKey()));
+                    removals.put(entry.getKey(), entry.getValue());
+                }
+                removed = sync(pipeline, replies);
+            } catch (IOException | RuntimeException e) {
+                repairs.get(partition).putAll(copies);
+                repairs.get(from).putAll(removals);
+                try {
+                    repair(partition);
+                    repair(from);
+                } catch (IOException | RuntimeException failure) {
+                    e.addSuppressed(failure);
+                }
+                throw e;
+            }
+        }
+        currentVersion++;
+        if (null != entries) {
+            partitionVersions.get(partition).put(currentVersion, copied);
+            partitionVersions.get(from).put(currentVersion, removed);
+        }
+        owners.get(bucket).put(currentVersion, partition);
+        return currentVersion;
+    }
+
+    /**
+     * Applies the pending repairs of the specified partition, which restore the mappings of its recorded version
+     * after a failed bucket move. They are kept until they succeed.
+     */
+    private void repair(int partition) throws IOException {
+        Map<K, Object> pending = repairs.get(partition);
+        if (pending.isEmpty())
+            return;
+        PersistentMapClient<K, V>.Pipeline pipeline = partitions.get(partition).pipeline();
+        List<PersistentMapClient.Reply<Integer>> replies = new ArrayList<>();
+        for (Map.Entry<K, Object> write : pending.entrySet()) {
+            if (write.getValue() == PersistentMap.REMOVED)
+                replies.add(pipeline.remove(write.getKey()));
+            else
+                replies.add(pipeline.put(write.getKey(), valueOf(write.getValue())));
+        }
+        sync(pipeline, replies);
+        pending.clear();
+    }
+
+    /**
+     * Sends the queued writes of the pipeline and returns the partition version created by the last one,
+     * throwing if any of them failed.
+     */
+    private static int sync(PersistentMapClient<?, ?>.Pipeline pipeline, List<PersistentMapClient.Reply<Integer>> replies) throws IOException {
+        pipeline.sync();
+        int version = -1;
+        for (PersistentMapClient.Reply<Integer> reply : replies) {
+            version = reply.get();
+        }
+        return version;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueOf(Object value) {
+        return (V) value;
+    }
+
+    private int record(int partition, int partitionVersion) {
+        currentVersion++;
+        partitionVersions.get(partition).put(currentVersion, partitionVersion);
+        return currentVersion;
+    }
+
+    private void checkVersion(int version) {
+        if (version < 0 || version > currentVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+    }
+}
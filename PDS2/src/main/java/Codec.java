@@ -0,0 +1,73 @@
+import java.io.IOException;
+
+/**
+ * Binary encoding of keys or values in the history format. Codecs never see null, nulls are encoded by the format itself.
+ *
+ * @param <T> type of the encoded objects
+ */
+public interface Codec<T> {
+
+    Codec<Integer> INTEGER = new Codec<Integer>() {
+        @Override
+        public void write(BinaryWriter out, Integer value) throws IOException {
+            out.writeSignedVarLong(value);
+        }
+
+        @Override
+        public Integer read(BinaryReader in) throws IOException {
+            return (int) in.readSignedVarLong();
+        }
+    };
+
+    Codec<Long> LONG = new Codec<Long>() {
+        @Override
+        public void write(BinaryWriter out, Long value) throws IOException {
+            out.writeSignedVarLong(value);
+        }
+
+        @Override
+        public Long read(BinaryReader in) throws IOException {
+            return in.readSignedVarLong();
+        }
+    };
+
+    Codec<Double> DOUBLE = new Codec<Double>() {
+        @Override
+        public void write(BinaryWriter out, Double value) throws IOException {
+            out.writeDouble(value);
+        }
+
+        @Override
+        public Double read(BinaryReader in) throws IOException {
+            return in.readDouble();
+        }
+    };
+
+    Codec<String> STRING = new Codec<String>() {
+        @Override
+        public void write(BinaryWriter out, String value) throws IOException {
+            out.writeString(value);
+        }
+
+        @Override
+        public String read(BinaryReader in) throws IOException {
+            return in.readString();
+        }
+    };
+
+    Codec<byte[]> BYTES = new Codec<byte[]>() {
+        @Override
+        public void write(BinaryWriter out, byte[] value) throws IOException {
+            out.writeBytes(value);
+        }
+
+        @Override
+        public byte[] read(BinaryReader in) throws IOException {
+            return in.readBytes();
+        }
+    };
+
+    void write(BinaryWriter out, T value) throws IOException;
+
+    T read(BinaryReader in) throws IOException;
+}
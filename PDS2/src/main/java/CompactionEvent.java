@@ -0,0 +1,48 @@
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Compaction of the segments of a {@link LsmPersistentMap} into one, in the background or by {@code compact()}.
+ * Every compaction is recorded by default.
+ */
+@Name("pds.Compaction")
+@Label("Compaction")
+public class CompactionEvent extends StructureEvent {
+    @Label("Segments")
+    int segments;
+
+    @Label("Records Read")
+    long recordsIn;
+
+    @Label("Records Written")
+    long recordsOut;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesIn;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesOut;
+
+    @Label("Retention Floor")
+    int retentionFloor;
+
+    /**
+     * Ends the event and commits it if it is recorded.
+     */
+    void complete(Object structure, int segments, long recordsIn, long recordsOut, long bytesIn, long bytesOut, int retentionFloor) {
+        end();
+        if (shouldCommit()) {
+            setStructure(structure);
+            this.segments = segments;
+            this.recordsIn = recordsIn;
+            this.recordsOut = recordsOut;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.retentionFloor = retentionFloor;
+            commit();
+        }
+    }
+}
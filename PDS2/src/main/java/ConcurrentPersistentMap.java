@@ -0,0 +1,665 @@
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Persistent map for many concurrent writers.
+ * Keys are spread by hash over stripes, and every version of a stripe is the root of an immutable tree. A writer builds the tree
+ * of its update off the latest root of its stripe by path copying and publishes it with compare-and-set on that root, retrying on
+ * conflict, so writers of different stripes never contend for the same root and neither writers nor readers ever lock.
+ * A published root then takes the next map version from a global sequence; a writer numbers the latest root of its stripe before
+ * building on it, so the versions of a stripe follow the order of its roots and every version is a consistent snapshot.
+ * An update of several stripes installs its roots stripe by stripe and becomes visible only once all of them are in place; a
+ * writer which finds such an undecided update on its stripe waits briefly and then aborts it, so a stalled writer never blocks others.
+ * Under heavy contention a writer which keeps losing the race hands its update to a combiner thread which applies all of
+ * the pending updates and publishes them as one version.
+ * <p>
+ * Null keys and values are not allowed, a function returning null removes the mapping as in {@link Map#compute}.
+ * Keys must be comparable, and keys which compare as equal must have equal hash codes.
+ * Functions may be evaluated more than once when an update is retried, so they should be free of side effects.
+ * An update which does not change the map does not create a version.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public class ConcurrentPersistentMap<K, V> {
+    private static final int CAS_ATTEMPTS_BEFORE_COMBINING = 4;
+    private static final int YIELDS_BEFORE_ABORTING = 16;
+    private static final int STRIPES = Math.min(64, Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1) << 1);
+
+    /**
+     * Outcome and version of one update, shared by all of the roots the update installs.
+     */
+    private static final class Publication {
+        static final int UNDECIDED = 0;
+        static final int SUCCEEDED = 1;
+        static final int FAILED = 2;
+        static final int UNNUMBERED = -1;
+
+        final AtomicInteger status;
+        final AtomicInteger version = new AtomicInteger(UNNUMBERED);
+
+        Publication(int status) {
+            this.status = new AtomicInteger(status);
+        }
+
+        /**
+         * Returns true if the update is part of the specified version of the map.
+         */
+        boolean isVisibleIn(int mapVersion) {
+            int number = version.get();
+            return status.get() == SUCCEEDED && number != UNNUMBERED && number <= mapVersion;
+        }
+    }
+
+    /**
+     * Publication which took the latest version of the map.
+     */
+    private static final class Ticket {
+        final Publication publication;
+        final int version;
+
+        Ticket(Publication publication, int version) {
+            this.publication = publication;
+            this.version = version;
+        }
+
+        /**
+         * Hands the version of this ticket to its publication unless a helper already has.
+         */
+        void assign() {
+            publication.version.compareAndSet(Publication.UNNUMBERED, version);
+        }
+    }
+
+    private static final class Root<K, V> {
+        final PersistentTreeNode<K, V> tree;
+        final int size;
+        final Root<K, V> previous;
+        final Publication publication;
+        volatile boolean indexed;
+
+        Root(PersistentTreeNode<K, V> tree, int size, Root<K, V> previous, Publication publication) {
+            this.tree = tree;
+            this.size = size;
+            this.previous = previous;
+            this.publication = publication;
+        }
+    }
+
+    private static final class Stripe<K, V> {
+        final AtomicReference<Root<K, V>> head;
+        /**
+         * Numbered roots of this stripe by version, every root but the head is indexed.
+         */
+        final ConcurrentSkipListMap<Integer, Root<K, V>> roots = new ConcurrentSkipListMap<>();
+
+        Stripe(Root<K, V> root) {
+            head = new AtomicReference<>(root);
+            roots.put(0, root);
+            root.indexed = true;
+        }
+    }
+
+    private static final class Change<K, V> {
+        final K key;
+        final BiFunction<? super K, ? super V, ? extends V> function;
+        V oldValue;
+        V newValue;
+        /**
+         * Exception thrown by the function when a combiner applied it, rethrown by the writer of the change.
+         */
+        Throwable failure;
+        volatile boolean done;
+
+        Change(K key, BiFunction<? super K, ? super V, ? extends V> function) {
+            this.key = key;
+            this.function = function;
+        }
+    }
+
+    private final List<Stripe<K, V>> stripes;
+    private final AtomicReference<Ticket> sequence;
+    private final int casAttempts;
+    private final ConcurrentLinkedQueue<Change<K, V>> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean combinerLock = new AtomicBoolean();
+
+    /**
+     * Constructs an empty map which combines updates under heavy contention.
+     */
+    public ConcurrentPersistentMap() {
+        this(true);
+    }
+
+    /**
+     * Constructs an empty map.
+     *
+     * @param combining true if writers which keep losing the compare-and-set race should hand their updates to a combiner
+     */
+    public ConcurrentPersistentMap(boolean combining) {
+        this(combining ? CAS_ATTEMPTS_BEFORE_COMBINING : -1);
+    }
+
+    /**
+     * Constructs an empty map.
+     *
+     * @param casAttempts number of failed compare-and-set attempts after which a writer hands its update to a combiner, negative for never
+     */
+    ConcurrentPersistentMap(int casAttempts) {
+        this(STRIPES, casAttempts);
+    }
+
+    /**
+     * Constructs an empty map.
+     *
+     * @param stripes     number of stripes the keys are spread over
+     * @param casAttempts number of failed compare-and-set attempts after which a writer hands its update to a combiner, negative for never
+     */
+    ConcurrentPersistentMap(int stripes, int casAttempts) {
+        if (stripes <= 0)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.ILLEGAL_STRIPE_COUNT);
+        Publication initial = new Publication(Publication.SUCCEEDED);
+        initial.version.set(0);
+        List<Stripe<K, V>> list = new ArrayList<>(stripes);
+        for (int i = 0; i < stripes; i++)
+            list.add(new Stripe<>(new Root<>(null, 0, null, initial)));
+        this.stripes = Collections.unmodifiableList(list);
+        this.sequence = new AtomicReference<>(new Ticket(initial, 0));
+        this.casAttempts = casAttempts;
+    }
+
+    /**
+     * Returns the latest version of this map.
+     *
+     * @return the latest version of this map
+     */
+    public int getCurrentVersion() {
+        Ticket latest = sequence.get();
+        latest.assign();
+        return latest.version;
+    }
+
+    /**
+     * Returns the number of elements in the specified version of this map.
+     *
+     * @param version version of this map
+     * @return number of elements in the specified version of this map
+     */
+    public int size(int version) {
+        checkVersion(version);
+        int size = 0;
+        for (Stripe<K, V> stripe : stripes)
+            size += rootAt(stripe, version).size;
+        return size;
+    }
+
+    /**
+     * Returns the number of elements in the latest version of this map.
+     *
+     * @return number of elements in the latest version of this map
+     */
+    public int size() {
+        return size(getCurrentVersion());
+    }
+
+    /**
+     * Returns true if the specified version of this map contains no elements.
+     *
+     * @param version version of this map
+     * @return true if the specified version of this map contains no elements
+     */
+    public boolean isEmpty(int version) {
+        return size(version) == 0;
+    }
+
+    /**
+     * Returns true if the latest version of this map contains no elements.
+     *
+     * @return true if the latest version of this map contains no elements
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns true if the specified version of this map contains a mapping for the specified key.
+     *
+     * @param key     key whose presence in this map is to be tested
+     * @param version version of this map
+     * @return true if the specified version of this map contains a mapping for the specified key
+     */
+    public boolean containsKey(Object key, int version) {
+        checkVersion(version);
+        return null != PersistentTreeNode.find(rootAt(stripeOf(key), version).tree, key);
+    }
+
+    /**
+     * Returns true if the latest version of this map contains a mapping for the specified key.
+     *
+     * @param key key whose presence in this map is to be tested
+     * @return true if the latest version of this map contains a mapping for the specified key
+     */
+    public boolean containsKey(Object key) {
+        return null != PersistentTreeNode.find(latestRoot(stripeOf(key)).tree, key);
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped in the specified version of this map, or null if there is no mapping for the key.
+     *
+     * @param key     the key whose associated value is to be returned
+     * @param version version of this map
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     */
+    public V get(Object key, int version) {
+        checkVersion(version);
+        return valueOrNull(PersistentTreeNode.find(rootAt(stripeOf(key), version).tree, key));
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped in the latest version of this map, or null if there is no mapping for the key.
+     *
+     * @param key the key whose associated value is to be returned
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     */
+    public V get(Object key) {
+        return valueOrNull(PersistentTreeNode.find(latestRoot(stripeOf(key)).tree, key));
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped in the latest version of this map, or defaultValue if there is no mapping for the key.
+     *
+     * @param key          the key whose associated value is to be returned
+     * @param defaultValue the default mapping of the key
+     * @return the value to which the specified key is mapped, or defaultValue if there is no mapping for the key
+     */
+    public V getOrDefault(Object key, V defaultValue) {
+        PersistentTreeNode<K, V> node = PersistentTreeNode.find(latestRoot(stripeOf(key)).tree, key);
+        return null == node ? defaultValue : node.value;
+    }
+
+    /**
+     * Returns an iterator over the entries of the specified version of this map in ascending key order.
+     * The trees of the stripes are merged as the iterator advances.
+     *
+     * @param version version of this map
+     * @return an iterator over the entries of the specified version of this map in ascending key order
+     */
+    public Iterator<Map.Entry<K, V>> entryIterator(int version) {
+        checkVersion(version);
+        PriorityQueue<TreeCursor<K, V>> cursors = new PriorityQueue<>(stripes.size(),
+                (a, b) -> PersistentTreeNode.compare(a.peek().key, b.peek().key));
+        for (Stripe<K, V> stripe : stripes) {
+            TreeCursor<K, V> cursor = new TreeCursor<>(rootAt(stripe, version).tree);
+            if (cursor.hasNext())
+                cursors.add(cursor);
+        }
+        return new Iterator<Map.Entry<K, V>>() {
+            @Override
+            public boolean hasNext() {
+                return !cursors.isEmpty();
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                TreeCursor<K, V> cursor = cursors.poll();
+                if (null == cursor)
+                    throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_ELEMENT);
+                PersistentTreeNode<K, V> node = cursor.next();
+                if (cursor.hasNext())
+                    cursors.add(cursor);
+                return new AbstractMap.SimpleImmutableEntry<>(node.key, node.value);
+            }
+        };
+    }
+
+    /**
+     * In-order walk over the nodes of one tree.
+     */
+    private static final class TreeCursor<K, V> {
+        private final ArrayDeque<PersistentTreeNode<K, V>> path = new ArrayDeque<>();
+
+        TreeCursor(PersistentTreeNode<K, V> tree) {
+            pushLeft(tree);
+        }
+
+        private void pushLeft(PersistentTreeNode<K, V> node) {
+            for (; null != node; node = node.left)
+                path.push(node);
+        }
+
+        boolean hasNext() {
+            return !path.isEmpty();
+        }
+
+        PersistentTreeNode<K, V> peek() {
+            return path.peek();
+        }
+
+        PersistentTreeNode<K, V> next() {
+            PersistentTreeNode<K, V> node = path.pop();
+            pushLeft(node.right);
+            return node;
+        }
+    }
+
+    /**
+     * Associates the specified value with the specified key in a new version of this map.
+     *
+     * @param key   key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @return the previous value associated with key, or null if there was no mapping for key
+     */
+    public V put(K key, V value) {
+        checkNotNull(value);
+        return change(key, (k, oldValue) -> value).oldValue;
+    }
+
+    /**
+     * Associates the specified value with the specified key in a new version of this map if the key is not already mapped.
+     *
+     * @param key   key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @return the current value associated with key, or null if there was no mapping for key
+     */
+    public V putIfAbsent(K key, V value) {
+        checkNotNull(value);
+        return change(key, (k, oldValue) -> null == oldValue ? value : oldValue).oldValue;
+    }
+
+    /**
+     * Removes the mapping for the specified key in a new version of this map.
+     *
+     * @param key key whose mapping is to be removed from the map
+     * @return the previous value associated with key, or null if there was no mapping for key
+     */
+    public V remove(K key) {
+        return change(key, (k, oldValue) -> null).oldValue;
+    }
+
+    /**
+     * Atomically computes a new mapping for the specified key from its current mapping.
+     *
+     * @param key               key with which the computed value is to be associated
+     * @param remappingFunction the function computing the new value from the current one, or from null if there is none
+     * @return the new value associated with key, or null if there is none
+     */
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        return change(key, remappingFunction).newValue;
+    }
+
+    /**
+     * Atomically computes a mapping for the specified key if it is not already mapped.
+     *
+     * @param key             key with which the computed value is to be associated
+     * @param mappingFunction the function computing the value
+     * @return the current (existing or computed) value associated with key, or null if the computed value is null
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        return change(key, (k, oldValue) -> null == oldValue ? mappingFunction.apply(k) : oldValue).newValue;
+    }
+
+    /**
+     * Atomically computes a new mapping for the specified key if it is already mapped.
+     *
+     * @param key               key with which the computed value is to be associated
+     * @param remappingFunction the function computing the new value from the current one
+     * @return the new value associated with key, or null if there is none
+     */
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        return change(key, (k, oldValue) -> null == oldValue ? null : remappingFunction.apply(k, oldValue)).newValue;
+    }
+
+    /**
+     * Atomically associates the specified value with the key if it is not mapped, or combines it with the current value otherwise.
+     *
+     * @param key               key with which the resulting value is to be associated
+     * @param value             the value to be merged with the existing value
+     * @param remappingFunction the function combining the current value with the specified one
+     * @return the new value associated with key, or null if there is none
+     */
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        checkNotNull(value);
+        return change(key, (k, oldValue) -> null == oldValue ? value : remappingFunction.apply(oldValue, value)).newValue;
+    }
+
+    /**
+     * Copies all of the mappings from the specified map to this map atomically as one new version.
+     *
+     * @param m mappings to be stored in this map
+     */
+    public void putAll(Map<? extends K, ? extends V> m) {
+        List<Change<K, V>> changes = new ArrayList<>();
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            V value = entry.getValue();
+            checkNotNull(entry.getKey());
+            checkNotNull(value);
+            changes.add(new Change<>(entry.getKey(), (k, oldValue) -> value));
+        }
+        while (!applyBatch(changes, false)) {
+            Thread.yield();
+        }
+    }
+
+    private Change<K, V> change(K key, BiFunction<? super K, ? super V, ? extends V> function) {
+        checkNotNull(key);
+        Change<K, V> change = new Change<>(key, function);
+        Stripe<K, V> stripe = stripeOf(key);
+        for (int attempt = 0; casAttempts < 0 || attempt < casAttempts; attempt++) {
+            Root<K, V> base = settledHead(stripe);
+            PersistentTreeNode<K, V> tree = apply(base.tree, change);
+            if (tree == base.tree)
+                return change;
+            Publication publication = new Publication(Publication.SUCCEEDED);
+            if (stripe.head.compareAndSet(base, new Root<>(tree, base.size + sizeDelta(change), base, publication))) {
+                number(publication);
+                return change;
+            }
+        }
+        pending.add(change);
+        while (!change.done) {
+            if (combinerLock.compareAndSet(false, true)) {
+                try {
+                    combine();
+                } finally {
+                    combinerLock.set(false);
+                }
+            } else {
+                Thread.yield();
+            }
+        }
+        if (change.failure instanceof Error)
+            throw (Error) change.failure;
+        if (null != change.failure)
+            throw (RuntimeException) change.failure;
+        return change;
+    }
+
+    /**
+     * Applies all of the pending changes as one version.
+     * A change whose function throws is left out of the version and its exception is handed back to its writer,
+     * so one failing function never holds up the other writers of the batch.
+     */
+    private void combine() {
+        List<Change<K, V>> batch = new ArrayList<>();
+        for (Change<K, V> change = pending.poll(); null != change; change = pending.poll()) {
+            batch.add(change);
+        }
+        if (batch.isEmpty())
+            return;
+        try {
+            while (!applyBatch(batch, true)) {
+                Thread.yield();
+            }
+        } finally {
+            for (Change<K, V> change : batch) {
+                change.done = true;
+            }
+        }
+    }
+
+    /**
+     * Tries to publish all of the changes as one version.
+     * The new roots are installed in ascending stripe order under one undecided publication, which is then decided by a single
+     * compare-and-set. If another writer aborts the publication first, the batch fails and whoever finds its roots rolls them back.
+     * If failures are isolated, a change whose function throws keeps the exception as its failure and is skipped,
+     * otherwise the exception propagates and nothing is published.
+     *
+     * @return false if another writer got in the way
+     */
+    private boolean applyBatch(List<Change<K, V>> changes, boolean isolateFailures) {
+        TreeMap<Integer, List<Change<K, V>>> byStripe = new TreeMap<>();
+        for (Change<K, V> change : changes) {
+            if (null == change.failure)
+                byStripe.computeIfAbsent(stripeIndexOf(change.key), i -> new ArrayList<>()).add(change);
+        }
+        Publication publication = new Publication(Publication.UNDECIDED);
+        boolean installed = false;
+        try {
+            for (Map.Entry<Integer, List<Change<K, V>>> entry : byStripe.entrySet()) {
+                Stripe<K, V> stripe = stripes.get(entry.getKey());
+                Root<K, V> base = settledHead(stripe);
+                PersistentTreeNode<K, V> tree = base.tree;
+                int size = base.size;
+                for (Change<K, V> change : entry.getValue()) {
+                    try {
+                        tree = apply(tree, change);
+                    } catch (RuntimeException | Error e) {
+                        if (!isolateFailures)
+                            throw e;
+                        change.failure = e;
+                        continue;
+                    }
+                    size += sizeDelta(change);
+                }
+                if (tree == base.tree)
+                    continue;
+                if (publication.status.get() != Publication.UNDECIDED
+                        || !stripe.head.compareAndSet(base, new Root<>(tree, size, base, publication)))
+                    return false;
+                installed = true;
+            }
+            if (installed && !publication.status.compareAndSet(Publication.UNDECIDED, Publication.SUCCEEDED))
+                return false;
+        } finally {
+            publication.status.compareAndSet(Publication.UNDECIDED, Publication.FAILED);
+        }
+        if (installed)
+            number(publication);
+        return true;
+    }
+
+    private PersistentTreeNode<K, V> apply(PersistentTreeNode<K, V> tree, Change<K, V> change) {
+        PersistentTreeNode<K, V> node = PersistentTreeNode.find(tree, change.key);
+        change.oldValue = valueOrNull(node);
+        change.newValue = change.function.apply(change.key, change.oldValue);
+        if (null == change.newValue)
+            return PersistentTreeNode.remove(tree, change.key);
+        return PersistentTreeNode.put(tree, change.key, change.newValue);
+    }
+
+    private int sizeDelta(Change<K, V> change) {
+        if (null == change.oldValue)
+            return null == change.newValue ? 0 : 1;
+        return null == change.newValue ? -1 : 0;
+    }
+
+    /**
+     * Returns the head of the stripe once it is published, numbered and indexed, so that a new root can be built on it.
+     * A failed head is rolled back, an undecided one is waited for and aborted if it takes too long.
+     */
+    private Root<K, V> settledHead(Stripe<K, V> stripe) {
+        for (;;) {
+            Root<K, V> head = stripe.head.get();
+            Publication publication = head.publication;
+            int status = publication.status.get();
+            if (status == Publication.UNDECIDED) {
+                for (int i = 0; i < YIELDS_BEFORE_ABORTING && publication.status.get() == Publication.UNDECIDED; i++)
+                    Thread.yield();
+                publication.status.compareAndSet(Publication.UNDECIDED, Publication.FAILED);
+            } else if (status == Publication.FAILED) {
+                stripe.head.compareAndSet(head, head.previous);
+            } else {
+                number(publication);
+                if (!head.indexed) {
+                    stripe.roots.put(publication.version.get(), head);
+                    head.indexed = true;
+                }
+                return head;
+            }
+        }
+    }
+
+    /**
+     * Gives the publication the next version of the map unless it already has one.
+     * The latest ticket is always assigned before it is replaced, so the versions have no holes.
+     */
+    private void number(Publication publication) {
+        for (;;) {
+            Ticket latest = sequence.get();
+            latest.assign();
+            if (publication.version.get() != Publication.UNNUMBERED)
+                return;
+            Ticket next = new Ticket(publication, latest.version + 1);
+            if (sequence.compareAndSet(latest, next)) {
+                next.assign();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the latest published root of the stripe, numbering it if its writer has not yet.
+     */
+    private Root<K, V> latestRoot(Stripe<K, V> stripe) {
+        Root<K, V> head = stripe.head.get();
+        if (head.publication.status.get() != Publication.SUCCEEDED)
+            return head.previous;
+        number(head.publication);
+        return head;
+    }
+
+    private Root<K, V> rootAt(Stripe<K, V> stripe, int version) {
+        Root<K, V> head = stripe.head.get();
+        if (head.publication.isVisibleIn(version))
+            return head;
+        // every root but the head is indexed, and a head numbered after the version was checked is newer than it
+        return stripe.roots.floorEntry(version).getValue();
+    }
+
+    private void checkVersion(int version) {
+        if (version < 0 || version > getCurrentVersion())
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+    }
+
+    private Stripe<K, V> stripeOf(Object key) {
+        return stripes.get(stripeIndexOf(key));
+    }
+
+    private int stripeIndexOf(Object key) {
+        int hash = key.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), stripes.size());
+    }
+
+    private static <V> V valueOrNull(PersistentTreeNode<?, V> node) {
+        return null == node ? null : node.value;
+    }
+
+    private static void checkNotNull(Object o) {
+        if (null == o)
+            throw new NullPointerException();
+    }
+}
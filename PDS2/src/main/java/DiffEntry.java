@@ -0,0 +1,126 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * One difference between two versions of a persistent structure: a key or an index which was added, removed or changed its value.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public final class DiffEntry<K, V> {
+
+    /**
+     * Kind of a difference.
+     */
+    public enum Kind {
+        ADDED,
+        REMOVED,
+        CHANGED
+    }
+
+    private final Kind kind;
+    private final K key;
+    private final V oldValue;
+    private final V newValue;
+
+    private DiffEntry(Kind kind, K key, V oldValue, V newValue) {
+        this.kind = kind;
+        this.key = key;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    /**
+     * Returns the difference between the two states of a key, or null if there is none.
+     *
+     * @param key        key or index
+     * @param oldPresent true if the key is present in the old version
+     * @param oldValue   value of the key in the old version
+     * @param newPresent true if the key is present in the new version
+     * @param newValue   value of the key in the new version
+     * @return the difference between the two states of the key, or null if there is none
+     */
+    static <K, V> DiffEntry<K, V> of(K key, boolean oldPresent, V oldValue, boolean newPresent, V newValue) {
+        if (!oldPresent)
+            return newPresent ? new DiffEntry<>(Kind.ADDED, key, null, newValue) : null;
+        if (!newPresent)
+            return new DiffEntry<>(Kind.REMOVED, key, oldValue, null);
+        return Objects.equals(oldValue, newValue) ? null : new DiffEntry<>(Kind.CHANGED, key, oldValue, newValue);
+    }
+
+    /**
+     * Returns an iterator over the differences of the specified candidates, computed one at a time as the iterator advances.
+     *
+     * @param candidates keys which may differ
+     * @param diff       function returning the difference of a candidate, or null if it does not differ
+     * @return an iterator over the differences of the candidates
+     */
+    static <C, K, V> Iterator<DiffEntry<K, V>> lazily(Iterator<C> candidates, Function<C, DiffEntry<K, V>> diff) {
+        return new Iterator<DiffEntry<K, V>>() {
+            private DiffEntry<K, V> next;
+
+            @Override
+            public boolean hasNext() {
+                while (null == next && candidates.hasNext()) {
+                    next = diff.apply(candidates.next());
+                }
+                return null != next;
+            }
+
+            @Override
+            public DiffEntry<K, V> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_ELEMENT);
+                DiffEntry<K, V> result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Returns the same difference for another key.
+     */
+    DiffEntry<K, V> withKey(K key) {
+        return new DiffEntry<>(kind, key, oldValue, newValue);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public K getKey() {
+        return key;
+    }
+
+    public V getOldValue() {
+        return oldValue;
+    }
+
+    public V getNewValue() {
+        return newValue;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof DiffEntry))
+            return false;
+        DiffEntry<?, ?> other = (DiffEntry<?, ?>) o;
+        return kind == other.kind && Objects.equals(key, other.key)
+                && Objects.equals(oldValue, other.oldValue) && Objects.equals(newValue, other.newValue);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, key, oldValue, newValue);
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + key + ": " + oldValue + " -> " + newValue;
+    }
+}
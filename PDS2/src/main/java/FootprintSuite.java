@@ -0,0 +1,237 @@
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Scripted workloads measuring the heap retained by the persistent structures with {@link HeapFootprint}, for capacity planning
+ * and to catch footprint regressions. Every workload builds a structure with a fixed seed and reports the bytes it retains per element
+ * of its latest version, per version and per fat-node entry, the entries of every {@link VersionHistory} it holds.
+ * The stored elements are left out, so the figures are the overhead of the structure alone.
+ * <p>
+ * {@link #main} prints the measurements as properties, the format of the thresholds checked by the tests.
+ */
+public class FootprintSuite {
+    private static final long SEED = 42;
+    private static final int ELEMENTS = 10_000;
+    private static final int EDITED_ELEMENTS = 1_000;
+    private static final int EDITS = 10_000;
+
+    private static final Map<String, Function<List<Object>, Object>> WORKLOADS = new LinkedHashMap<>();
+
+    static {
+        WORKLOADS.put("array-append", FootprintSuite::arrayAppend);
+        WORKLOADS.put("array-replace", FootprintSuite::arrayReplace);
+        WORKLOADS.put("list-append", FootprintSuite::listAppend);
+        WORKLOADS.put("list-edit", FootprintSuite::listEdit);
+        WORKLOADS.put("map-insert", FootprintSuite::mapInsert);
+        WORKLOADS.put("map-overwrite", FootprintSuite::mapOverwrite);
+    }
+
+    private FootprintSuite() {
+    }
+
+    /**
+     * Footprint of the structure built by a workload.
+     */
+    public static final class Measurement {
+        private final String workload;
+        private final HeapFootprint footprint;
+        private final int elements;
+        private final int versions;
+        private final long entries;
+
+        private Measurement(String workload, HeapFootprint footprint, int elements, int versions, long entries) {
+            this.workload = workload;
+            this.footprint = footprint;
+            this.elements = elements;
+            this.versions = versions;
+            this.entries = entries;
+        }
+
+        public String getWorkload() {
+            return workload;
+        }
+
+        public HeapFootprint getFootprint() {
+            return footprint;
+        }
+
+        /**
+         * Returns the number of elements in the latest version.
+         *
+         * @return the number of elements
+         */
+        public int getElements() {
+            return elements;
+        }
+
+        /**
+         * Returns the number of versions after the empty one.
+         *
+         * @return the number of versions
+         */
+        public int getVersions() {
+            return versions;
+        }
+
+        /**
+         * Returns the number of fat-node entries.
+         *
+         * @return the number of entries
+         */
+        public long getEntries() {
+            return entries;
+        }
+
+        public double getBytesPerElement() {
+            return (double) footprint.getBytes() / elements;
+        }
+
+        public double getBytesPerVersion() {
+            return (double) footprint.getBytes() / versions;
+        }
+
+        public double getBytesPerEntry() {
+            return (double) footprint.getBytes() / entries;
+        }
+    }
+
+    /**
+     * Returns the names of the workloads, in the order they are run.
+     *
+     * @return the names of the workloads
+     */
+    public static Set<String> workloads() {
+        return Collections.unmodifiableSet(WORKLOADS.keySet());
+    }
+
+    /**
+     * Runs the specified workload and measures the structure it builds.
+     *
+     * @param workload name of the workload
+     * @return the measurement
+     */
+    public static Measurement measure(String workload) {
+        Function<List<Object>, Object> script = WORKLOADS.get(workload);
+        if (null == script)
+            throw new IllegalArgumentException(workload);
+        List<Object> elements = new ArrayList<>();
+        Object structure = script.apply(elements);
+        long[] entries = new long[1];
+        HeapFootprint footprint = HeapFootprint.of(structure, elements, object -> {
+            if (object instanceof VersionHistory)
+                entries[0] += ((VersionHistory<?>) object).size();
+        });
+        int size;
+        int versions;
+        if (structure instanceof PersistentArray) {
+            size = ((PersistentArray<?>) structure).getLength();
+            versions = ((PersistentArray<?>) structure).getCurrentVersion();
+        } else if (structure instanceof PersistentLinkedList) {
+            size = ((PersistentLinkedList<?>) structure).size();
+            versions = ((PersistentLinkedList<?>) structure).getCurrentVersion();
+        } else {
+            size = ((PersistentMap<?, ?>) structure).size();
+            versions = ((PersistentMap<?, ?>) structure).getCurrentVersion();
+        }
+        return new Measurement(workload, footprint, size, versions, entries[0]);
+    }
+
+    /**
+     * Prints the measurements of all workloads, or of the specified ones, as properties.
+     *
+     * @param args names of the workloads to run, all if none
+     */
+    public static void main(String[] args) {
+        for (String workload : args.length == 0 ? workloads() : Arrays.asList(args)) {
+            Measurement measurement = measure(workload);
+            HeapFootprint footprint = measurement.getFootprint();
+            System.out.printf(Locale.ROOT, "# %d bytes in %d objects, %d elements, %d versions, %d entries%n", footprint.getBytes(),
+                    footprint.getObjects(), measurement.getElements(), measurement.getVersions(), measurement.getEntries());
+            if (footprint.getOpaqueObjects() > 0)
+                System.out.printf(Locale.ROOT, "# %d objects not walked, open their packages%n", footprint.getOpaqueObjects());
+            System.out.printf(Locale.ROOT, "%s.bytesPerElement=%.1f%n", workload, measurement.getBytesPerElement());
+            System.out.printf(Locale.ROOT, "%s.bytesPerVersion=%.1f%n", workload, measurement.getBytesPerVersion());
+            System.out.printf(Locale.ROOT, "%s.bytesPerEntry=%.1f%n", workload, measurement.getBytesPerEntry());
+        }
+    }
+
+    private static Object element(List<Object> elements, int i) {
+        Object element = "e" + i;
+        elements.add(element);
+        return element;
+    }
+
+    private static Object arrayAppend(List<Object> elements) {
+        PersistentArray<Object> array = new PersistentArray<>();
+        for (int i = 0; i < ELEMENTS; i++) {
+            array.add(element(elements, i));
+        }
+        return array;
+    }
+
+    private static Object arrayReplace(List<Object> elements) {
+        Random random = new Random(SEED);
+        PersistentArray<Object> array = new PersistentArray<>();
+        for (int i = 0; i < EDITED_ELEMENTS; i++) {
+            array.add(element(elements, i));
+        }
+        for (int i = 0; i < EDITS; i++) {
+            array.replace(random.nextInt(EDITED_ELEMENTS), element(elements, i));
+        }
+        return array;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object listAppend(List<Object> elements) {
+        PersistentLinkedList<Object> list = new PersistentLinkedList<>();
+        for (int i = 0; i < ELEMENTS; i++) {
+            list.add(element(elements, i));
+        }
+        return list;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object listEdit(List<Object> elements) {
+        Random random = new Random(SEED);
+        PersistentLinkedList<Object> list = new PersistentLinkedList<>();
+        for (int i = 0; i < EDITED_ELEMENTS; i++) {
+            list.add(element(elements, i));
+        }
+        for (int i = 0; i < EDITS; i++) {
+            int operation = random.nextInt(3);
+            if (operation == 0 || list.isEmpty())
+                list.add(random.nextInt(list.size() + 1), element(elements, i));
+            else if (operation == 1)
+                list.set(random.nextInt(list.size()), element(elements, i));
+            else
+                list.remove(random.nextInt(list.size()));
+        }
+        return list;
+    }
+
+    private static Object mapInsert(List<Object> elements) {
+        PersistentMap<Object, Object> map = new PersistentMap<>();
+        for (int i = 0; i < ELEMENTS; i++) {
+            map.put(element(elements, i), element(elements, i));
+        }
+        return map;
+    }
+
+    private static Object mapOverwrite(List<Object> elements) {
+        Random random = new Random(SEED);
+        PersistentMap<Object, Object> map = new PersistentMap<>();
+        Object[] keys = new Object[EDITED_ELEMENTS];
+        for (int i = 0; i < EDITED_ELEMENTS; i++) {
+            keys[i] = element(elements, i);
+            map.put(keys[i], element(elements, i));
+        }
+        for (int i = 0; i < EDITS; i++) {
+            Object key = keys[random.nextInt(EDITED_ELEMENTS)];
+            if (random.nextInt(4) == 0)
+                map.remove(key);
+            else
+                map.put(key, element(elements, i));
+        }
+        return map;
+    }
+}
@@ -0,0 +1,37 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Scan of every key of a {@link PersistentMap}, by {@code keySet}, {@code values}, {@code entrySet} or {@code containsValue}.
+ * Only the scans lasting at least 1 ms are recorded by default.
+ */
+@Name("pds.FullScan")
+@Label("Full Scan")
+@Threshold("1 ms")
+public class FullScanEvent extends StructureEvent {
+    @Label("Operation")
+    String operation;
+
+    @Label("Version")
+    int version;
+
+    @Label("Scanned Keys")
+    @Description("Number of keys visited, removed ones included")
+    int scanned;
+
+    /**
+     * Ends the event and commits it if it is recorded.
+     */
+    void complete(Object structure, String operation, int version, int scanned) {
+        end();
+        if (shouldCommit()) {
+            setStructure(structure);
+            this.operation = operation;
+            this.version = version;
+            this.scanned = scanned;
+            commit();
+        }
+    }
+}
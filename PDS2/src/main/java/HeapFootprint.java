@@ -0,0 +1,236 @@
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Estimate of the heap retained by an object graph, found by walking every object reachable from a root through instance fields
+ * and array elements, each counted once. Static fields are not followed, nor classes, class loaders and threads,
+ * and excluded objects, such as the elements stored in a structure, are neither counted nor walked.
+ * <p>
+ * Sizes follow the layout of a 64-bit HotSpot JVM with compressed references and class pointers, the default for heaps below 32 GiB:
+ * a 12-byte object header (16 bytes for arrays), 4-byte references and objects aligned to 8 bytes. The layout is fixed rather than detected,
+ * so the same graph always has the same footprint and footprints can be compared across JVMs.
+ * <p>
+ * Fields of objects in modules which are not open to the caller cannot be read on Java 9 and later; such objects are counted
+ * with their shallow size but not walked, and reported by {@link #getOpaqueObjects()}. The test build opens the packages of java.base
+ * the structures use.
+ */
+public class HeapFootprint {
+    static final int HEADER_BYTES = 12;
+    static final int ARRAY_HEADER_BYTES = 16;
+    static final int REFERENCE_BYTES = 4;
+    static final int ALIGNMENT = 8;
+
+    private final Map<Class<?>, long[]> classes = new HashMap<>();
+    private final Map<Class<?>, Field[]> fields = new HashMap<>();
+    private long bytes;
+    private long objects;
+    private long opaqueObjects;
+
+    private HeapFootprint() {
+    }
+
+    /**
+     * Measures the heap retained by the specified object.
+     *
+     * @param root object to measure
+     * @return the footprint of the object and of everything reachable from it
+     */
+    public static HeapFootprint of(Object root) {
+        return of(root, Collections.emptySet());
+    }
+
+    /**
+     * Measures the heap retained by the specified object, leaving out the specified objects and what is reachable only through them.
+     *
+     * @param root     object to measure
+     * @param excluded objects which are not part of the footprint, compared by identity
+     * @return the footprint of the object and of everything reachable from it
+     */
+    public static HeapFootprint of(Object root, Collection<?> excluded) {
+        return of(root, excluded, object -> {
+        });
+    }
+
+    /**
+     * Measures the heap retained by the specified object, passing every object counted to the specified visitor.
+     *
+     * @param root     object to measure
+     * @param excluded objects which are not part of the footprint, compared by identity
+     * @param visitor  visitor of every counted object
+     * @return the footprint of the object and of everything reachable from it
+     */
+    static HeapFootprint of(Object root, Collection<?> excluded, Consumer<Object> visitor) {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        visited.addAll(excluded);
+        HeapFootprint footprint = new HeapFootprint();
+        Deque<Object> pending = new ArrayDeque<>();
+        if (null != root && visited.add(root))
+            pending.push(root);
+        while (!pending.isEmpty()) {
+            Object object = pending.pop();
+            if (isIgnored(object.getClass()))
+                continue;
+            footprint.count(object);
+            visitor.accept(object);
+            for (Object reference : footprint.references(object)) {
+                if (null != reference && visited.add(reference))
+                    pending.push(reference);
+            }
+        }
+        return footprint;
+    }
+
+    /**
+     * Returns the shallow size of the specified object, its header and fields or elements without what they reference.
+     *
+     * @param object object
+     * @return the shallow size in bytes
+     */
+    public static long shallowSize(Object object) {
+        Class<?> type = object.getClass();
+        if (type.isArray())
+            return align(ARRAY_HEADER_BYTES + (long) Array.getLength(object) * sizeOf(type.getComponentType()));
+        long size = HEADER_BYTES;
+        for (Class<?> c = type; null != c; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()))
+                    size += sizeOf(field.getType());
+            }
+        }
+        return align(size);
+    }
+
+    /**
+     * Returns the retained size.
+     *
+     * @return the retained size in bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of retained objects, arrays included.
+     *
+     * @return the number of retained objects
+     */
+    public long getObjects() {
+        return objects;
+    }
+
+    /**
+     * Returns the size of the retained instances of the specified class, not of its subclasses.
+     *
+     * @param type class
+     * @return the size of the instances in bytes
+     */
+    public long getBytes(Class<?> type) {
+        long[] counts = classes.get(type);
+        return null == counts ? 0 : counts[1];
+    }
+
+    /**
+     * Returns the number of retained instances of the specified class, not of its subclasses.
+     *
+     * @param type class
+     * @return the number of instances
+     */
+    public long getObjects(Class<?> type) {
+        long[] counts = classes.get(type);
+        return null == counts ? 0 : counts[0];
+    }
+
+    /**
+     * Returns the number of objects whose fields could not be read, so that what they reference is missing from the footprint.
+     *
+     * @return the number of objects which were not walked
+     */
+    public long getOpaqueObjects() {
+        return opaqueObjects;
+    }
+
+    /**
+     * Returns the retained classes ordered by the size of their instances, largest first.
+     *
+     * @return the classes of the retained objects
+     */
+    public List<Class<?>> getClasses() {
+        List<Class<?>> result = new ArrayList<>(classes.keySet());
+        result.sort((a, b) -> Long.compare(getBytes(b), getBytes(a)));
+        return result;
+    }
+
+    private void count(Object object) {
+        long size = shallowSize(object);
+        long[] counts = classes.computeIfAbsent(object.getClass(), type -> new long[2]);
+        counts[0]++;
+        counts[1] += size;
+        objects++;
+        bytes += size;
+    }
+
+    private List<Object> references(Object object) {
+        Class<?> type = object.getClass();
+        if (type.isArray()) {
+            if (type.getComponentType().isPrimitive())
+                return Collections.emptyList();
+            return Arrays.asList((Object[]) object);
+        }
+        Field[] referenceFields = fields.get(type);
+        if (null == referenceFields) {
+            try {
+                referenceFields = referenceFields(type);
+            } catch (RuntimeException e) {
+                // not open to this module
+                opaqueObjects++;
+                return Collections.emptyList();
+            }
+            fields.put(type, referenceFields);
+        }
+        List<Object> references = new ArrayList<>(referenceFields.length);
+        for (Field field : referenceFields) {
+            try {
+                references.add(field.get(object));
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return references;
+    }
+
+    private static Field[] referenceFields(Class<?> type) {
+        List<Field> result = new ArrayList<>();
+        for (Class<?> c = type; null != c; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive())
+                    continue;
+                field.setAccessible(true);
+                result.add(field);
+            }
+        }
+        return result.toArray(new Field[0]);
+    }
+
+    private static boolean isIgnored(Class<?> type) {
+        return Class.class == type || ClassLoader.class.isAssignableFrom(type) || Thread.class.isAssignableFrom(type);
+    }
+
+    private static int sizeOf(Class<?> type) {
+        if (!type.isPrimitive())
+            return REFERENCE_BYTES;
+        if (long.class == type || double.class == type)
+            return 8;
+        if (int.class == type || float.class == type)
+            return 4;
+        if (short.class == type || char.class == type)
+            return 2;
+        return 1;
+    }
+
+    private static long align(long size) {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
@@ -0,0 +1,443 @@
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary format holding the full version history of a persistent map, list or array.
+ * A history is stored as the writes of every version rather than as states: each record holds the gap from the previous written version
+ * and what the version wrote, so unchanged keys are never repeated and version numbers take about a byte.
+ * Map keys and list nodes are shared by all of the versions which write them: each is encoded once and then referred to by its number.
+ * Loading replays the records, which recreates every version with the same number as in the saved structure.
+ * <p>
+ * Layout: magic, format version, structure kind, then records terminated by a zero gap, then the last version.
+ * All integers except the header are varints.
+ */
+public final class HistoryFormat {
+    private static final int MAGIC = 0x50445348;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int MAP = 'M';
+    private static final int LIST = 'L';
+    private static final int ARRAY = 'A';
+
+    private static final int INSERT = 0;
+    private static final int UNLINK = 1;
+    private static final int SET = 2;
+    private static final int NONE = 3;
+
+    private static final int ADD = 0;
+    private static final int REMOVE_LAST = 1;
+    private static final int REPLACE = 2;
+
+    private HistoryFormat() {
+    }
+
+    /**
+     * Writer of the records of a map or a list in consecutive batches, each ended by a zero gap and the last version it covers.
+     * A history is one batch up to the current version; replication ships the history as it grows in many batches, and keys or nodes
+     * keep their numbers from one batch to the next.
+     */
+    abstract static class RecordWriter {
+        private int writtenVersion;
+        private int previous;
+
+        RecordWriter(int writtenVersion) {
+            this.writtenVersion = writtenVersion;
+            this.previous = writtenVersion;
+        }
+
+        /**
+         * Returns the last version covered by the batches written so far.
+         */
+        int getWrittenVersion() {
+            return writtenVersion;
+        }
+
+        /**
+         * Writes a batch of the versions after the written one up to the specified one, ending it early at the version
+         * whose record makes it reach the specified size, and returns the last version of the batch.
+         */
+        int writeBatch(BinaryWriter out, int last, long maxBytes) throws IOException {
+            long start = out.position();
+            int end = last;
+            for (int version = writtenVersion + 1; version <= last; version++) {
+                if (writeRecord(out, version, version - previous))
+                    previous = version;
+                if (out.position() - start >= maxBytes) {
+                    end = version;
+                    break;
+                }
+            }
+            writtenVersion = end;
+            writeEnd(out, end);
+            return end;
+        }
+
+        /**
+         * Writes the record of the specified version after the gap from the previous record, unless the version wrote nothing.
+         */
+        abstract boolean writeRecord(BinaryWriter out, int version, int gap) throws IOException;
+    }
+
+    /**
+     * Reader of the batches of a {@link RecordWriter}, which recreates their versions in its structure.
+     */
+    abstract static class RecordReader {
+        private int version;
+
+        RecordReader(int version) {
+            this.version = version;
+        }
+
+        /**
+         * Reads and replays a batch, and returns its last version.
+         */
+        int readBatch(BinaryReader in) throws IOException {
+            for (int gap = in.readVarInt(); gap != 0; gap = in.readVarInt()) {
+                version += gap;
+                readRecord(in, version);
+            }
+            int last = readLast(in, Math.max(version, 0));
+            advance(last);
+            return last;
+        }
+
+        abstract void readRecord(BinaryReader in, int version) throws IOException;
+
+        /**
+         * Publishes the specified version, the versions since the last record writing nothing.
+         */
+        abstract void advance(int version);
+    }
+
+    static final class MapRecordWriter<K, V> extends RecordWriter {
+        private final PersistentMap<K, V> map;
+        private final Codec<? super K> keyCodec;
+        private final Codec<? super V> valueCodec;
+        private final Map<K, Integer> keyNumbers = new HashMap<>();
+        private final List<K> keys = new ArrayList<>();
+
+        MapRecordWriter(PersistentMap<K, V> map, Codec<? super K> keyCodec, Codec<? super V> valueCodec) {
+            super(0);
+            this.map = map;
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+        }
+
+        @Override
+        boolean writeRecord(BinaryWriter out, int version, int gap) throws IOException {
+            keys.clear();
+            map.keysWrittenAt(version).forEachRemaining(keys::add);
+            if (keys.isEmpty())
+                return false;
+            out.writeVarInt(gap);
+            out.writeVarInt(keys.size());
+            for (K key : keys) {
+                Integer number = keyNumbers.get(key);
+                if (null == number) {
+                    out.writeVarInt(0);
+                    keyCodec.write(out, key);
+                    keyNumbers.put(key, keyNumbers.size());
+                } else {
+                    out.writeVarInt(number + 1);
+                }
+                out.writeState(map.stateOf(key, version), valueCodec);
+            }
+            return true;
+        }
+    }
+
+    static final class MapRecordReader<K, V> extends RecordReader {
+        private final PersistentMap<K, V> map;
+        private final Codec<K> keyCodec;
+        private final Codec<V> valueCodec;
+        private final List<K> keys = new ArrayList<>();
+
+        MapRecordReader(PersistentMap<K, V> map, Codec<K> keyCodec, Codec<V> valueCodec) {
+            super(0);
+            this.map = map;
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+        }
+
+        @Override
+        void readRecord(BinaryReader in, int version) throws IOException {
+            int count = in.readVarInt();
+            Map<K, Object> writes = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                int number = in.readVarInt();
+                K key;
+                if (number == 0) {
+                    key = keyCodec.read(in);
+                    keys.add(key);
+                } else {
+                    key = element(keys, number - 1);
+                }
+                writes.put(key, in.readState(valueCodec));
+            }
+            if (writes.isEmpty())
+                throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+            map.replay(version, writes);
+        }
+
+        @Override
+        void advance(int version) {
+            map.replay(version, Collections.emptyMap());
+        }
+    }
+
+    static final class ListRecordWriter<T> extends RecordWriter {
+        private final PersistentLinkedList<T> list;
+        private final Codec<? super T> codec;
+        private final Map<PersistentListNode<T>, Integer> nodeNumbers = new IdentityHashMap<>();
+        private final List<PersistentListNode<T>> nodes = new ArrayList<>();
+
+        ListRecordWriter(PersistentLinkedList<T> list, Codec<? super T> codec) {
+            super(-1);
+            this.list = list;
+            this.codec = codec;
+        }
+
+        @Override
+        boolean writeRecord(BinaryWriter out, int version, int gap) throws IOException {
+            nodes.clear();
+            list.nodesWrittenAt(version).forEachRemaining(nodes::add);
+            boolean cleared = list.isClearedAt(version);
+            if (nodes.isEmpty() && !cleared)
+                return false;
+            out.writeVarInt(gap);
+            out.writeVarInt(nodes.size() << 1 | (cleared ? 1 : 0));
+            for (PersistentListNode<T> node : nodes) {
+                boolean linkedBefore = version > 0 && list.isLinked(node, version - 1);
+                boolean linked = list.isLinked(node, version);
+                if (linked && !linkedBefore) {
+                    PersistentListNode<T> prev = node.getPrev(version);
+                    out.writeByte(INSERT);
+                    out.writeVarInt(null == prev ? 0 : nodeNumbers.get(prev) + 1);
+                    out.writeNullable(node.getObject(version), codec);
+                    nodeNumbers.put(node, nodeNumbers.size());
+                } else if (linked) {
+                    out.writeByte(SET);
+                    out.writeVarInt(nodeNumbers.get(node));
+                    out.writeNullable(node.getObject(version), codec);
+                } else if (linkedBefore) {
+                    out.writeByte(UNLINK);
+                    out.writeVarInt(nodeNumbers.get(node));
+                } else {
+                    out.writeByte(NONE);
+                }
+            }
+            return true;
+        }
+    }
+
+    static final class ListRecordReader<T> extends RecordReader {
+        private final PersistentLinkedList<T> list;
+        private final Codec<T> codec;
+        private final List<PersistentListNode<T>> nodes = new ArrayList<>();
+
+        ListRecordReader(PersistentLinkedList<T> list, Codec<T> codec) {
+            super(-1);
+            this.list = list;
+            this.codec = codec;
+        }
+
+        @Override
+        void readRecord(BinaryReader in, int version) throws IOException {
+            int header = in.readVarInt();
+            list.beginReplay(version);
+            if ((header & 1) != 0)
+                list.replayClear();
+            for (int i = header >>> 1; i > 0; i--) {
+                switch (in.readByte()) {
+                    case INSERT:
+                        int prev = in.readVarInt();
+                        nodes.add(list.replayInsert(prev == 0 ? null : element(nodes, prev - 1), in.readNullable(codec)));
+                        break;
+                    case SET:
+                        PersistentListNode<T> node = element(nodes, in.readVarInt());
+                        list.replaySet(node, in.readNullable(codec));
+                        break;
+                    case UNLINK:
+                        list.replayRemove(element(nodes, in.readVarInt()));
+                        break;
+                    case NONE:
+                        break;
+                    default:
+                        throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+                }
+            }
+            list.endReplay();
+        }
+
+        @Override
+        void advance(int version) {
+            list.beginReplay(version);
+            list.endReplay();
+        }
+    }
+
+    /**
+     * Writes the history of the specified map up to its current version.
+     *
+     * @param map        map to be written
+     * @param channel    channel to write to
+     * @param keyCodec   codec of the keys
+     * @param valueCodec codec of the values
+     * @throws IOException if the channel fails
+     */
+    public static <K, V> void writeMap(PersistentMap<K, V> map, WritableByteChannel channel,
+                                       Codec<? super K> keyCodec, Codec<? super V> valueCodec) throws IOException {
+        BinaryWriter out = new BinaryWriter(channel);
+        writeHeader(out, MAP);
+        new MapRecordWriter<>(map, keyCodec, valueCodec).writeBatch(out, map.getCurrentVersion(), Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads a map history written by {@link #writeMap}.
+     *
+     * @param channel    channel to read from
+     * @param keyCodec   codec of the keys
+     * @param valueCodec codec of the values
+     * @return a map with the same versions as the written one
+     * @throws IOException if the channel fails or the history is corrupted
+     */
+    public static <K, V> PersistentMap<K, V> readMap(ReadableByteChannel channel, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        BinaryReader in = new BinaryReader(channel);
+        readHeader(in, MAP);
+        PersistentMap<K, V> map = new PersistentMap<>();
+        new MapRecordReader<>(map, keyCodec, valueCodec).readBatch(in);
+        return map;
+    }
+
+    /**
+     * Writes the history of the specified list up to its current version.
+     *
+     * @param list    list to be written
+     * @param channel channel to write to
+     * @param codec   codec of the elements
+     * @throws IOException if the channel fails
+     */
+    public static <T> void writeList(PersistentLinkedList<T> list, WritableByteChannel channel, Codec<? super T> codec) throws IOException {
+        BinaryWriter out = new BinaryWriter(channel);
+        writeHeader(out, LIST);
+        new ListRecordWriter<>(list, codec).writeBatch(out, list.getCurrentVersion(), Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads a list history written by {@link #writeList}.
+     *
+     * @param channel channel to read from
+     * @param codec   codec of the elements
+     * @return a list with the same versions as the written one
+     * @throws IOException if the channel fails or the history is corrupted
+     */
+    public static <T> PersistentLinkedList<T> readList(ReadableByteChannel channel, Codec<T> codec) throws IOException {
+        BinaryReader in = new BinaryReader(channel);
+        readHeader(in, LIST);
+        PersistentLinkedList<T> list = new PersistentLinkedList<>();
+        new ListRecordReader<>(list, codec).readBatch(in);
+        return list;
+    }
+
+    /**
+     * Writes the history of the specified array up to its current version.
+     *
+     * @param array   array to be written
+     * @param channel channel to write to
+     * @param codec   codec of the elements
+     * @throws IOException if the channel fails
+     */
+    public static <T> void writeArray(PersistentArray<T> array, WritableByteChannel channel, Codec<? super T> codec) throws IOException {
+        BinaryWriter out = new BinaryWriter(channel);
+        writeHeader(out, ARRAY);
+        int last = array.getCurrentVersion();
+        out.writeVarInt(array.lengthAt(0));
+        out.writeVarInt(last);
+        // every version of an array writes exactly one index, so records need no gaps
+        for (int version = 1; version <= last; version++) {
+            int before = array.lengthAt(version - 1);
+            int after = array.lengthAt(version);
+            if (after > before) {
+                out.writeByte(ADD);
+                out.writeNullable(array.valueAt(before, version), codec);
+            } else if (after < before) {
+                out.writeByte(REMOVE_LAST);
+            } else {
+                int index = array.indexWrittenAt(version);
+                out.writeByte(REPLACE);
+                out.writeVarInt(index);
+                out.writeNullable(array.valueAt(index, version), codec);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads an array history written by {@link #writeArray}.
+     *
+     * @param channel channel to read from
+     * @param codec   codec of the elements
+     * @return an array with the same versions as the written one
+     * @throws IOException if the channel fails or the history is corrupted
+     */
+    public static <T> PersistentArray<T> readArray(ReadableByteChannel channel, Codec<T> codec) throws IOException {
+        BinaryReader in = new BinaryReader(channel);
+        readHeader(in, ARRAY);
+        PersistentArray<T> array = new PersistentArray<>(in.readVarInt());
+        for (int version = in.readVarInt(); version > 0; version--) {
+            switch (in.readByte()) {
+                case ADD:
+                    array.add(in.readNullable(codec));
+                    break;
+                case REMOVE_LAST:
+                    array.removeLast();
+                    break;
+                case REPLACE:
+                    int index = in.readVarInt();
+                    array.replace(index, in.readNullable(codec));
+                    break;
+                default:
+                    throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+            }
+        }
+        return array;
+    }
+
+    private static void writeHeader(BinaryWriter out, int kind) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeByte(kind);
+    }
+
+    private static void readHeader(BinaryReader in, int kind) throws IOException {
+        if (in.readInt() != MAGIC || in.readByte() != FORMAT_VERSION || in.readByte() != kind)
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+    }
+
+    private static void writeEnd(BinaryWriter out, int last) throws IOException {
+        out.writeVarInt(0);
+        out.writeVarInt(last);
+        out.flush();
+    }
+
+    private static int readLast(BinaryReader in, int version) throws IOException {
+        int last = in.readVarInt();
+        if (last < version)
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+        return last;
+    }
+
+    private static <T> T element(List<T> elements, int index) throws IOException {
+        if (index < 0 || index >= elements.size())
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+        return elements.get(index);
+    }
+}
@@ -0,0 +1,47 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingDefinition;
+
+/**
+ * Walk along the nodes of a {@link PersistentLinkedList} to reach a position, by {@code get}, {@code set}, {@code add},
+ * {@code remove} or {@code addAll} with an index. Only the walks along at least 1000 nodes are recorded by default,
+ * which the {@code minLength} setting of the event changes, in a {@code .jfc} settings file or with
+ * {@code Recording.enable("pds.ListWalk").with("minLength", "100")}.
+ */
+@Name("pds.ListWalk")
+@Label("List Walk")
+public class ListWalkEvent extends StructureEvent {
+    @Label("Operation")
+    @Description("Name of the method")
+    String operation;
+
+    @Label("Version")
+    int version;
+
+    @Label("Nodes")
+    @Description("Number of nodes walked")
+    int nodes;
+
+    @Label("Minimum Length")
+    @Description("Number of nodes from which walks are recorded")
+    @Name("minLength")
+    @SettingDefinition
+    protected boolean minLength(WalkLengthSetting setting) {
+        return nodes >= setting.getMinimum();
+    }
+
+    /**
+     * Ends the event and commits it if it is recorded and long enough.
+     */
+    void complete(Object structure, String operation, int version, int nodes) {
+        end();
+        this.nodes = nodes;
+        if (shouldCommit()) {
+            setStructure(structure);
+            this.operation = operation;
+            this.version = version;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,501 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Disk-backed persistent map organized as a log-structured merge tree, for histories larger than the heap.
+ * Writes go to an in-memory memtable holding the history of every written key, sorted by key and then by version.
+ * When the memtable is full it is flushed to an immutable sorted {@link LsmSegment} file with its own bloom filter and sparse index,
+ * and a background compaction merges segments once there are too many of them.
+ * <p>
+ * Every segment holds the writes of a range of versions, and the ranges of different segments never overlap,
+ * so {@code get(key, version)} reads the memtable and then the segments from the newest one, skipping the segments
+ * which start after the version or whose bloom filter rules the key out, and stops at the first one which knows the key.
+ * Versions below the retention floor can no longer be read: compaction keeps only the state of each key at the floor
+ * and the writes after it, and drops removed keys entirely when it merges the oldest segment.
+ * <p>
+ * Writes never read the disk, so put and remove return the new version rather than the previous value, and there is no size.
+ * Like {@link PersistentMap} it supports one writer thread and any number of reader threads. Keys must be {@link Comparable}
+ * with a hash code stable across processes, as {@link BloomFilter} requires. Writes still in the memtable are lost
+ * if the process stops without {@link #close}.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public class LsmPersistentMap<K, V> implements AutoCloseable {
+    public static final int DEFAULT_MEMTABLE_LIMIT = 1 << 16;
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 8;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".sst";
+
+    private static final class Memtable<K> {
+        final ConcurrentSkipListMap<K, VersionHistory<Object>> histories = new ConcurrentSkipListMap<>();
+        int records;
+        int firstVersion;
+    }
+
+    /**
+     * Memtable and segments read together, replaced as a whole by flushes and compactions.
+     */
+    private static final class State<K, V> {
+        final Memtable<K> memtable;
+        final List<LsmSegment<K, V>> segments;
+
+        State(Memtable<K> memtable, List<LsmSegment<K, V>> segments) {
+            this.memtable = memtable;
+            this.segments = Collections.unmodifiableList(segments);
+        }
+    }
+
+    private final Path directory;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final int memtableLimit;
+    private final int compactionThreshold;
+    private final AtomicLong nextSequence;
+
+    private final Object stateLock = new Object();
+    private final Object compactionLock = new Object();
+    private volatile State<K, V> state;
+    private int currentVersion;
+    private volatile int publishedVersion;
+    private volatile int retentionFloor;
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lsm-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> compaction;
+    private volatile IOException compactionFailure;
+
+    private LsmPersistentMap(Path directory, Codec<K> keyCodec, Codec<V> valueCodec, int memtableLimit, int compactionThreshold) throws IOException {
+        this.directory = directory;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.memtableLimit = memtableLimit;
+        this.compactionThreshold = compactionThreshold;
+        Files.createDirectories(directory);
+        List<LsmSegment<K, V>> segments = new ArrayList<>();
+        long sequence = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(file);
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    long fileSequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    segments.add(LsmSegment.open(file, fileSequence, keyCodec, valueCodec));
+                    sequence = Math.max(sequence, fileSequence + 1);
+                }
+            }
+        }
+        // the inputs of a compaction interrupted before deleting them are covered by its output, which has a newer sequence
+        List<LsmSegment<K, V>> live = new ArrayList<>();
+        for (LsmSegment<K, V> segment : segments) {
+            boolean superseded = false;
+            for (LsmSegment<K, V> other : segments) {
+                superseded |= other.sequence > segment.sequence
+                        && other.minVersion <= segment.minVersion && segment.maxVersion <= other.maxVersion;
+            }
+            if (superseded)
+                segment.delete();
+            else
+                live.add(segment);
+        }
+        live.sort((a, b) -> Integer.compare(b.maxVersion, a.maxVersion));
+        for (LsmSegment<K, V> segment : live) {
+            currentVersion = Math.max(currentVersion, segment.maxVersion);
+            retentionFloor = Math.max(retentionFloor, segment.retentionFloor);
+        }
+        publishedVersion = currentVersion;
+        nextSequence = new AtomicLong(sequence);
+        state = new State<>(new Memtable<>(), live);
+    }
+
+    /**
+     * Opens the map stored in the specified directory with the default memtable limit and compaction threshold.
+     *
+     * @param directory  directory of the segments, created if it does not exist
+     * @param keyCodec   codec of the keys
+     * @param valueCodec codec of the values
+     * @return the opened map
+     * @throws IOException if the segments cannot be read
+     */
+    public static <K, V> LsmPersistentMap<K, V> open(Path directory, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        return open(directory, keyCodec, valueCodec, DEFAULT_MEMTABLE_LIMIT, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * Opens the map stored in the specified directory.
+     *
+     * @param directory           directory of the segments, created if it does not exist
+     * @param keyCodec            codec of the keys
+     * @param valueCodec          codec of the values
+     * @param memtableLimit       number of writes after which the memtable is flushed to a segment
+     * @param compactionThreshold number of segments which starts a background compaction
+     * @return the opened map
+     * @throws IOException if the segments cannot be read
+     */
+    public static <K, V> LsmPersistentMap<K, V> open(Path directory, Codec<K> keyCodec, Codec<V> valueCodec,
+                                                     int memtableLimit, int compactionThreshold) throws IOException {
+        if (memtableLimit <= 0 || compactionThreshold < 2)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.ILLEGAL_CAPACITY);
+        return new LsmPersistentMap<>(directory, keyCodec, valueCodec, memtableLimit, compactionThreshold);
+    }
+
+    /**
+     * Returns the latest version published by the writer of this map.
+     *
+     * @return the latest published version of this map
+     */
+    public int getCurrentVersion() {
+        return publishedVersion;
+    }
+
+    /**
+     * Returns the oldest version which can still be read.
+     *
+     * @return the retention floor of this map
+     */
+    public int getRetentionFloor() {
+        return retentionFloor;
+    }
+
+    /**
+     * Allows compaction to discard the history before the specified version, which becomes the oldest readable one.
+     * The floor never moves back.
+     *
+     * @param version new oldest readable version
+     */
+    public void setRetentionFloor(int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        retentionFloor = Math.max(retentionFloor, version);
+    }
+
+    /**
+     * Returns the number of segment files of this map.
+     *
+     * @return the number of segments
+     */
+    public int getSegmentCount() {
+        return state.segments.size();
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped in the specified version of this map, or null if there is no mapping for the key.
+     *
+     * @param key     the key whose associated value is to be returned
+     * @param version version of this map
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     */
+    public V get(K key, int version) {
+        Object value = find(key, version);
+        return value == LsmSegment.MISSING ? null : valueOf(value);
+    }
+
+    /**
+     * Returns the value of a state found in the memtable or a segment, null if the key is removed.
+     */
+    @SuppressWarnings("unchecked")
+    private V valueOf(Object state) {
+        return state == PersistentMap.REMOVED ? null : (V) state;
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped in the current version of this map, or null if there is no mapping for the key.
+     *
+     * @param key the key whose associated value is to be returned
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     */
+    public V get(K key) {
+        return get(key, publishedVersion);
+    }
+
+    /**
+     * Returns true if the specified version of this map contains a mapping for the specified key.
+     *
+     * @param key     key whose presence is to be tested
+     * @param version version of this map
+     * @return true if the specified version of this map contains a mapping for the specified key
+     */
+    public boolean containsKey(K key, int version) {
+        Object value = find(key, version);
+        return value != LsmSegment.MISSING && value != PersistentMap.REMOVED;
+    }
+
+    /**
+     * Returns true if the current version of this map contains a mapping for the specified key.
+     *
+     * @param key key whose presence is to be tested
+     * @return true if the current version of this map contains a mapping for the specified key
+     */
+    public boolean containsKey(K key) {
+        return containsKey(key, publishedVersion);
+    }
+
+    /**
+     * Associates the specified value with the specified key in a new version of this map.
+     *
+     * @param key   key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @return the new version
+     */
+    public int put(K key, V value) {
+        return write(key, value);
+    }
+
+    /**
+     * Removes the mapping for the specified key in a new version of this map.
+     *
+     * @param key key whose mapping is to be removed
+     * @return the new version
+     */
+    public int remove(K key) {
+        return write(key, PersistentMap.REMOVED);
+    }
+
+    /**
+     * Writes the memtable to a new segment, which also happens whenever it reaches its limit.
+     *
+     * @throws IOException if the segment cannot be written, or a background compaction failed
+     */
+    public void flush() throws IOException {
+        IOException failure = compactionFailure;
+        if (null != failure)
+            throw failure;
+        Memtable<K> memtable = state.memtable;
+        if (memtable.records == 0)
+            return;
+        long sequence = nextSequence.getAndIncrement();
+        LsmSegment<K, V> segment = LsmSegment.write(segmentPath(sequence), sequence, records(memtable),
+                memtable.firstVersion, currentVersion, memtable.histories.size(), 0, keyCodec, valueCodec);
+        synchronized (stateLock) {
+            List<LsmSegment<K, V>> segments = new ArrayList<>();
+            segments.add(segment);
+            segments.addAll(state.segments);
+            state = new State<>(new Memtable<>(), segments);
+            if (segments.size() >= compactionThreshold && (null == compaction || compaction.isDone()))
+                compaction = compactor.submit(this::compactInBackground);
+        }
+    }
+
+    /**
+     * Merges the segments into one, applying the retention floor, as far as one segment can hold them.
+     * It may run on any thread, concurrently with the writer and the readers.
+     *
+     * @throws IOException if the merged segment cannot be written
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            CompactionEvent event = new CompactionEvent();
+            event.begin();
+            List<LsmSegment<K, V>> segments = state.segments;
+            int floor = retentionFloor;
+            // the newest segments whose merge still fits one mapping
+            List<LsmSegment<K, V>> run = new ArrayList<>();
+            long bytes = 0;
+            long records = 0;
+            int minVersion = Integer.MAX_VALUE;
+            int maxVersion = 0;
+            for (LsmSegment<K, V> segment : segments) {
+                if (!run.isEmpty() && bytes + segment.sizeInBytes > Integer.MAX_VALUE)
+                    break;
+                run.add(segment);
+                bytes += segment.sizeInBytes;
+                records += segment.recordCount;
+                minVersion = Math.min(minVersion, segment.minVersion);
+                maxVersion = Math.max(maxVersion, segment.maxVersion);
+            }
+            boolean includesOldest = run.size() == segments.size();
+            if (run.isEmpty() || run.size() == 1 && !(includesOldest && floor > run.get(0).retentionFloor))
+                return;
+            long sequence = nextSequence.getAndIncrement();
+            LsmSegment<K, V> merged = LsmSegment.write(segmentPath(sequence), sequence, collapse(merge(run), floor, includesOldest),
+                    minVersion, maxVersion, (int) Math.min(records, Integer.MAX_VALUE), floor, keyCodec, valueCodec);
+            synchronized (stateLock) {
+                List<LsmSegment<K, V>> next = new ArrayList<>();
+                boolean inserted = false;
+                for (LsmSegment<K, V> segment : state.segments) {
+                    if (!run.contains(segment)) {
+                        next.add(segment);
+                    } else if (!inserted) {
+                        next.add(merged);
+                        inserted = true;
+                    }
+                }
+                state = new State<>(state.memtable, next);
+            }
+            for (LsmSegment<K, V> segment : run) {
+                segment.delete();
+            }
+            event.complete(this, run.size(), records, merged.recordCount, bytes, merged.sizeInBytes, floor);
+        }
+    }
+
+    /**
+     * Flushes the memtable and waits for the background compaction.
+     *
+     * @throws IOException if the memtable cannot be flushed
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        IOException failure = compactionFailure;
+        if (null != failure)
+            throw failure;
+    }
+
+    private int write(K key, Object value) {
+        currentVersion++;
+        Memtable<K> memtable = state.memtable;
+        if (memtable.records == 0)
+            memtable.firstVersion = currentVersion;
+        memtable.histories.computeIfAbsent(key, k -> new VersionHistory<>()).put(currentVersion, value);
+        memtable.records++;
+        publishedVersion = currentVersion;
+        if (memtable.records >= memtableLimit) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return currentVersion;
+    }
+
+    private Object find(K key, int version) {
+        if (version < retentionFloor || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        State<K, V> state = this.state;
+        VersionHistory<Object> history = state.memtable.histories.get(key);
+        if (null != history) {
+            int index = history.floorIndex(version);
+            if (index >= 0)
+                return history.valueAt(index);
+        }
+        try {
+            for (LsmSegment<K, V> segment : state.segments) {
+                if (segment.minVersion > version)
+                    continue;
+                Object value = segment.find(key, version);
+                if (value != LsmSegment.MISSING)
+                    return value;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return LsmSegment.MISSING;
+    }
+
+    private void compactInBackground() {
+        try {
+            compact();
+        } catch (IOException e) {
+            compactionFailure = e;
+        }
+    }
+
+    private Path segmentPath(long sequence) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    private static <K> Iterator<LsmSegment.Record<K>> records(Memtable<K> memtable) {
+        return memtable.histories.entrySet().stream()
+                .flatMap(entry -> IntStream.range(0, entry.getValue().size())
+                        .mapToObj(i -> new LsmSegment.Record<>(entry.getKey(), entry.getValue().versionAt(i), entry.getValue().valueAt(i))))
+                .iterator();
+    }
+
+    /**
+     * Returns the records of the specified segments merged by key and then by version.
+     */
+    private static <K, V> Iterator<LsmSegment.Record<K>> merge(List<LsmSegment<K, V>> segments) {
+        PriorityQueue<Map.Entry<LsmSegment.Record<K>, Iterator<LsmSegment.Record<K>>>> heads = new PriorityQueue<>((a, b) -> {
+            int comparison = PersistentTreeNode.compare(a.getKey().key, b.getKey().key);
+            return comparison != 0 ? comparison : Integer.compare(a.getKey().version, b.getKey().version);
+        });
+        for (LsmSegment<K, V> segment : segments) {
+            Iterator<LsmSegment.Record<K>> records = segment.records();
+            if (records.hasNext())
+                heads.add(new AbstractMap.SimpleEntry<>(records.next(), records));
+        }
+        return new Iterator<LsmSegment.Record<K>>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public LsmSegment.Record<K> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_ELEMENT);
+                Map.Entry<LsmSegment.Record<K>, Iterator<LsmSegment.Record<K>>> head = heads.poll();
+                Iterator<LsmSegment.Record<K>> records = head.getValue();
+                if (records.hasNext())
+                    heads.add(new AbstractMap.SimpleEntry<>(records.next(), records));
+                return head.getKey();
+            }
+        };
+    }
+
+    /**
+     * Keeps of the writes of every key before the floor only the newest one, the state of the key at the floor,
+     * and drops it if it is a removal which nothing older can contradict.
+     */
+    private static <K> Iterator<LsmSegment.Record<K>> collapse(Iterator<LsmSegment.Record<K>> records, int floor, boolean dropRemovals) {
+        return new Iterator<LsmSegment.Record<K>>() {
+            private final ArrayDeque<LsmSegment.Record<K>> ready = new ArrayDeque<>();
+            private LsmSegment.Record<K> base;
+
+            @Override
+            public boolean hasNext() {
+                while (ready.isEmpty() && records.hasNext()) {
+                    LsmSegment.Record<K> record = records.next();
+                    if (null != base && !base.key.equals(record.key))
+                        emitBase();
+                    if (record.version <= floor) {
+                        base = record;
+                    } else {
+                        emitBase();
+                        ready.add(record);
+                    }
+                }
+                if (ready.isEmpty())
+                    emitBase();
+                return !ready.isEmpty();
+            }
+
+            @Override
+            public LsmSegment.Record<K> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_ELEMENT);
+                return ready.poll();
+            }
+
+            private void emitBase() {
+                if (null != base && !(dropRemovals && base.state == PersistentMap.REMOVED))
+                    ready.add(base);
+                base = null;
+            }
+        };
+    }
+}
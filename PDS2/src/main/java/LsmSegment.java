@@ -0,0 +1,252 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted segment file of an {@link LsmPersistentMap}: the writes of a range of versions, sorted by key and then by version.
+ * A segment is memory-mapped, and only its header, its bloom filter and the keys of its sparse index are read into the heap.
+ * A removal is stored as a tombstone so that it hides the older writes of its key in older segments.
+ * <p>
+ * Layout: a fixed header, the records, the sparse index as the offsets of every key starting a run of at least {@link #INDEX_INTERVAL} records,
+ * then the bloom filter. A segment is limited to 2 GiB, the size of one mapping.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+class LsmSegment<K, V> {
+    /**
+     * Result of a lookup which found no record of the key.
+     */
+    static final Object MISSING = new Object();
+
+    static final int INDEX_INTERVAL = 16;
+
+    private static final int MAGIC = 0x5044534C;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    /**
+     * Write of a key by a version, whose state is the value or {@link PersistentMap#REMOVED}.
+     */
+    static final class Record<K> {
+        final K key;
+        final int version;
+        final Object state;
+
+        Record(K key, int version, Object state) {
+            this.key = key;
+            this.version = version;
+            this.state = state;
+        }
+    }
+
+    final Path path;
+    final long sequence;
+    final int minVersion;
+    final int maxVersion;
+    final int retentionFloor;
+    final int recordCount;
+    final long sizeInBytes;
+
+    private final ByteBuffer mapping;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final int recordsEnd;
+    private final Object[] indexKeys;
+    private final int[] indexOffsets;
+    private final BloomFilter bloom;
+
+    private LsmSegment(Path path, long sequence, ByteBuffer mapping, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        this.path = path;
+        this.sequence = sequence;
+        this.mapping = mapping;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        sizeInBytes = mapping.limit();
+        if (mapping.limit() < HEADER_SIZE || mapping.getInt(0) != MAGIC || mapping.getInt(4) != FORMAT_VERSION)
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+        minVersion = mapping.getInt(8);
+        maxVersion = mapping.getInt(12);
+        retentionFloor = mapping.getInt(16);
+        recordCount = mapping.getInt(20);
+        recordsEnd = mapping.getInt(24);
+        int bloomPosition = mapping.getInt(28);
+        if (recordsEnd < HEADER_SIZE || bloomPosition < recordsEnd + 4 || bloomPosition >= mapping.limit())
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+        int indexSize = mapping.getInt(recordsEnd);
+        if (indexSize < 0 || recordsEnd + 4 + 4L * indexSize != bloomPosition)
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+        indexKeys = new Object[indexSize];
+        indexOffsets = new int[indexSize];
+        for (int i = 0; i < indexSize; i++) {
+            indexOffsets[i] = mapping.getInt(recordsEnd + 4 + 4 * i);
+            indexKeys[i] = keyCodec.read(readerAt(indexOffsets[i]));
+        }
+        bloom = BloomFilter.read(mapping, bloomPosition);
+    }
+
+    /**
+     * Writes the specified records, sorted by key and then by version, to a new segment file covering the specified versions and maps it.
+     */
+    static <K, V> LsmSegment<K, V> write(Path path, long sequence, Iterator<Record<K>> records, int minVersion, int maxVersion,
+                                         int expectedKeys, int retentionFloor, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            BinaryWriter out = new BinaryWriter(channel);
+            // the header is written again once the records are known
+            for (int i = 0; i < HEADER_SIZE; i += 4) {
+                out.writeInt(0);
+            }
+            BloomFilter bloom = new BloomFilter(expectedKeys);
+            int[] index = new int[16];
+            int indexSize = 0;
+            int count = 0;
+            int sinceIndexed = INDEX_INTERVAL;
+            K previous = null;
+            while (records.hasNext()) {
+                Record<K> record = records.next();
+                int offset = position(out);
+                if (null == previous || !previous.equals(record.key)) {
+                    bloom.add(record.key);
+                    if (sinceIndexed >= INDEX_INTERVAL) {
+                        if (indexSize == index.length)
+                            index = Arrays.copyOf(index, indexSize * 2);
+                        index[indexSize++] = offset;
+                        sinceIndexed = 0;
+                    }
+                    previous = record.key;
+                }
+                keyCodec.write(out, record.key);
+                out.writeVarInt(record.version);
+                out.writeState(record.state, valueCodec);
+                sinceIndexed++;
+                count++;
+            }
+            int recordsEnd = position(out);
+            out.writeInt(indexSize);
+            for (int i = 0; i < indexSize; i++) {
+                out.writeInt(index[i]);
+            }
+            int bloomPosition = position(out);
+            bloom.write(out);
+            // the whole file must fit in one mapping
+            position(out);
+            out.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(minVersion).putInt(maxVersion).putInt(retentionFloor)
+                    .putInt(count).putInt(recordsEnd).putInt(bloomPosition).flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(path, sequence, keyCodec, valueCodec);
+    }
+
+    private static int position(BinaryWriter out) throws IOException {
+        long position = out.position();
+        if (position > Integer.MAX_VALUE)
+            throw new IOException(PersistentExceptionsMessege.SNAPSHOT_TOO_LARGE);
+        return (int) position;
+    }
+
+    /**
+     * Maps an existing segment file.
+     */
+    static <K, V> LsmSegment<K, V> open(Path path, long sequence, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(PersistentExceptionsMessege.SNAPSHOT_TOO_LARGE);
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new LsmSegment<>(path, sequence, mapping, keyCodec, valueCodec);
+        }
+    }
+
+    /**
+     * Returns the state of the key in the specified version as far as this segment knows,
+     * or {@link #MISSING} if no version of this segment up to the specified one writes the key.
+     */
+    Object find(K key, int version) throws IOException {
+        if (version < minVersion || recordCount == 0 || !bloom.mightContain(key))
+            return MISSING;
+        int low = 0;
+        int high = indexKeys.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (PersistentTreeNode.compare(key, indexKeys[middle]) < 0)
+                high = middle - 1;
+            else
+                low = middle + 1;
+        }
+        if (high < 0)
+            return MISSING;
+        ByteBuffer view = view(indexOffsets[high]);
+        BinaryReader in = new BinaryReader(view);
+        Object result = MISSING;
+        while (view.hasRemaining()) {
+            int comparison = PersistentTreeNode.compare(key, keyCodec.read(in));
+            if (comparison < 0)
+                break;
+            int recordVersion = in.readVarInt();
+            Object state = in.readState(valueCodec);
+            if (comparison == 0) {
+                if (recordVersion > version)
+                    break;
+                result = state;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the records of this segment in their order.
+     */
+    Iterator<Record<K>> records() {
+        ByteBuffer view = view(HEADER_SIZE);
+        BinaryReader in = new BinaryReader(view);
+        return new Iterator<Record<K>>() {
+            @Override
+            public boolean hasNext() {
+                return view.hasRemaining();
+            }
+
+            @Override
+            public Record<K> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_ELEMENT);
+                try {
+                    K key = keyCodec.read(in);
+                    int version = in.readVarInt();
+                    return new Record<>(key, version, in.readState(valueCodec));
+                } catch (IOException e) {
+                    throw new IllegalStateException(PersistentExceptionsMessege.CORRUPTED_HISTORY, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Deletes the file of this segment, whose mapping stays readable until it is collected.
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    private ByteBuffer view(int offset) {
+        ByteBuffer view = mapping.duplicate();
+        view.limit(recordsEnd);
+        view.position(offset);
+        return view;
+    }
+
+    private BinaryReader readerAt(int offset) {
+        return new BinaryReader(view(offset));
+    }
+}
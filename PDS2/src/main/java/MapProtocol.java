@@ -0,0 +1,93 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * Binary protocol of {@link PersistentMapServer} and {@link PersistentMapClient}.
+ * Every request and response is a frame of a four-byte length followed by the payload written in the format of {@link BinaryWriter}.
+ * A request starts with its operation and a response with its status; responses come in the order of the requests,
+ * so a client may send any number of requests before reading their responses.
+ */
+final class MapProtocol {
+    static final int MAX_FRAME_BYTES = 64 << 20;
+
+    static final int GET = 1;
+    static final int PUT = 2;
+    static final int REMOVE = 3;
+    static final int SIZE = 4;
+    static final int SCAN = 5;
+    static final int VERSION = 6;
+
+    static final int OK = 0;
+    static final int NO_SUCH_VERSION = 1;
+    static final int FAILED = 2;
+
+    /**
+     * Version argument selecting the latest version published when the request is served.
+     */
+    static final int CURRENT_VERSION = -1;
+
+    private static final int NULL = 0;
+    private static final int PRESENT = 1;
+
+    private MapProtocol() {
+    }
+
+    /**
+     * Buffer of frames: the payload of a frame is written with {@link #out} and closed by {@link #endFrame()}.
+     */
+    static final class FrameBuffer {
+        private static final class Bytes extends ByteArrayOutputStream {
+            byte[] bytes() {
+                return buf;
+            }
+        }
+
+        private final Bytes payload = new Bytes();
+        private final Bytes frames = new Bytes();
+        private int count;
+        final BinaryWriter out = new BinaryWriter(Channels.newChannel(payload));
+
+        void endFrame() throws IOException {
+            out.flush();
+            int length = payload.size();
+            frames.write(length >>> 24);
+            frames.write(length >>> 16);
+            frames.write(length >>> 8);
+            frames.write(length);
+            frames.write(payload.bytes(), 0, length);
+            payload.reset();
+            count++;
+        }
+
+        int frameCount() {
+            return count;
+        }
+
+        /**
+         * Returns the closed frames, valid until the buffer is reset.
+         */
+        ByteBuffer frames() {
+            return ByteBuffer.wrap(frames.bytes(), 0, frames.size());
+        }
+
+        void reset() {
+            frames.reset();
+            count = 0;
+        }
+    }
+
+    static <T> void writeNullable(BinaryWriter out, Codec<T> codec, T value) throws IOException {
+        if (null == value) {
+            out.writeByte(NULL);
+        } else {
+            out.writeByte(PRESENT);
+            codec.write(out, value);
+        }
+    }
+
+    static <T> T readNullable(BinaryReader in, Codec<T> codec) throws IOException {
+        return in.readByte() == NULL ? null : codec.read(in);
+    }
+}
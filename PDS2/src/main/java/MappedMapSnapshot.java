@@ -0,0 +1,303 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Read-only map serving one exported version of a persistent map straight from a memory-mapped file.
+ * Opening it maps the file and reads its header only, so startup costs the same whatever the size of the map,
+ * and processes opening the same file share its pages through the page cache.
+ * Lookups binary search the sparse index of block first keys, each decoded on first use and then kept on the heap,
+ * then the key offsets of one block in the file, and decode only the keys they compare plus the value they return.
+ * <p>
+ * Layout: a fixed header, the entries sorted by key in blocks of {@link #BLOCK_SIZE}, the offset of every entry as a fixed-width int,
+ * then the sparse index: the offset of the first entry of every block. Keys must be {@link Comparable}, as in the map.
+ * A file is limited to 2 GiB, the size of one mapping.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public class MappedMapSnapshot<K, V> {
+    /**
+     * Number of entries of a block, which share one sparse index entry.
+     */
+    public static final int BLOCK_SIZE = 64;
+
+    private static final int MAGIC = 0x5044534D;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private final ByteBuffer mapping;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final int version;
+    private final int size;
+    private final int offsetsPosition;
+    private final int indexPosition;
+    private final AtomicReferenceArray<K> blockFirstKeys;
+
+    private MappedMapSnapshot(ByteBuffer mapping, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        this.mapping = mapping;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        if (mapping.limit() < HEADER_SIZE || mapping.getInt(0) != MAGIC || mapping.getInt(4) != FORMAT_VERSION)
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+        version = mapping.getInt(8);
+        size = mapping.getInt(12);
+        offsetsPosition = mapping.getInt(16);
+        indexPosition = mapping.getInt(20);
+        int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (size < 0 || offsetsPosition < HEADER_SIZE || indexPosition != offsetsPosition + 4 * size
+                || (long) indexPosition + 4L * blocks != mapping.limit())
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+        blockFirstKeys = new AtomicReferenceArray<>(blocks);
+    }
+
+    /**
+     * Writes the specified version of the map sorted by key to the specified file, replaced once it is complete.
+     */
+    static <K, V> void write(PersistentMap<K, V> map, int version, Path path, Codec<? super K> keyCodec, Codec<? super V> valueCodec) throws IOException {
+        int[] offsets = new int[BLOCK_SIZE];
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            BinaryWriter out = new BinaryWriter(channel);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(version);
+            // the number of entries and the positions of the tables are only known once the entries are written
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(0);
+            int count = 0;
+            for (Iterator<Map.Entry<K, V>> entries = map.entryIterator(version); entries.hasNext(); count++) {
+                Map.Entry<K, V> entry = entries.next();
+                if (count == offsets.length)
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                offsets[count] = position(out);
+                keyCodec.write(out, entry.getKey());
+                out.writeNullable(entry.getValue(), valueCodec);
+            }
+            int offsetsPosition = position(out);
+            for (int ordinal = 0; ordinal < count; ordinal++) {
+                out.writeInt(offsets[ordinal]);
+            }
+            int indexPosition = position(out);
+            for (int ordinal = 0; ordinal < count; ordinal += BLOCK_SIZE) {
+                out.writeInt(offsets[ordinal]);
+            }
+            // the whole file must fit in one mapping
+            position(out);
+            out.flush();
+            ByteBuffer header = ByteBuffer.allocate(12);
+            header.putInt(count).putInt(offsetsPosition).putInt(indexPosition).flip();
+            while (header.hasRemaining())
+                channel.write(header, 12 + header.position());
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int position(BinaryWriter out) throws IOException {
+        long position = out.position();
+        if (position > Integer.MAX_VALUE)
+            throw new IOException(PersistentExceptionsMessege.SNAPSHOT_TOO_LARGE);
+        return (int) position;
+    }
+
+    /**
+     * Maps the specified file written by {@link PersistentMap#exportMapped}.
+     *
+     * @param path       file to be mapped
+     * @param keyCodec   codec of the keys
+     * @param valueCodec codec of the values
+     * @return a read-only map of the exported version
+     * @throws IOException if the file cannot be mapped or is corrupted
+     */
+    public static <K, V> MappedMapSnapshot<K, V> open(Path path, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(PersistentExceptionsMessege.SNAPSHOT_TOO_LARGE);
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedMapSnapshot<>(mapping, keyCodec, valueCodec);
+        }
+    }
+
+    /**
+     * Returns the version of the map this snapshot was exported from.
+     *
+     * @return the exported version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the number of elements in this snapshot.
+     *
+     * @return number of elements in this snapshot
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if this snapshot contains no elements.
+     *
+     * @return true if this snapshot contains no elements
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns true if this snapshot contains a mapping for the specified key.
+     *
+     * @param key key whose presence is to be tested
+     * @return true if this snapshot contains a mapping for the specified key
+     */
+    public boolean containsKey(K key) {
+        return search(key) >= 0;
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped, or null if this snapshot contains no mapping for the key.
+     *
+     * @param key the key whose associated value is to be returned
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     */
+    public V get(K key) {
+        int ordinal = search(key);
+        return ordinal < 0 ? null : entryAt(ordinal).getValue();
+    }
+
+    /**
+     * Returns an iterator over the entries of this snapshot in ascending key order.
+     *
+     * @return an iterator over the entries of this snapshot
+     */
+    public Iterator<Map.Entry<K, V>> entryIterator() {
+        return new EntryIterator(0, size);
+    }
+
+    /**
+     * Returns an iterator over the entries whose keys range from fromKey, inclusive, to toKey, exclusive, in ascending key order.
+     * A null bound leaves that end of the range open.
+     *
+     * @param fromKey low endpoint of the keys, or null
+     * @param toKey   high endpoint of the keys, or null
+     * @return an iterator over the entries in the range
+     */
+    public Iterator<Map.Entry<K, V>> entryIterator(K fromKey, K toKey) {
+        int from = null == fromKey ? 0 : insertionPoint(fromKey);
+        int to = null == toKey ? size : insertionPoint(toKey);
+        return new EntryIterator(from, Math.max(from, to));
+    }
+
+    /**
+     * Returns the ordinal of the specified key, or -(insertion point) - 1 if it is absent.
+     */
+    private int search(K key) {
+        int low = 0;
+        int high = blockFirstKeys.length() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = PersistentTreeNode.compare(key, blockFirstKey(middle));
+            if (comparison < 0)
+                high = middle - 1;
+            else if (comparison > 0)
+                low = middle + 1;
+            else
+                return middle * BLOCK_SIZE;
+        }
+        if (high < 0)
+            return -1;
+        low = high * BLOCK_SIZE + 1;
+        high = Math.min(size, low - 1 + BLOCK_SIZE) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = PersistentTreeNode.compare(key, keyAt(offsetOf(middle)));
+            if (comparison < 0)
+                high = middle - 1;
+            else if (comparison > 0)
+                low = middle + 1;
+            else
+                return middle;
+        }
+        return -(low + 1);
+    }
+
+    private int insertionPoint(K key) {
+        int ordinal = search(key);
+        return ordinal >= 0 ? ordinal : -(ordinal + 1);
+    }
+
+    private K blockFirstKey(int block) {
+        K key = blockFirstKeys.get(block);
+        if (null == key) {
+            key = keyAt(mapping.getInt(indexPosition + 4 * block));
+            blockFirstKeys.set(block, key);
+        }
+        return key;
+    }
+
+    private int offsetOf(int ordinal) {
+        return mapping.getInt(offsetsPosition + 4 * ordinal);
+    }
+
+    private BinaryReader readerAt(int offset) {
+        ByteBuffer view = mapping.duplicate();
+        view.position(offset);
+        return new BinaryReader(view);
+    }
+
+    private K keyAt(int offset) {
+        try {
+            return keyCodec.read(readerAt(offset));
+        } catch (IOException e) {
+            throw new IllegalStateException(PersistentExceptionsMessege.CORRUPTED_HISTORY, e);
+        }
+    }
+
+    private Map.Entry<K, V> entryAt(int ordinal) {
+        try {
+            BinaryReader in = readerAt(offsetOf(ordinal));
+            K key = keyCodec.read(in);
+            return new AbstractMap.SimpleImmutableEntry<>(key, in.readNullable(valueCodec));
+        } catch (IOException e) {
+            throw new IllegalStateException(PersistentExceptionsMessege.CORRUPTED_HISTORY, e);
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+        private final int end;
+        private int next;
+
+        EntryIterator(int start, int end) {
+            this.next = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < end;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_ELEMENT);
+            return entryAt(next++);
+        }
+    }
+}
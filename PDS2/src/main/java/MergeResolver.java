@@ -0,0 +1,21 @@
+/**
+ * Resolution of a key changed differently by a map and by its branch since the fork, see {@link PersistentMap#merge(PersistentMapBranch, MergeResolver)}.
+ * A null value stands for a key without a mapping.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+@FunctionalInterface
+public interface MergeResolver<K, V> {
+
+    /**
+     * Returns the merged value of the specified key, or null to leave it without a mapping.
+     *
+     * @param key    conflicting key
+     * @param base   value at the fork version
+     * @param ours   current value in the map
+     * @param theirs current value in the branch
+     * @return the merged value, or null to remove the key
+     */
+    V resolve(K key, V base, V ours, V theirs);
+}
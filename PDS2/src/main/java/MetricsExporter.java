@@ -0,0 +1,18 @@
+import java.io.IOException;
+
+/**
+ * Destination of the metrics of persistent structures, such as a monitoring system. {@link MetricsReporter} calls it periodically
+ * with the metrics of every registered structure, from one thread.
+ */
+@FunctionalInterface
+public interface MetricsExporter {
+
+    /**
+     * Exports the current metrics of one structure.
+     *
+     * @param name    name under which the structure is registered
+     * @param metrics metrics of the structure, counts and histograms since they were enabled
+     * @throws IOException if the metrics cannot be exported
+     */
+    void export(String name, StructureMetrics metrics) throws IOException;
+}
@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Periodic export of the metrics of registered structures: a reporter thread passes the metrics of every structure to the exporter
+ * at a fixed period, and once more when the reporter is closed. Gauges are computed at each export, so the period bounds the cost
+ * of walking the structures.
+ */
+public class MetricsReporter implements AutoCloseable {
+    private final MetricsExporter exporter;
+    private final long periodNanos;
+    private final Map<String, StructureMetrics> structures = new LinkedHashMap<>();
+    private final Thread thread;
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    private MetricsReporter(MetricsExporter exporter, long periodNanos) {
+        this.exporter = exporter;
+        this.periodNanos = periodNanos;
+        thread = new Thread(this::run, "metrics-reporter");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts exporting the metrics of the structures which will be registered.
+     *
+     * @param exporter destination of the metrics
+     * @param period   time between two exports
+     * @param unit     unit of the period
+     * @return the started reporter
+     */
+    public static MetricsReporter start(MetricsExporter exporter, long period, TimeUnit unit) {
+        if (period <= 0)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.ILLEGAL_PERIOD);
+        MetricsReporter reporter = new MetricsReporter(exporter, unit.toNanos(period));
+        reporter.thread.start();
+        return reporter;
+    }
+
+    /**
+     * Exports the specified metrics from now on under the specified name, replacing the metrics registered under it.
+     *
+     * @param name    name of the structure
+     * @param metrics metrics of the structure, returned by its {@code enableMetrics()}
+     */
+    public synchronized void register(String name, StructureMetrics metrics) {
+        structures.put(name, metrics);
+    }
+
+    /**
+     * Stops exporting the metrics registered under the specified name.
+     *
+     * @param name name of the structure
+     */
+    public synchronized void unregister(String name) {
+        structures.remove(name);
+    }
+
+    /**
+     * Exports the metrics of every registered structure now.
+     *
+     * @throws IOException if the exporter fails
+     */
+    public synchronized void report() throws IOException {
+        for (Map.Entry<String, StructureMetrics> structure : structures.entrySet()) {
+            exporter.export(structure.getKey(), structure.getValue());
+        }
+    }
+
+    /**
+     * Returns the last error of a periodic export, or null if none failed. A failed export does not stop the next ones.
+     *
+     * @return the error of the exporter, or null
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Stops the periodic exports and exports the metrics a last time.
+     *
+     * @throws IOException if the last export fails
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        report();
+    }
+
+    private void run() {
+        long next = System.nanoTime() + periodNanos;
+        while (!closed) {
+            long delay = next - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+                continue;
+            }
+            next += periodNanos;
+            try {
+                report();
+            } catch (IOException | RuntimeException e) {
+                failure = e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Persistent map specialized for large values, which keeps them serialized outside the heap.
+ * Every value is encoded once by its codec into the direct buffers of {@link OffHeapSlabs}, and the fat node of a key
+ * holds only the versions and the handles of its values in primitive arrays, so the heap and the work of the garbage collector
+ * grow with the number of writes by a few bytes each rather than with the size of the values.
+ * Reads decode the value on demand, or return a read-only view of its bytes without copying them.
+ * <p>
+ * The slabs of values which no readable version refers to any more are reclaimed when the history before a version is pruned:
+ * a value stops being visible at the version overwriting or removing its key, and is freed once that version is at or before the pruned one.
+ * Like {@link PersistentMap} it supports one writer thread and any number of reader threads; pruning is done by the writer,
+ * and no reader may still be reading the pruned versions.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public class OffHeapPersistentMap<K, V> {
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    private static final long REMOVED = -1;
+    private static final long NULL = -2;
+
+    /**
+     * History of the handles of a key, the primitive counterpart of {@link VersionHistory}.
+     */
+    private static final class HandleHistory {
+        private volatile int[] versions = new int[2];
+        private volatile long[] handles = new long[2];
+        private volatile int count;
+
+        int floorIndex(int version) {
+            int size = count;
+            int[] versions = this.versions;
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (versions[middle] <= version)
+                    low = middle + 1;
+                else
+                    high = middle - 1;
+            }
+            return high;
+        }
+
+        long handleAt(int index) {
+            return handles[index];
+        }
+
+        long last() {
+            return count == 0 ? REMOVED : handles[count - 1];
+        }
+
+        void put(int version, long handle) {
+            int size = count;
+            int[] versions = this.versions;
+            long[] handles = this.handles;
+            if (size == versions.length) {
+                versions = Arrays.copyOf(versions, size * 2);
+                handles = Arrays.copyOf(handles, size * 2);
+            }
+            versions[size] = version;
+            handles[size] = handle;
+            this.versions = versions;
+            this.handles = handles;
+            count = size + 1;
+        }
+    }
+
+    /**
+     * Reusable encoding buffer whose bytes are copied into a slab without an intermediate array.
+     */
+    private static final class EncodingBuffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    private final Codec<V> codec;
+    private final OffHeapSlabs slabs;
+    private final ConcurrentSkipListMap<K, HandleHistory> versionedData = new ConcurrentSkipListMap<>();
+    private final VersionHistory<Integer> versionsLengths = new VersionHistory<>(0, 0);
+    private final EncodingBuffer encoded = new EncodingBuffer();
+    private final BinaryWriter encoder = new BinaryWriter(Channels.newChannel(encoded));
+    private int currentVersion = 0;
+    private volatile int publishedVersion = 0;
+    private volatile int oldestVersion = 0;
+
+    /**
+     * Values waiting to be freed, with the versions which stopped them being visible, in the order of these versions.
+     */
+    private int[] retiredVersions = new int[16];
+    private long[] retiredHandles = new long[16];
+    private int retiredHead;
+    private int retiredTail;
+
+    /**
+     * Constructs an empty map with slabs of the default size.
+     * @param codec codec of the values
+     */
+    public OffHeapPersistentMap(Codec<V> codec) {
+        this(codec, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Constructs an empty map with slabs of the specified size.
+     * @param codec codec of the values
+     * @param slabSize size of a slab in bytes
+     */
+    public OffHeapPersistentMap(Codec<V> codec, int slabSize) {
+        this.codec = codec;
+        this.slabs = new OffHeapSlabs(slabSize);
+    }
+
+    /**
+     * Returns the latest version published by the writer of this map.
+     * @return the latest published version of this map
+     */
+    public int getCurrentVersion() {
+        return publishedVersion;
+    }
+
+    /**
+     * Returns the oldest version which can still be read.
+     * @return the oldest readable version of this map
+     */
+    public int getOldestVersion() {
+        return oldestVersion;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory held by the values of this map.
+     * @return the number of off-heap bytes held
+     */
+    public long getOffHeapBytes() {
+        return slabs.getAllocatedBytes();
+    }
+
+    /**
+     * Returns the number of bytes of the values which are not freed yet, with their length prefixes.
+     * @return the number of off-heap bytes in use
+     */
+    public long getLiveOffHeapBytes() {
+        return slabs.getLiveBytes();
+    }
+
+    /**
+     * Returns the number of elements in the specified version of this map.
+     * @param version version of this map
+     * @return number of elements in the specified version of this map
+     */
+    public int size(int version) {
+        checkVersion(version);
+        return versionsLengths.get(version);
+    }
+
+    /**
+     * Returns the number of elements in the current version of this map.
+     * @return number of elements in the current version of this map
+     */
+    public int size() {
+        return size(publishedVersion);
+    }
+
+    /**
+     * Returns true if the specified version of this map contains a mapping for the specified key.
+     * @param key key whose presence is to be tested
+     * @param version version of this map
+     * @return true if the specified version of this map contains a mapping for the specified key
+     */
+    public boolean containsKey(K key, int version) {
+        return handle(key, version) != REMOVED;
+    }
+
+    /**
+     * Returns true if the current version of this map contains a mapping for the specified key.
+     * @param key key whose presence is to be tested
+     * @return true if the current version of this map contains a mapping for the specified key
+     */
+    public boolean containsKey(K key) {
+        return containsKey(key, publishedVersion);
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped in the specified version of this map, decoded from its slab,
+     * or null if there is no mapping for the key.
+     * @param key the key whose associated value is to be returned
+     * @param version version of this map
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     */
+    public V get(K key, int version) {
+        long handle = handle(key, version);
+        if (handle < 0)
+            return null;
+        try {
+            return codec.read(new BinaryReader(slabs.view(handle)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped in the current version of this map, or null if there is no mapping for the key.
+     * @param key the key whose associated value is to be returned
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     */
+    public V get(K key) {
+        return get(key, publishedVersion);
+    }
+
+    /**
+     * Returns a read-only view of the encoded value to which the specified key is mapped in the specified version of this map,
+     * or null if there is no mapping for the key or it is mapped to null. The view shares the memory of the slab
+     * and is valid until the version is pruned.
+     * @param key the key whose associated value is to be returned
+     * @param version version of this map
+     * @return a view of the encoded value, or null
+     */
+    public ByteBuffer getView(K key, int version) {
+        long handle = handle(key, version);
+        return handle < 0 ? null : slabs.view(handle);
+    }
+
+    /**
+     * Returns a read-only view of the encoded value to which the specified key is mapped in the current version of this map,
+     * or null if there is no mapping for the key or it is mapped to null.
+     * @param key the key whose associated value is to be returned
+     * @return a view of the encoded value, or null
+     */
+    public ByteBuffer getView(K key) {
+        return getView(key, publishedVersion);
+    }
+
+    /**
+     * Associates the specified value with the specified key in a new version of this map.
+     * The previous value is not decoded, so the new version is returned instead.
+     * @param key key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @return the new version
+     */
+    public int put(K key, V value) {
+        long handle = NULL;
+        if (null != value) {
+            encoded.reset();
+            try {
+                codec.write(encoder, value);
+                encoder.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            handle = slabs.allocate(encoded.bytes(), encoded.size());
+        }
+        return write(key, handle);
+    }
+
+    /**
+     * Removes the mapping for the specified key in a new version of this map.
+     * @param key key whose mapping is to be removed
+     * @return the new version
+     */
+    public int remove(K key) {
+        return write(key, REMOVED);
+    }
+
+    /**
+     * Discards the history before the specified version, which becomes the oldest readable one, and frees the values
+     * no version from it on can see.
+     * @param version new oldest readable version
+     */
+    public void pruneBefore(int version) {
+        checkVersion(version);
+        oldestVersion = version;
+        while (retiredHead < retiredTail && retiredVersions[retiredHead] <= version) {
+            slabs.free(retiredHandles[retiredHead++]);
+        }
+        if (retiredHead == retiredTail) {
+            retiredHead = 0;
+            retiredTail = 0;
+        }
+    }
+
+    private int write(K key, long handle) {
+        int version = currentVersion + 1;
+        int size = versionsLengths.get(currentVersion);
+        HandleHistory history = versionedData.get(key);
+        if (null == history && handle != REMOVED) {
+            history = new HandleHistory();
+            versionedData.put(key, history);
+        }
+        if (null != history) {
+            long previous = history.last();
+            if (previous != REMOVED)
+                size--;
+            if (previous >= 0)
+                retire(version, previous);
+            history.put(version, handle);
+        }
+        if (handle != REMOVED)
+            size++;
+        versionsLengths.put(version, size);
+        currentVersion = version;
+        publishedVersion = version;
+        return version;
+    }
+
+    private void retire(int version, long handle) {
+        if (retiredTail == retiredVersions.length) {
+            int live = retiredTail - retiredHead;
+            if (live * 2 > retiredVersions.length) {
+                retiredVersions = Arrays.copyOf(retiredVersions, retiredVersions.length * 2);
+                retiredHandles = Arrays.copyOf(retiredHandles, retiredHandles.length * 2);
+            }
+            System.arraycopy(retiredVersions, retiredHead, retiredVersions, 0, live);
+            System.arraycopy(retiredHandles, retiredHead, retiredHandles, 0, live);
+            retiredHead = 0;
+            retiredTail = live;
+        }
+        retiredVersions[retiredTail] = version;
+        retiredHandles[retiredTail++] = handle;
+    }
+
+    private long handle(K key, int version) {
+        checkVersion(version);
+        HandleHistory history = versionedData.get(key);
+        if (null == history)
+            return REMOVED;
+        int index = history.floorIndex(version);
+        return index < 0 ? REMOVED : history.handleAt(index);
+    }
+
+    private void checkVersion(int version) {
+        if (version < oldestVersion || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+    }
+}
@@ -0,0 +1,141 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Allocator of serialized values in direct byte buffers outside the heap, the storage of {@link OffHeapPersistentMap}.
+ * Values are appended to fixed-size slabs and addressed by a handle packing the slab number and the offset,
+ * each value prefixed by its length. A slab whose values are all freed is kept as the one spare for new values or released,
+ * and a value larger than a slab gets a dedicated slab released as soon as it is freed, so the memory held follows the live values
+ * rather than all writes. Released slabs go back to the system once the garbage collector drops their buffers.
+ * One writer thread allocates and frees, any number of threads read: slabs are published like the arrays of {@link VersionHistory}.
+ */
+class OffHeapSlabs {
+    private final int slabSize;
+    private volatile ByteBuffer[] slabs = new ByteBuffer[16];
+    private int[] liveBytes = new int[16];
+    private int slabCount;
+    private final ArrayDeque<Integer> freeSlabs = new ArrayDeque<>();
+    private final ArrayDeque<Integer> releasedSlots = new ArrayDeque<>();
+    private int current = -1;
+    private int offset;
+    private long allocatedBytes;
+
+    OffHeapSlabs(int slabSize) {
+        if (slabSize <= Integer.BYTES)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.ILLEGAL_CAPACITY);
+        this.slabSize = slabSize;
+    }
+
+    /**
+     * Copies the specified bytes into a slab and returns their handle.
+     */
+    long allocate(byte[] bytes, int length) {
+        int size = Integer.BYTES + length;
+        int slab;
+        int position;
+        if (size > slabSize) {
+            slab = register(ByteBuffer.allocateDirect(size));
+            position = 0;
+        } else {
+            if (current < 0 || offset + size > slabSize) {
+                // a retired current slab may already be empty
+                if (current >= 0 && liveBytes[current] == 0)
+                    retire(current);
+                current = freeSlabs.isEmpty() ? register(ByteBuffer.allocateDirect(slabSize)) : freeSlabs.pop();
+                offset = 0;
+            }
+            slab = current;
+            position = offset;
+            offset += size;
+        }
+        ByteBuffer buffer = slabs[slab].duplicate();
+        buffer.position(position);
+        buffer.putInt(length);
+        buffer.put(bytes, 0, length);
+        liveBytes[slab] += size;
+        return (long) slab << 32 | position;
+    }
+
+    /**
+     * Frees the value of the specified handle, which must not be read any more.
+     */
+    void free(long handle) {
+        int slab = (int) (handle >>> 32);
+        ByteBuffer buffer = slabs[slab];
+        int size = Integer.BYTES + buffer.getInt((int) handle);
+        liveBytes[slab] -= size;
+        if (liveBytes[slab] != 0)
+            return;
+        if (buffer.capacity() > slabSize)
+            release(slab);
+        else if (slab != current)
+            retire(slab);
+        else
+            offset = 0;
+    }
+
+    private void retire(int slab) {
+        if (freeSlabs.isEmpty())
+            freeSlabs.push(slab);
+        else
+            release(slab);
+    }
+
+    private void release(int slab) {
+        ByteBuffer[] slabs = this.slabs;
+        allocatedBytes -= slabs[slab].capacity();
+        slabs[slab] = null;
+        this.slabs = slabs;
+        releasedSlots.push(slab);
+    }
+
+    /**
+     * Returns a read-only view of the value of the specified handle, sharing the memory of the slab.
+     */
+    ByteBuffer view(long handle) {
+        ByteBuffer slab = slabs[(int) (handle >>> 32)];
+        int position = (int) handle;
+        ByteBuffer view = slab.asReadOnlyBuffer();
+        view.limit(position + Integer.BYTES + slab.getInt(position));
+        view.position(position + Integer.BYTES);
+        return view.slice();
+    }
+
+    /**
+     * Returns the number of bytes of direct memory held by the slabs.
+     */
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Returns the number of bytes of the values not freed yet, with their length prefixes.
+     */
+    long getLiveBytes() {
+        long live = 0;
+        for (int i = 0; i < slabCount; i++) {
+            live += liveBytes[i];
+        }
+        return live;
+    }
+
+    private int register(ByteBuffer slab) {
+        allocatedBytes += slab.capacity();
+        int index;
+        ByteBuffer[] slabs = this.slabs;
+        if (!releasedSlots.isEmpty()) {
+            index = releasedSlots.pop();
+        } else {
+            index = slabCount++;
+            if (index == slabs.length) {
+                slabs = Arrays.copyOf(slabs, index * 2);
+                liveBytes = Arrays.copyOf(liveBytes, index * 2);
+            }
+        }
+        slabs[index] = slab;
+        liveBytes[index] = 0;
+        this.slabs = slabs;
+        return index;
+    }
+}
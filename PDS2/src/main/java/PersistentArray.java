@@ -1,25 +1,44 @@
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public class PersistentArray<T> {
     public static final int DEFAULT_CAPACITY = 10;
     private int currentVersion = 0;
-    private ArrayList<TreeMap <Integer, T>> versionedData;
-    private TreeMap<Integer, Integer> versionsLengths;
+    private volatile int publishedVersion = 0;
+    private volatile VersionHistory<T>[] versionedData;
+    private int slotsCount;
+    private final VersionHistory<Integer> versionsLengths;
+    private final VersionLog<Integer> changeLog = new VersionLog<>();
+    private final ChangeFeed<Integer, T> changeFeed = new ChangeFeed<>(this::diff);
+    private volatile TimestampIndex timestampIndex;
+    private volatile WorkloadRecorder.Stream recorder;
+    private volatile StructureMetrics metrics;
 
 
     /**
      * Constructs an empty array with the initial capacity of ten.
      */
     public PersistentArray() {
-        versionedData = new ArrayList<>();
-        for (int i = 0; i < DEFAULT_CAPACITY; i++) {
-            versionedData.add(new TreeMap<>());
-            versionedData.get(i).put(currentVersion, null);
-        }
-        versionsLengths = new TreeMap<>();
-        versionsLengths.put(currentVersion, DEFAULT_CAPACITY);
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Returns an array of the specified number of slots, the only place creating an array of the generic histories.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> VersionHistory<T>[] newHistories(int length) {
+        return (VersionHistory<T>[]) new VersionHistory<?>[length];
     }
 
     /**
@@ -28,15 +47,135 @@ public class PersistentArray<T> {
      * @param capacity initial capacity
      */
     public PersistentArray(int capacity) {
-        versionedData = new ArrayList<>();
+        versionedData = newHistories(Math.max(capacity, DEFAULT_CAPACITY));
         for (int i = 0; i < capacity; i++) {
-            versionedData.add(new TreeMap<>());
-            versionedData.get(i).put(currentVersion, null);
+            versionedData[i] = new VersionHistory<>(currentVersion, null);
         }
-        versionsLengths = new TreeMap<>();
+        slotsCount = capacity;
+        versionsLengths = new VersionHistory<>();
         versionsLengths.put(currentVersion, capacity);
     }
 
+    /**
+     * Returns the latest version published by the writer of this array.
+     * The array supports one writer thread and any number of reader threads: a version becomes visible to other threads only once
+     * the mutation creating it has completed, and readers of this or any older version never lock and never see a partial write.
+     * Other threads must not read versions newer than this one.
+     *
+     * @return the latest published version of this array
+     */
+    public int getCurrentVersion() {
+        return publishedVersion;
+    }
+
+    /**
+     * Makes the versions created so far visible to reader threads.
+     * Every mutation calls it last, the volatile write orders all of the writes of the mutation before the new version number.
+     * The version is then stamped if timestamps are enabled and announced to the subscribers of the change feed.
+     */
+    private void publish() {
+        publishedVersion = currentVersion;
+        TimestampIndex timestamps = timestampIndex;
+        if (null != timestamps)
+            timestamps.record(currentVersion);
+        changeFeed.publish(currentVersion);
+    }
+
+    /**
+     * Returns the feed of the changes of this array, whose subscribers receive the changes of every version published after they subscribed.
+     *
+     * @return the change feed of this array
+     */
+    public ChangeFeed<Integer, T> getChangeFeed() {
+        return changeFeed;
+    }
+
+    /**
+     * Starts recording the commit time of every version of this array from the current version on, read from the system clock.
+     * Must be called by the writer thread.
+     */
+    public void enableTimestamps() {
+        enableTimestamps(Clock.systemUTC());
+    }
+
+    /**
+     * Starts recording the commit time of every version of this array from the current version on, read from the specified clock.
+     * Must be called by the writer thread, does nothing if timestamps are already enabled.
+     *
+     * @param clock clock which stamps the versions
+     */
+    public void enableTimestamps(Clock clock) {
+        if (null == timestampIndex)
+            timestampIndex = new TimestampIndex(clock, currentVersion);
+    }
+
+    /**
+     * Returns the newest version of this array committed at or before the specified instant.
+     *
+     * @param instant instant at or after the enabling of timestamps
+     * @return the newest version committed at or before the specified instant
+     */
+    public int versionAt(Instant instant) {
+        return timestamps().versionAt(instant);
+    }
+
+    /**
+     * Returns the commit time of the specified version of this array.
+     *
+     * @param version version committed after the enabling of timestamps
+     * @return the commit time of the specified version
+     */
+    public Instant getTimestamp(int version) {
+        return timestamps().getTimestamp(version);
+    }
+
+    private TimestampIndex timestamps() {
+        TimestampIndex timestamps = timestampIndex;
+        if (null == timestamps)
+            throw new IllegalStateException(PersistentExceptionsMessege.TIMESTAMPS_DISABLED);
+        return timestamps;
+    }
+
+    /**
+     * Starts recording the metrics of the reads and writes of this array, or returns them if they are already recorded.
+     * Must be called by the writer thread.
+     *
+     * @return the metrics of this array
+     */
+    public StructureMetrics enableMetrics() {
+        if (null == metrics)
+            metrics = new StructureMetrics(this::putGauges);
+        return metrics;
+    }
+
+    /**
+     * Stops recording metrics, the operations then pay only the check of a field.
+     */
+    public void disableMetrics() {
+        metrics = null;
+    }
+
+    /**
+     * Returns the metrics of this array, or null if they are disabled.
+     *
+     * @return the metrics of this array
+     */
+    public StructureMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void putGauges(Map<String, Double> gauges) {
+        int version = publishedVersion;
+        gauges.put("versions", version + 1.0);
+        VersionHistory<T>[] slots = versionedData;
+        int length = versionsLengths.get(version);
+        int[] lengths = new int[length];
+        for (int i = 0; i < length; i++) {
+            lengths[i] = slots[i].size();
+        }
+        StructureMetrics.putDistribution(gauges, "historyLength", lengths, length);
+    }
+
     /**
      * Returns the element at the specified position in the specified version of the array.
      *
@@ -45,11 +184,19 @@ public class PersistentArray<T> {
      * @return the element at the specified position in the specified version of the array.
      */
     public T get(int index, int version) {
-        if (version > currentVersion)
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        if (version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
-        if (versionsLengths.floorEntry(version).getValue() <= index)
+        if (versionsLengths.get(version) <= index)
             throw new ArrayIndexOutOfBoundsException(PersistentExceptionsMessege.ARRAY_INDEX_OUT_OF_BOUNDS);
-        return versionedData.get(index).floorEntry(version).getValue();
+        WorkloadRecorder.Stream recording = recorder;
+        if (null != recording)
+            recording.get(index, version);
+        T element = versionedData[index].get(version);
+        if (null != measured)
+            measured.record(StructureMetrics.GET, start);
+        return element;
     }
 
     /**
@@ -59,7 +206,18 @@ public class PersistentArray<T> {
      * @return the element at the specified position in the current version of the array.
      */
     public T get(int index) {
-        return get(index, currentVersion);
+        return get(index, publishedVersion);
+    }
+
+    /**
+     * Returns the element at the specified position in the version of the array current at the specified instant.
+     *
+     * @param index   index of the element to return
+     * @param instant instant at or after the enabling of timestamps
+     * @return the element at the specified position at the specified instant
+     */
+    public T get(int index, Instant instant) {
+        return get(index, versionAt(instant));
     }
 
 
@@ -70,9 +228,8 @@ public class PersistentArray<T> {
      * @return length of the specified version of this array
      */
     public int getLength(int version) {
-        if (currentVersion < version)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
-       // return versionsLengths.floorEntry(version).getValue();
         return versionsLengths.get(version);
     }
 
@@ -82,7 +239,7 @@ public class PersistentArray<T> {
      * @return length of the current version of this array
      */
     public int getLength() {
-        return getLength(currentVersion);
+        return getLength(publishedVersion);
     }
 
     /**
@@ -92,13 +249,28 @@ public class PersistentArray<T> {
      * @return current version of this array
      */
     public int add(T obj) {
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
         int curVLen = getLength();
-        if (curVLen >= versionedData.size()) {
-            versionedData.add(new TreeMap<>());
+        if (curVLen >= slotsCount) {
+            if (slotsCount == versionedData.length) {
+                versionedData = Arrays.copyOf(versionedData, slotsCount + (slotsCount >> 1));
+            }
+            versionedData[slotsCount++] = new VersionHistory<>();
         }
         currentVersion++;
-        versionedData.get(curVLen).put(currentVersion, obj);
+        versionedData[curVLen].put(currentVersion, obj);
         versionsLengths.put(currentVersion, curVLen + 1);
+        changeLog.record(currentVersion, curVLen);
+        publish();
+        event.complete(this, "add", currentVersion, 1);
+        WorkloadRecorder.Stream recording = recorder;
+        if (null != recording)
+            recording.append(obj, currentVersion);
+        if (null != measured)
+            measured.record(StructureMetrics.APPEND, start);
         return currentVersion;
     }
 
@@ -108,12 +280,24 @@ public class PersistentArray<T> {
      * @return current version of this array
      */
     public int removeLast() {
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
         int curVLen = getLength();
         if (curVLen == 0) {
             throw new ArrayIndexOutOfBoundsException(PersistentExceptionsMessege.NOTHING_TO_REMOVE);
         }
         currentVersion++;
         versionsLengths.put(currentVersion, curVLen - 1);
+        changeLog.record(currentVersion, curVLen - 1);
+        publish();
+        event.complete(this, "removeLast", currentVersion, -1);
+        WorkloadRecorder.Stream recording = recorder;
+        if (null != recording)
+            recording.removeAt(curVLen - 1, currentVersion);
+        if (null != measured)
+            measured.record(StructureMetrics.REMOVE, start);
         return currentVersion;
     }
     /**
@@ -124,11 +308,152 @@ public class PersistentArray<T> {
      * @return number of current version of the array
      */
     public int replace(int index, T obj) {
-        int curVLen = versionsLengths.floorEntry(currentVersion).getValue();
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
+        int curVLen = versionsLengths.get(currentVersion);
         if (index >= curVLen)
             throw new ArrayIndexOutOfBoundsException(PersistentExceptionsMessege.ARRAY_INDEX_OUT_OF_BOUNDS);
         currentVersion++;
-        versionedData.get(index).put(currentVersion, obj);
+        versionedData[index].put(currentVersion, obj);
+        changeLog.record(currentVersion, index);
+        publish();
+        event.complete(this, "replace", currentVersion, 0);
+        WorkloadRecorder.Stream recording = recorder;
+        if (null != recording)
+            recording.set(index, obj, currentVersion);
+        if (null != measured)
+            measured.record(StructureMetrics.PUT, start);
         return currentVersion;
     }
+
+    /**
+     * Returns the indices added, removed or changed between the two specified versions of this array.
+     * Every version writes one index, so only the indices written by the versions in between are visited,
+     * and differences are computed one at a time as the iterator advances.
+     *
+     * @param fromVersion version to compare from, its elements are the old values
+     * @param toVersion   version to compare to, its elements are the new values
+     * @return an iterator over the differences between the two versions
+     */
+    public Iterator<DiffEntry<Integer, T>> diff(int fromVersion, int toVersion) {
+        if (fromVersion < 0 || fromVersion > publishedVersion || toVersion < 0 || toVersion > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        int fromLength = versionsLengths.get(fromVersion);
+        int toLength = versionsLengths.get(toVersion);
+        VersionHistory<T>[] slots = versionedData;
+        return DiffEntry.lazily(changeLog.distinct(fromVersion, toVersion), index ->
+                DiffEntry.of(index, index < fromLength, slots[index].get(fromVersion), index < toLength, slots[index].get(toVersion)));
+    }
+
+    /**
+     * Saves the full history of this array up to its current version to the specified file, in the format of {@link HistoryFormat}.
+     *
+     * @param path  file to be written, replaced if it exists
+     * @param codec codec of the elements
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path path, Codec<? super T> codec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            HistoryFormat.writeArray(this, channel, codec);
+        }
+    }
+
+    /**
+     * Loads an array with the full history saved to the specified file by {@link #save}.
+     *
+     * @param path  file to be read
+     * @param codec codec of the elements
+     * @return an array with the same versions as the saved one
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    public static <T> PersistentArray<T> load(Path path, Codec<T> codec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return HistoryFormat.readArray(channel, codec);
+        }
+    }
+
+    /**
+     * Writes the specified version of this array to the specified file in the background, in the format of {@link VersionSnapshot},
+     * on the shared snapshot thread and throttled to {@link VersionSnapshot#DEFAULT_BYTES_PER_SECOND}.
+     * The writer of this array is never paused: the version is immutable and streamed as it is written.
+     *
+     * @param version version of this array
+     * @param path    file to be written, replaced once the snapshot is complete
+     * @param codec   codec of the elements
+     * @return a future completed with the path once the snapshot is on disk
+     */
+    public CompletableFuture<Path> snapshotAsync(int version, Path path, Codec<? super T> codec) {
+        return snapshotAsync(version, path, codec, VersionSnapshot.defaultExecutor(), VersionSnapshot.DEFAULT_BYTES_PER_SECOND);
+    }
+
+    /**
+     * Writes the specified version of this array to the specified file in the background, in the format of {@link VersionSnapshot}.
+     * The writer of this array is never paused: the version is immutable and streamed as it is written.
+     *
+     * @param version        version of this array
+     * @param path           file to be written, replaced once the snapshot is complete
+     * @param codec          codec of the elements
+     * @param executor       executor running the snapshot
+     * @param bytesPerSecond maximum rate of the snapshot writes
+     * @return a future completed with the path once the snapshot is on disk
+     */
+    public CompletableFuture<Path> snapshotAsync(int version, Path path, Codec<? super T> codec, Executor executor, long bytesPerSecond) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        int length = getLength(version);
+        return VersionSnapshot.writeAsync(path, VersionSnapshot.ARRAY, version, executor, bytesPerSecond, out -> {
+            for (int i = 0; i < length; i++) {
+                out.writeNullable(versionedData[i].get(version), codec);
+            }
+            return length;
+        });
+    }
+
+    /**
+     * Loads an array whose version 0 holds the version written to the specified file by {@link #snapshotAsync}.
+     *
+     * @param path  file to be read
+     * @param codec codec of the elements
+     * @return an array holding the snapshotted version
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    public static <T> PersistentArray<T> loadSnapshot(Path path, Codec<T> codec) throws IOException {
+        List<T> elements = VersionSnapshot.readElements(path, VersionSnapshot.ARRAY, codec);
+        PersistentArray<T> array = new PersistentArray<>(elements.size());
+        for (int i = 0; i < elements.size(); i++) {
+            array.versionedData[i] = new VersionHistory<>(0, elements.get(i));
+        }
+        return array;
+    }
+
+    /**
+     * Returns the index written by the specified version.
+     */
+    /**
+     * Returns the length of the specified version, which must be published, without checking it.
+     */
+    int lengthAt(int version) {
+        return versionsLengths.get(version);
+    }
+
+    /**
+     * Returns the element at the specified position in the specified version, which must be published and hold the position,
+     * without checking them, recording the read or measuring it.
+     */
+    T valueAt(int index, int version) {
+        return versionedData[index].get(version);
+    }
+
+    int indexWrittenAt(int version) {
+        return changeLog.written(version).next();
+    }
+
+    /**
+     * Attaches the recorder which receives the recorded calls made from now on, or detaches it if null.
+     */
+    void attachRecorder(WorkloadRecorder.Stream recorder) {
+        this.recorder = recorder;
+    }
 }
@@ -4,4 +4,25 @@ public final class PersistentExceptionsMessege {
     public static final String NO_SUCH_VERSION = "Such version does not exist";
     public static final String NO_SUCH_ELEMENT = "Such element does not exist";
     public static final String LIST_INDEX_OUT_OF_BOUNDS = "List index out of bounds";
+    public static final String TRANSACTION_FINISHED = "Transaction is already committed or rolled back";
+    public static final String ILLEGAL_SHARD_COUNT = "Shard count must be positive";
+    public static final String ILLEGAL_CAPACITY = "Capacity must be positive";
+    public static final String TIMESTAMPS_DISABLED = "Timestamps are not recorded";
+    public static final String FOREIGN_BRANCH = "Branch was not forked from this map";
+    public static final String CORRUPTED_HISTORY = "History file is corrupted";
+    public static final String LOG_CLOSED = "Write-ahead log is closed";
+    public static final String ILLEGAL_RATE = "Rate must be positive";
+    public static final String SNAPSHOT_TOO_LARGE = "Snapshot does not fit in one mapping";
+    public static final String FRAME_TOO_LARGE = "Frame exceeds the maximum size";
+    public static final String UNKNOWN_OPERATION = "Unknown operation";
+    public static final String REPLY_NOT_READY = "Pipeline of the reply is not synced yet";
+    public static final String UNKNOWN_CODEC = "Unknown codec";
+    public static final String PARTITION_NOT_STARTED = "Partition process did not start";
+    public static final String NO_SUCH_PARTITION = "Such partition does not exist";
+    public static final String CORRUPTED_TRACE = "Trace file is corrupted";
+    public static final String ILLEGAL_THREAD_COUNT = "Thread count must be positive";
+    public static final String ILLEGAL_PERIOD = "Period must be positive";
+    public static final String ILLEGAL_STRIPE_COUNT = "Stripe count must be positive";
+    public static final String MAP_FULL = "Map holds the maximum number of keys";
+    public static final String ILLEGAL_RANGE = "Low endpoint of the range is above its high endpoint";
 }
@@ -0,0 +1,145 @@
+/**
+ * Persistent map specialized for int keys and int values, built on the versioned table of {@link PrimitiveKeyMap}.
+ * Values are stored unboxed, so neither lookups nor writes allocate besides the growth of the table and of the histories.
+ * The map supports one writer thread and any number of reader threads.
+ */
+public class PersistentIntIntMap extends PrimitiveKeyMap {
+
+    /**
+     * Constructs an empty persistent map.
+     */
+    public PersistentIntIntMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs an empty persistent map able to hold the specified number of keys without rehashing.
+     *
+     * @param expectedKeys expected number of keys
+     * @throws IllegalArgumentException if expectedKeys is negative
+     */
+    public PersistentIntIntMap(int expectedKeys) {
+        super(expectedKeys);
+    }
+
+    @Override
+    Object newValues(int length) {
+        return new int[length];
+    }
+
+    /**
+     * Returns the value of the entry of the slot, which must not be {@link #ABSENT}.
+     */
+    private static int valueOf(Table t, int slot, int entry) {
+        return ((int[]) valuesOf(t, slot, entry))[positionOf(slot, entry)];
+    }
+
+    /**
+     * Returns true if the specified version of this map contains a mapping for the specified key.
+     * @param key key whose presence in this map is to be tested
+     * @param version version of this map
+     * @return true if the specified version of this map contains a mapping for the specified key
+     */
+    public boolean containsKey(int key, int version) {
+        checkVersion(version);
+        Table t = table;
+        int slot = slotOf(t, key);
+        return slot >= 0 && entryAt(t, slot, version) != ABSENT;
+    }
+
+    /**
+     * Returns true if the current version of this map contains a mapping for the specified key.
+     * @param key key whose presence in this map is to be tested
+     * @return true if the current version of this map contains a mapping for the specified key
+     */
+    public boolean containsKey(int key) {
+        return containsKey(key, getCurrentVersion());
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped, or 0 if the specified version of this map contains no mapping for the key.
+     * @param key the key whose associated value is to be returned
+     * @param version version of this map
+     * @return the value to which the specified key is mapped, or 0 if the specified version of this map contains no mapping for the key
+     */
+    public int get(int key, int version) {
+        return getOrDefault(key, 0, version);
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped, or 0 if the current version of this map contains no mapping for the key.
+     * @param key the key whose associated value is to be returned
+     * @return the value to which the specified key is mapped, or 0 if the current version of this map contains no mapping for the key
+     */
+    public int get(int key) {
+        return get(key, getCurrentVersion());
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped, or defaultValue if the specified version of this map contains no mapping for the key.
+     * @param key the key whose associated value is to be returned
+     * @param defaultValue the default mapping of the key
+     * @param version version of this map
+     * @return the value to which the specified key is mapped, or defaultValue if the specified version of this map contains no mapping for the key
+     */
+    public int getOrDefault(int key, int defaultValue, int version) {
+        checkVersion(version);
+        Table t = table;
+        int slot = slotOf(t, key);
+        if (slot < 0)
+            return defaultValue;
+        int entry = entryAt(t, slot, version);
+        return entry == ABSENT ? defaultValue : valueOf(t, slot, entry);
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped, or defaultValue if the current version of this map contains no mapping for the key.
+     * @param key the key whose associated value is to be returned
+     * @param defaultValue the default mapping of the key
+     * @return the value to which the specified key is mapped, or defaultValue if the current version of this map contains no mapping for the key
+     */
+    public int getOrDefault(int key, int defaultValue) {
+        return getOrDefault(key, defaultValue, getCurrentVersion());
+    }
+
+    /**
+     * Associates the specified value with the specified key in a new version of this map.
+     * @param key key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @return the previous value associated with key, or 0 if there was no mapping for key.
+     */
+    public int put(int key, int value) {
+        int slot = find(key);
+        int entry = latestEntry(slot);
+        int oldValue = entry == ABSENT ? 0 : valueOf(table, slot, entry);
+        newVersion();
+        if (slot < 0) {
+            slot = insert(key);
+            ((int[]) table.firstValues)[slot] = value;
+        } else {
+            int index = append(slot, false);
+            ((int[]) table.histories[slot].values)[index] = value;
+        }
+        publish(entry == ABSENT ? 1 : 0);
+        return oldValue;
+    }
+
+    /**
+     * Removes the mapping for the specified key in a new version of this map.
+     * @param key key whose mapping is to be removed from the map
+     * @return the previous value associated with key, or 0 if there was no mapping for key.
+     */
+    public int remove(int key) {
+        int slot = find(key);
+        int entry = latestEntry(slot);
+        newVersion();
+        if (entry == ABSENT) {
+            publish(0);
+            return 0;
+        }
+        int oldValue = valueOf(table, slot, entry);
+        append(slot, true);
+        publish(-1);
+        return oldValue;
+    }
+}
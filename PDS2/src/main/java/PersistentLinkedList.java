@@ -1,38 +1,172 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
 
 public class PersistentLinkedList<T> implements List {
     private int currentVersion = 0;
-    private TreeMap<Integer, Integer> versionsLengths;
-    private TreeMap<Integer, PersistentListNode<T>> versionedHeads;
-    private TreeMap<Integer, PersistentListNode<T>> versionedTails;
+    private volatile int publishedVersion = 0;
+    private final VersionHistory<Integer> versionsLengths;
+    private final VersionHistory<PersistentListNode<T>> versionedHeads;
+    private final VersionHistory<PersistentListNode<T>> versionedTails;
+    private final VersionLog<PersistentListNode<T>> changeLog = new VersionLog<>();
+    private final VersionHistory<Integer> clearVersions = new VersionHistory<>();
+    private final ChangeFeed<Integer, T> changeFeed = new ChangeFeed<>(this::diff);
+    private volatile TimestampIndex timestampIndex;
+    private volatile WorkloadRecorder.Stream recorder;
+    private volatile StructureMetrics metrics;
 
     /**
      * Constructs an empty persistent list.
      */
     public PersistentLinkedList() {
-        versionedHeads = new TreeMap<>();
-        versionedTails = new TreeMap<>();
-        versionsLengths = new TreeMap<>();
+        versionedHeads = new VersionHistory<>();
+        versionedTails = new VersionHistory<>();
+        versionsLengths = new VersionHistory<>();
         versionsLengths.put(0, 0);
     }
 
+    /**
+     * Returns the latest version published by the writer of this list.
+     * The list supports one writer thread and any number of reader threads: a version becomes visible to other threads only once
+     * the mutation creating it has completed, and readers of this or any older version never lock and never see a partial write.
+     * Other threads must not read versions newer than this one.
+     * @return the latest published version of this list
+     */
+    public int getCurrentVersion() {
+        return publishedVersion;
+    }
+
+    /**
+     * Makes the versions created so far visible to reader threads.
+     * Every mutation calls it last, the volatile write orders all of the writes of the mutation before the new version number.
+     * The version is then stamped if timestamps are enabled and announced to the subscribers of the change feed.
+     */
+    private void publish() {
+        publishedVersion = currentVersion;
+        TimestampIndex timestamps = timestampIndex;
+        if (null != timestamps)
+            timestamps.record(currentVersion);
+        changeFeed.publish(currentVersion);
+    }
+
+    /**
+     * Returns the feed of the changes of this list, whose subscribers receive the changes of every version published after they subscribed.
+     * @return the change feed of this list
+     */
+    public ChangeFeed<Integer, T> getChangeFeed() {
+        return changeFeed;
+    }
+
+    /**
+     * Starts recording the commit time of every version of this list from the current version on, read from the system clock.
+     * Must be called by the writer thread.
+     */
+    public void enableTimestamps() {
+        enableTimestamps(Clock.systemUTC());
+    }
+
+    /**
+     * Starts recording the commit time of every version of this list from the current version on, read from the specified clock.
+     * Must be called by the writer thread, does nothing if timestamps are already enabled.
+     * @param clock clock which stamps the versions
+     */
+    public void enableTimestamps(Clock clock) {
+        if (null == timestampIndex)
+            timestampIndex = new TimestampIndex(clock, currentVersion);
+    }
+
+    /**
+     * Returns the newest version of this list committed at or before the specified instant.
+     * @param instant instant at or after the enabling of timestamps
+     * @return the newest version committed at or before the specified instant
+     */
+    public int versionAt(Instant instant) {
+        return timestamps().versionAt(instant);
+    }
+
+    /**
+     * Returns the commit time of the specified version of this list.
+     * @param version version committed after the enabling of timestamps
+     * @return the commit time of the specified version
+     */
+    public Instant getTimestamp(int version) {
+        return timestamps().getTimestamp(version);
+    }
+
+    private TimestampIndex timestamps() {
+        TimestampIndex timestamps = timestampIndex;
+        if (null == timestamps)
+            throw new IllegalStateException(PersistentExceptionsMessege.TIMESTAMPS_DISABLED);
+        return timestamps;
+    }
+
+    /**
+     * Starts recording the metrics of the reads and writes by index of this list, or returns them if they are already recorded.
+     * Must be called by the writer thread.
+     * @return the metrics of this list
+     */
+    public StructureMetrics enableMetrics() {
+        if (null == metrics)
+            metrics = new StructureMetrics(this::putGauges);
+        return metrics;
+    }
+
+    /**
+     * Stops recording metrics, the operations then pay only the check of a field.
+     */
+    public void disableMetrics() {
+        metrics = null;
+    }
+
+    /**
+     * Returns the metrics of this list, or null if they are disabled.
+     * @return the metrics of this list
+     */
+    public StructureMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void putGauges(Map<String, Double> gauges) {
+        int version = publishedVersion;
+        gauges.put("versions", version + 1.0);
+        int size = size(version);
+        int[] lengths = new int[size];
+        PersistentListNode<T> current = versionedHeads.get(version);
+        for (int i = 0; i < size; i++) {
+            lengths[i] = current.getHistoryLength();
+            current = current.getNext(version);
+        }
+        StructureMetrics.putDistribution(gauges, "historyLength", lengths, size);
+        StructureMetrics measured = metrics;
+        gauges.put("walkLength.mean", null == measured ? 0 : measured.getMeanWalkLength());
+    }
+
     /**
      * Constructs a persistent list from specified collection.
      *
      * @param c specified collection
      */
     public PersistentLinkedList(Collection<T> c) {
-        versionedHeads = new TreeMap<>();
-        versionedTails = new TreeMap<>();
-        versionsLengths = new TreeMap<>();
+        versionedHeads = new VersionHistory<>();
+        versionedTails = new VersionHistory<>();
+        versionsLengths = new VersionHistory<>();
         versionsLengths.put(0, c.size());
         for (T obj : c) {
             add(obj, 0);
         }
+        publish();
     }
 
     /**
@@ -41,9 +175,16 @@ public class PersistentLinkedList<T> implements List {
      * @return number of elements in the specified version of this list.
      */
     public int size(int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
-        return versionsLengths.floorEntry(version).getValue();
+        return versionsLengths.get(version);
+    }
+
+    /**
+     * Returns the number of elements in a version, which the writer may not have published yet.
+     */
+    private int length(int version) {
+        return versionsLengths.get(version);
     }
 
     /**
@@ -52,7 +193,7 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public int size() {
-        return size(currentVersion);
+        return size(publishedVersion);
     }
 
     /**
@@ -61,7 +202,7 @@ public class PersistentLinkedList<T> implements List {
      * @return true if the specified version of this list contains no elements, false otherwise
      */
     public boolean isEmpty(int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
         return size(version) == 0;
     }
@@ -72,7 +213,7 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public boolean isEmpty() {
-        return isEmpty(currentVersion);
+        return isEmpty(publishedVersion);
     }
 
     /**
@@ -81,12 +222,12 @@ public class PersistentLinkedList<T> implements List {
      * @return true if current version of this list contains the specified element, false otherwise
      */
     public boolean contains(Object o, int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
         if (isEmpty(version))
             return false;
 
-        PersistentListNode<T> current = versionedHeads.floorEntry(version).getValue();
+        PersistentListNode<T> current = versionedHeads.get(version);
         for (int i = 0; i < size(version); i++) {
             if (current.getObject(version) == null) {
                 if (o == null) return true;
@@ -106,7 +247,7 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public boolean contains(Object o) {
-        return contains(o, currentVersion);
+        return contains(o, publishedVersion);
     }
 
     /**
@@ -114,7 +255,7 @@ public class PersistentLinkedList<T> implements List {
      * @return an iterator over the elements in the specified version of this list in proper sequence.
      */
     public Iterator iterator(int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
         return new Iterator() {
             ListIterator listIterator = versionedListIterator(version);
@@ -137,7 +278,7 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public Iterator iterator() {
-        return iterator(currentVersion);
+        return iterator(publishedVersion);
     }
 
     /**
@@ -147,10 +288,10 @@ public class PersistentLinkedList<T> implements List {
      * @return an array containing all of the elements in the specified version of this list in proper sequence
      */
     public Object[] toArray(int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
         Object[] array = new Object[size(version)];
-        PersistentListNode<T> current = versionedHeads.floorEntry(version).getValue();
+        PersistentListNode<T> current = versionedHeads.get(version);
         for (int i = 0; i < array.length; i++) {
             array[i] = current.getObject(version);
             current = current.getNext(version);
@@ -166,7 +307,7 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public Object[] toArray() {
-        return toArray(currentVersion);
+        return toArray(publishedVersion);
     }
 
     /**
@@ -177,17 +318,19 @@ public class PersistentLinkedList<T> implements List {
     private boolean add(Object o, int version) {
         if (version < 0 || version > currentVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
-        if (versionedHeads.size() == 0 || versionedHeads.floorEntry(version).getValue() == null) {
-            PersistentListNode<T> current = new PersistentListNode<>((T) o, version, null, null);
+        if (versionedHeads.isEmpty() || versionedHeads.get(version) == null) {
+            PersistentListNode<T> current = new PersistentListNode<>(elementOf(o), version, null, null);
             versionedHeads.put(version, current);
             versionedTails.put(version, current);
             versionsLengths.put(version, 1);
+            changeLog.record(version, current);
         } else {
-            PersistentListNode<T> prev = versionedTails.floorEntry(version).getValue();
-            PersistentListNode<T> current = new PersistentListNode<>((T) o, version, prev, null);
+            PersistentListNode<T> prev = versionedTails.get(version);
+            PersistentListNode<T> current = new PersistentListNode<>(elementOf(o), version, prev, null);
             prev.setNext(version, current);
             versionedTails.put(version, current);
-            versionsLengths.put(version, size(version) + 1);
+            versionsLengths.put(version, length(version) + 1);
+            changeLog.record(version, current);
         }
         return true;
     }
@@ -199,8 +342,20 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public boolean add(Object o) {
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
         currentVersion++;
-        return add(o, currentVersion);
+        boolean result = add(o, currentVersion);
+        publish();
+        event.complete(this, "add", currentVersion, 1);
+        WorkloadRecorder.Stream recording = recorder;
+        if (null != recording)
+            recording.append(o, currentVersion);
+        if (null != measured)
+            measured.record(StructureMetrics.APPEND, start);
+        return result;
     }
 
     /**
@@ -213,10 +368,10 @@ public class PersistentLinkedList<T> implements List {
     private boolean remove(Object o, int version) {
         if (version < 0 || version > currentVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
-        if (isEmpty(version))
+        if (length(version) == 0)
             return false;
-        PersistentListNode<T> current = versionedHeads.floorEntry(currentVersion).getValue();
-        for (int i = 0; i < size(version); i++) {
+        PersistentListNode<T> current = versionedHeads.get(currentVersion);
+        for (int i = 0; i < length(version); i++) {
             if (current.getObject(version).equals(o)) {
                 PersistentListNode<T> prevEl = current.getPrev(version);
                 PersistentListNode<T> nextEl = current.getNext(version);
@@ -230,7 +385,8 @@ public class PersistentLinkedList<T> implements List {
                 } else {
                     versionedTails.put(version, prevEl);
                 }
-                versionsLengths.put(version, size(version) - 1);
+                versionsLengths.put(version, length(version) - 1);
+                changeLog.record(version, current);
                 return true;
             }
             current = current.getNext(version);
@@ -247,8 +403,17 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public boolean remove(Object o) {
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
         currentVersion++;
-        return remove(o, currentVersion);
+        boolean result = remove(o, currentVersion);
+        publish();
+        event.complete(this, "remove", currentVersion, result ? -1 : 0);
+        if (null != measured)
+            measured.record(StructureMetrics.REMOVE, start);
+        return result;
     }
 
     /**
@@ -267,27 +432,33 @@ public class PersistentLinkedList<T> implements List {
             throw new IndexOutOfBoundsException(PersistentExceptionsMessege.LIST_INDEX_OUT_OF_BOUNDS);
         if (c.isEmpty())
             return false;
+        BulkOperationEvent event = new BulkOperationEvent();
+        event.begin();
         currentVersion++;
 
         PersistentListNode<T> current = null;
         PersistentListNode<T> prev = null;
-        if (!(versionedHeads.size() == 0 || versionedHeads.floorEntry(currentVersion).getValue() == null)) {
-            current = versionedHeads.floorEntry(currentVersion).getValue();
+        if (!(versionedHeads.isEmpty() || versionedHeads.get(currentVersion) == null)) {
+            current = versionedHeads.get(currentVersion);
 
             if (index == size()) {
-                prev = versionedTails.floorEntry(currentVersion).getValue();
+                prev = versionedTails.get(currentVersion);
                 current = null;
             } else {
+                ListWalkEvent walk = new ListWalkEvent();
+                walk.begin();
                 for (int i = 0; i < index; i++) {
                     current = current.getNext(currentVersion);
                 } // after that current is element needed to shift
+                walked(walk, "addAll", currentVersion, index + 1);
 
                 prev = current.getPrev(currentVersion);
             }
         }
         PersistentListNode<T> newEl = null;
         for (Object o : c) {
-            newEl = new PersistentListNode<>((T)o, currentVersion, prev, current);
+            newEl = new PersistentListNode<>(elementOf(o), currentVersion, prev, current);
+            changeLog.record(currentVersion, newEl);
             if (null != prev) {
                 prev.setNext(currentVersion, newEl);
             } else {
@@ -301,7 +472,9 @@ public class PersistentLinkedList<T> implements List {
             prev = newEl;
         }
 
-        versionsLengths.put(currentVersion, size(currentVersion) + c.size());
+        versionsLengths.put(currentVersion, length(currentVersion) + c.size());
+        publish();
+        event.complete(this, "addAll", currentVersion, c.size(), c.size());
         return true;
     }
 
@@ -328,10 +501,12 @@ public class PersistentLinkedList<T> implements List {
     public boolean retainAll(Collection c) {
         if (c.isEmpty() || isEmpty())
             return false;
-        PersistentListNode<T> current = versionedHeads.floorEntry(currentVersion).getValue();
+        BulkOperationEvent event = new BulkOperationEvent();
+        event.begin();
+        PersistentListNode<T> current = versionedHeads.get(currentVersion);
         boolean isChanged = false;
         currentVersion++;
-        for (int i = 0; i < size(); i++) {
+        for (int i = 0; i < length(currentVersion); i++) {
             if (!c.contains(current.getObject(currentVersion))) {
                 isChanged = isChanged || remove(current.getObject(currentVersion), currentVersion);
                 current = current.getNext(currentVersion);
@@ -339,6 +514,9 @@ public class PersistentLinkedList<T> implements List {
         }
         if (!isChanged) {
             currentVersion--; }
+        publish();
+        if (isChanged)
+            event.complete(this, "retainAll", currentVersion, c.size(), length(currentVersion) - length(currentVersion - 1));
         return isChanged;
     }
 
@@ -349,6 +527,8 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public boolean removeAll(Collection c) {
+        BulkOperationEvent event = new BulkOperationEvent();
+        event.begin();
         boolean isChanged = false;
         currentVersion++;
         for (Object o : c) {
@@ -358,6 +538,9 @@ public class PersistentLinkedList<T> implements List {
         }
         if (!isChanged) {
             currentVersion--; }
+        publish();
+        if (isChanged)
+            event.complete(this, "removeAll", currentVersion, c.size(), length(currentVersion) - length(currentVersion - 1));
         return isChanged;
     }
 
@@ -368,7 +551,7 @@ public class PersistentLinkedList<T> implements List {
      * @return true if the specified version of this list contains all of the elements of the specified collection
      */
     public boolean containsAll(Collection c, int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
         for (Object o : c) {
             if (!contains(o, version))
@@ -384,7 +567,7 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public boolean containsAll(Collection c) {
-        return containsAll(c, currentVersion);
+        return containsAll(c, publishedVersion);
     }
 
     @Override
@@ -399,12 +582,17 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public void replaceAll(UnaryOperator operator) {
-        PersistentListNode currElement = versionedHeads.floorEntry(currentVersion).getValue();
+        BulkOperationEvent event = new BulkOperationEvent();
+        event.begin();
+        PersistentListNode<T> currElement = versionedHeads.get(currentVersion);
+        UnaryOperator<Object> function = operatorOf(operator);
         currentVersion++;
-        for (int i = 0; i < size(); i++) {
-            set(i, operator.apply(currElement.getObject(currentVersion)), currentVersion);
+        for (int i = 0; i < length(currentVersion); i++) {
+            set(i, function.apply(currElement.getObject(currentVersion)), currentVersion);
             currElement = currElement.getNext(currentVersion);
         }
+        publish();
+        event.complete(this, "replaceAll", currentVersion, length(currentVersion), 0);
     }
 
     @Override
@@ -418,10 +606,16 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public void clear() {
+        BulkOperationEvent event = new BulkOperationEvent();
+        event.begin();
+        int cleared = length(currentVersion);
         currentVersion++;
         versionsLengths.put(currentVersion, 0);
         versionedHeads.put(currentVersion, null);
         versionedTails.put(currentVersion, null);
+        clearVersions.put(currentVersion, currentVersion);
+        publish();
+        event.complete(this, "clear", currentVersion, cleared, -cleared);
     }
 
     /**
@@ -431,18 +625,27 @@ public class PersistentLinkedList<T> implements List {
      * @return the element at the specified position in the specified version of this list
      */
     public Object get(int index, int version) {
-        if (version < 0 || version > currentVersion)
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
-        if (index < 0 || index >= size())
+        if (index < 0 || index >= size(version))
             throw new IndexOutOfBoundsException(PersistentExceptionsMessege.LIST_INDEX_OUT_OF_BOUNDS);
 
-        PersistentListNode<T> current = versionedHeads.floorEntry(version).getValue();
-        for (int i = 0; i < size(); i++) {
-            if (i == index)
-                return current.getObject(version);
+        WorkloadRecorder.Stream recording = recorder;
+        if (null != recording)
+            recording.get(index, version);
+        ListWalkEvent walk = new ListWalkEvent();
+        walk.begin();
+        PersistentListNode<T> current = versionedHeads.get(version);
+        for (int i = 0; i < index; i++) {
             current = current.getNext(version);
         }
-        return null;
+        walked(walk, "get", version, index + 1);
+        Object element = current.getObject(version);
+        if (null != measured)
+            measured.record(StructureMetrics.GET, start);
+        return element;
     }
 
     /**
@@ -452,19 +655,33 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public Object get(int index) {
-        return get(index, currentVersion);
+        return get(index, publishedVersion);
+    }
+
+    /**
+     * Returns the element at the specified position in the version of this list current at the specified instant.
+     * @param index index of the element to return
+     * @param instant instant at or after the enabling of timestamps
+     * @return the element at the specified position at the specified instant
+     */
+    public Object get(int index, Instant instant) {
+        return get(index, versionAt(instant));
     }
 
     private Object set(int index, Object element, int version) {
-        if (index < 0 || index >= size(version))
+        if (index < 0 || index >= length(version))
             throw new IndexOutOfBoundsException(PersistentExceptionsMessege.LIST_INDEX_OUT_OF_BOUNDS);
 
-        PersistentListNode<T> current = versionedHeads.floorEntry(version).getValue();
+        ListWalkEvent walk = new ListWalkEvent();
+        walk.begin();
+        PersistentListNode<T> current = versionedHeads.get(version);
         for (int i = 0; i < index; i++) {
             current = current.getNext(version);
         }
+        walked(walk, "set", version, index + 1);
         Object prevObj = current.getObject(version);
-        current.setObject(version, (T) element);
+        current.setObject(version, elementOf(element));
+        changeLog.record(version, current);
 
         return prevObj;
     }
@@ -477,8 +694,20 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public Object set(int index, Object element) {
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
         currentVersion++;
-        return set(index, element, currentVersion);
+        Object prevObj = set(index, element, currentVersion);
+        publish();
+        event.complete(this, "set", currentVersion, 0);
+        WorkloadRecorder.Stream recording = recorder;
+        if (null != recording)
+            recording.set(index, element, currentVersion);
+        if (null != measured)
+            measured.record(StructureMetrics.PUT, start);
+        return prevObj;
     }
 
     /**
@@ -491,28 +720,32 @@ public class PersistentLinkedList<T> implements List {
     private void add(int index, Object element, int version) {
         if (version < 0 || version > currentVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
-        if (index < 0 || index > size(version))
+        if (index < 0 || index > length(version))
             throw new IndexOutOfBoundsException(PersistentExceptionsMessege.LIST_INDEX_OUT_OF_BOUNDS);
 
-        if (index == size(version)) {
+        if (index == length(version)) {
             add(element, version);
             return;
         }
 
-        PersistentListNode<T> current = versionedHeads.floorEntry(version).getValue();
+        ListWalkEvent walk = new ListWalkEvent();
+        walk.begin();
+        PersistentListNode<T> current = versionedHeads.get(version);
         for (int i = 0; i < index; i++) {
             current = current.getNext(version);
         } // after that current is element needed to shift
+        walked(walk, "add", version, index + 1);
 
         PersistentListNode<T> prev = current.getPrev(version);
-        PersistentListNode<T> newEl = new PersistentListNode<>((T)element, version, prev, current);
+        PersistentListNode<T> newEl = new PersistentListNode<>(elementOf(element), version, prev, current);
         if (null != prev) {
             prev.setNext(version, newEl);
         } else {
             versionedHeads.put(version, newEl);
         }
         current.setPrev(version, newEl);
-        versionsLengths.put(version, size(version) + 1);
+        versionsLengths.put(version, length(version) + 1);
+        changeLog.record(version, newEl);
     }
 
     /**
@@ -523,10 +756,21 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public void add(int index, Object element) {
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
         if (index < 0 || index > size())
             throw new IndexOutOfBoundsException(PersistentExceptionsMessege.LIST_INDEX_OUT_OF_BOUNDS);
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
         currentVersion++;
         add(index, element, currentVersion);
+        publish();
+        event.complete(this, "add", currentVersion, 1);
+        WorkloadRecorder.Stream recording = recorder;
+        if (null != recording)
+            recording.insert(index, element, currentVersion);
+        if (null != measured)
+            measured.record(StructureMetrics.INSERT, start);
     }
 
     /**
@@ -538,13 +782,20 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public Object remove(int index) {
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
         if (index < 0 || index >= size())
             throw new IndexOutOfBoundsException(PersistentExceptionsMessege.LIST_INDEX_OUT_OF_BOUNDS);
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
 
-        PersistentListNode<T> current = versionedHeads.floorEntry(currentVersion).getValue();
+        ListWalkEvent walk = new ListWalkEvent();
+        walk.begin();
+        PersistentListNode<T> current = versionedHeads.get(currentVersion);
         for (int i = 0; i < index; i++) {
             current = current.getNext(currentVersion);
         }
+        walked(walk, "remove", currentVersion, index + 1);
 
         PersistentListNode<T> prevEl = current.getPrev(currentVersion);
         PersistentListNode<T> nextEl = current.getNext(currentVersion);
@@ -559,11 +810,311 @@ public class PersistentLinkedList<T> implements List {
         } else {
             versionedTails.put(currentVersion, prevEl);
         }
-        versionsLengths.put(currentVersion, size(currentVersion) - 1);
-
+        versionsLengths.put(currentVersion, length(currentVersion) - 1);
+        changeLog.record(currentVersion, current);
+        publish();
+        event.complete(this, "remove", currentVersion, -1);
+        WorkloadRecorder.Stream recording = recorder;
+        if (null != recording)
+            recording.removeAt(index, currentVersion);
+        if (null != measured)
+            measured.record(StructureMetrics.REMOVE, start);
         return null;
     }
 
+    /**
+     * Returns the elements added, removed or changed between the two specified versions of this list.
+     * Only the elements written by the versions in between are visited, unless one of them cleared the list,
+     * and differences are computed one at a time as the iterator advances. Elements are told apart by the node holding them,
+     * and the key of a difference is the index of its element: in the new version for added and changed elements,
+     * in the old version for removed ones. Indices are found by one walk of each version, which only goes as far as the last
+     * element it is asked for.
+     * @param fromVersion version to compare from, its elements are the old values
+     * @param toVersion version to compare to, its elements are the new values
+     * @return an iterator over the differences between the two versions
+     */
+    public Iterator<DiffEntry<Integer, T>> diff(int fromVersion, int toVersion) {
+        if (fromVersion < 0 || fromVersion > publishedVersion || toVersion < 0 || toVersion > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        int low = min(fromVersion, toVersion);
+        Stream<PersistentListNode<T>> candidates = stream(changeLog.distinct(fromVersion, toVersion));
+        Integer cleared = clearVersions.get(max(fromVersion, toVersion));
+        if (null != cleared && cleared > low) {
+            // a clear unlinks every node of the older version without writing to them
+            candidates = Stream.concat(stream(nodes(low)), candidates.filter(node -> !isLinked(node, low)));
+        }
+        Positions oldPositions = new Positions(fromVersion);
+        Positions newPositions = new Positions(toVersion);
+        return DiffEntry.lazily(candidates.iterator(), node -> {
+            boolean oldLinked = isLinked(node, fromVersion);
+            boolean newLinked = isLinked(node, toVersion);
+            DiffEntry<Integer, T> entry = DiffEntry.of(null, oldLinked, node.getObject(fromVersion), newLinked, node.getObject(toVersion));
+            if (null == entry)
+                return null;
+            return entry.withKey(newLinked ? newPositions.of(node) : oldPositions.of(node));
+        });
+    }
+
+    /**
+     * Indices of the nodes of one version, found by a single walk from the head which goes on only as far as the nodes asked for.
+     */
+    private final class Positions {
+        private final int version;
+        private final Map<PersistentListNode<T>, Integer> indices = new IdentityHashMap<>();
+        private PersistentListNode<T> next;
+
+        Positions(int version) {
+            this.version = version;
+            next = versionedHeads.get(version);
+        }
+
+        /**
+         * Returns the index of a node linked in the version.
+         */
+        int of(PersistentListNode<T> node) {
+            Integer index = indices.get(node);
+            while (null == index) {
+                index = indices.size();
+                indices.put(next, index);
+                if (next != node)
+                    index = null;
+                next = next.getNext(version);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Saves the full history of this list up to its current version to the specified file, in the format of {@link HistoryFormat}.
+     * @param path file to be written, replaced if it exists
+     * @param codec codec of the elements
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path path, Codec<? super T> codec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            HistoryFormat.writeList(this, channel, codec);
+        }
+    }
+
+    /**
+     * Loads a list with the full history saved to the specified file by {@link #save}.
+     * @param path file to be read
+     * @param codec codec of the elements
+     * @return a list with the same versions as the saved one
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    public static <T> PersistentLinkedList<T> load(Path path, Codec<T> codec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return HistoryFormat.readList(channel, codec);
+        }
+    }
+
+    /**
+     * Writes the specified version of this list to the specified file in the background, in the format of {@link VersionSnapshot},
+     * on the shared snapshot thread and throttled to {@link VersionSnapshot#DEFAULT_BYTES_PER_SECOND}.
+     * The writer of this list is never paused: the version is immutable and streamed as it is written.
+     * @param version version of this list
+     * @param path file to be written, replaced once the snapshot is complete
+     * @param codec codec of the elements
+     * @return a future completed with the path once the snapshot is on disk
+     */
+    public CompletableFuture<Path> snapshotAsync(int version, Path path, Codec<? super T> codec) {
+        return snapshotAsync(version, path, codec, VersionSnapshot.defaultExecutor(), VersionSnapshot.DEFAULT_BYTES_PER_SECOND);
+    }
+
+    /**
+     * Writes the specified version of this list to the specified file in the background, in the format of {@link VersionSnapshot}.
+     * The writer of this list is never paused: the version is immutable and streamed as it is written.
+     * @param version version of this list
+     * @param path file to be written, replaced once the snapshot is complete
+     * @param codec codec of the elements
+     * @param executor executor running the snapshot
+     * @param bytesPerSecond maximum rate of the snapshot writes
+     * @return a future completed with the path once the snapshot is on disk
+     */
+    public CompletableFuture<Path> snapshotAsync(int version, Path path, Codec<? super T> codec, Executor executor, long bytesPerSecond) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return VersionSnapshot.writeAsync(path, VersionSnapshot.LIST, version, executor, bytesPerSecond, out -> {
+            int count = 0;
+            for (Iterator<PersistentListNode<T>> nodes = nodes(version); nodes.hasNext(); count++) {
+                out.writeNullable(nodes.next().getObject(version), codec);
+            }
+            return count;
+        });
+    }
+
+    /**
+     * Loads a list whose current version holds the version written to the specified file by {@link #snapshotAsync}.
+     * @param path file to be read
+     * @param codec codec of the elements
+     * @return a list holding the snapshotted version
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    public static <T> PersistentLinkedList<T> loadSnapshot(Path path, Codec<T> codec) throws IOException {
+        return new PersistentLinkedList<>(VersionSnapshot.readElements(path, VersionSnapshot.LIST, codec));
+    }
+
+    boolean isLinked(PersistentListNode<T> node, int version) {
+        int created = node.getCreatedVersion();
+        if (created > version)
+            return false;
+        Integer cleared = clearVersions.get(version);
+        if (null != cleared && created < cleared)
+            return false;
+        PersistentListNode<T> prev = node.getPrev(version);
+        return null == prev ? versionedHeads.get(version) == node : prev.getNext(version) == node;
+    }
+
+    /**
+     * Returns the nodes written by the specified version.
+     */
+    Iterator<PersistentListNode<T>> nodesWrittenAt(int version) {
+        return changeLog.written(version);
+    }
+
+    /**
+     * Returns true if the specified version cleared this list.
+     */
+    boolean isClearedAt(int version) {
+        Integer cleared = clearVersions.get(version);
+        return null != cleared && cleared == version;
+    }
+
+    /**
+     * Attaches the recorder which receives the recorded calls made from now on, or detaches it if null.
+     */
+    void attachRecorder(WorkloadRecorder.Stream recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Starts recreating the specified version when a history is loaded, the versions skipped since the current one write nothing.
+     * The version is published by {@link #endReplay()}.
+     */
+    void beginReplay(int version) {
+        if (version < currentVersion)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        currentVersion = version;
+    }
+
+    void endReplay() {
+        publish();
+    }
+
+    /**
+     * Clears the version being replayed.
+     */
+    void replayClear() {
+        versionsLengths.put(currentVersion, 0);
+        versionedHeads.put(currentVersion, null);
+        versionedTails.put(currentVersion, null);
+        clearVersions.put(currentVersion, currentVersion);
+    }
+
+    /**
+     * Links a new node holding the specified element after the specified node, or first if it is null, in the version being replayed.
+     */
+    PersistentListNode<T> replayInsert(PersistentListNode<T> prev, T element) {
+        int version = currentVersion;
+        PersistentListNode<T> next = null == prev ? versionedHeads.get(version) : prev.getNext(version);
+        PersistentListNode<T> node = new PersistentListNode<>(element, version, prev, next);
+        if (null == prev) {
+            versionedHeads.put(version, node);
+        } else {
+            prev.setNext(version, node);
+        }
+        if (null == next) {
+            versionedTails.put(version, node);
+        } else {
+            next.setPrev(version, node);
+        }
+        versionsLengths.put(version, length(version) + 1);
+        changeLog.record(version, node);
+        return node;
+    }
+
+    /**
+     * Unlinks the specified node in the version being replayed.
+     */
+    void replayRemove(PersistentListNode<T> node) {
+        int version = currentVersion;
+        PersistentListNode<T> prev = node.getPrev(version);
+        PersistentListNode<T> next = node.getNext(version);
+        if (null == prev) {
+            versionedHeads.put(version, next);
+        } else {
+            prev.setNext(version, next);
+        }
+        if (null == next) {
+            versionedTails.put(version, prev);
+        } else {
+            next.setPrev(version, prev);
+        }
+        versionsLengths.put(version, length(version) - 1);
+        changeLog.record(version, node);
+    }
+
+    /**
+     * Replaces the element of the specified node in the version being replayed.
+     */
+    void replaySet(PersistentListNode<T> node, T element) {
+        node.setObject(currentVersion, element);
+        changeLog.record(currentVersion, node);
+    }
+
+    private Iterator<PersistentListNode<T>> nodes(int version) {
+        return new Iterator<PersistentListNode<T>>() {
+            private PersistentListNode<T> current = versionedHeads.get(version);
+            private int remaining = size(version);
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            @Override
+            public PersistentListNode<T> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_ELEMENT);
+                PersistentListNode<T> result = current;
+                current = current.getNext(version);
+                remaining--;
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Completes the event of a walk from the head along the specified number of nodes and records the walk in the metrics, if enabled.
+     */
+    private void walked(ListWalkEvent walk, String operation, int version, int nodes) {
+        walk.complete(this, operation, version, nodes);
+        StructureMetrics measured = metrics;
+        if (null != measured)
+            measured.recordWalk(nodes);
+    }
+
+    /**
+     * Returns an element passed to the methods of the raw List interface as an element of this list, which it must be.
+     */
+    @SuppressWarnings("unchecked")
+    private T elementOf(Object element) {
+        return (T) element;
+    }
+
+    /**
+     * Returns an operator passed to the raw {@link #replaceAll} as an operator on the elements of this list.
+     */
+    @SuppressWarnings("unchecked")
+    private static UnaryOperator<Object> operatorOf(UnaryOperator operator) {
+        return operator;
+    }
+
+    private static <E> Stream<E> stream(Iterator<E> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false);
+    }
+
     /**
      * Returns the index of the first occurrence of the specified element in the specifies version of this list, or -1 if the specified version of this list does not contain the element.
      * More formally, returns the lowest index i such that (o==null ? get(i)==null : o.equals(get(i))), or -1 if there is no such index.
@@ -571,7 +1122,7 @@ public class PersistentLinkedList<T> implements List {
      * @return the index of the first occurrence of the specified element in this list, or -1 if this list does not contain the element
      */
     public int indexOf(Object o, int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
 
         int result = -1;
@@ -579,7 +1130,7 @@ public class PersistentLinkedList<T> implements List {
             return result;
         }
 
-        PersistentListNode<T> current = versionedHeads.floorEntry(version).getValue();
+        PersistentListNode<T> current = versionedHeads.get(version);
         for (int ind = 0; ind < size(version); ind++) {
             if (current.getObject(version).equals(o)) {
                 result = ind;
@@ -598,7 +1149,7 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public int indexOf(Object o) {
-        return indexOf(o, currentVersion);
+        return indexOf(o, publishedVersion);
     }
 
     /**
@@ -607,13 +1158,13 @@ public class PersistentLinkedList<T> implements List {
      * @ the index of the last occurrence of the specified element in the specified version of this list, or -1 if the specified version of this list does not contain the element
      */
     public int lastIndexOf(Object o, int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
         int result = -1;
         if (isEmpty(version)) {
             return result;
         }
-        PersistentListNode<T> current = versionedHeads.floorEntry(version).getValue();
+        PersistentListNode<T> current = versionedHeads.get(version);
         for (int ind = 0; ind < size(version); ind++) {
             if (current.getObject(version).equals(o)) {
                 result = ind;
@@ -630,7 +1181,7 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public int lastIndexOf(Object o) {
-        return lastIndexOf(o, currentVersion);
+        return lastIndexOf(o, publishedVersion);
     }
 
     /**
@@ -641,7 +1192,7 @@ public class PersistentLinkedList<T> implements List {
      * @return a list iterator over the elements in the specified version of this list (in proper sequence), starting at the specified position in the list
      */
     public ListIterator versionedListIterator(int version, int index) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
         int size = size(version);
         if (index < 0 || index >= size)
@@ -651,9 +1202,12 @@ public class PersistentLinkedList<T> implements List {
             int _version = version;
             PersistentListNode currElement = versionedHeads.get(_version);
             {
+                ListWalkEvent walk = new ListWalkEvent();
+                walk.begin();
                 for (int i = 0; i < index; i++) {
                     currElement = currElement.getNext(_version);
                 }
+                walked(walk, "listIterator", _version, index + 1);
             }
 
 
@@ -732,7 +1286,7 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public ListIterator listIterator() {
-        return versionedListIterator(currentVersion, 0);
+        return versionedListIterator(publishedVersion, 0);
     }
 
     /**
@@ -744,7 +1298,7 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public ListIterator listIterator(int index) {
-        return versionedListIterator(currentVersion, index);
+        return versionedListIterator(publishedVersion, index);
     }
 
     /**
@@ -755,7 +1309,7 @@ public class PersistentLinkedList<T> implements List {
      * @return a view of the specified range within the specified version of this list
      */
     public List subList(int fromIndex, int toIndex, int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
         int size = size(version);
         if (fromIndex < 0 || toIndex >= size || fromIndex > toIndex) {
@@ -763,7 +1317,7 @@ public class PersistentLinkedList<T> implements List {
         }
 
         List<T> result = new ArrayList<T>();
-        PersistentListNode<T> current = versionedHeads.floorEntry(version).getValue();
+        PersistentListNode<T> current = versionedHeads.get(version);
         for (int i = 0; i < toIndex; i++) {
             if (i >= fromIndex && i < toIndex) {
                 result.add(current.getObject(version));
@@ -782,7 +1336,7 @@ public class PersistentLinkedList<T> implements List {
      */
     @Override
     public List subList(int fromIndex, int toIndex) {
-        return subList(fromIndex, toIndex, currentVersion);
+        return subList(fromIndex, toIndex, publishedVersion);
     }
 
     @Override
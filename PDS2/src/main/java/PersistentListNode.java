@@ -1,28 +1,33 @@
-import java.util.TreeMap;
-
 public class PersistentListNode<T> {
 
-    private TreeMap<Integer, T> versionedData;
-    private TreeMap<Integer, PersistentListNode<T>> versionedPrev;
-    private TreeMap<Integer, PersistentListNode<T>> versionedNext;
+    private final VersionHistory<T> versionedData;
+    private final VersionHistory<PersistentListNode<T>> versionedPrev;
+    private final VersionHistory<PersistentListNode<T>> versionedNext;
 
     public PersistentListNode(T object, int version, PersistentListNode<T> prev, PersistentListNode<T> next) {
-        versionedData = new TreeMap<>();
-        versionedPrev = new TreeMap<>();
-        versionedNext = new TreeMap<>();
+        versionedData = new VersionHistory<>(version, object);
+        versionedPrev = new VersionHistory<>(version, prev);
+        versionedNext = new VersionHistory<>(version, next);
+    }
+    public T getObject(int version) { return versionedData.get(version); }
 
-        versionedData.put(version, object);
-        versionedPrev.put(version, prev);
-        versionedNext.put(version, next);
+    /**
+     * Returns the number of entries of the histories of the element and of the links of this node.
+     */
+    int getHistoryLength() {
+        return versionedData.size() + versionedPrev.size() + versionedNext.size();
+    }
+
+    public int getCreatedVersion() {
+        return versionedData.versionAt(0);
     }
-    public T getObject(int version) { return versionedData.floorEntry(version).getValue(); }
 
     public void setObject(int version, T obj) {
         versionedData.put(version, obj);
     }
     
     public PersistentListNode<T> getNext(int version) {
-        return versionedNext.floorEntry(version).getValue();
+        return versionedNext.get(version);
     }
 
     public void setNext(int version, PersistentListNode<T> next) {
@@ -30,7 +35,7 @@ public class PersistentListNode<T> {
     }
 
     public PersistentListNode<T> getPrev(int version) {
-        return versionedPrev.floorEntry(version).getValue();
+        return versionedPrev.get(version);
     }
 
     public void setPrev(int version, PersistentListNode<T> prev) {
@@ -1,7 +1,17 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.stream.Collector;
 
 
 public class PersistentMap<K, V> implements Map {
@@ -32,28 +42,160 @@ public class PersistentMap<K, V> implements Map {
         }
     }
 
+    static final Object REMOVED = new Object();
+
     private int currentVersion = 0;
-    private TreeMap<Integer, Integer> versionsLengths;
-    private TreeMap<K, PersistentMapNode<V>> versionedData;
+    private volatile int publishedVersion = 0;
+    private final Object commitLock = new Object();
+    private final VersionHistory<Integer> versionsLengths;
+    private final ConcurrentSkipListMap<K, PersistentMapNode<V>> versionedData = new ConcurrentSkipListMap<>();
+    private final VersionHistory<PersistentTreeNode<K, PersistentMapNode<V>>> liveKeys = new VersionHistory<>();
+    private final VersionLog<K> changeLog = new VersionLog<>();
+    private final ChangeFeed<K, V> changeFeed = new ChangeFeed<>(this::diff);
+    private volatile TimestampIndex timestampIndex;
+    private volatile WriteAheadLog<K, V> writeAheadLog;
+    private volatile WorkloadRecorder.Stream recorder;
+    private volatile StructureMetrics metrics;
 
     /**
      * Constructs an empty persistent map.
      */
     public PersistentMap() {
-        versionsLengths = new TreeMap<>();
-        versionedData = new TreeMap<>();
+        versionsLengths = new VersionHistory<>();
         versionsLengths.put(0, 0);
     }
 
+    /**
+     * Returns the latest version published by the writer of this map.
+     * The map supports one writer thread and any number of reader threads: a version becomes visible to other threads only once
+     * the mutation creating it has completed, and readers of this or any older version never lock and never see a partial write.
+     * Other threads must not read versions newer than this one.
+     * @return the latest published version of this map
+     */
+    public int getCurrentVersion() {
+        return publishedVersion;
+    }
+
+    /**
+     * Makes the versions created so far visible to reader threads.
+     * Every mutation calls it last, the volatile write orders all of the writes of the mutation before the new version number.
+     * The version is then appended to the write-ahead log if there is one, stamped if timestamps are enabled
+     * and announced to the subscribers of the change feed.
+     */
+    private void publish() {
+        publishedVersion = currentVersion;
+        WriteAheadLog<K, V> log = writeAheadLog;
+        if (null != log)
+            log.append(currentVersion);
+        TimestampIndex timestamps = timestampIndex;
+        if (null != timestamps)
+            timestamps.record(currentVersion);
+        changeFeed.publish(currentVersion);
+    }
+
+    /**
+     * Returns the feed of the changes of this map, whose subscribers receive the changes of every version published after they subscribed.
+     * @return the change feed of this map
+     */
+    public ChangeFeed<K, V> getChangeFeed() {
+        return changeFeed;
+    }
+
+    /**
+     * Starts recording the commit time of every version of this map from the current version on, read from the system clock.
+     * Must be called by the writer thread.
+     */
+    public void enableTimestamps() {
+        enableTimestamps(Clock.systemUTC());
+    }
+
+    /**
+     * Starts recording the commit time of every version of this map from the current version on, read from the specified clock.
+     * Must be called by the writer thread, does nothing if timestamps are already enabled.
+     * @param clock clock which stamps the versions
+     */
+    public void enableTimestamps(Clock clock) {
+        if (null == timestampIndex)
+            timestampIndex = new TimestampIndex(clock, currentVersion);
+    }
+
+    /**
+     * Returns the newest version of this map committed at or before the specified instant.
+     * @param instant instant at or after the enabling of timestamps
+     * @return the newest version committed at or before the specified instant
+     */
+    public int versionAt(Instant instant) {
+        return timestamps().versionAt(instant);
+    }
+
+    /**
+     * Returns the commit time of the specified version of this map.
+     * @param version version committed after the enabling of timestamps
+     * @return the commit time of the specified version
+     */
+    public Instant getTimestamp(int version) {
+        return timestamps().getTimestamp(version);
+    }
+
+    private TimestampIndex timestamps() {
+        TimestampIndex timestamps = timestampIndex;
+        if (null == timestamps)
+            throw new IllegalStateException(PersistentExceptionsMessege.TIMESTAMPS_DISABLED);
+        return timestamps;
+    }
+
+    /**
+     * Starts recording the metrics of the gets, puts and removals of this map, or returns them if they are already recorded.
+     * Must be called by the writer thread.
+     * @return the metrics of this map
+     */
+    public StructureMetrics enableMetrics() {
+        if (null == metrics)
+            metrics = new StructureMetrics(this::putGauges);
+        return metrics;
+    }
+
+    /**
+     * Stops recording metrics, the operations then pay only the check of a field.
+     */
+    public void disableMetrics() {
+        metrics = null;
+    }
+
+    /**
+     * Returns the metrics of this map, or null if they are disabled.
+     * @return the metrics of this map
+     */
+    public StructureMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void putGauges(Map<String, Double> gauges) {
+        int version = publishedVersion;
+        gauges.put("versions", version + 1.0);
+        int[] lengths = new int[16];
+        int count = 0;
+        int removed = 0;
+        for (PersistentMapNode<V> node : versionedData.values()) {
+            if (count == lengths.length)
+                lengths = Arrays.copyOf(lengths, count * 2);
+            lengths[count++] = node.getHistoryLength();
+            if (node.isRemoved(version))
+                removed++;
+        }
+        StructureMetrics.putDistribution(gauges, "historyLength", lengths, count);
+        gauges.put("tombstoneRatio", count == 0 ? 0 : (double) removed / count);
+    }
+
     /**
      * Returns the number of elements in the specified version of this map.
      * @param version version of this map
      * @return number of elements in the specified version of this map.
      */
     public int size(int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
-        return versionsLengths.floorEntry(version).getValue();
+        return versionsLengths.get(version);
     }
 
     /**
@@ -62,7 +204,7 @@ public class PersistentMap<K, V> implements Map {
      */
     @Override
     public int size() {
-        return size(currentVersion);
+        return size(publishedVersion);
     }
 
     /**
@@ -71,7 +213,7 @@ public class PersistentMap<K, V> implements Map {
      * @return true if the specified version of this map contains no elements, false otherwise
      */
     public boolean isEmpty(int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
         return size(version) == 0;
     }
@@ -82,7 +224,7 @@ public class PersistentMap<K, V> implements Map {
      */
     @Override
     public boolean isEmpty() {
-        return isEmpty(currentVersion);
+        return isEmpty(publishedVersion);
     }
 
     /**
@@ -94,11 +236,11 @@ public class PersistentMap<K, V> implements Map {
      * @return true if this version of map contains a mapping for the specified key
      */
     public boolean containsKey(Object key, int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
 
         if (versionedData.containsKey(key)) {
-            PersistentMapNode node = versionedData.get(key);
+            PersistentMapNode<V> node = versionedData.get(key);
             if (!node.isRemoved(version)) {
                 return true;
             }
@@ -115,7 +257,7 @@ public class PersistentMap<K, V> implements Map {
      */
     @Override
     public boolean containsKey(Object key) {
-        return containsKey(key, currentVersion);
+        return containsKey(key, publishedVersion);
     }
 
     /**
@@ -127,20 +269,26 @@ public class PersistentMap<K, V> implements Map {
      * @return if this version of map maps one or more keys to the specified value
      */
     public boolean containsValue(Object value, int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        FullScanEvent event = new FullScanEvent();
+        event.begin();
+        int scanned = 0;
+        boolean found = false;
         for (PersistentMapNode<V> node: versionedData.values()) {
+            scanned++;
             if (!node.isRemoved(version)) {
                 if (null == value) {
-                    if (node.getObject(version) == null)
-                        return true;
+                    found = node.getObject(version) == null;
                 } else {
-                    if (value.equals(node.getObject(version)))
-                        return true;
+                    found = value.equals(node.getObject(version));
                 }
+                if (found)
+                    break;
             }
         }
-        return false;
+        event.complete(this, "containsValue", version, scanned);
+        return found;
     }
 
     /**
@@ -152,7 +300,7 @@ public class PersistentMap<K, V> implements Map {
      */
     @Override
     public boolean containsValue(Object value) {
-        return containsValue(value, currentVersion);
+        return containsValue(value, publishedVersion);
     }
 
     /**
@@ -164,11 +312,24 @@ public class PersistentMap<K, V> implements Map {
      * @return the value to which the specified key is mapped, or null if this version of map contains no mapping for the key
      */
     public Object get(Object key, int version) {
-        if (version < 0 || version > currentVersion)
+        StructureMetrics measured = metrics;
+        if (null == measured)
+            return lookup(key, version);
+        long start = System.nanoTime();
+        Object value = lookup(key, version);
+        measured.record(StructureMetrics.GET, start);
+        return value;
+    }
+
+    private Object lookup(Object key, int version) {
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        WorkloadRecorder.Stream recording = recorder;
+        if (null != recording)
+            recording.get(key, version);
         if (!versionedData.containsKey(key))
             return null;
-        PersistentMapNode node = versionedData.get(key);
+        PersistentMapNode<V> node = versionedData.get(key);
         if (!node.isRemoved(version)) {
             return node.getObject(version);
         }
@@ -184,7 +345,17 @@ public class PersistentMap<K, V> implements Map {
      */
     @Override
     public Object get(Object key) {
-        return get(key, currentVersion);
+        return get(key, publishedVersion);
+    }
+
+    /**
+     * Returns the value to which the specified key was mapped at the specified instant, or null if there was no mapping for the key.
+     * @param key the key whose associated value is to be returned
+     * @param instant instant at or after the enabling of timestamps
+     * @return the value to which the specified key was mapped at the specified instant
+     */
+    public Object get(Object key, Instant instant) {
+        return get(key, versionAt(instant));
     }
 
     /**
@@ -197,118 +368,729 @@ public class PersistentMap<K, V> implements Map {
      */
     @Override
     public Object put(Object key, Object value) {
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
         Object oldValue = null;
-        PersistentMapNode node = versionedData.get(key);
+        int sizeDelta = 0;
+        PersistentMapNode<V> node = versionedData.get(key);
         currentVersion++;
         if (node == null) {
-            versionedData.put((K)key, new PersistentMapNode<V>((V)value, currentVersion));
-            int currSize = versionsLengths.floorEntry(currentVersion).getValue();
+            node = new PersistentMapNode<V>(castValue(value), currentVersion);
+            versionedData.put(keyOf(key), node);
+            addLiveKey(keyOf(key), node);
+            int currSize = versionsLengths.get(currentVersion);
             versionsLengths.put(currentVersion, currSize + 1);
+            sizeDelta = 1;
         } else {
             oldValue = node.getObject(currentVersion - 1);
-            node.setObject(currentVersion, value);
+            if (node.isRemoved(currentVersion - 1)) {
+                addLiveKey(keyOf(key), node);
+                int currSize = versionsLengths.get(currentVersion);
+                versionsLengths.put(currentVersion, currSize + 1);
+                sizeDelta = 1;
+            }
+            node.setObject(currentVersion, castValue(value));
         }
+        changeLog.record(currentVersion, keyOf(key));
+        publish();
+        event.complete(this, "put", currentVersion, sizeDelta);
+        WorkloadRecorder.Stream recording = recorder;
+        if (null != recording)
+            recording.put(key, value, currentVersion);
+        if (null != measured)
+            measured.record(StructureMetrics.PUT, start);
         return oldValue;
     }
 
     @Override
     public Object remove(Object key) {
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
         Object oldValue = null;
-        PersistentMapNode node = versionedData.get(key);
+        int sizeDelta = 0;
+        PersistentMapNode<V> node = versionedData.get(key);
         currentVersion++;
-        if (null != node) {
+        if (null != node && !node.isRemoved(currentVersion - 1)) {
             oldValue = node.getObject(currentVersion - 1);
             node.removeObject(currentVersion);
-            int currSize = versionsLengths.floorEntry(currentVersion).getValue();
+            removeLiveKey(key);
+            changeLog.record(currentVersion, keyOf(key));
+            int currSize = versionsLengths.get(currentVersion);
             versionsLengths.put(currentVersion, currSize - 1);
+            sizeDelta = -1;
         }
+        publish();
+        event.complete(this, "remove", currentVersion, sizeDelta);
+        WorkloadRecorder.Stream recording = recorder;
+        if (null != recording)
+            recording.remove(key, currentVersion);
+        if (null != measured)
+            measured.record(StructureMetrics.REMOVE, start);
         return oldValue;
     }
 
+    /**
+     * Copies all of the mappings from the specified map to this map as one new version.
+     * If this map has no keys yet, the mappings are sorted first unless they come from a SortedMap in natural order,
+     * and the live keys of the new version are built from the sorted keys in linear time,
+     * while each insertion into the backing skip list still takes expected logarithmic time.
+     * @param m mappings to be stored in this map
+     */
     @Override
     public void putAll(Map m) {
+        Object[] entries = m.entrySet().toArray();
+        boolean sorted = m instanceof SortedMap && ((SortedMap) m).comparator() == null;
+        putAll(entries, entries.length, sorted);
+    }
+
+    private void putAll(Object[] entries, int count, boolean sorted) {
+        BulkOperationEvent event = new BulkOperationEvent();
+        event.begin();
+        int elements = count;
         currentVersion++;
-        for (Object entry : m.entrySet()) {
-            K key = ((Entry<K, V>) entry).getKey();
-            V value = ((Entry<K, V>) entry).getValue();
+        if (versionedData.isEmpty()) {
+            if (!sorted) {
+                Comparator<Object> order = naturalKeyOrder();
+                Arrays.sort(entries, 0, count, (a, b) -> order.compare(((Entry<?, ?>) a).getKey(), ((Entry<?, ?>) b).getKey()));
+                count = dropDuplicateKeys(entries, count);
+            }
+            List<K> keys = new ArrayList<>(count);
+            List<PersistentMapNode<V>> nodes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Entry<K, V> entry = entryOf(entries[i]);
+                PersistentMapNode<V> node = new PersistentMapNode<>(entry.getValue(), currentVersion);
+                versionedData.put(entry.getKey(), node);
+                keys.add(entry.getKey());
+                nodes.add(node);
+                changeLog.record(currentVersion, entry.getKey());
+            }
+            liveKeys.put(currentVersion, PersistentTreeNode.fromSorted(keys, nodes));
+            versionsLengths.put(currentVersion, count);
+            publish();
+            event.complete(this, "putAll", currentVersion, elements, count);
+            return;
+        }
+
+        int oldSize = versionsLengths.get(currentVersion - 1);
+        int size = oldSize;
+        for (int i = 0; i < count; i++) {
+            K key = (entryOf(entries[i])).getKey();
+            V value = (entryOf(entries[i])).getValue();
 
-            PersistentMapNode node = versionedData.get(key);
+            PersistentMapNode<V> node = versionedData.get(key);
             if (null == node) {
-                versionedData.put(key, new PersistentMapNode<V>(value, currentVersion));
+                node = new PersistentMapNode<V>(value, currentVersion);
+                versionedData.put(key, node);
+                addLiveKey(key, node);
+                size++;
             } else {
-                node.setObject(currentVersion, value);
+                if (node.isRemoved(currentVersion - 1)) {
+                    addLiveKey(key, node);
+                    size++;
+                }
+                node.setObject(currentVersion, castValue(value));
             }
+            changeLog.record(currentVersion, key);
         }
+        versionsLengths.put(currentVersion, size);
+        publish();
+        event.complete(this, "putAll", currentVersion, elements, size - oldSize);
+    }
+
+    /**
+     * Returns the natural order of the keys, which the keys of this map must have.
+     */
+    @SuppressWarnings("unchecked")
+    private static Comparator<Object> naturalKeyOrder() {
+        return (Comparator<Object>) (Comparator<?>) Comparator.naturalOrder();
+    }
+
+    /**
+     * Keeps the last of the entries sharing a key in sorted entries, so that later entries win as in consecutive puts.
+     * @return number of entries left
+     */
+    private static int dropDuplicateKeys(Object[] entries, int count) {
+        int result = 0;
+        for (int i = 0; i < count; i++) {
+            if (result > 0 && ((Entry) entries[result - 1]).getKey().equals(((Entry) entries[i]).getKey())) {
+                entries[result - 1] = entries[i];
+            } else {
+                entries[result++] = entries[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a persistent map whose first version holds all of the mappings of the specified map.
+     * @param m mappings to be stored in the map
+     * @return a persistent map whose version 1 holds all of the mappings of the specified map
+     */
+    public static <K, V> PersistentMap<K, V> bulkLoad(Map<? extends K, ? extends V> m) {
+        PersistentMap<K, V> result = new PersistentMap<>();
+        result.putAll(m);
+        return result;
+    }
+
+    /**
+     * Returns a Collector that accumulates elements into a persistent map whose first version holds all of the mappings.
+     * If several elements are mapped to the same key, the one encountered last wins.
+     * @param keyMapper a mapping function to produce keys
+     * @param valueMapper a mapping function to produce values
+     * @return a Collector which collects elements into a persistent map with a single version
+     */
+    public static <T, K, V> Collector<T, ?, PersistentMap<K, V>> collector(Function<? super T, ? extends K> keyMapper,
+                                                                        Function<? super T, ? extends V> valueMapper) {
+        return Collector.of(
+                ArrayList<Entry<K, V>>::new,
+                (entries, element) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(keyMapper.apply(element), valueMapper.apply(element))),
+                (left, right) -> {
+                    left.addAll(right);
+                    return left;
+                },
+                entries -> {
+                    PersistentMap<K, V> result = new PersistentMap<>();
+                    Object[] array = entries.toArray();
+                    result.putAll(array, array.length, false);
+                    return result;
+                });
     }
 
     @Override
     public void clear() {
+        BulkOperationEvent event = new BulkOperationEvent();
+        event.begin();
+        int cleared = 0;
         currentVersion++;
         for (Entry<K, PersistentMapNode<V>> entry : versionedData.entrySet()) {
             if (!entry.getValue().isRemoved(currentVersion - 1)) {
                 entry.getValue().removeObject(currentVersion);
+                changeLog.record(currentVersion, entry.getKey());
+                cleared++;
             }
         }
+        liveKeys.put(currentVersion, null);
         versionsLengths.put(currentVersion, 0);
+        publish();
+        event.complete(this, "clear", currentVersion, cleared, -cleared);
     }
 
     public Set keySet(int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        FullScanEvent event = new FullScanEvent();
+        event.begin();
+        int scanned = 0;
         Set<K> keys = versionedData.keySet();
         Set<K> resultKeys = new HashSet<>(versionedData.keySet());
 
         for (K key : keys) {
+            scanned++;
             if (versionedData.get(key).isRemoved(version)) {
                 resultKeys.remove(key);
             }
         }
+        event.complete(this, "keySet", version, scanned);
         return resultKeys;
     }
 
     @Override
     public Set keySet() {
-        return keySet(currentVersion);
+        return keySet(publishedVersion);
     }
 
     public Collection values(int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
 
+        FullScanEvent event = new FullScanEvent();
+        event.begin();
+        int scanned = 0;
         LinkedList<V> result = new LinkedList<V>();
         for (Entry<K, PersistentMapNode<V>> entry : versionedData.entrySet()) {
+            scanned++;
             if (!entry.getValue().isRemoved(version)) {
                 result.add(entry.getValue().getObject(version));
             }
         }
+        event.complete(this, "values", version, scanned);
         return result;
     }
 
     @Override
     public Collection values() {
-        return values(currentVersion);
+        return values(publishedVersion);
     }
 
     public Set<Entry> entrySet(int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        FullScanEvent event = new FullScanEvent();
+        event.begin();
+        int scanned = 0;
         Set<Entry> result = new HashSet<>();
 
         for (Entry<K, PersistentMapNode<V>> entry : versionedData.entrySet()) {
+            scanned++;
             if (!entry.getValue().isRemoved(version)) {
                 result.add(new PersistentMapEntry<>(entry.getKey(), entry.getValue().getObject(version)));
             }
         }
+        event.complete(this, "entrySet", version, scanned);
         return result;
     }
 
     @Override
     public Set<Entry> entrySet() {
-        return entrySet(currentVersion);
+        return entrySet(publishedVersion);
+    }
+
+    /**
+     * Returns a sorted map of the portion of the specified version of this map whose keys range from fromKey to toKey.
+     * The map is a read-only view of the version, built without copying: navigation takes logarithmic time and iteration visits only the keys of the range.
+     * @param fromKey low endpoint of the keys in the returned map
+     * @param fromInclusive true if the low endpoint is to be included in the returned map
+     * @param toKey high endpoint of the keys in the returned map
+     * @param toInclusive true if the high endpoint is to be included in the returned map
+     * @param version version of this map
+     * @return a sorted map of the portion of the specified version of this map whose keys range from fromKey to toKey
+     */
+    public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return liveRange(version).subMap(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    /**
+     * Returns a sorted map of the portion of the specified version of this map whose keys range from fromKey, inclusive, to toKey, exclusive.
+     * @param fromKey low endpoint (inclusive) of the keys in the returned map
+     * @param toKey high endpoint (exclusive) of the keys in the returned map
+     * @param version version of this map
+     * @return a sorted map of the portion of the specified version of this map whose keys range from fromKey, inclusive, to toKey, exclusive
+     */
+    public NavigableMap<K, V> subMap(K fromKey, K toKey, int version) {
+        return subMap(fromKey, true, toKey, false, version);
+    }
+
+    /**
+     * Returns a sorted map of the portion of the current version of this map whose keys range from fromKey, inclusive, to toKey, exclusive.
+     * @param fromKey low endpoint (inclusive) of the keys in the returned map
+     * @param toKey high endpoint (exclusive) of the keys in the returned map
+     * @return a sorted map of the portion of the current version of this map whose keys range from fromKey, inclusive, to toKey, exclusive
+     */
+    public NavigableMap<K, V> subMap(K fromKey, K toKey) {
+        return subMap(fromKey, toKey, publishedVersion);
+    }
+
+    /**
+     * Returns a sorted map of the portion of the specified version of this map whose keys are less than (or equal to, if inclusive is true) toKey.
+     * @param toKey high endpoint of the keys in the returned map
+     * @param inclusive true if the high endpoint is to be included in the returned map
+     * @param version version of this map
+     * @return a sorted map of the portion of the specified version of this map whose keys are less than (or equal to, if inclusive is true) toKey
+     */
+    public NavigableMap<K, V> headMap(K toKey, boolean inclusive, int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return liveRange(version).headMap(toKey, inclusive);
+    }
+
+    /**
+     * Returns a sorted map of the portion of the specified version of this map whose keys are strictly less than toKey.
+     * @param toKey high endpoint (exclusive) of the keys in the returned map
+     * @param version version of this map
+     * @return a sorted map of the portion of the specified version of this map whose keys are strictly less than toKey
+     */
+    public NavigableMap<K, V> headMap(K toKey, int version) {
+        return headMap(toKey, false, version);
+    }
+
+    /**
+     * Returns a sorted map of the portion of the current version of this map whose keys are strictly less than toKey.
+     * @param toKey high endpoint (exclusive) of the keys in the returned map
+     * @return a sorted map of the portion of the current version of this map whose keys are strictly less than toKey
+     */
+    public NavigableMap<K, V> headMap(K toKey) {
+        return headMap(toKey, publishedVersion);
+    }
+
+    /**
+     * Returns a sorted map of the portion of the specified version of this map whose keys are greater than (or equal to, if inclusive is true) fromKey.
+     * @param fromKey low endpoint of the keys in the returned map
+     * @param inclusive true if the low endpoint is to be included in the returned map
+     * @param version version of this map
+     * @return a sorted map of the portion of the specified version of this map whose keys are greater than (or equal to, if inclusive is true) fromKey
+     */
+    public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive, int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return liveRange(version).tailMap(fromKey, inclusive);
+    }
+
+    /**
+     * Returns a sorted map of the portion of the specified version of this map whose keys are greater than or equal to fromKey.
+     * @param fromKey low endpoint (inclusive) of the keys in the returned map
+     * @param version version of this map
+     * @return a sorted map of the portion of the specified version of this map whose keys are greater than or equal to fromKey
+     */
+    public NavigableMap<K, V> tailMap(K fromKey, int version) {
+        return tailMap(fromKey, true, version);
+    }
+
+    /**
+     * Returns a sorted map of the portion of the current version of this map whose keys are greater than or equal to fromKey.
+     * @param fromKey low endpoint (inclusive) of the keys in the returned map
+     * @return a sorted map of the portion of the current version of this map whose keys are greater than or equal to fromKey
+     */
+    public NavigableMap<K, V> tailMap(K fromKey) {
+        return tailMap(fromKey, publishedVersion);
+    }
+
+    /**
+     * Returns the first (lowest) key in the specified version of this map.
+     * @param version version of this map
+     * @return the first (lowest) key in the specified version of this map
+     */
+    public K firstKey(int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        Entry<K, V> entry = liveEntry(PersistentTreeNode.first(liveKeys.get(version)), version);
+        if (null == entry)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_ELEMENT);
+        return entry.getKey();
+    }
+
+    /**
+     * Returns the first (lowest) key in the current version of this map.
+     * @return the first (lowest) key in the current version of this map
+     */
+    public K firstKey() {
+        return firstKey(publishedVersion);
+    }
+
+    /**
+     * Returns the last (highest) key in the specified version of this map.
+     * @param version version of this map
+     * @return the last (highest) key in the specified version of this map
+     */
+    public K lastKey(int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        Entry<K, V> entry = liveEntry(PersistentTreeNode.last(liveKeys.get(version)), version);
+        if (null == entry)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_ELEMENT);
+        return entry.getKey();
+    }
+
+    /**
+     * Returns the last (highest) key in the current version of this map.
+     * @return the last (highest) key in the current version of this map
+     */
+    public K lastKey() {
+        return lastKey(publishedVersion);
+    }
+
+    /**
+     * Returns a key-value mapping associated with the lowest key in the specified version of this map, or null if it is empty.
+     * @param version version of this map
+     * @return an entry with the lowest key, or null if the specified version of this map is empty
+     */
+    public Entry<K, V> firstEntry(int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return liveEntry(PersistentTreeNode.first(liveKeys.get(version)), version);
+    }
+
+    /**
+     * Returns a key-value mapping associated with the lowest key in the current version of this map, or null if it is empty.
+     * @return an entry with the lowest key, or null if the current version of this map is empty
+     */
+    public Entry<K, V> firstEntry() {
+        return firstEntry(publishedVersion);
+    }
+
+    /**
+     * Returns a key-value mapping associated with the highest key in the specified version of this map, or null if it is empty.
+     * @param version version of this map
+     * @return an entry with the highest key, or null if the specified version of this map is empty
+     */
+    public Entry<K, V> lastEntry(int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return liveEntry(PersistentTreeNode.last(liveKeys.get(version)), version);
+    }
+
+    /**
+     * Returns a key-value mapping associated with the highest key in the current version of this map, or null if it is empty.
+     * @return an entry with the highest key, or null if the current version of this map is empty
+     */
+    public Entry<K, V> lastEntry() {
+        return lastEntry(publishedVersion);
+    }
+
+    /**
+     * Returns a key-value mapping associated with the greatest key less than or equal to the given key in the specified version of this map, or null if there is no such key.
+     * @param key the key
+     * @param version version of this map
+     * @return an entry with the greatest key less than or equal to key, or null if there is no such key
+     */
+    public Entry<K, V> floorEntry(K key, int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return liveEntry(PersistentTreeNode.floor(liveKeys.get(version), key, true), version);
+    }
+
+    /**
+     * Returns a key-value mapping associated with the greatest key less than or equal to the given key in the current version of this map, or null if there is no such key.
+     * @param key the key
+     * @return an entry with the greatest key less than or equal to key, or null if there is no such key
+     */
+    public Entry<K, V> floorEntry(K key) {
+        return floorEntry(key, publishedVersion);
+    }
+
+    /**
+     * Returns the greatest key less than or equal to the given key in the specified version of this map, or null if there is no such key.
+     * @param key the key
+     * @param version version of this map
+     * @return the greatest key less than or equal to key, or null if there is no such key
+     */
+    public K floorKey(K key, int version) {
+        return keyOrNull(floorEntry(key, version));
+    }
+
+    /**
+     * Returns the greatest key less than or equal to the given key in the current version of this map, or null if there is no such key.
+     * @param key the key
+     * @return the greatest key less than or equal to key, or null if there is no such key
+     */
+    public K floorKey(K key) {
+        return floorKey(key, publishedVersion);
+    }
+
+    /**
+     * Returns a key-value mapping associated with the least key greater than or equal to the given key in the specified version of this map, or null if there is no such key.
+     * @param key the key
+     * @param version version of this map
+     * @return an entry with the least key greater than or equal to key, or null if there is no such key
+     */
+    public Entry<K, V> ceilingEntry(K key, int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return liveEntry(PersistentTreeNode.ceiling(liveKeys.get(version), key, true), version);
+    }
+
+    /**
+     * Returns a key-value mapping associated with the least key greater than or equal to the given key in the current version of this map, or null if there is no such key.
+     * @param key the key
+     * @return an entry with the least key greater than or equal to key, or null if there is no such key
+     */
+    public Entry<K, V> ceilingEntry(K key) {
+        return ceilingEntry(key, publishedVersion);
+    }
+
+    /**
+     * Returns the least key greater than or equal to the given key in the specified version of this map, or null if there is no such key.
+     * @param key the key
+     * @param version version of this map
+     * @return the least key greater than or equal to key, or null if there is no such key
+     */
+    public K ceilingKey(K key, int version) {
+        return keyOrNull(ceilingEntry(key, version));
+    }
+
+    /**
+     * Returns the least key greater than or equal to the given key in the current version of this map, or null if there is no such key.
+     * @param key the key
+     * @return the least key greater than or equal to key, or null if there is no such key
+     */
+    public K ceilingKey(K key) {
+        return ceilingKey(key, publishedVersion);
+    }
+
+    /**
+     * Returns a key-value mapping associated with the greatest key strictly less than the given key in the specified version of this map, or null if there is no such key.
+     * @param key the key
+     * @param version version of this map
+     * @return an entry with the greatest key less than key, or null if there is no such key
+     */
+    public Entry<K, V> lowerEntry(K key, int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return liveEntry(PersistentTreeNode.floor(liveKeys.get(version), key, false), version);
+    }
+
+    /**
+     * Returns a key-value mapping associated with the greatest key strictly less than the given key in the current version of this map, or null if there is no such key.
+     * @param key the key
+     * @return an entry with the greatest key less than key, or null if there is no such key
+     */
+    public Entry<K, V> lowerEntry(K key) {
+        return lowerEntry(key, publishedVersion);
+    }
+
+    /**
+     * Returns the greatest key strictly less than the given key in the specified version of this map, or null if there is no such key.
+     * @param key the key
+     * @param version version of this map
+     * @return the greatest key less than key, or null if there is no such key
+     */
+    public K lowerKey(K key, int version) {
+        return keyOrNull(lowerEntry(key, version));
+    }
+
+    /**
+     * Returns the greatest key strictly less than the given key in the current version of this map, or null if there is no such key.
+     * @param key the key
+     * @return the greatest key less than key, or null if there is no such key
+     */
+    public K lowerKey(K key) {
+        return lowerKey(key, publishedVersion);
+    }
+
+    /**
+     * Returns a key-value mapping associated with the least key strictly greater than the given key in the specified version of this map, or null if there is no such key.
+     * @param key the key
+     * @param version version of this map
+     * @return an entry with the least key greater than key, or null if there is no such key
+     */
+    public Entry<K, V> higherEntry(K key, int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return liveEntry(PersistentTreeNode.ceiling(liveKeys.get(version), key, false), version);
+    }
+
+    /**
+     * Returns a key-value mapping associated with the least key strictly greater than the given key in the current version of this map, or null if there is no such key.
+     * @param key the key
+     * @return an entry with the least key greater than key, or null if there is no such key
+     */
+    public Entry<K, V> higherEntry(K key) {
+        return higherEntry(key, publishedVersion);
+    }
+
+    /**
+     * Returns the least key strictly greater than the given key in the specified version of this map, or null if there is no such key.
+     * @param key the key
+     * @param version version of this map
+     * @return the least key greater than key, or null if there is no such key
+     */
+    public K higherKey(K key, int version) {
+        return keyOrNull(higherEntry(key, version));
+    }
+
+    /**
+     * Returns the least key strictly greater than the given key in the current version of this map, or null if there is no such key.
+     * @param key the key
+     * @return the least key greater than key, or null if there is no such key
+     */
+    public K higherKey(K key) {
+        return higherKey(key, publishedVersion);
+    }
+
+    /**
+     * Returns an iterator over the entries of the specified version of this map in ascending key order.
+     * Entries are produced lazily, so stopping early does not pay for the rest of the map.
+     * @param version version of this map
+     * @return an iterator over the entries of the specified version of this map in ascending key order
+     */
+    public Iterator<Entry<K, V>> entryIterator(int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return new LiveEntryIterator(PersistentTreeNode.range(liveKeys.get(version), null, false, null, false, false), version);
+    }
+
+    /**
+     * Returns an iterator over the entries of the current version of this map in ascending key order.
+     * @return an iterator over the entries of the current version of this map in ascending key order
+     */
+    public Iterator<Entry<K, V>> entryIterator() {
+        return entryIterator(publishedVersion);
+    }
+
+    /**
+     * Returns an iterator over the entries of the specified version of this map in descending key order.
+     * Entries are produced lazily, so stopping early does not pay for the rest of the map.
+     * @param version version of this map
+     * @return an iterator over the entries of the specified version of this map in descending key order
+     */
+    public Iterator<Entry<K, V>> descendingEntryIterator(int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return new LiveEntryIterator(PersistentTreeNode.range(liveKeys.get(version), null, false, null, false, true), version);
+    }
+
+    /**
+     * Returns an iterator over the entries of the current version of this map in descending key order.
+     * @return an iterator over the entries of the current version of this map in descending key order
+     */
+    public Iterator<Entry<K, V>> descendingEntryIterator() {
+        return descendingEntryIterator(publishedVersion);
+    }
+
+    /**
+     * Returns a view of the whole specified version, from which the range maps are narrowed.
+     */
+    private PersistentMapRange<K, V> liveRange(int version) {
+        return new PersistentMapRange<>(liveKeys.get(version), version, null, false, null, false, false);
+    }
+
+    /**
+     * Records the key as live in the current version.
+     * Every version keeps the root of a persistent tree of its live keys, sharing all untouched subtrees with the previous versions,
+     * so readers of any version navigate only the keys it holds and never step over removed keys or keys written after it.
+     */
+    private void addLiveKey(K key, PersistentMapNode<V> node) {
+        PersistentTreeNode<K, PersistentMapNode<V>> root = liveKeys.get(currentVersion);
+        PersistentTreeNode<K, PersistentMapNode<V>> updated = PersistentTreeNode.put(root, key, node);
+        if (updated != root)
+            liveKeys.put(currentVersion, updated);
+    }
+
+    /**
+     * Records the key as removed in the current version.
+     */
+    private void removeLiveKey(Object key) {
+        PersistentTreeNode<K, PersistentMapNode<V>> root = liveKeys.get(currentVersion);
+        PersistentTreeNode<K, PersistentMapNode<V>> updated = PersistentTreeNode.remove(root, key);
+        if (updated != root)
+            liveKeys.put(currentVersion, updated);
+    }
+
+    private Entry<K, V> liveEntry(PersistentTreeNode<K, PersistentMapNode<V>> node, int version) {
+        return null == node ? null : new PersistentMapEntry<>(node.key, node.value.getObject(version));
+    }
+
+    private K keyOrNull(Entry<K, V> entry) {
+        return null == entry ? null : entry.getKey();
+    }
+
+    private class LiveEntryIterator implements Iterator<Entry<K, V>> {
+        private final Iterator<PersistentTreeNode<K, PersistentMapNode<V>>> nodes;
+        private final int version;
+
+        LiveEntryIterator(Iterator<PersistentTreeNode<K, PersistentMapNode<V>>> nodes, int version) {
+            this.nodes = nodes;
+            this.version = version;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nodes.hasNext();
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            return liveEntry(nodes.next(), version);
+        }
     }
 
     public Object getOrDefault(Object key, Object defaultValue, int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < 0 || version > publishedVersion)
             throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
 
         if (versionedData.get(key) != null && !versionedData.get(key).isRemoved(version)) {
@@ -319,167 +1101,588 @@ public class PersistentMap<K, V> implements Map {
 
     @Override
     public Object getOrDefault(Object key, Object defaultValue) {
-        return getOrDefault(key, defaultValue, currentVersion);
+        return getOrDefault(key, defaultValue, publishedVersion);
     }
 
     @Override
     public void forEach(BiConsumer action) {
+        int version = publishedVersion;
         for (Entry<K, PersistentMapNode<V>> entry : versionedData.entrySet()) {
-            if (!entry.getValue().isRemoved(currentVersion)) {
-                action.accept(entry.getKey(), entry.getValue().getObject(currentVersion));
+            if (!entry.getValue().isRemoved(version)) {
+                consumer(action).accept(entry.getKey(), entry.getValue().getObject(version));
             }
         }
     }
 
     @Override
     public void replaceAll(BiFunction function) {
+        BulkOperationEvent event = new BulkOperationEvent();
+        event.begin();
+        int replaced = 0;
         for (Entry<K, PersistentMapNode<V>> entry : versionedData.entrySet()) {
             if (!entry.getValue().isRemoved(currentVersion)) {
-                entry.getValue().setObject(currentVersion + 1, (V)function.apply(entry.getKey(), entry.getValue().getObject(currentVersion)));
+                entry.getValue().setObject(currentVersion + 1, castValue(remapping(function).apply(entry.getKey(), entry.getValue().getObject(currentVersion))));
+                changeLog.record(currentVersion + 1, entry.getKey());
+                replaced++;
             }
         }
         currentVersion++;
+        publish();
+        event.complete(this, "replaceAll", currentVersion, replaced, 0);
     }
 
     @Override
     public Object putIfAbsent(Object key, Object value) {
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
         Object oldValue = null;
-        PersistentMapNode node = versionedData.get(key);
+        int sizeDelta = 0;
+        PersistentMapNode<V> node = versionedData.get(key);
         currentVersion++;
-        if (null == node) {
-            versionedData.put((K)key, new PersistentMapNode<V>((V)value, currentVersion));
-        } else {
+        if (null != node)
             oldValue = node.getObject(currentVersion - 1);
-            if (null == oldValue) {
-                node.setObject(currentVersion, value);
-            }
-        }
+        if (null == oldValue)
+            sizeDelta = writeValue(keyOf(key), node, castValue(value));
+        publish();
+        event.complete(this, "putIfAbsent", currentVersion, sizeDelta);
+        if (null != measured)
+            measured.record(StructureMetrics.PUT, start);
         return oldValue;
     }
 
     @Override
     public boolean remove(Object key, Object value)
     {
-        PersistentMapNode node = versionedData.get(key);
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        PersistentMapNode<V> node = versionedData.get(key);
         int curSize = size();
+        boolean removed = false;
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
 
-        if (null != node && node.getObject(currentVersion).equals(value) && !node.isRemoved(currentVersion)) {
+        if (null != node && !node.isRemoved(currentVersion) && Objects.equals(node.getObject(currentVersion), value)) {
             currentVersion++;
             node.removeObject(currentVersion);
+            removeLiveKey(key);
+            changeLog.record(currentVersion, keyOf(key));
             versionsLengths.put(currentVersion, curSize - 1);
-            return true;
+            publish();
+            event.complete(this, "remove", currentVersion, -1);
+            removed = true;
         }
-        return false;
+        if (null != measured)
+            measured.record(StructureMetrics.REMOVE, start);
+        return removed;
     }
 
     @Override
     public boolean replace(Object key, Object oldValue, Object newValue) {
-        PersistentMapNode node = versionedData.get(key);
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        PersistentMapNode<V> node = versionedData.get(key);
+        boolean replaced = false;
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
 
         if (null != node && null != node.getObject(currentVersion) &&
                 !node.isRemoved(currentVersion) && node.getObject(currentVersion).equals(oldValue)) {
             currentVersion++;
-            node.setObject(currentVersion, newValue);
-            return true;
+            node.setObject(currentVersion, castValue(newValue));
+            changeLog.record(currentVersion, keyOf(key));
+            publish();
+            event.complete(this, "replace", currentVersion, 0);
+            replaced = true;
         }
-        return false;
+        if (null != measured)
+            measured.record(StructureMetrics.PUT, start);
+        return replaced;
     }
 
     @Override
     public Object replace(Object key, Object value) {
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
         Object oldValue = null;
-        PersistentMapNode node = versionedData.get(key);
+        PersistentMapNode<V> node = versionedData.get(key);
 
         if (null != node && !node.isRemoved(currentVersion)) {
             oldValue = node.getObject(currentVersion);
             currentVersion++;
-            node.setObject(currentVersion, value);
+            node.setObject(currentVersion, castValue(value));
+            changeLog.record(currentVersion, keyOf(key));
+            publish();
+            event.complete(this, "replace", currentVersion, 0);
         }
+        if (null != measured)
+            measured.record(StructureMetrics.PUT, start);
         return oldValue;
     }
 
     @Override
     public Object computeIfAbsent(Object key, Function mappingFunction) {
-        PersistentMapNode node = versionedData.get(key);
-
-        if (null != node && !node.isRemoved(currentVersion) && node.getObject(currentVersion) != null) {
-            return node.getObject(currentVersion);
-        }
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
+        PersistentMapNode<V> node = versionedData.get(key);
+        Object value = null == node ? null : node.getObject(currentVersion);
 
-        Object value = mappingFunction.apply(key);
-        if (null != value) {
-            currentVersion++;
-            if (null == node) {
-                versionedData.put((K)key, new PersistentMapNode<V>((V)value, currentVersion));
-            } else {
-                node.setObject(currentVersion, value);
+        if (null == value) {
+            value = mapping(mappingFunction).apply(key);
+            if (null != value) {
+                currentVersion++;
+                int sizeDelta = writeValue(keyOf(key), node, castValue(value));
+                publish();
+                event.complete(this, "computeIfAbsent", currentVersion, sizeDelta);
             }
         }
-
+        if (null != measured)
+            measured.record(StructureMetrics.PUT, start);
         return value;
     }
 
     @Override
     public Object computeIfPresent(Object key, BiFunction remappingFunction) {
-        PersistentMapNode node = versionedData.get(key);
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
+        PersistentMapNode<V> node = versionedData.get(key);
+        Object oldValue = null == node ? null : node.getObject(currentVersion);
+        Object value = null;
 
-        if (null == node || node.isRemoved(currentVersion) || node.getObject(currentVersion) == null) {
-            return null;
+        if (null != oldValue) {
+            value = remapping(remappingFunction).apply(key, oldValue);
+            currentVersion++;
+            int sizeDelta = null != value ? writeValue(keyOf(key), node, castValue(value)) : removeValue(keyOf(key), node);
+            publish();
+            event.complete(this, "computeIfPresent", currentVersion, sizeDelta);
         }
+        if (null != measured)
+            measured.record(StructureMetrics.PUT, start);
+        return value;
+    }
+
+    @Override
+    public Object compute(Object key, BiFunction remappingFunction) {
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
+        PersistentMapNode<V> node = versionedData.get(key);
+        Object oldValue = null == node ? null : node.getObject(currentVersion);
 
-        Object oldValue = node.getObject(currentVersion);
-        Object value = remappingFunction.apply(key, oldValue);
+        Object value = remapping(remappingFunction).apply(key, oldValue);
         currentVersion++;
-        if (null != value) {
-            node.setObject(currentVersion, value);
+        int sizeDelta = null != value ? writeValue(keyOf(key), node, castValue(value)) : removeValue(keyOf(key), node);
+        publish();
+        event.complete(this, "compute", currentVersion, sizeDelta);
+        if (null != measured)
+            measured.record(StructureMetrics.PUT, start);
+        return value;
+    }
+
+    @Override
+    public Object merge(Object key, Object value, BiFunction remappingFunction) {
+        StructureMetrics measured = metrics;
+        long start = null == measured ? 0 : System.nanoTime();
+        VersionCreatedEvent event = new VersionCreatedEvent();
+        event.begin();
+        PersistentMapNode<V> node = versionedData.get(key);
+        Object oldValue = null == node ? null : node.getObject(currentVersion);
+
+        Object newValue = null == oldValue ? value : remapping(remappingFunction).apply(key, oldValue);
+        currentVersion++;
+        int sizeDelta = null != newValue ? writeValue(keyOf(key), node, castValue(newValue)) : removeValue(keyOf(key), node);
+        publish();
+        event.complete(this, "merge", currentVersion, sizeDelta);
+        if (null != measured)
+            measured.record(StructureMetrics.PUT, start);
+        return newValue;
+    }
+
+    /**
+     * Associates the specified value with the key in the current version, creating the node of the key if it has none,
+     * and returns the change of the size, which is recorded for the current version.
+     */
+    private int writeValue(K key, PersistentMapNode<V> node, V value) {
+        int sizeDelta = 0;
+        if (null == node) {
+            node = new PersistentMapNode<>(value, currentVersion);
+            versionedData.put(key, node);
+            sizeDelta = 1;
         } else {
-            node.removeObject(currentVersion);
+            if (node.isRemoved(currentVersion - 1))
+                sizeDelta = 1;
+            node.setObject(currentVersion, castValue(value));
         }
+        if (sizeDelta == 1)
+            addLiveKey(key, node);
+        changeLog.record(currentVersion, key);
+        versionsLengths.put(currentVersion, versionsLengths.get(currentVersion) + sizeDelta);
+        return sizeDelta;
+    }
 
-        return value;
+    /**
+     * Removes the key in the current version if it was present in the previous one
+     * and returns the change of the size, which is recorded for the current version.
+     */
+    private int removeValue(K key, PersistentMapNode<V> node) {
+        if (null == node || node.isRemoved(currentVersion - 1))
+            return 0;
+        node.removeObject(currentVersion);
+        removeLiveKey(key);
+        changeLog.record(currentVersion, key);
+        versionsLengths.put(currentVersion, versionsLengths.get(currentVersion) - 1);
+        return -1;
     }
 
-    @Override
-    public Object compute(Object key, BiFunction remappingFunction) {
-        PersistentMapNode node = versionedData.get(key);
+    /**
+     * Returns the keys added, removed or changed between the two specified versions of this map.
+     * Only the keys written by the versions in between are visited, so the cost follows the number of writes rather than the size of the map,
+     * and differences are computed one at a time as the iterator advances. A key written back to its old value is not a difference.
+     * @param fromVersion version to compare from, its values are the old values
+     * @param toVersion version to compare to, its values are the new values
+     * @return an iterator over the differences between the two versions
+     */
+    public Iterator<DiffEntry<K, V>> diff(int fromVersion, int toVersion) {
+        if (fromVersion < 0 || fromVersion > publishedVersion || toVersion < 0 || toVersion > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return DiffEntry.lazily(changeLog.distinct(fromVersion, toVersion), key -> {
+            PersistentMapNode<V> node = versionedData.get(key);
+            return DiffEntry.of(key, !node.isRemoved(fromVersion), node.getObject(fromVersion),
+                    !node.isRemoved(toVersion), node.getObject(toVersion));
+        });
+    }
 
-        Object oldValue = null;
-        if (null != node && !node.isRemoved(currentVersion)) {
-            oldValue = node.getObject(currentVersion);
+    /**
+     * Returns a writable branch of the specified version of this map.
+     * The branch shares every node of this map and records only its own writes, so forking takes constant time.
+     * @param version version of this map to branch from
+     * @return a new branch of the specified version
+     */
+    public PersistentMapBranch<K, V> fork(int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return new PersistentMapBranch<>(this, version);
+    }
+
+    /**
+     * Merges the current version of the specified branch into this map as one new version, by a three-way merge against the fork version.
+     * Only the keys written by the branch are visited: a key the branch changed is taken from the branch if this map left it unchanged since the fork,
+     * kept if both sides agree, and otherwise resolved by the specified resolver.
+     * Merges are serialized with transaction commits.
+     * @param branch branch forked from this map
+     * @param resolver resolver of the keys both sides changed differently
+     * @return the version created by the merge, or the current version if the merge changed nothing
+     */
+    public int merge(PersistentMapBranch<K, V> branch, MergeResolver<K, V> resolver) {
+        if (branch.getParent() != this)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.FOREIGN_BRANCH);
+        int branchVersion = branch.getCurrentVersion();
+        int forkVersion = branch.getForkVersion();
+        synchronized (commitLock) {
+            Map<K, Object> writes = new LinkedHashMap<>();
+            for (K key : branch.writtenKeys(branchVersion)) {
+                Object theirs = branch.containsKey(key, branchVersion) ? branch.get(key, branchVersion) : REMOVED;
+                Object base = stateOf(key, forkVersion);
+                if (Objects.equals(theirs, base))
+                    continue;
+                Object ours = stateOf(key, currentVersion);
+                Object merged = theirs;
+                if (!Objects.equals(ours, base) && !Objects.equals(ours, theirs)) {
+                    V resolved = resolver.resolve(key, valueOf(base), valueOf(ours), valueOf(theirs));
+                    merged = null == resolved ? REMOVED : resolved;
+                }
+                if (!Objects.equals(merged, ours))
+                    writes.put(key, merged);
+            }
+            if (!writes.isEmpty())
+                applyWrites(writes);
+            return currentVersion;
         }
+    }
 
-        Object value = remappingFunction.apply(key, oldValue);
-        currentVersion++;
-        if (null != value) {
-            node.setObject(currentVersion, value);
-        } else {
-            if (null != oldValue) {
-                node.removeObject(currentVersion);
+    /**
+     * Returns the value of the key in the specified version, or REMOVED if it has no mapping.
+     */
+    Object stateOf(K key, int version) {
+        PersistentMapNode<V> node = versionedData.get(key);
+        return null == node || node.isRemoved(version) ? REMOVED : node.getObject(version);
+    }
+
+    /**
+     * Returns the value of a state returned by {@link #stateOf}, null if the key is removed.
+     */
+    V valueOf(Object state) {
+        return state == REMOVED ? null : castValue(state);
+    }
+
+    /**
+     * Returns a value passed to the methods of the raw Map interface as a value of this map, which it must be.
+     */
+    @SuppressWarnings("unchecked")
+    private V castValue(Object value) {
+        return (V) value;
+    }
+
+    /**
+     * Returns a key passed to the methods of the raw Map interface as a key of this map, which it must be.
+     */
+    @SuppressWarnings("unchecked")
+    private K keyOf(Object key) {
+        return (K) key;
+    }
+
+    /**
+     * Returns an entry of a map passed to {@link #putAll} as an entry of this map, whose types it must have.
+     */
+    @SuppressWarnings("unchecked")
+    private Entry<K, V> entryOf(Object entry) {
+        return (Entry<K, V>) entry;
+    }
+
+    /**
+     * Returns a function passed to the methods of the raw Map interface, which must accept the keys and values of this map.
+     */
+    @SuppressWarnings("unchecked")
+    private static BiFunction<Object, Object, Object> remapping(Object function) {
+        return (BiFunction<Object, Object, Object>) function;
+    }
+
+    /**
+     * Returns a function passed to {@link #computeIfAbsent}, which must accept the keys of this map.
+     */
+    @SuppressWarnings("unchecked")
+    private static Function<Object, Object> mapping(Object function) {
+        return (Function<Object, Object>) function;
+    }
+
+    /**
+     * Returns an action passed to {@link #forEach}, which must accept the keys and values of this map.
+     */
+    @SuppressWarnings("unchecked")
+    private static BiConsumer<Object, Object> consumer(Object action) {
+        return (BiConsumer<Object, Object>) action;
+    }
+
+    /**
+     * Saves the full history of this map up to its current version to the specified file, in the format of {@link HistoryFormat}.
+     * @param path file to be written, replaced if it exists
+     * @param keyCodec codec of the keys
+     * @param valueCodec codec of the values
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path path, Codec<? super K> keyCodec, Codec<? super V> valueCodec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            HistoryFormat.writeMap(this, channel, keyCodec, valueCodec);
+        }
+    }
+
+    /**
+     * Loads a map with the full history saved to the specified file by {@link #save}.
+     * @param path file to be read
+     * @param keyCodec codec of the keys
+     * @param valueCodec codec of the values
+     * @return a map with the same versions as the saved one
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    public static <K, V> PersistentMap<K, V> load(Path path, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return HistoryFormat.readMap(channel, keyCodec, valueCodec);
+        }
+    }
+
+    /**
+     * Writes the specified version of this map to the specified file in the background, in the format of {@link VersionSnapshot},
+     * on the shared snapshot thread and throttled to {@link VersionSnapshot#DEFAULT_BYTES_PER_SECOND}.
+     * The writer of this map is never paused: the version is immutable and streamed as it is written.
+     * @param version version of this map
+     * @param path file to be written, replaced once the snapshot is complete
+     * @param keyCodec codec of the keys
+     * @param valueCodec codec of the values
+     * @return a future completed with the path once the snapshot is on disk
+     */
+    public CompletableFuture<Path> snapshotAsync(int version, Path path, Codec<? super K> keyCodec, Codec<? super V> valueCodec) {
+        return snapshotAsync(version, path, keyCodec, valueCodec, VersionSnapshot.defaultExecutor(), VersionSnapshot.DEFAULT_BYTES_PER_SECOND);
+    }
+
+    /**
+     * Writes the specified version of this map to the specified file in the background, in the format of {@link VersionSnapshot}.
+     * The writer of this map is never paused: the version is immutable and streamed as it is written.
+     * @param version version of this map
+     * @param path file to be written, replaced once the snapshot is complete
+     * @param keyCodec codec of the keys
+     * @param valueCodec codec of the values
+     * @param executor executor running the snapshot
+     * @param bytesPerSecond maximum rate of the snapshot writes
+     * @return a future completed with the path once the snapshot is on disk
+     */
+    public CompletableFuture<Path> snapshotAsync(int version, Path path, Codec<? super K> keyCodec, Codec<? super V> valueCodec,
+                                                 Executor executor, long bytesPerSecond) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        PersistentTreeNode<K, PersistentMapNode<V>> root = liveKeys.get(version);
+        return VersionSnapshot.writeAsync(path, VersionSnapshot.MAP, version, executor, bytesPerSecond, out -> {
+            int count = 0;
+            for (Iterator<Entry<K, V>> entries = new LiveEntryIterator(PersistentTreeNode.range(root, null, false, null, false, false), version); entries.hasNext(); count++) {
+                Entry<K, V> entry = entries.next();
+                VersionSnapshot.writeEntry(out, entry.getKey(), entry.getValue(), keyCodec, valueCodec);
             }
+            return count;
+        });
+    }
+
+    /**
+     * Exports the specified version of this map sorted by key to the specified file, which {@link MappedMapSnapshot#open} serves
+     * read-only from a memory mapping without loading it.
+     * @param version version of this map
+     * @param path file to be written, replaced once the export is complete
+     * @param keyCodec codec of the keys
+     * @param valueCodec codec of the values
+     * @throws IOException if the file cannot be written
+     */
+    public void exportMapped(int version, Path path, Codec<? super K> keyCodec, Codec<? super V> valueCodec) throws IOException {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        MappedMapSnapshot.write(this, version, path, keyCodec, valueCodec);
+    }
+
+    /**
+     * Loads a map whose current version holds the version written to the specified file by {@link #snapshotAsync}.
+     * @param path file to be read
+     * @param keyCodec codec of the keys
+     * @param valueCodec codec of the values
+     * @return a map holding the snapshotted version
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    public static <K, V> PersistentMap<K, V> loadSnapshot(Path path, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        PersistentMap<K, V> map = new PersistentMap<>();
+        Map<K, V> entries = VersionSnapshot.readMap(path, keyCodec, valueCodec);
+        if (!entries.isEmpty())
+            map.putAll(entries);
+        return map;
+    }
+
+    /**
+     * Starts an optimistic transaction which reads the current version of this map and buffers its writes until commit.
+     * @return a new transaction over the current version of this map
+     */
+    public PersistentMapTransaction<K, V> beginTransaction() {
+        return new PersistentMapTransaction<>(this, publishedVersion);
+    }
+
+    /**
+     * Runs the specified transaction body until it commits.
+     * The body is re-run against the latest version whenever another commit changed a key it read or wrote in the meantime,
+     * so it should have no side effects besides the transaction.
+     * @param body transaction body
+     * @return the result of the body of the committed run
+     */
+    public <R> R transact(Function<PersistentMapTransaction<K, V>, R> body) {
+        while (true) {
+            PersistentMapTransaction<K, V> transaction = beginTransaction();
+            R result = body.apply(transaction);
+            if (transaction.commit())
+                return result;
         }
+    }
 
-        return value;
+    /**
+     * Validates and applies the writes of a transaction as one new version.
+     * Commits are serialized, and a commit fails if any of the read or written keys changed after the version the transaction read.
+     * A transaction without writes always commits, it saw a consistent version whatever happened later.
+     * @return the version created by the commit, the read version if there was nothing to write, or -1 on conflict
+     */
+    int commit(int readVersion, Set<Object> readKeys, Map<K, Object> writes) {
+        if (writes.isEmpty())
+            return readVersion;
+        synchronized (commitLock) {
+            if (changedSince(readKeys, readVersion) || changedSince(writes.keySet(), readVersion))
+                return -1;
+            applyWrites(writes);
+            return currentVersion;
+        }
     }
 
-    @Override
-    public Object merge(Object key, Object value, BiFunction remappingFunction) {
-        PersistentMapNode node = versionedData.get(key);
-        if (null == node || node.isRemoved(currentVersion) || node.getObject(currentVersion) == null) {
-            currentVersion++;
-            node.setObject(currentVersion, value);
-            return value;
+    private boolean changedSince(Set<?> keys, int version) {
+        for (Object key : keys) {
+            PersistentMapNode<V> node = versionedData.get(key);
+            if (null != node && node.getLastVersion() > version)
+                return true;
         }
+        return false;
+    }
 
-        Object oldValue = node.getObject(currentVersion);
-        Object newValue = remappingFunction.apply(key, oldValue);
-        currentVersion++;
+    /**
+     * Returns the keys written by the specified version.
+     */
+    Iterator<K> keysWrittenAt(int version) {
+        return changeLog.written(version);
+    }
+
+    /**
+     * Attaches the write-ahead log which receives every version published from now on, or detaches it if null.
+     */
+    void attachLog(WriteAheadLog<K, V> log) {
+        writeAheadLog = log;
+    }
+
+    /**
+     * Attaches the recorder which receives the recorded calls made from now on, or detaches it if null.
+     */
+    void attachRecorder(WorkloadRecorder.Stream recorder) {
+        this.recorder = recorder;
+    }
 
-        if (null != newValue) {
-            node.setObject(currentVersion, newValue);
+    /**
+     * Recreates the specified version from its writes when a history is loaded, the versions skipped since the current one write nothing.
+     */
+    void replay(int version, Map<K, Object> writes) {
+        if (writes.isEmpty()) {
+            currentVersion = version;
+            publish();
         } else {
-            node.removeObject(currentVersion);
+            currentVersion = version - 1;
+            applyWrites(writes);
         }
+    }
 
-        return newValue;
+    /**
+     * Applies the specified writes as one new version, a value of REMOVED removes the key.
+     */
+    private void applyWrites(Map<K, Object> writes) {
+        currentVersion++;
+        int size = versionsLengths.get(currentVersion - 1);
+        for (Entry<K, Object> write : writes.entrySet()) {
+            PersistentMapNode<V> node = versionedData.get(write.getKey());
+            boolean present = null != node && !node.isRemoved(currentVersion - 1);
+            changeLog.record(currentVersion, write.getKey());
+            if (write.getValue() == REMOVED) {
+                if (present) {
+                    node.removeObject(currentVersion);
+                    removeLiveKey(write.getKey());
+                    size--;
+                }
+            } else if (null == node) {
+                node = new PersistentMapNode<>(castValue(write.getValue()), currentVersion);
+                versionedData.put(write.getKey(), node);
+                addLiveKey(write.getKey(), node);
+                size++;
+            } else {
+                node.setObject(currentVersion, castValue(write.getValue()));
+                if (!present) {
+                    addLiveKey(write.getKey(), node);
+                    size++;
+                }
+            }
+        }
+        versionsLengths.put(currentVersion, size);
+        publish();
     }
 }
@@ -0,0 +1,165 @@
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Writable branch of a persistent map forked from one of its versions.
+ * The branch shares all of the parent's nodes and stores only its own writes, in a persistent map of its own where removals are tombstones,
+ * so forking costs nothing whatever the size of the parent, and reads fall back to the parent's fork version for keys the branch never wrote.
+ * The branch has its own versions starting from 0, the state of the parent at the fork version.
+ * Like the map it supports one writer thread and any number of reader threads.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public class PersistentMapBranch<K, V> {
+    private final PersistentMap<K, V> parent;
+    private final int forkVersion;
+    private final PersistentMap<K, Object> writes = new PersistentMap<>();
+    private final VersionHistory<Integer> versionsLengths = new VersionHistory<>();
+
+    PersistentMapBranch(PersistentMap<K, V> parent, int forkVersion) {
+        this.parent = parent;
+        this.forkVersion = forkVersion;
+        versionsLengths.put(0, parent.size(forkVersion));
+    }
+
+    /**
+     * Returns the map this branch was forked from.
+     *
+     * @return the map this branch was forked from
+     */
+    public PersistentMap<K, V> getParent() {
+        return parent;
+    }
+
+    /**
+     * Returns the version of the parent map this branch was forked from.
+     *
+     * @return the version of the parent map this branch was forked from
+     */
+    public int getForkVersion() {
+        return forkVersion;
+    }
+
+    /**
+     * Returns the latest version published by the writer of this branch.
+     *
+     * @return the latest published version of this branch
+     */
+    public int getCurrentVersion() {
+        return writes.getCurrentVersion();
+    }
+
+    /**
+     * Returns the number of elements in the specified version of this branch.
+     *
+     * @param version version of this branch
+     * @return number of elements in the specified version of this branch
+     */
+    public int size(int version) {
+        if (version < 0 || version > writes.getCurrentVersion())
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return versionsLengths.get(version);
+    }
+
+    /**
+     * Returns the number of elements in the current version of this branch.
+     *
+     * @return number of elements in the current version of this branch
+     */
+    public int size() {
+        return size(writes.getCurrentVersion());
+    }
+
+    /**
+     * Returns true if the specified version of this branch contains a mapping for the specified key.
+     *
+     * @param key     key whose presence is to be tested
+     * @param version version of this branch
+     * @return true if the specified version of this branch contains a mapping for the specified key
+     */
+    public boolean containsKey(Object key, int version) {
+        if (writes.containsKey(key, version))
+            return writes.get(key, version) != PersistentMap.REMOVED;
+        return parent.containsKey(key, forkVersion);
+    }
+
+    /**
+     * Returns true if the current version of this branch contains a mapping for the specified key.
+     *
+     * @param key key whose presence is to be tested
+     * @return true if the current version of this branch contains a mapping for the specified key
+     */
+    public boolean containsKey(Object key) {
+        return containsKey(key, writes.getCurrentVersion());
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped in the specified version of this branch, or null if there is no mapping for the key.
+     *
+     * @param key     the key whose associated value is to be returned
+     * @param version version of this branch
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     */
+    public V get(Object key, int version) {
+        if (writes.containsKey(key, version))
+            return parent.valueOf(writes.get(key, version));
+        return parent.valueOf(parent.get(key, forkVersion));
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped in the current version of this branch, or null if there is no mapping for the key.
+     *
+     * @param key the key whose associated value is to be returned
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     */
+    public V get(Object key) {
+        return get(key, writes.getCurrentVersion());
+    }
+
+    /**
+     * Associates the specified value with the specified key in a new version of this branch.
+     *
+     * @param key   key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @return the previous value associated with key, or null if there was no mapping for key
+     */
+    public V put(K key, V value) {
+        int version = writes.getCurrentVersion();
+        V oldValue = get(key, version);
+        int size = versionsLengths.get(version);
+        // the length of the new version is written before the write publishes it
+        versionsLengths.put(version + 1, containsKey(key, version) ? size : size + 1);
+        writes.put(key, value);
+        return oldValue;
+    }
+
+    /**
+     * Removes the mapping for the specified key in a new version of this branch, if there is one.
+     *
+     * @param key key whose mapping is to be removed
+     * @return the previous value associated with key, or null if there was no mapping for key
+     */
+    public V remove(K key) {
+        int version = writes.getCurrentVersion();
+        if (!containsKey(key, version))
+            return null;
+        V oldValue = get(key, version);
+        versionsLengths.put(version + 1, versionsLengths.get(version) - 1);
+        writes.put(key, PersistentMap.REMOVED);
+        return oldValue;
+    }
+
+    /**
+     * Returns the keys written by this branch up to the specified version.
+     */
+    Set<K> writtenKeys(int version) {
+        Set<K> keys = new HashSet<>();
+        for (Iterator<Map.Entry<K, Object>> entries = writes.entryIterator(version); entries.hasNext(); )
+            keys.add(entries.next().getKey());
+        return keys;
+    }
+}
@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Client of a {@link PersistentMapServer}. Every operation either waits for its response, or is queued in a {@link Pipeline}
+ * whose requests are all sent with one write and whose responses are all read after it, so a batch of requests costs one round trip.
+ * Versions are those of the served map; the versions returned by writes can be read back with the versioned reads.
+ * A client is used by one thread at a time.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public class PersistentMapClient<K, V> implements AutoCloseable {
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final SocketChannel channel;
+    private final BinaryReader in;
+
+    /**
+     * Response of a pipelined request, available once the pipeline is synced.
+     *
+     * @param <T> type of the result
+     */
+    public static final class Reply<T> {
+        private boolean done;
+        private T value;
+        private RuntimeException failure;
+
+        /**
+         * Returns the result of the request.
+         *
+         * @return the result of the request
+         * @throws IllegalStateException  if the pipeline of the request is not synced yet, or the server failed to serve it
+         * @throws NoSuchElementException if the request read a version which does not exist
+         */
+        public T get() {
+            if (!done)
+                throw new IllegalStateException(PersistentExceptionsMessege.REPLY_NOT_READY);
+            if (null != failure)
+                throw failure;
+            return value;
+        }
+    }
+
+    private interface Decoder<T> {
+        T read(BinaryReader in) throws IOException;
+    }
+
+    /**
+     * Requests queued to be sent together by {@link #sync()}.
+     */
+    public final class Pipeline {
+        private final MapProtocol.FrameBuffer requests = new MapProtocol.FrameBuffer();
+        private final List<Reply<?>> replies = new ArrayList<>();
+        private final List<Decoder<?>> decoders = new ArrayList<>();
+
+        private Pipeline() {
+        }
+
+        public Reply<V> get(K key, int version) throws IOException {
+            requests.out.writeByte(MapProtocol.GET);
+            keyCodec.write(requests.out, key);
+            requests.out.writeSignedVarLong(version);
+            return queue(in -> MapProtocol.readNullable(in, valueCodec));
+        }
+
+        public Reply<V> get(K key) throws IOException {
+            return get(key, MapProtocol.CURRENT_VERSION);
+        }
+
+        public Reply<Integer> put(K key, V value) throws IOException {
+            requests.out.writeByte(MapProtocol.PUT);
+            keyCodec.write(requests.out, key);
+            MapProtocol.writeNullable(requests.out, valueCodec, value);
+            return queue(BinaryReader::readVarInt);
+        }
+
+        public Reply<Integer> remove(K key) throws IOException {
+            requests.out.writeByte(MapProtocol.REMOVE);
+            keyCodec.write(requests.out, key);
+            return queue(BinaryReader::readVarInt);
+        }
+
+        public Reply<Integer> size(int version) throws IOException {
+            requests.out.writeByte(MapProtocol.SIZE);
+            requests.out.writeSignedVarLong(version);
+            return queue(BinaryReader::readVarInt);
+        }
+
+        public Reply<Integer> size() throws IOException {
+            return size(MapProtocol.CURRENT_VERSION);
+        }
+
+        /**
+         * Queues a scan of the mappings of the specified version whose keys range from fromKey, inclusive, to toKey, exclusive, in key order.
+         *
+         * @param fromKey low endpoint of the keys, or null for no low endpoint
+         * @param toKey   high endpoint of the keys, or null for no high endpoint
+         * @param version version of the map
+         * @param limit   maximum number of mappings returned, zero for no limit
+         * @return the reply with the mappings of the range
+         * @throws IOException if the request cannot be encoded
+         */
+        public Reply<List<Map.Entry<K, V>>> scan(K fromKey, K toKey, int version, int limit) throws IOException {
+            requests.out.writeByte(MapProtocol.SCAN);
+            MapProtocol.writeNullable(requests.out, keyCodec, fromKey);
+            MapProtocol.writeNullable(requests.out, keyCodec, toKey);
+            requests.out.writeSignedVarLong(version);
+            requests.out.writeVarInt(limit);
+            return queue(in -> {
+                int count = in.readVarInt();
+                List<Map.Entry<K, V>> entries = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    K key = keyCodec.read(in);
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(key, MapProtocol.readNullable(in, valueCodec)));
+                }
+                return entries;
+            });
+        }
+
+        public Reply<Integer> currentVersion() throws IOException {
+            requests.out.writeByte(MapProtocol.VERSION);
+            return queue(BinaryReader::readVarInt);
+        }
+
+        /**
+         * Sends the queued requests and reads their responses, after which the pipeline is empty and can be reused.
+         *
+         * @throws IOException if the connection fails
+         */
+        public void sync() throws IOException {
+            if (replies.isEmpty())
+                return;
+            try {
+                ByteBuffer frames = requests.frames();
+                while (frames.hasRemaining()) {
+                    channel.write(frames);
+                }
+                for (int i = 0; i < replies.size(); i++) {
+                    in.readInt();
+                    complete(replies.get(i), decoders.get(i));
+                }
+            } finally {
+                requests.reset();
+                replies.clear();
+                decoders.clear();
+            }
+        }
+
+        private <T> Reply<T> queue(Decoder<T> decoder) throws IOException {
+            requests.endFrame();
+            Reply<T> reply = new Reply<>();
+            replies.add(reply);
+            decoders.add(decoder);
+            return reply;
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> void complete(Reply<T> reply, Decoder<?> decoder) throws IOException {
+            int status = in.readByte();
+            if (status == MapProtocol.OK)
+                reply.value = (T) decoder.read(in);
+            else if (status == MapProtocol.NO_SUCH_VERSION)
+                reply.failure = new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+            else
+                reply.failure = new IllegalStateException(in.readString());
+            reply.done = true;
+        }
+    }
+
+    private PersistentMapClient(SocketChannel channel, Codec<K> keyCodec, Codec<V> valueCodec) {
+        this.channel = channel;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        in = new BinaryReader(channel);
+    }
+
+    /**
+     * Connects to the server at the specified address.
+     *
+     * @param address    address of the server
+     * @param keyCodec   codec of the keys
+     * @param valueCodec codec of the values
+     * @return the connected client
+     * @throws IOException if the connection cannot be established
+     */
+    public static <K, V> PersistentMapClient<K, V> connect(InetSocketAddress address, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return new PersistentMapClient<>(channel, keyCodec, valueCodec);
+    }
+
+    /**
+     * Returns a new empty pipeline of this client.
+     *
+     * @return a new pipeline
+     */
+    public Pipeline pipeline() {
+        return new Pipeline();
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped in the specified version of the map, or null if there is no mapping for the key.
+     *
+     * @param key     the key whose associated value is to be returned
+     * @param version version of the map
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     * @throws IOException if the connection fails
+     */
+    public V get(K key, int version) throws IOException {
+        Pipeline pipeline = pipeline();
+        Reply<V> reply = pipeline.get(key, version);
+        pipeline.sync();
+        return reply.get();
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped in the latest version of the map, or null if there is no mapping for the key.
+     *
+     * @param key the key whose associated value is to be returned
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     * @throws IOException if the connection fails
+     */
+    public V get(K key) throws IOException {
+        return get(key, MapProtocol.CURRENT_VERSION);
+    }
+
+    /**
+     * Associates the specified value with the specified key in a new version of the map.
+     *
+     * @param key   key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @return the new version
+     * @throws IOException if the connection fails
+     */
+    public int put(K key, V value) throws IOException {
+        Pipeline pipeline = pipeline();
+        Reply<Integer> reply = pipeline.put(key, value);
+        pipeline.sync();
+        return reply.get();
+    }
+
+    /**
+     * Removes the mapping for the specified key in a new version of the map.
+     *
+     * @param key key whose mapping is to be removed
+     * @return the new version
+     * @throws IOException if the connection fails
+     */
+    public int remove(K key) throws IOException {
+        Pipeline pipeline = pipeline();
+        Reply<Integer> reply = pipeline.remove(key);
+        pipeline.sync();
+        return reply.get();
+    }
+
+    /**
+     * Returns the number of elements in the specified version of the map.
+     *
+     * @param version version of the map
+     * @return number of elements in the specified version of the map
+     * @throws IOException if the connection fails
+     */
+    public int size(int version) throws IOException {
+        Pipeline pipeline = pipeline();
+        Reply<Integer> reply = pipeline.size(version);
+        pipeline.sync();
+        return reply.get();
+    }
+
+    /**
+     * Returns the number of elements in the latest version of the map.
+     *
+     * @return number of elements in the latest version of the map
+     * @throws IOException if the connection fails
+     */
+    public int size() throws IOException {
+        return size(MapProtocol.CURRENT_VERSION);
+    }
+
+    /**
+     * Returns the mappings of the specified version of the map whose keys range from fromKey, inclusive, to toKey, exclusive, in key order.
+     *
+     * @param fromKey low endpoint of the keys, or null for no low endpoint
+     * @param toKey   high endpoint of the keys, or null for no high endpoint
+     * @param version version of the map
+     * @param limit   maximum number of mappings returned, zero for no limit
+     * @return the mappings of the range
+     * @throws IOException if the connection fails
+     */
+    public List<Map.Entry<K, V>> scan(K fromKey, K toKey, int version, int limit) throws IOException {
+        Pipeline pipeline = pipeline();
+        Reply<List<Map.Entry<K, V>>> reply = pipeline.scan(fromKey, toKey, version, limit);
+        pipeline.sync();
+        return reply.get();
+    }
+
+    /**
+     * Returns the latest version of the map.
+     *
+     * @return the latest version of the map
+     * @throws IOException if the connection fails
+     */
+    public int getCurrentVersion() throws IOException {
+        Pipeline pipeline = pipeline();
+        Reply<Integer> reply = pipeline.currentVersion();
+        pipeline.sync();
+        return reply.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
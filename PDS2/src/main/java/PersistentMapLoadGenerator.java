@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator of a {@link PersistentMapServer} with integer keys and byte array values.
+ * Every client thread keeps sending pipelines of random gets and puts until the duration elapses; the latency of a request is the round trip
+ * of its pipeline, so the depth of the pipelines trades latency for throughput.
+ * <p>
+ * Run without arguments it serves a new map on the loopback interface and loads it with the default settings; the arguments are
+ * {@code clients pipelineDepth writePercent seconds [port]}, with the port of a running server to load instead.
+ */
+public class PersistentMapLoadGenerator {
+    private final InetSocketAddress address;
+    private final int clients;
+    private final int pipelineDepth;
+    private final double writeRatio;
+    private final int keyCount;
+    private final int valueSize;
+
+    /**
+     * Result of a run: the number of requests served and the round trips of their pipelines.
+     */
+    public static final class Result {
+        private final long requests;
+        private final long elapsedNanos;
+        private final long[] latencies;
+
+        Result(long requests, long elapsedNanos, long[] latencies) {
+            this.requests = requests;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+            Arrays.sort(latencies);
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * Returns the number of requests served per second.
+         *
+         * @return the throughput of the run
+         */
+        public double getThroughput() {
+            return requests * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Returns the latency in nanoseconds below which the specified share of the requests was served.
+         *
+         * @param percentile share of the requests, from 0 to 100
+         * @return the latency of the percentile in nanoseconds
+         */
+        public long getLatencyNanos(double percentile) {
+            if (latencies.length == 0)
+                return 0;
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(latencies.length - 1, index))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests, %.0f requests/s, p50 %d us, p99 %d us, p99.9 %d us", requests, getThroughput(),
+                    TimeUnit.NANOSECONDS.toMicros(getLatencyNanos(50)), TimeUnit.NANOSECONDS.toMicros(getLatencyNanos(99)),
+                    TimeUnit.NANOSECONDS.toMicros(getLatencyNanos(99.9)));
+        }
+    }
+
+    private static final class Worker extends Thread {
+        private final PersistentMapLoadGenerator generator;
+        private final long deadline;
+        private final Random random;
+        private long requests;
+        private long[] latencies = new long[1024];
+        private int latencyCount;
+        private IOException failure;
+
+        Worker(PersistentMapLoadGenerator generator, long deadline, long seed) {
+            super("load-generator");
+            this.generator = generator;
+            this.deadline = deadline;
+            this.random = new Random(seed);
+        }
+
+        @Override
+        public void run() {
+            byte[] value = new byte[generator.valueSize];
+            try (PersistentMapClient<Integer, byte[]> client = PersistentMapClient.connect(generator.address, Codec.INTEGER, Codec.BYTES)) {
+                PersistentMapClient<Integer, byte[]>.Pipeline pipeline = client.pipeline();
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < generator.pipelineDepth; i++) {
+                        int key = random.nextInt(generator.keyCount);
+                        if (random.nextDouble() < generator.writeRatio)
+                            pipeline.put(key, value);
+                        else
+                            pipeline.get(key);
+                    }
+                    long start = System.nanoTime();
+                    pipeline.sync();
+                    // every request of the pipeline waited for the whole round trip, and all pipelines are of the same depth,
+                    // so one sample per pipeline gives the percentiles of the requests
+                    record(System.nanoTime() - start);
+                    requests += generator.pipelineDepth;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        private void record(long latency) {
+            if (latencyCount == latencies.length)
+                latencies = Arrays.copyOf(latencies, latencyCount * 2);
+            latencies[latencyCount++] = latency;
+        }
+    }
+
+    /**
+     * Constructs a load generator of the server at the specified address.
+     *
+     * @param address       address of the server, which must serve integer keys and byte array values
+     * @param clients       number of client threads, each with its own connection
+     * @param pipelineDepth number of requests sent in every pipeline
+     * @param writeRatio    share of puts among the requests, from 0 to 1
+     * @param keyCount      number of distinct keys, chosen uniformly
+     * @param valueSize     size of the values put in bytes
+     */
+    public PersistentMapLoadGenerator(InetSocketAddress address, int clients, int pipelineDepth, double writeRatio, int keyCount, int valueSize) {
+        if (clients <= 0 || pipelineDepth <= 0 || keyCount <= 0 || valueSize < 0)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.ILLEGAL_CAPACITY);
+        this.address = address;
+        this.clients = clients;
+        this.pipelineDepth = pipelineDepth;
+        this.writeRatio = writeRatio;
+        this.keyCount = keyCount;
+        this.valueSize = valueSize;
+    }
+
+    /**
+     * Loads the server for the specified duration and returns the result.
+     *
+     * @param duration duration of the load
+     * @param unit     unit of the duration
+     * @return the result of the run
+     * @throws IOException          if a client fails
+     * @throws InterruptedException if interrupted while waiting for the clients
+     */
+    public Result run(long duration, TimeUnit unit) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + unit.toNanos(duration);
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Worker worker = new Worker(this, deadline, i);
+            workers.add(worker);
+            worker.start();
+        }
+        long requests = 0;
+        int latencyCount = 0;
+        for (Worker worker : workers) {
+            worker.join();
+            if (null != worker.failure)
+                throw worker.failure;
+            requests += worker.requests;
+            latencyCount += worker.latencyCount;
+        }
+        long elapsed = System.nanoTime() - start;
+        long[] latencies = new long[latencyCount];
+        int offset = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, offset, worker.latencyCount);
+            offset += worker.latencyCount;
+        }
+        return new Result(requests, elapsed, latencies);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int pipelineDepth = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        double writeRatio = args.length > 2 ? Integer.parseInt(args[2]) / 100.0 : 0.1;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        PersistentMapServer<Integer, byte[]> server = null;
+        InetSocketAddress address;
+        if (args.length > 4) {
+            address = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[4]));
+        } else {
+            server = PersistentMapServer.start(new PersistentMap<>(), Codec.INTEGER, Codec.BYTES,
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            address = server.getAddress();
+        }
+        try {
+            Result result = new PersistentMapLoadGenerator(address, clients, pipelineDepth, writeRatio, 100_000, 100)
+                    .run(seconds, TimeUnit.SECONDS);
+            System.out.println(result);
+        } finally {
+            if (null != server)
+                server.close();
+        }
+    }
+}
@@ -1,56 +1,40 @@
-import java.util.TreeMap;
-
 public class PersistentMapNode<E> {
-    private class InnerNode<E> {
-        private boolean isRemoved;
-        private E object;
-
-        InnerNode() {
-            object = null;
-            isRemoved = false;
-        }
-
-        InnerNode(E obj) {
-            object = obj;
-            isRemoved = false;
-        }
-
-        InnerNode(E obj, boolean removed) {
-            object = obj;
-            isRemoved = removed;
-        }
-
-        E getObject() {
-            return object;
-        }
-
-        boolean isRemoved() {
-            return isRemoved;
-        }
-    }
+    private static final Object REMOVED = new Object();
 
-    private TreeMap<Integer, InnerNode<E>> versionedData;
+    private final VersionHistory<Object> versionedData;
 
     PersistentMapNode() {
-        versionedData = new TreeMap<>();
+        versionedData = new VersionHistory<>();
     }
 
     PersistentMapNode(E object, int version) {
-        versionedData = new TreeMap<>();
-        setObject(version, object);
+        versionedData = new VersionHistory<>(version, object);
     }
 
-    public E getObject(int version) { return versionedData.floorEntry(version).getValue().getObject(); }
+    @SuppressWarnings("unchecked")
+    public E getObject(int version) {
+        Object object = versionedData.get(version);
+        return object == REMOVED ? null : (E) object;
+    }
 
     public void setObject(int version, E obj) {
-        versionedData.put(version, new InnerNode<>(obj));
+        versionedData.put(version, obj);
     }
 
     public void removeObject(int version) {
-        versionedData.put(version, new InnerNode<>(null, true));
+        versionedData.put(version, REMOVED);
+    }
+
+    public int getLastVersion() {
+        return versionedData.lastVersion();
+    }
+
+    int getHistoryLength() {
+        return versionedData.size();
     }
 
     public boolean isRemoved(int version) {
-        return versionedData.floorEntry(version) == null || versionedData.floorEntry(version).getValue().isRemoved();
+        int index = versionedData.floorIndex(version);
+        return index < 0 || versionedData.valueAt(index) == REMOVED;
     }
 }
@@ -0,0 +1,124 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Partition process of a {@link ClusterCoordinator}: a separate JVM serving a new persistent map with {@link PersistentMapServer}
+ * on the loopback interface. {@link #spawn} starts it and waits until it listens; the process prints its port on its standard output
+ * and runs until its standard input is closed, so it never outlives the process which spawned it.
+ * <p>
+ * Codecs are named by their constants in {@link Codec}; keys must be comparable, so byte arrays can only be values.
+ */
+public class PersistentMapPartition implements AutoCloseable {
+    private static final String LISTENING = "LISTENING ";
+    private static final long EXIT_TIMEOUT_SECONDS = 5;
+
+    private final Process process;
+    private final InetSocketAddress address;
+
+    private PersistentMapPartition(Process process, InetSocketAddress address) {
+        this.process = process;
+        this.address = address;
+    }
+
+    /**
+     * Starts a partition process with the class path of this JVM and waits until it listens.
+     *
+     * @param keyCodec   name of the codec of the keys, such as STRING
+     * @param valueCodec name of the codec of the values
+     * @return the started partition
+     * @throws IOException if the process cannot be started or fails before listening
+     */
+    public static PersistentMapPartition spawn(String keyCodec, String valueCodec) throws IOException {
+        codec(keyCodec);
+        codec(valueCodec);
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), PersistentMapPartition.class.getName(),
+                keyCodec, valueCodec)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String line = out.readLine();
+        if (null == line || !line.startsWith(LISTENING)) {
+            process.destroyForcibly();
+            throw new IOException(PersistentExceptionsMessege.PARTITION_NOT_STARTED);
+        }
+        int port = Integer.parseInt(line.substring(LISTENING.length()));
+        return new PersistentMapPartition(process, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Returns the address the partition listens on.
+     *
+     * @return the address of the partition
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns true if the process of the partition is still running.
+     *
+     * @return true if the partition is alive
+     */
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    /**
+     * Stops the process of the partition, killing it if it does not exit in time.
+     *
+     * @throws IOException if its standard input cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        process.getOutputStream().close();
+        try {
+            if (!process.waitFor(EXIT_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                process.destroyForcibly();
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Serves a new map on a free loopback port until the standard input is closed.
+     *
+     * @param args names of the codecs of the keys and of the values
+     * @throws IOException if the server cannot be started
+     */
+    public static void main(String[] args) throws IOException {
+        try (PersistentMapServer<Object, Object> server = PersistentMapServer.start(new PersistentMap<>(), codec(args[0]), codec(args[1]),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            System.out.println(LISTENING + server.getAddress().getPort());
+            System.out.flush();
+            while (System.in.read() >= 0) {
+                // the parent keeps the standard input open while the partition is needed
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static Codec<Object> codec(String name) {
+        switch (name) {
+            case "INTEGER":
+                return (Codec<Object>) (Codec<?>) Codec.INTEGER;
+            case "LONG":
+                return (Codec<Object>) (Codec<?>) Codec.LONG;
+            case "DOUBLE":
+                return (Codec<Object>) (Codec<?>) Codec.DOUBLE;
+            case "STRING":
+                return (Codec<Object>) (Codec<?>) Codec.STRING;
+            case "BYTES":
+                return (Codec<Object>) (Codec<?>) Codec.BYTES;
+            default:
+                throw new IllegalArgumentException(PersistentExceptionsMessege.UNKNOWN_CODEC);
+        }
+    }
+}
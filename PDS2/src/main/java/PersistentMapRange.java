@@ -0,0 +1,454 @@
+import java.util.*;
+
+/**
+ * Read-only sorted view of the keys of one version of a {@link PersistentMap} which lie in a range.
+ * The view holds the root of the tree of the keys live in its version, which never changes, so nothing is copied:
+ * navigation walks one path of the tree and iteration visits only the keys of the range.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+final class PersistentMapRange<K, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+    private final PersistentTreeNode<K, PersistentMapNode<V>> root;
+    private final int version;
+    private final K low;
+    private final boolean lowInclusive;
+    private final K high;
+    private final boolean highInclusive;
+    private final boolean descending;
+
+    /**
+     * Constructs a view of the keys of the tree between the specified bounds, a null bound leaves that side open.
+     */
+    PersistentMapRange(PersistentTreeNode<K, PersistentMapNode<V>> root, int version, K low, boolean lowInclusive,
+                       K high, boolean highInclusive, boolean descending) {
+        this.root = root;
+        this.version = version;
+        this.low = low;
+        this.lowInclusive = lowInclusive;
+        this.high = high;
+        this.highInclusive = highInclusive;
+        this.descending = descending;
+    }
+
+    private boolean tooLow(Object key) {
+        if (null == low)
+            return false;
+        int cmp = PersistentTreeNode.compare(key, low);
+        return cmp < 0 || (cmp == 0 && !lowInclusive);
+    }
+
+    private boolean tooHigh(Object key) {
+        if (null == high)
+            return false;
+        int cmp = PersistentTreeNode.compare(key, high);
+        return cmp > 0 || (cmp == 0 && !highInclusive);
+    }
+
+    private boolean inRange(Object key) {
+        return !tooLow(key) && !tooHigh(key);
+    }
+
+    private PersistentTreeNode<K, PersistentMapNode<V>> lowestNode() {
+        PersistentTreeNode<K, PersistentMapNode<V>> node = null == low ? PersistentTreeNode.first(root) : PersistentTreeNode.ceiling(root, low, lowInclusive);
+        return null == node || tooHigh(node.key) ? null : node;
+    }
+
+    private PersistentTreeNode<K, PersistentMapNode<V>> highestNode() {
+        PersistentTreeNode<K, PersistentMapNode<V>> node = null == high ? PersistentTreeNode.last(root) : PersistentTreeNode.floor(root, high, highInclusive);
+        return null == node || tooLow(node.key) ? null : node;
+    }
+
+    private PersistentTreeNode<K, PersistentMapNode<V>> ceilingNode(Object key, boolean inclusive) {
+        if (tooLow(key))
+            return lowestNode();
+        PersistentTreeNode<K, PersistentMapNode<V>> node = PersistentTreeNode.ceiling(root, key, inclusive);
+        return null == node || tooHigh(node.key) ? null : node;
+    }
+
+    private PersistentTreeNode<K, PersistentMapNode<V>> floorNode(Object key, boolean inclusive) {
+        if (tooHigh(key))
+            return highestNode();
+        PersistentTreeNode<K, PersistentMapNode<V>> node = PersistentTreeNode.floor(root, key, inclusive);
+        return null == node || tooLow(node.key) ? null : node;
+    }
+
+    private PersistentTreeNode<K, PersistentMapNode<V>> firstNode() {
+        return descending ? highestNode() : lowestNode();
+    }
+
+    private PersistentTreeNode<K, PersistentMapNode<V>> lastNode() {
+        return descending ? lowestNode() : highestNode();
+    }
+
+    /**
+     * Returns the node of the first key after (or at, if inclusive is true) the specified key in the order of this view.
+     */
+    private PersistentTreeNode<K, PersistentMapNode<V>> after(Object key, boolean inclusive) {
+        return descending ? floorNode(key, inclusive) : ceilingNode(key, inclusive);
+    }
+
+    /**
+     * Returns the node of the last key before (or at, if inclusive is true) the specified key in the order of this view.
+     */
+    private PersistentTreeNode<K, PersistentMapNode<V>> before(Object key, boolean inclusive) {
+        return descending ? ceilingNode(key, inclusive) : floorNode(key, inclusive);
+    }
+
+    private Entry<K, V> entryOf(PersistentTreeNode<K, PersistentMapNode<V>> node) {
+        return null == node ? null : new SimpleImmutableEntry<>(node.key, node.value.getObject(version));
+    }
+
+    private static <K> K keyOf(PersistentTreeNode<K, ?> node) {
+        return null == node ? null : node.key;
+    }
+
+    private static <K> K keyOrThrow(PersistentTreeNode<K, ?> node) {
+        if (null == node)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_ELEMENT);
+        return node.key;
+    }
+
+    private Iterator<PersistentTreeNode<K, PersistentMapNode<V>>> nodes() {
+        return PersistentTreeNode.range(root, low, lowInclusive, high, highInclusive, descending);
+    }
+
+    private Iterator<K> keyIterator() {
+        Iterator<PersistentTreeNode<K, PersistentMapNode<V>>> nodes = nodes();
+        return new Iterator<K>() {
+            @Override
+            public boolean hasNext() {
+                return nodes.hasNext();
+            }
+
+            @Override
+            public K next() {
+                return nodes.next().key;
+            }
+        };
+    }
+
+    /**
+     * Returns the view of the keys of this one between the specified bounds, in the order of the keys.
+     * A bound outside the range of this view is narrowed to it, and a null bound keeps the bound of this view.
+     */
+    private PersistentMapRange<K, V> narrow(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        K newLow = low;
+        boolean newLowInclusive = lowInclusive;
+        if (null != from && !tooLow(from)) {
+            newLow = from;
+            newLowInclusive = fromInclusive;
+        }
+        K newHigh = high;
+        boolean newHighInclusive = highInclusive;
+        if (null != to && !tooHigh(to)) {
+            newHigh = to;
+            newHighInclusive = toInclusive;
+        }
+        return new PersistentMapRange<>(root, version, newLow, newLowInclusive, newHigh, newHighInclusive, descending);
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return descending ? Collections.reverseOrder() : null;
+    }
+
+    @Override
+    public V get(Object key) {
+        if (!inRange(key))
+            return null;
+        PersistentTreeNode<K, PersistentMapNode<V>> node = PersistentTreeNode.find(root, key);
+        return null == node ? null : node.value.getObject(version);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return inRange(key) && null != PersistentTreeNode.find(root, key);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return null == lowestNode();
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Iterator<PersistentTreeNode<K, PersistentMapNode<V>>> nodes = nodes(); nodes.hasNext(); nodes.next())
+            size++;
+        return size;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                Iterator<PersistentTreeNode<K, PersistentMapNode<V>>> nodes = nodes();
+                return new Iterator<Entry<K, V>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return nodes.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, V> next() {
+                        return entryOf(nodes.next());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return PersistentMapRange.this.size();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return PersistentMapRange.this.isEmpty();
+            }
+        };
+    }
+
+    @Override
+    public Entry<K, V> lowerEntry(K key) {
+        return entryOf(before(key, false));
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return keyOf(before(key, false));
+    }
+
+    @Override
+    public Entry<K, V> floorEntry(K key) {
+        return entryOf(before(key, true));
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return keyOf(before(key, true));
+    }
+
+    @Override
+    public Entry<K, V> ceilingEntry(K key) {
+        return entryOf(after(key, true));
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        return keyOf(after(key, true));
+    }
+
+    @Override
+    public Entry<K, V> higherEntry(K key) {
+        return entryOf(after(key, false));
+    }
+
+    @Override
+    public K higherKey(K key) {
+        return keyOf(after(key, false));
+    }
+
+    @Override
+    public Entry<K, V> firstEntry() {
+        return entryOf(firstNode());
+    }
+
+    @Override
+    public Entry<K, V> lastEntry() {
+        return entryOf(lastNode());
+    }
+
+    @Override
+    public K firstKey() {
+        return keyOrThrow(firstNode());
+    }
+
+    @Override
+    public K lastKey() {
+        return keyOrThrow(lastNode());
+    }
+
+    @Override
+    public Entry<K, V> pollFirstEntry() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Entry<K, V> pollLastEntry() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public PersistentMapRange<K, V> descendingMap() {
+        return new PersistentMapRange<>(root, version, low, lowInclusive, high, highInclusive, !descending);
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        return new KeySet<>(this);
+    }
+
+    @Override
+    public NavigableSet<K> keySet() {
+        return navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return new KeySet<>(descendingMap());
+    }
+
+    @Override
+    public PersistentMapRange<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        Objects.requireNonNull(toKey);
+        int cmp = PersistentTreeNode.compare(fromKey, toKey);
+        if (descending ? cmp < 0 : cmp > 0)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.ILLEGAL_RANGE);
+        return descending ? narrow(toKey, toInclusive, fromKey, fromInclusive) : narrow(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    @Override
+    public PersistentMapRange<K, V> headMap(K toKey, boolean inclusive) {
+        Objects.requireNonNull(toKey);
+        return descending ? narrow(toKey, inclusive, null, false) : narrow(null, false, toKey, inclusive);
+    }
+
+    @Override
+    public PersistentMapRange<K, V> tailMap(K fromKey, boolean inclusive) {
+        Objects.requireNonNull(fromKey);
+        return descending ? narrow(null, false, fromKey, inclusive) : narrow(fromKey, inclusive, null, false);
+    }
+
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> headMap(K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    /**
+     * Read-only navigable set of the keys of a view.
+     */
+    private static final class KeySet<K> extends AbstractSet<K> implements NavigableSet<K> {
+        private final PersistentMapRange<K, ?> map;
+
+        KeySet(PersistentMapRange<K, ?> map) {
+            this.map = map;
+        }
+
+        @Override
+        public Iterator<K> iterator() {
+            return map.keyIterator();
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return map.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return map.containsKey(o);
+        }
+
+        @Override
+        public K lower(K k) {
+            return map.lowerKey(k);
+        }
+
+        @Override
+        public K floor(K k) {
+            return map.floorKey(k);
+        }
+
+        @Override
+        public K ceiling(K k) {
+            return map.ceilingKey(k);
+        }
+
+        @Override
+        public K higher(K k) {
+            return map.higherKey(k);
+        }
+
+        @Override
+        public K pollFirst() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public K pollLast() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NavigableSet<K> descendingSet() {
+            return new KeySet<>(map.descendingMap());
+        }
+
+        @Override
+        public Iterator<K> descendingIterator() {
+            return descendingSet().iterator();
+        }
+
+        @Override
+        public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+            return new KeySet<>(map.subMap(fromElement, fromInclusive, toElement, toInclusive));
+        }
+
+        @Override
+        public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+            return new KeySet<>(map.headMap(toElement, inclusive));
+        }
+
+        @Override
+        public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+            return new KeySet<>(map.tailMap(fromElement, inclusive));
+        }
+
+        @Override
+        public Comparator<? super K> comparator() {
+            return map.comparator();
+        }
+
+        @Override
+        public SortedSet<K> subSet(K fromElement, K toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public SortedSet<K> headSet(K toElement) {
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public SortedSet<K> tailSet(K fromElement) {
+            return tailSet(fromElement, true);
+        }
+
+        @Override
+        public K first() {
+            return map.firstKey();
+        }
+
+        @Override
+        public K last() {
+            return map.lastKey();
+        }
+    }
+}
@@ -0,0 +1,326 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Server of a persistent map over TCP, so that processes on the same host share one map instead of keeping their own copies.
+ * It serves versioned gets, puts, removes, sizes and range scans in the protocol of {@link MapProtocol} to {@link PersistentMapClient}s.
+ * <p>
+ * One selector thread serves every connection without blocking, and it is the only writer of the map: no other thread may write to the map
+ * while it is served, though any thread may read it. All of the complete requests received by one read of a connection are served together
+ * and their responses are sent with one write, so pipelined requests cost one system call per batch rather than per request.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public class PersistentMapServer<K, V> implements AutoCloseable {
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+
+    private final PersistentMap<K, V> map;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final MapProtocol.FrameBuffer responses = new MapProtocol.FrameBuffer();
+    private final Thread selectorThread;
+    private volatile boolean closed;
+
+    /**
+     * Buffers of one connection: requests not received completely yet and responses not sent yet.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private ByteBuffer out = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            out.flip();
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= Integer.BYTES) {
+                int length = in.getInt(in.position());
+                if (length < 0 || length > MapProtocol.MAX_FRAME_BYTES)
+                    throw new IOException(PersistentExceptionsMessege.FRAME_TOO_LARGE);
+                if (in.remaining() < Integer.BYTES + length)
+                    break;
+                ByteBuffer frame = in.slice();
+                frame.position(Integer.BYTES);
+                frame.limit(Integer.BYTES + length);
+                in.position(in.position() + Integer.BYTES + length);
+                serve(new BinaryReader(frame));
+            }
+            in.compact();
+            if (!in.hasRemaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                grown.put(in);
+                in = grown;
+            }
+            if (responses.frameCount() > 0) {
+                enqueue(responses.frames());
+                responses.reset();
+                write();
+            }
+        }
+
+        void write() throws IOException {
+            channel.write(out);
+            key.interestOps(out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void enqueue(ByteBuffer frames) {
+            out.compact();
+            if (out.remaining() < frames.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + frames.remaining()));
+                out.flip();
+                grown.put(out);
+                out = grown;
+            }
+            out.put(frames);
+            out.flip();
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // the connection is dropped anyway
+            }
+        }
+    }
+
+    private PersistentMapServer(PersistentMap<K, V> map, Codec<K> keyCodec, Codec<V> valueCodec, InetSocketAddress address) throws IOException {
+        this.map = map;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        selectorThread = new Thread(this::run, "persistent-map-server");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Starts serving the specified map on the specified address.
+     *
+     * @param map        map to serve, written only by the server from now on
+     * @param keyCodec   codec of the keys
+     * @param valueCodec codec of the values
+     * @param address    address to listen on, with port 0 for any free port
+     * @return the started server
+     * @throws IOException if the address cannot be bound
+     */
+    public static <K, V> PersistentMapServer<K, V> start(PersistentMap<K, V> map, Codec<K> keyCodec, Codec<V> valueCodec,
+                                                         InetSocketAddress address) throws IOException {
+        return new PersistentMapServer<>(map, keyCodec, valueCodec, address);
+    }
+
+    /**
+     * Returns the map served by this server.
+     *
+     * @return the served map
+     */
+    public PersistentMap<K, V> getMap() {
+        return map;
+    }
+
+    /**
+     * Returns the address this server listens on.
+     *
+     * @return the bound address
+     * @throws IOException if the server is closed
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     * Stops serving, closing every connection.
+     *
+     * @throws IOException if the listening socket cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        serverChannel.close();
+    }
+
+    /**
+     * Returns the connection attached to the key of a client channel.
+     */
+    @SuppressWarnings("unchecked")
+    private Connection connectionOf(SelectionKey key) {
+        return (Connection) key.attachment();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = connectionOf(key);
+                    try {
+                        if (key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.write();
+                    } catch (IOException e) {
+                        // a broken or misbehaving client loses only its own connection
+                        responses.reset();
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            closed = true;
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (null != key.attachment())
+                    connectionOf(key).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // nothing is left to serve
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (null == channel)
+            return;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        new Connection(channel);
+    }
+
+    private void serve(BinaryReader in) throws IOException {
+        BinaryWriter out = responses.out;
+        int operation = in.readByte();
+        try {
+            switch (operation) {
+                case MapProtocol.GET: {
+                    K key = keyCodec.read(in);
+                    int version = version(in);
+                    @SuppressWarnings("unchecked")
+                    V value = (V) map.get(key, version);
+                    out.writeByte(MapProtocol.OK);
+                    MapProtocol.writeNullable(out, valueCodec, value);
+                    break;
+                }
+                case MapProtocol.PUT: {
+                    K key = keyCodec.read(in);
+                    V value = MapProtocol.readNullable(in, valueCodec);
+                    map.put(key, value);
+                    out.writeByte(MapProtocol.OK);
+                    out.writeVarInt(map.getCurrentVersion());
+                    break;
+                }
+                case MapProtocol.REMOVE: {
+                    K key = keyCodec.read(in);
+                    map.remove(key);
+                    out.writeByte(MapProtocol.OK);
+                    out.writeVarInt(map.getCurrentVersion());
+                    break;
+                }
+                case MapProtocol.SIZE: {
+                    int size = map.size(version(in));
+                    out.writeByte(MapProtocol.OK);
+                    out.writeVarInt(size);
+                    break;
+                }
+                case MapProtocol.SCAN:
+                    scan(in, out);
+                    break;
+                case MapProtocol.VERSION:
+                    out.writeByte(MapProtocol.OK);
+                    out.writeVarInt(map.getCurrentVersion());
+                    break;
+                default:
+                    throw new IOException(PersistentExceptionsMessege.UNKNOWN_OPERATION);
+            }
+        } catch (NoSuchElementException e) {
+            out.writeByte(MapProtocol.NO_SUCH_VERSION);
+        } catch (RuntimeException e) {
+            out.writeByte(MapProtocol.FAILED);
+            out.writeString(String.valueOf(e));
+        }
+        responses.endFrame();
+    }
+
+    private void scan(BinaryReader in, BinaryWriter out) throws IOException {
+        K fromKey = MapProtocol.readNullable(in, keyCodec);
+        K toKey = MapProtocol.readNullable(in, keyCodec);
+        int version = version(in);
+        int limit = in.readVarInt();
+        Iterator<Map.Entry<K, V>> entries;
+        if (null != fromKey && null != toKey)
+            entries = map.subMap(fromKey, true, toKey, false, version).entrySet().iterator();
+        else if (null != fromKey)
+            entries = map.tailMap(fromKey, true, version).entrySet().iterator();
+        else if (null != toKey)
+            entries = map.headMap(toKey, false, version).entrySet().iterator();
+        else
+            entries = map.entryIterator(version);
+        List<Map.Entry<K, V>> range = new ArrayList<>();
+        while (entries.hasNext() && (limit == 0 || range.size() < limit)) {
+            range.add(entries.next());
+        }
+        out.writeByte(MapProtocol.OK);
+        out.writeVarInt(range.size());
+        for (Map.Entry<K, V> entry : range) {
+            keyCodec.write(out, entry.getKey());
+            MapProtocol.writeNullable(out, valueCodec, entry.getValue());
+        }
+    }
+
+    private int version(BinaryReader in) throws IOException {
+        int version = (int) in.readSignedVarLong();
+        return version == MapProtocol.CURRENT_VERSION ? map.getCurrentVersion() : version;
+    }
+}
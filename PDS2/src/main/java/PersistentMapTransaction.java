@@ -0,0 +1,124 @@
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optimistic transaction over a persistent map with snapshot isolation.
+ * All reads see the version of the map the transaction started at, writes are buffered locally and become one new version on commit.
+ * The commit succeeds only if no other commit changed any of the keys the transaction read or wrote since that version (first committer wins).
+ * Reading never blocks writers, and a transaction which only reads never makes anything abort.
+ * Transactions may commit from any number of threads, commits are serialized by the map; plain writes to the map must not run concurrently with them.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public class PersistentMapTransaction<K, V> {
+    private final PersistentMap<K, V> map;
+    private final int readVersion;
+    private final Set<Object> readKeys = new HashSet<>();
+    private final Map<K, Object> writes = new LinkedHashMap<>();
+    private int commitVersion = -1;
+    private boolean finished;
+
+    PersistentMapTransaction(PersistentMap<K, V> map, int readVersion) {
+        this.map = map;
+        this.readVersion = readVersion;
+    }
+
+    /**
+     * Returns the version of the map this transaction reads.
+     *
+     * @return the version of the map this transaction reads
+     */
+    public int getReadVersion() {
+        return readVersion;
+    }
+
+    /**
+     * Returns the version created by the commit of this transaction, or -1 if it has not committed.
+     *
+     * @return the version created by the commit of this transaction, or -1 if it has not committed
+     */
+    public int getCommitVersion() {
+        return commitVersion;
+    }
+
+    /**
+     * Returns the value of the specified key as seen by this transaction, including its own writes.
+     *
+     * @param key the key whose associated value is to be returned
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     */
+    public V get(Object key) {
+        checkActive();
+        if (writes.containsKey(key)) {
+            return map.valueOf(writes.get(key));
+        }
+        readKeys.add(key);
+        return map.valueOf(map.get(key, readVersion));
+    }
+
+    /**
+     * Returns true if the specified key is mapped as seen by this transaction, including its own writes.
+     *
+     * @param key key whose presence is to be tested
+     * @return true if the specified key is mapped as seen by this transaction
+     */
+    public boolean containsKey(Object key) {
+        checkActive();
+        if (writes.containsKey(key))
+            return writes.get(key) != PersistentMap.REMOVED;
+        readKeys.add(key);
+        return map.containsKey(key, readVersion);
+    }
+
+    /**
+     * Buffers the association of the specified value with the specified key.
+     *
+     * @param key   key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @return the previous value associated with key as seen by this transaction
+     */
+    public V put(K key, V value) {
+        V oldValue = get(key);
+        writes.put(key, value);
+        return oldValue;
+    }
+
+    /**
+     * Buffers the removal of the mapping for the specified key.
+     *
+     * @param key key whose mapping is to be removed
+     * @return the previous value associated with key as seen by this transaction
+     */
+    public V remove(K key) {
+        V oldValue = get(key);
+        writes.put(key, PersistentMap.REMOVED);
+        return oldValue;
+    }
+
+    /**
+     * Tries to commit the buffered writes as one new version of the map.
+     *
+     * @return true if the transaction committed, false if a conflicting commit came first
+     */
+    public boolean commit() {
+        checkActive();
+        finished = true;
+        commitVersion = map.commit(readVersion, readKeys, writes);
+        return commitVersion >= 0;
+    }
+
+    /**
+     * Discards the buffered writes.
+     */
+    public void rollback() {
+        finished = true;
+    }
+
+    private void checkActive() {
+        if (finished)
+            throw new IllegalStateException(PersistentExceptionsMessege.TRANSACTION_FINISHED);
+    }
+}
@@ -0,0 +1,334 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Node of an immutable AVL tree updated by path copying.
+ * An update copies only the nodes on the path to the changed key, so every old root still describes its own version of the tree
+ * and all versions share the untouched subtrees. The empty tree is null.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public final class PersistentTreeNode<K, V> {
+    final K key;
+    final V value;
+    final PersistentTreeNode<K, V> left;
+    final PersistentTreeNode<K, V> right;
+    final int height;
+
+    private PersistentTreeNode(K key, V value, PersistentTreeNode<K, V> left, PersistentTreeNode<K, V> right) {
+        this.key = key;
+        this.value = value;
+        this.left = left;
+        this.right = right;
+        this.height = Math.max(height(left), height(right)) + 1;
+    }
+
+    /**
+     * Compares a key, which must be comparable to the keys of the tree, to a key of the tree.
+     */
+    @SuppressWarnings("unchecked")
+    static <K> int compare(Object key, K other) {
+        return ((Comparable<? super K>) key).compareTo(other);
+    }
+
+    public K getKey() {
+        return key;
+    }
+
+    public V getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the node holding the specified key in the tree, or null if there is none.
+     *
+     * @param root root of the tree
+     * @param key  key to look for
+     * @return the node holding the specified key, or null if there is none
+     */
+    public static <K, V> PersistentTreeNode<K, V> find(PersistentTreeNode<K, V> root, Object key) {
+        PersistentTreeNode<K, V> current = root;
+        while (null != current) {
+            int cmp = compare(key, current.key);
+            if (cmp == 0)
+                return current;
+            current = cmp < 0 ? current.left : current.right;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the root of a tree which maps the specified key to the specified value and otherwise equals the specified tree.
+     *
+     * @param root  root of the tree
+     * @param key   key to be mapped
+     * @param value value to be associated with the key
+     * @return the root of the new tree
+     */
+    public static <K, V> PersistentTreeNode<K, V> put(PersistentTreeNode<K, V> root, K key, V value) {
+        if (null == root)
+            return new PersistentTreeNode<>(key, value, null, null);
+        int cmp = compare(key, root.key);
+        if (cmp == 0)
+            return root.value == value ? root : new PersistentTreeNode<>(root.key, value, root.left, root.right);
+        if (cmp < 0) {
+            PersistentTreeNode<K, V> left = put(root.left, key, value);
+            return left == root.left ? root : balance(root.key, root.value, left, root.right);
+        }
+        PersistentTreeNode<K, V> right = put(root.right, key, value);
+        return right == root.right ? root : balance(root.key, root.value, root.left, right);
+    }
+
+    /**
+     * Returns the root of a tree without the specified key which otherwise equals the specified tree.
+     *
+     * @param root root of the tree
+     * @param key  key to be removed
+     * @return the root of the new tree, the specified root itself if the key is absent
+     */
+    public static <K, V> PersistentTreeNode<K, V> remove(PersistentTreeNode<K, V> root, Object key) {
+        if (null == root)
+            return null;
+        int cmp = compare(key, root.key);
+        if (cmp < 0) {
+            PersistentTreeNode<K, V> left = remove(root.left, key);
+            return left == root.left ? root : balance(root.key, root.value, left, root.right);
+        }
+        if (cmp > 0) {
+            PersistentTreeNode<K, V> right = remove(root.right, key);
+            return right == root.right ? root : balance(root.key, root.value, root.left, right);
+        }
+        if (null == root.left)
+            return root.right;
+        if (null == root.right)
+            return root.left;
+        PersistentTreeNode<K, V> min = root.right;
+        while (null != min.left)
+            min = min.left;
+        return balance(min.key, min.value, root.left, removeMin(root.right));
+    }
+
+    /**
+     * Returns the number of nodes of the tree, walking all of them.
+     *
+     * @param root root of the tree
+     * @return the number of nodes of the tree
+     */
+    public static int count(PersistentTreeNode<?, ?> root) {
+        return null == root ? 0 : count(root.left) + 1 + count(root.right);
+    }
+
+    /**
+     * Returns the node of the lowest key of the tree, or null if the tree is empty.
+     *
+     * @param root root of the tree
+     * @return the node of the lowest key, or null if the tree is empty
+     */
+    public static <K, V> PersistentTreeNode<K, V> first(PersistentTreeNode<K, V> root) {
+        PersistentTreeNode<K, V> current = root;
+        while (null != current && null != current.left)
+            current = current.left;
+        return current;
+    }
+
+    /**
+     * Returns the node of the highest key of the tree, or null if the tree is empty.
+     *
+     * @param root root of the tree
+     * @return the node of the highest key, or null if the tree is empty
+     */
+    public static <K, V> PersistentTreeNode<K, V> last(PersistentTreeNode<K, V> root) {
+        PersistentTreeNode<K, V> current = root;
+        while (null != current && null != current.right)
+            current = current.right;
+        return current;
+    }
+
+    /**
+     * Returns the node of the least key greater than (or equal to, if inclusive is true) the specified key, or null if there is none.
+     *
+     * @param root      root of the tree
+     * @param key       the key
+     * @param inclusive true if a node holding the key itself may be returned
+     * @return the node of the least key above the specified key, or null if there is none
+     */
+    public static <K, V> PersistentTreeNode<K, V> ceiling(PersistentTreeNode<K, V> root, Object key, boolean inclusive) {
+        PersistentTreeNode<K, V> result = null;
+        PersistentTreeNode<K, V> current = root;
+        while (null != current) {
+            int cmp = compare(key, current.key);
+            if (cmp < 0 || (cmp == 0 && inclusive)) {
+                result = current;
+                if (cmp == 0)
+                    break;
+                current = current.left;
+            } else {
+                current = current.right;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the node of the greatest key less than (or equal to, if inclusive is true) the specified key, or null if there is none.
+     *
+     * @param root      root of the tree
+     * @param key       the key
+     * @param inclusive true if a node holding the key itself may be returned
+     * @return the node of the greatest key below the specified key, or null if there is none
+     */
+    public static <K, V> PersistentTreeNode<K, V> floor(PersistentTreeNode<K, V> root, Object key, boolean inclusive) {
+        PersistentTreeNode<K, V> result = null;
+        PersistentTreeNode<K, V> current = root;
+        while (null != current) {
+            int cmp = compare(key, current.key);
+            if (cmp > 0 || (cmp == 0 && inclusive)) {
+                result = current;
+                if (cmp == 0)
+                    break;
+                current = current.right;
+            } else {
+                current = current.left;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the root of a balanced tree of the specified keys and values, built in linear time without comparing the keys.
+     *
+     * @param keys   keys in strictly ascending order
+     * @param values values of the keys, in the same order
+     * @return the root of the new tree, null if there are no keys
+     */
+    public static <K, V> PersistentTreeNode<K, V> fromSorted(List<K> keys, List<V> values) {
+        return fromSorted(keys, values, 0, keys.size());
+    }
+
+    private static <K, V> PersistentTreeNode<K, V> fromSorted(List<K> keys, List<V> values, int from, int to) {
+        if (from >= to)
+            return null;
+        int mid = (from + to) >>> 1;
+        return new PersistentTreeNode<>(keys.get(mid), values.get(mid), fromSorted(keys, values, from, mid), fromSorted(keys, values, mid + 1, to));
+    }
+
+    /**
+     * Returns an iterator over the nodes of the tree whose keys lie between the specified bounds, in ascending or descending key order.
+     * It keeps the path to the next node on a stack, so it starts in logarithmic time and never visits a node outside the range
+     * except on the paths to its ends.
+     *
+     * @param root          root of the tree
+     * @param low           low bound of the keys, null for none
+     * @param lowInclusive  true if the low bound is to be included
+     * @param high          high bound of the keys, null for none
+     * @param highInclusive true if the high bound is to be included
+     * @param descending    true to iterate from the highest key down
+     * @return an iterator over the nodes of the range
+     */
+    public static <K, V> Iterator<PersistentTreeNode<K, V>> range(PersistentTreeNode<K, V> root, K low, boolean lowInclusive,
+                                                                  K high, boolean highInclusive, boolean descending) {
+        return new RangeIterator<>(root, low, lowInclusive, high, highInclusive, descending);
+    }
+
+    private static final class RangeIterator<K, V> implements Iterator<PersistentTreeNode<K, V>> {
+        private final ArrayDeque<PersistentTreeNode<K, V>> path = new ArrayDeque<>();
+        private final K end;
+        private final boolean endInclusive;
+        private final boolean descending;
+
+        RangeIterator(PersistentTreeNode<K, V> root, K low, boolean lowInclusive, K high, boolean highInclusive, boolean descending) {
+            this.descending = descending;
+            K start = descending ? high : low;
+            boolean startInclusive = descending ? highInclusive : lowInclusive;
+            end = descending ? low : high;
+            endInclusive = descending ? lowInclusive : highInclusive;
+            PersistentTreeNode<K, V> current = root;
+            while (null != current) {
+                if (null == start || isBefore(start, startInclusive, current.key)) {
+                    path.push(current);
+                    current = descending ? current.right : current.left;
+                } else {
+                    current = descending ? current.left : current.right;
+                }
+            }
+            dropPastEnd();
+        }
+
+        /**
+         * Returns true if the key comes after the start of the range in the order of the iteration.
+         */
+        private boolean isBefore(K start, boolean inclusive, K key) {
+            int cmp = compare(start, key);
+            if (descending)
+                cmp = -cmp;
+            return cmp < 0 || (cmp == 0 && inclusive);
+        }
+
+        private void dropPastEnd() {
+            if (null == end || path.isEmpty())
+                return;
+            int cmp = compare(path.peek().key, end);
+            if (descending)
+                cmp = -cmp;
+            if (cmp > 0 || (cmp == 0 && !endInclusive))
+                path.clear();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !path.isEmpty();
+        }
+
+        @Override
+        public PersistentTreeNode<K, V> next() {
+            if (path.isEmpty())
+                throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_ELEMENT);
+            PersistentTreeNode<K, V> result = path.pop();
+            PersistentTreeNode<K, V> current = descending ? result.left : result.right;
+            while (null != current) {
+                path.push(current);
+                current = descending ? current.right : current.left;
+            }
+            dropPastEnd();
+            return result;
+        }
+    }
+
+    private static <K, V> PersistentTreeNode<K, V> removeMin(PersistentTreeNode<K, V> root) {
+        if (null == root.left)
+            return root.right;
+        return balance(root.key, root.value, removeMin(root.left), root.right);
+    }
+
+    private static int height(PersistentTreeNode<?, ?> node) {
+        return null == node ? 0 : node.height;
+    }
+
+    private static <K, V> PersistentTreeNode<K, V> balance(K key, V value, PersistentTreeNode<K, V> left, PersistentTreeNode<K, V> right) {
+        int diff = height(left) - height(right);
+        if (diff > 1) {
+            if (height(left.left) < height(left.right)) {
+                left = rotateLeft(left.key, left.value, left.left, left.right);
+            }
+            return rotateRight(key, value, left, right);
+        }
+        if (diff < -1) {
+            if (height(right.right) < height(right.left)) {
+                right = rotateRight(right.key, right.value, right.left, right.right);
+            }
+            return rotateLeft(key, value, left, right);
+        }
+        return new PersistentTreeNode<>(key, value, left, right);
+    }
+
+    private static <K, V> PersistentTreeNode<K, V> rotateRight(K key, V value, PersistentTreeNode<K, V> left, PersistentTreeNode<K, V> right) {
+        return new PersistentTreeNode<>(left.key, left.value, left.left, new PersistentTreeNode<>(key, value, left.right, right));
+    }
+
+    private static <K, V> PersistentTreeNode<K, V> rotateLeft(K key, V value, PersistentTreeNode<K, V> left, PersistentTreeNode<K, V> right) {
+        return new PersistentTreeNode<>(right.key, right.value, new PersistentTreeNode<>(key, value, left, right.left), right.right);
+    }
+}
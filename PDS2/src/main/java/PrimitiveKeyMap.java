@@ -0,0 +1,307 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Versioned open-addressing table shared by the persistent maps with primitive keys.
+ * Keys live in a column of longs, int keys widened, and are probed linearly. The first value of every key is stored inline in the table,
+ * later values are appended to per-key arrays of versions and values, so lookups allocate nothing
+ * and a write allocates only when the history of a key has to grow. A removal is an entry whose version is negated.
+ * <p>
+ * This class owns the keys, the versions, the probing and the growth, the subclasses own the type of the values:
+ * value columns are arrays created by {@link #newValues}, read and written by the subclass at the positions this class finds.
+ * <p>
+ * The maps support one writer thread and any number of reader threads. A rehash builds a new table and a full history is replaced
+ * by a larger copy, so a reader always finds every value of the versions published before its read, and entries written since,
+ * which may not be visible to it yet, belong to newer versions and are skipped.
+ */
+abstract class PrimitiveKeyMap {
+    static final int DEFAULT_CAPACITY = 16;
+    static final int MAXIMUM_CAPACITY = 1 << 30;
+    /**
+     * Entry of a key whose value is the one stored inline in the table.
+     */
+    static final int FIRST = -1;
+    /**
+     * Entry of a key which has no value in the version looked up.
+     */
+    static final int ABSENT = -2;
+
+    /**
+     * Versions and values a key took after its first one. Unused entries have version 0, which no later value can have,
+     * and the arrays are final, so a reader which sees a history sees every entry it held when it was created.
+     */
+    static final class History {
+        final int[] versions;
+        final Object values;
+
+        History(int[] versions, Object values) {
+            this.versions = versions;
+            this.values = values;
+        }
+    }
+
+    static final class Table {
+        final boolean[] used;
+        final long[] keys;
+        final int[] firstVersions;
+        final Object firstValues;
+        final History[] histories;
+        final int[] historyLengths;
+
+        Table(int capacity, Object firstValues) {
+            used = new boolean[capacity];
+            keys = new long[capacity];
+            firstVersions = new int[capacity];
+            this.firstValues = firstValues;
+            histories = new History[capacity];
+            historyLengths = new int[capacity];
+        }
+    }
+
+    private int currentVersion = 0;
+    private volatile int publishedVersion = 0;
+    private volatile int[] versionsLengths;
+    volatile Table table;
+    private int occupied;
+
+    /**
+     * Constructs an empty map able to hold the specified number of keys without rehashing.
+     */
+    PrimitiveKeyMap(int expectedKeys) {
+        int capacity = tableSizeFor(expectedKeys);
+        table = new Table(capacity, newValues(capacity));
+        versionsLengths = new int[DEFAULT_CAPACITY];
+    }
+
+    /**
+     * Returns a new column of the specified number of values, an array of the type of the values of the map.
+     */
+    abstract Object newValues(int length);
+
+    /**
+     * Returns the latest version published by the writer of this map.
+     * Other threads must not read versions newer than this one.
+     * @return the latest published version of this map
+     */
+    public int getCurrentVersion() {
+        return publishedVersion;
+    }
+
+    /**
+     * Returns the number of elements in the specified version of this map.
+     * @param version version of this map
+     * @return number of elements in the specified version of this map.
+     */
+    public int size(int version) {
+        checkVersion(version);
+        return versionsLengths[version];
+    }
+
+    /**
+     * Returns the number of elements in the current version of this map.
+     * @return number of elements in the current version of this map.
+     */
+    public int size() {
+        return size(publishedVersion);
+    }
+
+    /**
+     * Returns true if the specified version of this map contains no elements.
+     * @param version version of this map
+     * @return true if the specified version of this map contains no elements, false otherwise
+     */
+    public boolean isEmpty(int version) {
+        return size(version) == 0;
+    }
+
+    /**
+     * Returns true if the current version of this map contains no elements.
+     * @return true if the current version of this map contains no elements, false otherwise
+     */
+    public boolean isEmpty() {
+        return isEmpty(publishedVersion);
+    }
+
+    void checkVersion(int version) {
+        if (version < 0 || version > publishedVersion)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+    }
+
+    /**
+     * Returns the number of slots of a table holding the specified number of keys at most half full.
+     */
+    static int tableSizeFor(int expectedKeys) {
+        if (expectedKeys < 0)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.ILLEGAL_CAPACITY);
+        if (expectedKeys >= MAXIMUM_CAPACITY / 2)
+            return MAXIMUM_CAPACITY;
+        int size = DEFAULT_CAPACITY;
+        while (size < expectedKeys * 2)
+            size <<= 1;
+        return size;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Returns the slot of the key, or -1 - (free slot where the key would be inserted) if the key is absent.
+     */
+    static int slotOf(Table t, long key) {
+        int mask = t.keys.length - 1;
+        int slot = hash(key) & mask;
+        while (t.used[slot]) {
+            if (t.keys[slot] == key)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1 - slot;
+    }
+
+    /**
+     * Returns the entry of the slot visible in the specified version: the index of its history, {@link #FIRST} or {@link #ABSENT}.
+     * A slot or entry the writer is still filling in reads as version 0 or as a version newer than any a reader may ask for,
+     * and is skipped either way.
+     */
+    static int entryAt(Table t, int slot, int version) {
+        History history = t.histories[slot];
+        if (null != history) {
+            int[] versions = history.versions;
+            if (isVisible(versions[0], version)) {
+                int low = 0;
+                int high = versions.length - 1;
+                while (low < high) {
+                    int mid = (low + high + 1) >>> 1;
+                    if (isVisible(versions[mid], version))
+                        low = mid;
+                    else
+                        high = mid - 1;
+                }
+                return versions[low] < 0 ? ABSENT : low;
+            }
+        }
+        return isVisible(t.firstVersions[slot], version) ? FIRST : ABSENT;
+    }
+
+    private static boolean isVisible(int written, int version) {
+        return written != 0 && Math.abs(written) <= version;
+    }
+
+    /**
+     * Returns the column holding the value of the specified entry of the slot.
+     */
+    static Object valuesOf(Table t, int slot, int entry) {
+        return entry == FIRST ? t.firstValues : t.histories[slot].values;
+    }
+
+    /**
+     * Returns the position of the value of the specified entry of the slot in its column.
+     */
+    static int positionOf(int slot, int entry) {
+        return entry == FIRST ? slot : entry;
+    }
+
+    /**
+     * Returns the slot of the key, or -1 if the key was never written.
+     */
+    int find(long key) {
+        int slot = slotOf(table, key);
+        return slot < 0 ? -1 : slot;
+    }
+
+    /**
+     * Returns the entry of the slot visible in the latest version, {@link #ABSENT} if the slot is -1.
+     * Must be called by the writer thread before it starts a new version.
+     */
+    int latestEntry(int slot) {
+        return slot < 0 ? ABSENT : entryAt(table, slot, currentVersion);
+    }
+
+    /**
+     * Starts the version written by the next calls of {@link #insert} and {@link #append}.
+     */
+    void newVersion() {
+        currentVersion++;
+    }
+
+    /**
+     * Claims a slot for a key never written and returns it, the caller stores the value at that position of the first values.
+     */
+    int insert(long key) {
+        Table t = table;
+        int slot = slotOf(t, key);
+        if ((occupied + 1) * 2 > t.keys.length) {
+            if (t.keys.length == MAXIMUM_CAPACITY) {
+                if (occupied + 1 >= t.keys.length)
+                    throw new IllegalStateException(PersistentExceptionsMessege.MAP_FULL);
+            } else {
+                t = rehash(t.keys.length * 2);
+                slot = slotOf(t, key);
+            }
+        }
+        slot = -1 - slot;
+        t.keys[slot] = key;
+        t.firstVersions[slot] = currentVersion;
+        t.used[slot] = true;
+        occupied++;
+        return slot;
+    }
+
+    /**
+     * Appends an entry of the current version to the history of the slot and returns its index,
+     * the caller stores the value at that position of the history, unless the entry is a removal.
+     */
+    int append(int slot, boolean removal) {
+        Table t = table;
+        int length = t.historyLengths[slot];
+        History history = t.histories[slot];
+        if (null == history) {
+            history = new History(new int[2], newValues(2));
+            t.histories[slot] = history;
+        } else if (length == history.versions.length) {
+            Object values = newValues(length * 2);
+            System.arraycopy(history.values, 0, values, 0, length);
+            history = new History(Arrays.copyOf(history.versions, length * 2), values);
+            t.histories[slot] = history;
+        }
+        history.versions[length] = removal ? -currentVersion : currentVersion;
+        t.historyLengths[slot] = length + 1;
+        return length;
+    }
+
+    /**
+     * Records the size of the current version, changed by the specified delta, and publishes it to the readers.
+     */
+    void publish(int sizeDelta) {
+        int[] lengths = versionsLengths;
+        int length = lengths[currentVersion - 1] + sizeDelta;
+        if (currentVersion == lengths.length) {
+            lengths = Arrays.copyOf(lengths, currentVersion * 2);
+            lengths[currentVersion] = length;
+            versionsLengths = lengths;
+        } else {
+            lengths[currentVersion] = length;
+        }
+        publishedVersion = currentVersion;
+    }
+
+    private Table rehash(int capacity) {
+        Table old = table;
+        Table t = new Table(capacity, newValues(capacity));
+        for (int i = 0; i < old.keys.length; i++) {
+            if (!old.used[i])
+                continue;
+            int slot = -1 - slotOf(t, old.keys[i]);
+            t.used[slot] = true;
+            t.keys[slot] = old.keys[i];
+            t.firstVersions[slot] = old.firstVersions[i];
+            System.arraycopy(old.firstValues, i, t.firstValues, slot, 1);
+            t.histories[slot] = old.histories[i];
+            t.historyLengths[slot] = old.historyLengths[i];
+        }
+        table = t;
+        return t;
+    }
+}
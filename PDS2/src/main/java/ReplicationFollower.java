@@ -0,0 +1,167 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Follower side of the replication of a persistent map or list, see {@link ReplicationLeader}.
+ * An applier thread reads the batches of the leader from a channel and replays them in order into the replica,
+ * which then has exactly the versions of the leader: once {@link #replicatedVersion()} reaches a version, every read of that version
+ * on the replica returns the same answer as on the leader. The applier is the only writer of the replica, any thread may read it.
+ *
+ * @param <S> type of the replica
+ */
+public class ReplicationFollower<S> implements AutoCloseable {
+    private final S replica;
+    private final ReadableByteChannel channel;
+    private final int kind;
+    private final HistoryFormat.RecordReader records;
+    private final Inflater inflater = new Inflater();
+    private final Thread thread;
+    private final Object lock = new Object();
+    private volatile int replicatedVersion = -1;
+    private IOException failure;
+    private boolean closed;
+
+    private ReplicationFollower(S replica, ReadableByteChannel channel, int kind, HistoryFormat.RecordReader records) {
+        this.replica = replica;
+        this.channel = channel;
+        this.kind = kind;
+        this.records = records;
+        thread = new Thread(this::run, "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts replicating a map from the specified blocking channel, which is closed with the follower.
+     *
+     * @param channel    channel from the leader
+     * @param keyCodec   codec of the keys
+     * @param valueCodec codec of the values
+     * @return the follower of a new empty replica
+     */
+    public static <K, V> ReplicationFollower<PersistentMap<K, V>> ofMap(ReadableByteChannel channel, Codec<K> keyCodec, Codec<V> valueCodec) {
+        PersistentMap<K, V> map = new PersistentMap<>();
+        return new ReplicationFollower<>(map, channel, ReplicationLeader.MAP, new HistoryFormat.MapRecordReader<>(map, keyCodec, valueCodec));
+    }
+
+    /**
+     * Starts replicating a list from the specified blocking channel, which is closed with the follower.
+     *
+     * @param channel channel from the leader
+     * @param codec   codec of the elements
+     * @return the follower of a new empty replica
+     */
+    public static <T> ReplicationFollower<PersistentLinkedList<T>> ofList(ReadableByteChannel channel, Codec<T> codec) {
+        PersistentLinkedList<T> list = new PersistentLinkedList<>();
+        return new ReplicationFollower<>(list, channel, ReplicationLeader.LIST, new HistoryFormat.ListRecordReader<>(list, codec));
+    }
+
+    /**
+     * Returns the replica, whose versions up to the replicated one are those of the leader.
+     *
+     * @return the replica
+     */
+    public S getReplica() {
+        return replica;
+    }
+
+    /**
+     * Returns the newest version of the leader replayed into the replica, -1 before the first batch.
+     * The lag of the follower is the current version of the leader minus this one.
+     *
+     * @return the replicated version
+     */
+    public int replicatedVersion() {
+        return replicatedVersion;
+    }
+
+    /**
+     * Waits until the specified version is replicated, or the follower is closed.
+     *
+     * @param version version to wait for
+     * @throws IOException          if the stream failed or ended before the version
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitVersion(int version) throws IOException, InterruptedException {
+        synchronized (lock) {
+            while (replicatedVersion < version && null == failure && !closed) {
+                lock.wait();
+            }
+            if (replicatedVersion < version && null != failure)
+                throw failure;
+        }
+    }
+
+    /**
+     * Stops replicating and closes the channel, the replica keeps the versions replicated so far.
+     *
+     * @throws IOException if the channel cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        // closing the channel releases the applier blocked in a read
+        channel.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        inflater.end();
+    }
+
+    private void run() {
+        BinaryReader in = new BinaryReader(channel);
+        try {
+            if (in.readInt() != ReplicationLeader.MAGIC || in.readByte() != ReplicationLeader.FORMAT_VERSION || in.readByte() != kind)
+                throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+            while (true) {
+                int compression = in.readByte();
+                int size = in.readVarInt();
+                byte[] bytes = in.readBytes();
+                if (compression == ReplicationLeader.DEFLATED)
+                    bytes = inflate(bytes, size);
+                else if (compression != ReplicationLeader.RAW || bytes.length != size)
+                    throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+                int last = records.readBatch(new BinaryReader(ByteBuffer.wrap(bytes)));
+                synchronized (lock) {
+                    replicatedVersion = last;
+                    lock.notifyAll();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (lock) {
+                if (!closed)
+                    failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private byte[] inflate(byte[] deflated, int size) throws IOException {
+        inflater.reset();
+        inflater.setInput(deflated);
+        byte[] bytes = new byte[size];
+        try {
+            int length = 0;
+            while (length < size && !inflater.finished()) {
+                int inflated = inflater.inflate(bytes, length, size - length);
+                if (inflated == 0 && inflater.needsInput())
+                    throw new EOFException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+                length += inflated;
+            }
+            if (length != size)
+                throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+        } catch (DataFormatException e) {
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY, e);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,286 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+
+/**
+ * Leader side of the log-shipping replication of a persistent map or list to {@link ReplicationFollower}s.
+ * Every follower gets its own shipper thread, which streams the history from the first version on and then every version
+ * as it is published, in the records of {@link HistoryFormat}: what each version wrote rather than whole states, so a follower
+ * recreates exactly the same versions. Versions are shipped in batches of all of the versions published since the previous batch,
+ * so a follower behind the writer catches up with few large writes, and batches above a threshold are deflated.
+ * <p>
+ * The writer of the structure does nothing for the followers: shippers read the published versions like any reader,
+ * so a slow follower only lags behind and never slows the writer down.
+ * <p>
+ * Stream layout: magic, format version, structure kind, then batches of a compression flag, the size of the records,
+ * and the records as bytes, deflated if flagged.
+ */
+public class ReplicationLeader implements AutoCloseable {
+    public static final long DEFAULT_BATCH_DELAY_MICROS = 1000;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 1 << 20;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+
+    static final int MAGIC = 0x50445352;
+    static final int FORMAT_VERSION = 1;
+    static final int MAP = 'M';
+    static final int LIST = 'L';
+    static final int RAW = 0;
+    static final int DEFLATED = 1;
+
+    private final int kind;
+    private final IntSupplier currentVersion;
+    private final Supplier<HistoryFormat.RecordWriter> recordWriters;
+    private final long batchDelayNanos;
+    private final int maxBatchBytes;
+    private final int compressionThreshold;
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Buffer of a batch whose bytes are deflated or written without an intermediate array.
+     */
+    private static final class BatchBuffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /**
+     * Stream of the history to one follower, shipped by its own daemon thread.
+     */
+    public final class Follower implements AutoCloseable {
+        private final WritableByteChannel channel;
+        private final BinaryWriter out;
+        private final HistoryFormat.RecordWriter records = recordWriters.get();
+        private final BatchBuffer batch = new BatchBuffer();
+        private final BinaryWriter batchWriter = new BinaryWriter(Channels.newChannel(batch));
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final Thread thread;
+        private volatile int shippedVersion = -1;
+        private volatile long shippedBytes;
+        private volatile IOException failure;
+        private volatile boolean closed;
+
+        private Follower(WritableByteChannel channel) {
+            this.channel = channel;
+            out = new BinaryWriter(channel);
+            thread = new Thread(this::run, "replication-leader");
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Returns the last version written to the channel of the follower, -1 before the first batch.
+         *
+         * @return the last shipped version
+         */
+        public int getShippedVersion() {
+            return shippedVersion;
+        }
+
+        /**
+         * Returns the number of bytes written to the channel of the follower.
+         *
+         * @return the number of shipped bytes
+         */
+        public long getShippedBytes() {
+            return shippedBytes;
+        }
+
+        /**
+         * Returns the error which stopped the shipping, or null if it was not stopped by an error.
+         *
+         * @return the error of the channel, or null
+         */
+        public IOException getFailure() {
+            return failure;
+        }
+
+        /**
+         * Stops the shipping and closes the channel of the follower.
+         *
+         * @throws IOException if the channel cannot be closed
+         */
+        @Override
+        public void close() throws IOException {
+            followers.remove(this);
+            closed = true;
+            LockSupport.unpark(thread);
+            // closing the channel releases a shipper blocked in a write to a stalled follower
+            channel.close();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            deflater.end();
+        }
+
+        private void run() {
+            try {
+                out.writeInt(MAGIC);
+                out.writeByte(FORMAT_VERSION);
+                out.writeByte(kind);
+                out.flush();
+                while (!closed) {
+                    int current = currentVersion.getAsInt();
+                    if (current > records.getWrittenVersion())
+                        ship(current);
+                    else
+                        LockSupport.parkNanos(batchDelayNanos);
+                }
+            } catch (IOException e) {
+                if (!closed)
+                    failure = e;
+            }
+        }
+
+        private void ship(int current) throws IOException {
+            batch.reset();
+            int last = records.writeBatch(batchWriter, current, maxBatchBytes);
+            batchWriter.flush();
+            int size = batch.size();
+            byte[] deflated = size >= compressionThreshold ? deflate(size) : null;
+            if (null != deflated) {
+                out.writeByte(DEFLATED);
+                out.writeVarInt(size);
+                out.writeBytes(deflated);
+            } else {
+                out.writeByte(RAW);
+                out.writeVarInt(size);
+                out.writeBytes(Arrays.copyOf(batch.bytes(), size));
+            }
+            out.flush();
+            shippedBytes = out.position();
+            shippedVersion = last;
+        }
+
+        /**
+         * Returns the deflated batch of the specified size, or null if deflating does not make it smaller.
+         */
+        private byte[] deflate(int size) {
+            deflater.reset();
+            deflater.setInput(batch.bytes(), 0, size);
+            deflater.finish();
+            byte[] buffer = new byte[size];
+            int length = 0;
+            while (!deflater.finished() && length < size) {
+                length += deflater.deflate(buffer, length, size - length);
+            }
+            return deflater.finished() ? Arrays.copyOf(buffer, length) : null;
+        }
+    }
+
+    private ReplicationLeader(int kind, IntSupplier currentVersion, Supplier<HistoryFormat.RecordWriter> recordWriters,
+                              long batchDelayNanos, int maxBatchBytes, int compressionThreshold) {
+        if (maxBatchBytes <= 0)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.ILLEGAL_CAPACITY);
+        this.kind = kind;
+        this.currentVersion = currentVersion;
+        this.recordWriters = recordWriters;
+        this.batchDelayNanos = batchDelayNanos;
+        this.maxBatchBytes = maxBatchBytes;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Constructs a leader of the specified map with the default batching and compression settings.
+     *
+     * @param map        map to be replicated
+     * @param keyCodec   codec of the keys
+     * @param valueCodec codec of the values
+     * @return a leader without followers
+     */
+    public static <K, V> ReplicationLeader forMap(PersistentMap<K, V> map, Codec<? super K> keyCodec, Codec<? super V> valueCodec) {
+        return forMap(map, keyCodec, valueCodec, DEFAULT_BATCH_DELAY_MICROS, TimeUnit.MICROSECONDS, DEFAULT_MAX_BATCH_BYTES,
+                DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * Constructs a leader of the specified map.
+     *
+     * @param map                  map to be replicated
+     * @param keyCodec             codec of the keys
+     * @param valueCodec           codec of the values
+     * @param batchDelay           time a shipper waits for new versions when its follower is up to date
+     * @param unit                 unit of the delay
+     * @param maxBatchBytes        size of the records at which a batch is ended
+     * @param compressionThreshold size of the records from which a batch is deflated
+     * @return a leader without followers
+     */
+    public static <K, V> ReplicationLeader forMap(PersistentMap<K, V> map, Codec<? super K> keyCodec, Codec<? super V> valueCodec,
+                                                  long batchDelay, TimeUnit unit, int maxBatchBytes, int compressionThreshold) {
+        return new ReplicationLeader(MAP, map::getCurrentVersion, () -> new HistoryFormat.MapRecordWriter<>(map, keyCodec, valueCodec),
+                unit.toNanos(batchDelay), maxBatchBytes, compressionThreshold);
+    }
+
+    /**
+     * Constructs a leader of the specified list with the default batching and compression settings.
+     *
+     * @param list  list to be replicated
+     * @param codec codec of the elements
+     * @return a leader without followers
+     */
+    public static <T> ReplicationLeader forList(PersistentLinkedList<T> list, Codec<? super T> codec) {
+        return forList(list, codec, DEFAULT_BATCH_DELAY_MICROS, TimeUnit.MICROSECONDS, DEFAULT_MAX_BATCH_BYTES, DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * Constructs a leader of the specified list.
+     *
+     * @param list                 list to be replicated
+     * @param codec                codec of the elements
+     * @param batchDelay           time a shipper waits for new versions when its follower is up to date
+     * @param unit                 unit of the delay
+     * @param maxBatchBytes        size of the records at which a batch is ended
+     * @param compressionThreshold size of the records from which a batch is deflated
+     * @return a leader without followers
+     */
+    public static <T> ReplicationLeader forList(PersistentLinkedList<T> list, Codec<? super T> codec,
+                                                long batchDelay, TimeUnit unit, int maxBatchBytes, int compressionThreshold) {
+        return new ReplicationLeader(LIST, list::getCurrentVersion, () -> new HistoryFormat.ListRecordWriter<>(list, codec),
+                unit.toNanos(batchDelay), maxBatchBytes, compressionThreshold);
+    }
+
+    /**
+     * Starts shipping the history to a follower reading the specified blocking channel, which is closed with the follower.
+     *
+     * @param channel channel to the follower, such as a socket
+     * @return the new follower
+     */
+    public Follower addFollower(WritableByteChannel channel) {
+        Follower follower = new Follower(channel);
+        followers.add(follower);
+        follower.thread.start();
+        return follower;
+    }
+
+    /**
+     * Returns the followers which are shipped to.
+     *
+     * @return the followers of this leader
+     */
+    public List<Follower> getFollowers() {
+        return Collections.unmodifiableList(followers);
+    }
+
+    /**
+     * Stops shipping to every follower and closes their channels.
+     *
+     * @throws IOException if a channel cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        for (Follower follower : followers) {
+            follower.close();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent map partitioned across several persistent maps, each with its own writer lock, so that writes to different shards run in parallel.
+ * Keys are assigned to shards either by key ranges delimited by split keys or by hash.
+ * A {@link Snapshot} holds one version per shard and describes a state of the whole map which existed at some instant:
+ * the shard versions are read twice and only kept if no shard moved in between, so a snapshot never sees a write without the writes
+ * which completed before it, and writes spanning several shards are fenced by a global epoch which snapshots wait out.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public class ShardedPersistentMap<K, V> {
+    private static final int OPTIMISTIC_SNAPSHOTS = 64;
+
+    /**
+     * Consistent cross-shard version of a sharded map: the version of each of its shards.
+     */
+    public static final class Snapshot {
+        private final int[] versions;
+
+        private Snapshot(int[] versions) {
+            this.versions = versions;
+        }
+
+        /**
+         * Returns the version of the specified shard in this snapshot.
+         *
+         * @param shard index of the shard
+         * @return the version of the specified shard in this snapshot
+         */
+        public int getVersion(int shard) {
+            return versions[shard];
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(versions);
+        }
+    }
+
+    private final PersistentMap<K, V>[] shards;
+    private final ReentrantLock[] locks;
+    private final Object[] splitKeys;
+    /**
+     * Moves at the start and at the end of every write spanning several shards.
+     */
+    private final AtomicLong epoch = new AtomicLong();
+    private final AtomicInteger multiShardWrites = new AtomicInteger();
+
+    /**
+     * Constructs an empty map with the specified number of shards, keys are assigned to shards by hash.
+     *
+     * @param shardCount number of shards
+     */
+    public ShardedPersistentMap(int shardCount) {
+        this(shardCount, null);
+    }
+
+    /**
+     * Constructs an empty map partitioned by key ranges: shard i holds the keys from splitKeys[i - 1], inclusive, to splitKeys[i], exclusive.
+     *
+     * @param splitKeys sorted keys delimiting the shards
+     */
+    public ShardedPersistentMap(List<K> splitKeys) {
+        this(splitKeys.size() + 1, splitKeys.toArray());
+    }
+
+    private ShardedPersistentMap(int shardCount, Object[] splitKeys) {
+        if (shardCount <= 0)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.ILLEGAL_SHARD_COUNT);
+        this.splitKeys = splitKeys;
+        shards = newShards(shardCount);
+        locks = new ReentrantLock[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new PersistentMap<>();
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Returns an array of the specified number of shards, the only place creating an array of the generic maps.
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> PersistentMap<K, V>[] newShards(int count) {
+        return (PersistentMap<K, V>[]) new PersistentMap<?, ?>[count];
+    }
+
+    /**
+     * Returns the number of shards of this map.
+     *
+     * @return the number of shards of this map
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns a consistent snapshot of the latest versions of all shards.
+     * Versions only grow, so when a second read of every shard finds the versions of the first one, no write was published
+     * between the two and the first read describes a state which existed. The snapshot retries while writes are published meanwhile,
+     * and if writers keep it from succeeding it locks every shard for the time of one read.
+     *
+     * @return a consistent snapshot of the latest versions of all shards
+     */
+    public Snapshot snapshot() {
+        int[] versions = new int[shards.length];
+        for (int attempt = 0; attempt < OPTIMISTIC_SNAPSHOTS; attempt++) {
+            long before = epoch.get();
+            if (multiShardWrites.get() == 0) {
+                for (int i = 0; i < shards.length; i++) {
+                    versions[i] = shards[i].getCurrentVersion();
+                }
+                if (epoch.get() == before && unchanged(versions))
+                    return new Snapshot(versions);
+            }
+            Thread.yield();
+        }
+        // locks are taken in shard order, as by putAll
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                versions[i] = shards[i].getCurrentVersion();
+            }
+        } finally {
+            for (int i = locks.length - 1; i >= 0; i--) {
+                locks[i].unlock();
+            }
+        }
+        return new Snapshot(versions);
+    }
+
+    private boolean unchanged(int[] versions) {
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i].getCurrentVersion() != versions[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of elements in the specified snapshot of this map.
+     *
+     * @param snapshot snapshot of this map
+     * @return number of elements in the specified snapshot of this map
+     */
+    public int size(Snapshot snapshot) {
+        int size = 0;
+        for (int i = 0; i < shards.length; i++) {
+            size += shards[i].size(snapshot.versions[i]);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of elements in the latest snapshot of this map.
+     *
+     * @return number of elements in the latest snapshot of this map
+     */
+    public int size() {
+        return size(snapshot());
+    }
+
+    /**
+     * Returns true if the specified snapshot of this map contains a mapping for the specified key.
+     *
+     * @param key      key whose presence in this map is to be tested
+     * @param snapshot snapshot of this map
+     * @return true if the specified snapshot of this map contains a mapping for the specified key
+     */
+    public boolean containsKey(Object key, Snapshot snapshot) {
+        int shard = shardOf(key);
+        return shards[shard].containsKey(key, snapshot.versions[shard]);
+    }
+
+    /**
+     * Returns true if the latest version of this map contains a mapping for the specified key.
+     *
+     * @param key key whose presence in this map is to be tested
+     * @return true if the latest version of this map contains a mapping for the specified key
+     */
+    public boolean containsKey(Object key) {
+        return shards[shardOf(key)].containsKey(key);
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped in the specified snapshot of this map, or null if there is no mapping for the key.
+     *
+     * @param key      the key whose associated value is to be returned
+     * @param snapshot snapshot of this map
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     */
+    public V get(Object key, Snapshot snapshot) {
+        int shard = shardOf(key);
+        return shards[shard].valueOf(shards[shard].get(key, snapshot.versions[shard]));
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped in the latest version of this map, or null if there is no mapping for the key.
+     *
+     * @param key the key whose associated value is to be returned
+     * @return the value to which the specified key is mapped, or null if there is no mapping for the key
+     */
+    public V get(Object key) {
+        PersistentMap<K, V> owner = shards[shardOf(key)];
+        return owner.valueOf(owner.get(key));
+    }
+
+    /**
+     * Associates the specified value with the specified key, locking only the shard of the key.
+     *
+     * @param key   key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @return the previous value associated with key, or null if there was no mapping for key
+     */
+    public V put(K key, V value) {
+        int shard = shardOf(key);
+        locks[shard].lock();
+        try {
+            return shards[shard].valueOf(shards[shard].put(key, value));
+        } finally {
+            locks[shard].unlock();
+        }
+    }
+
+    /**
+     * Removes the mapping for the specified key, locking only the shard of the key.
+     *
+     * @param key key whose mapping is to be removed from the map
+     * @return the previous value associated with key, or null if there was no mapping for key
+     */
+    public V remove(K key) {
+        int shard = shardOf(key);
+        locks[shard].lock();
+        try {
+            return shards[shard].valueOf(shards[shard].remove(key));
+        } finally {
+            locks[shard].unlock();
+        }
+    }
+
+    /**
+     * Copies all of the mappings from the specified map to this map.
+     * Every shard involved gets one new version, and no snapshot sees some of those versions without the others.
+     *
+     * @param m mappings to be stored in this map
+     */
+    public void putAll(Map<? extends K, ? extends V> m) {
+        List<Map<K, V>> perShard = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            perShard.add(new HashMap<>());
+        }
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            perShard.get(shardOf(entry.getKey())).put(entry.getKey(), entry.getValue());
+        }
+        // locks are always taken in shard order, so concurrent putAll calls cannot deadlock
+        for (int i = 0; i < shards.length; i++) {
+            if (!perShard.get(i).isEmpty())
+                locks[i].lock();
+        }
+        multiShardWrites.incrementAndGet();
+        epoch.incrementAndGet();
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                if (!perShard.get(i).isEmpty())
+                    shards[i].putAll(perShard.get(i));
+            }
+        } finally {
+            epoch.incrementAndGet();
+            multiShardWrites.decrementAndGet();
+            for (int i = shards.length - 1; i >= 0; i--) {
+                if (!perShard.get(i).isEmpty())
+                    locks[i].unlock();
+            }
+        }
+    }
+
+    private int shardOf(Object key) {
+        if (null == key)
+            throw new NullPointerException();
+        if (null == splitKeys) {
+            int h = key.hashCode() * 0x9E3779B9;
+            return ((h ^ (h >>> 16)) & 0x7fffffff) % shards.length;
+        }
+        int index = Arrays.binarySearch(splitKeys, key);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+}
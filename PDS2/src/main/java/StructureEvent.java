@@ -0,0 +1,27 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * Java Flight Recorder event emitted by a persistent structure, identified by its class and identity hash code so that the events
+ * of one structure can be told apart from the others in a recording.
+ * <p>
+ * Events are cheap enough to leave enabled in production: an event which is not recorded, or shorter than its threshold,
+ * is dropped before any of its fields is filled, and the JIT compiler removes its allocation. The thresholds are set like those of any
+ * other event, in a {@code .jfc} settings file or with {@code Recording.enable(...).withThreshold(...)}.
+ */
+@Category("Persistent Data Structures")
+public abstract class StructureEvent extends Event {
+    @Label("Structure Class")
+    Class<?> structureClass;
+
+    @Label("Structure Id")
+    @Description("Identity hash code of the structure")
+    int structureId;
+
+    void setStructure(Object structure) {
+        structureClass = structure.getClass();
+        structureId = System.identityHashCode(structure);
+    }
+}
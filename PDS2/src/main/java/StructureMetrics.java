@@ -0,0 +1,111 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Metrics of one persistent structure, enabled with its {@code enableMetrics()}: the count and latency histogram of every operation type,
+ * and structural gauges. Operations are recorded on the hot path without locking or allocating; a structure whose metrics are disabled
+ * only checks a field per call.
+ * <p>
+ * Gauges describe the shape of the latest version and are computed when they are read, by walking the structure:
+ * {@code versions}, the number of live versions, the distribution of the lengths of the fat-node histories ({@code historyLength.*}),
+ * and for maps the share of keys removed in the latest version ({@code tombstoneRatio}), for lists the mean number of nodes
+ * walked by an indexed read ({@code walkLength.mean}).
+ */
+public class StructureMetrics {
+    public static final int GET = 0;
+    public static final int PUT = 1;
+    public static final int INSERT = 2;
+    public static final int APPEND = 3;
+    public static final int REMOVE = 4;
+    public static final String[] OPERATION_NAMES = {"get", "put", "insert", "append", "remove"};
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATION_NAMES.length];
+    private final AtomicLong walks = new AtomicLong();
+    private final AtomicLong walkedNodes = new AtomicLong();
+    private final Consumer<Map<String, Double>> gauges;
+
+    /**
+     * Constructs the metrics of a structure, whose gauges are added to a map by the specified function.
+     */
+    StructureMetrics(Consumer<Map<String, Double>> gauges) {
+        this.gauges = gauges;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records an operation which started at the specified time, read from {@link System#nanoTime()}.
+     */
+    void record(int operation, long startNanos) {
+        latencies[operation].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a walk along the specified number of nodes.
+     */
+    void recordWalk(int nodes) {
+        walks.incrementAndGet();
+        walkedNodes.addAndGet(nodes);
+    }
+
+    /**
+     * Returns the number of operations of the specified type, an index of {@link #OPERATION_NAMES}.
+     *
+     * @param operation operation type
+     * @return the number of recorded operations
+     */
+    public long getCount(int operation) {
+        return latencies[operation].getCount();
+    }
+
+    /**
+     * Returns the latencies of the operations of the specified type, an index of {@link #OPERATION_NAMES}.
+     *
+     * @param operation operation type
+     * @return the histogram of the latencies in nanoseconds
+     */
+    public LatencyHistogram getLatency(int operation) {
+        return latencies[operation];
+    }
+
+    /**
+     * Returns the mean number of nodes walked per indexed read, 0 if there was none.
+     *
+     * @return the mean walk length
+     */
+    public double getMeanWalkLength() {
+        long n = walks.get();
+        return n == 0 ? 0 : (double) walkedNodes.get() / n;
+    }
+
+    /**
+     * Computes the gauges of the latest version of the structure.
+     *
+     * @return the gauges by name, in a stable order
+     */
+    public Map<String, Double> getGauges() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        gauges.accept(result);
+        return result;
+    }
+
+    /**
+     * Adds the mean, median, 99th percentile and maximum of the first values of the specified array as gauges with the specified prefix.
+     */
+    static void putDistribution(Map<String, Double> gauges, String name, int[] values, int count) {
+        int[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        long total = 0;
+        for (int value : sorted) {
+            total += value;
+        }
+        gauges.put(name + ".mean", count == 0 ? 0 : (double) total / count);
+        gauges.put(name + ".p50", count == 0 ? 0 : (double) sorted[(count - 1) / 2]);
+        gauges.put(name + ".p99", count == 0 ? 0 : (double) sorted[(int) Math.ceil(0.99 * count) - 1]);
+        gauges.put(name + ".max", count == 0 ? 0 : (double) sorted[count - 1]);
+    }
+}
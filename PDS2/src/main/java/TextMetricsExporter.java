@@ -0,0 +1,51 @@
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Exporter writing metrics as text, one {@code name value} line each: the count, mean, median, 99th and 99.9th percentile and maximum
+ * latency in nanoseconds of every operation type recorded at least once, then the gauges, all prefixed by the name of the structure,
+ * such as {@code orders.get.p99 1520}.
+ */
+public class TextMetricsExporter implements MetricsExporter {
+    private final Appendable out;
+
+    /**
+     * Constructs an exporter to the specified output, flushed after every structure if it is flushable.
+     *
+     * @param out output of the metrics
+     */
+    public TextMetricsExporter(Appendable out) {
+        this.out = out;
+    }
+
+    @Override
+    public void export(String name, StructureMetrics metrics) throws IOException {
+        for (int operation = 0; operation < StructureMetrics.OPERATION_NAMES.length; operation++) {
+            LatencyHistogram latency = metrics.getLatency(operation);
+            if (latency.getCount() == 0)
+                continue;
+            String prefix = name + "." + StructureMetrics.OPERATION_NAMES[operation];
+            line(prefix + ".count", latency.getCount());
+            line(prefix + ".mean", latency.getMean());
+            line(prefix + ".p50", latency.getValueAtPercentile(50));
+            line(prefix + ".p99", latency.getValueAtPercentile(99));
+            line(prefix + ".p999", latency.getValueAtPercentile(99.9));
+            line(prefix + ".max", latency.getMax());
+        }
+        for (Map.Entry<String, Double> gauge : metrics.getGauges().entrySet()) {
+            line(name + "." + gauge.getKey(), gauge.getValue());
+        }
+        if (out instanceof Flushable)
+            ((Flushable) out).flush();
+    }
+
+    private void line(String name, long value) throws IOException {
+        out.append(name).append(' ').append(Long.toString(value)).append('\n');
+    }
+
+    private void line(String name, double value) throws IOException {
+        out.append(name).append(' ').append(String.format(Locale.ROOT, "%.3f", value)).append('\n');
+    }
+}
@@ -0,0 +1,113 @@
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Commit time of every version of a structure since the index was enabled, kept as epoch nanoseconds in a primitive array indexed by version.
+ * Times never decrease even if the clock steps back, so the version current at a given instant is found by a binary search.
+ * Like {@link VersionHistory} it has one writer, and readers of published versions never lock.
+ */
+public class TimestampIndex {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final Clock clock;
+    private final int firstVersion;
+    private volatile long[] timestamps = new long[INITIAL_CAPACITY];
+    private volatile int count;
+
+    /**
+     * Constructs an index whose first version is the specified one, stamped now.
+     *
+     * @param clock        clock which stamps the versions
+     * @param firstVersion first version of the index
+     */
+    TimestampIndex(Clock clock, int firstVersion) {
+        this.clock = clock;
+        this.firstVersion = firstVersion;
+        timestamps[0] = toNanos(clock.instant());
+        count = 1;
+    }
+
+    /**
+     * Stamps the specified version and the versions skipped since the last stamped one with the current time.
+     * A version which is already stamped keeps its time.
+     *
+     * @param version published version
+     */
+    void record(int version) {
+        int size = count;
+        int index = version - firstVersion;
+        if (index < size)
+            return;
+        long[] timestamps = this.timestamps;
+        long now = Math.max(toNanos(clock.instant()), timestamps[size - 1]);
+        if (index >= timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, Math.max(index + 1, timestamps.length * 2));
+        }
+        Arrays.fill(timestamps, size, index + 1, now);
+        this.timestamps = timestamps;
+        count = index + 1;
+    }
+
+    /**
+     * Returns the first version stamped by this index.
+     *
+     * @return the first version stamped by this index
+     */
+    public int getFirstVersion() {
+        return firstVersion;
+    }
+
+    /**
+     * Returns the newest version committed at or before the specified instant.
+     *
+     * @param instant instant to look up
+     * @return the newest version committed at or before the specified instant
+     * @throws NoSuchElementException if the instant precedes the first stamped version
+     */
+    public int versionAt(Instant instant) {
+        long nanos = toNanos(instant);
+        int size = count;
+        long[] timestamps = this.timestamps;
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] <= nanos)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        if (high < 0)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        return firstVersion + high;
+    }
+
+    /**
+     * Returns the commit time of the specified version.
+     *
+     * @param version stamped version
+     * @return the commit time of the specified version
+     */
+    public Instant getTimestamp(int version) {
+        int index = version - firstVersion;
+        if (index < 0 || index >= count)
+            throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        long nanos = timestamps[index];
+        return Instant.ofEpochSecond(Math.floorDiv(nanos, NANOS_PER_SECOND), Math.floorMod(nanos, NANOS_PER_SECOND));
+    }
+
+    /**
+     * Epoch nanoseconds of the instant, saturated beyond the years 1677 and 2262 which a long cannot reach.
+     */
+    private static long toNanos(Instant instant) {
+        long seconds = instant.getEpochSecond();
+        if (seconds >= Long.MAX_VALUE / NANOS_PER_SECOND)
+            return Long.MAX_VALUE;
+        if (seconds <= Long.MIN_VALUE / NANOS_PER_SECOND)
+            return Long.MIN_VALUE;
+        return seconds * NANOS_PER_SECOND + instant.getNano();
+    }
+}
@@ -0,0 +1,40 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Creation of a version by a single write: {@code put}, {@code remove}, {@code putIfAbsent}, {@code replace}, {@code compute},
+ * {@code computeIfAbsent}, {@code computeIfPresent} and {@code merge} of maps, {@code add}, {@code add(index, element)}, {@code set},
+ * {@code remove(index)} and {@code remove(element)} of lists and {@code add}, {@code replace} and {@code removeLast} of arrays.
+ * Bulk writes are reported by {@link BulkOperationEvent}. Only the writes lasting at least 1 ms are recorded by default.
+ */
+@Name("pds.VersionCreated")
+@Label("Version Created")
+@Threshold("1 ms")
+public class VersionCreatedEvent extends StructureEvent {
+    @Label("Operation")
+    @Description("Name of the method")
+    String operation;
+
+    @Label("Version")
+    int version;
+
+    @Label("Size Delta")
+    @Description("Number of elements added to the structure, negative if removed")
+    int sizeDelta;
+
+    /**
+     * Ends the event and commits it if it is recorded.
+     */
+    void complete(Object structure, String operation, int version, int sizeDelta) {
+        end();
+        if (shouldCommit()) {
+            setStructure(structure);
+            this.operation = operation;
+            this.version = version;
+            this.sizeDelta = sizeDelta;
+            commit();
+        }
+    }
+}
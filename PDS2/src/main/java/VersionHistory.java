@@ -0,0 +1,164 @@
+import java.util.Arrays;
+
+/**
+ * Append-only history of values ordered by version, the storage of every fat node.
+ * Versions only grow, so a lookup is a binary search and a write is an append (or an overwrite of the newest entry when the same version is written again).
+ * One writer thread may append while any number of threads read: the arrays are published before the count,
+ * so a reader always sees complete entries and never locks.
+ *
+ * @param <T> type of values
+ */
+public class VersionHistory<T> {
+    private static final int[] NO_VERSIONS = new int[0];
+    private static final Object[] NO_VALUES = new Object[0];
+
+    private volatile int[] versions = NO_VERSIONS;
+    private volatile Object[] values = NO_VALUES;
+    private volatile int count;
+
+    /**
+     * Constructs an empty history.
+     */
+    public VersionHistory() {
+    }
+
+    /**
+     * Constructs a history holding the specified value since the specified version.
+     *
+     * @param version version of the value
+     * @param value   value
+     */
+    public VersionHistory(int version, T value) {
+        versions = new int[]{version};
+        values = new Object[]{value};
+        count = 1;
+    }
+
+    /**
+     * Returns the number of entries in this history.
+     *
+     * @return number of entries in this history
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns true if this history has no entries.
+     *
+     * @return true if this history has no entries
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Returns the index of the newest entry written at or before the specified version, or -1 if there is none.
+     *
+     * @param version version to look up
+     * @return index of the newest entry written at or before the specified version, or -1 if there is none
+     */
+    public int floorIndex(int version) {
+        int size = count;
+        int[] versions = this.versions;
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (versions[mid] <= version)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return high;
+    }
+
+    /**
+     * Returns true if there is an entry written at or before the specified version.
+     *
+     * @param version version to look up
+     * @return true if there is an entry written at or before the specified version
+     */
+    public boolean contains(int version) {
+        return floorIndex(version) >= 0;
+    }
+
+    /**
+     * Returns the value of the specified version, or null if nothing was written at or before it.
+     *
+     * @param version version to look up
+     * @return the value of the specified version, or null if nothing was written at or before it
+     */
+    public T get(int version) {
+        int index = floorIndex(version);
+        return index < 0 ? null : valueAt(index);
+    }
+
+    /**
+     * Returns the version of the entry at the specified index.
+     *
+     * @param index index of the entry
+     * @return the version of the entry at the specified index
+     */
+    public int versionAt(int index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException(PersistentExceptionsMessege.ARRAY_INDEX_OUT_OF_BOUNDS);
+        return versions[index];
+    }
+
+    /**
+     * Returns the value of the entry at the specified index.
+     *
+     * @param index index of the entry
+     * @return the value of the entry at the specified index
+     */
+    @SuppressWarnings("unchecked")
+    public T valueAt(int index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException(PersistentExceptionsMessege.ARRAY_INDEX_OUT_OF_BOUNDS);
+        return (T) values[index];
+    }
+
+    /**
+     * Returns the version of the newest entry, or -1 if this history is empty.
+     *
+     * @return the version of the newest entry, or -1 if this history is empty
+     */
+    public int lastVersion() {
+        int size = count;
+        return size == 0 ? -1 : versions[size - 1];
+    }
+
+    /**
+     * Records the value of the specified version.
+     * Writing the newest version again replaces its value, writing an older one is not allowed.
+     *
+     * @param version version of the value
+     * @param value   value
+     */
+    public void put(int version, T value) {
+        int size = count;
+        if (size > 0) {
+            int last = versions[size - 1];
+            if (last == version) {
+                values[size - 1] = value;
+                return;
+            }
+            if (last > version)
+                throw new IllegalArgumentException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        }
+        if (size == versions.length) {
+            int capacity = Math.max(2, size + (size >> 1));
+            int[] newVersions = Arrays.copyOf(versions, capacity);
+            Object[] newValues = Arrays.copyOf(values, capacity);
+            newVersions[size] = version;
+            newValues[size] = value;
+            versions = newVersions;
+            values = newValues;
+        } else {
+            versions[size] = version;
+            values[size] = value;
+        }
+        count = size + 1;
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Append-only record of what every version of a structure wrote: keys for maps, indices for arrays, nodes for lists.
+ * It turns "what changed between two versions" into a walk over the writes of the versions in between instead of a comparison of whole versions.
+ * Like {@link VersionHistory} it has one writer, and readers of published versions never lock.
+ *
+ * @param <E> type of the recorded items
+ */
+public class VersionLog<E> {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private volatile Object[] items = new Object[INITIAL_CAPACITY];
+    /**
+     * ends[v] is the number of items recorded by versions up to and including v.
+     */
+    private volatile int[] ends = new int[INITIAL_CAPACITY];
+    private volatile int lastVersion = 0;
+
+    /**
+     * Records that the specified version wrote the specified item.
+     *
+     * @param version version which wrote the item
+     * @param item    written item
+     */
+    public void record(int version, E item) {
+        int last = lastVersion;
+        if (version < last)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        int[] ends = this.ends;
+        int size = ends[last];
+        Object[] items = this.items;
+        if (size == items.length) {
+            items = Arrays.copyOf(items, size * 2);
+        }
+        items[size] = item;
+        if (version >= ends.length) {
+            ends = Arrays.copyOf(ends, Math.max(version + 1, ends.length * 2));
+        }
+        for (int v = last + 1; v < version; v++) {
+            ends[v] = size;
+        }
+        ends[version] = size + 1;
+        this.items = items;
+        this.ends = ends;
+        lastVersion = version;
+    }
+
+    /**
+     * Returns the number of items recorded by the versions after fromVersion up to and including toVersion.
+     *
+     * @param fromVersion exclusive lower bound of the versions
+     * @param toVersion   inclusive upper bound of the versions
+     * @return the number of items recorded by the versions in the range
+     */
+    public int count(int fromVersion, int toVersion) {
+        return end(toVersion) - end(fromVersion);
+    }
+
+    /**
+     * Returns the distinct items written by the versions after fromVersion up to and including toVersion, in the order of their first write.
+     * Items are produced lazily, so the cost follows the number of writes consumed.
+     *
+     * @param fromVersion exclusive lower bound of the versions
+     * @param toVersion   inclusive upper bound of the versions
+     * @return the distinct items written by the versions in the range
+     */
+    public Iterator<E> distinct(int fromVersion, int toVersion) {
+        return itemsBetween(end(Math.min(fromVersion, toVersion)), end(Math.max(fromVersion, toVersion)));
+    }
+
+    /**
+     * Returns the distinct items written by the specified version, in the order of their first write.
+     *
+     * @param version version which wrote the items
+     * @return the distinct items written by the specified version
+     */
+    public Iterator<E> written(int version) {
+        return itemsBetween(version == 0 ? 0 : end(version - 1), end(version));
+    }
+
+    private Iterator<E> itemsBetween(int start, int end) {
+        Object[] items = this.items;
+        return new Iterator<E>() {
+            private final Set<Object> seen = new HashSet<>();
+            private int index = start;
+
+            @Override
+            public boolean hasNext() {
+                while (index < end && seen.contains(items[index])) {
+                    index++;
+                }
+                return index < end;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if (!hasNext())
+                    throw new NoSuchElementException(PersistentExceptionsMessege.NO_SUCH_ELEMENT);
+                Object item = items[index++];
+                seen.add(item);
+                return (E) item;
+            }
+        };
+    }
+
+    private int end(int version) {
+        int last = lastVersion;
+        return ends[Math.max(0, Math.min(version, last))];
+    }
+}
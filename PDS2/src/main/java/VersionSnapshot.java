@@ -0,0 +1,214 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of a single version of a persistent map, list or array, written in the background while the writer goes on.
+ * A published version never changes, so it is streamed straight from the structure without copying it or pausing the writer:
+ * memory stays bounded by the write buffer whatever the size of the version. Writes are throttled to a number of bytes per second
+ * so a large snapshot does not take the disk from the writer, and the file appears under its name only once it is complete.
+ * <p>
+ * Layout: magic, format version, structure kind, the snapshotted version, the number of items, then the items.
+ * The magic and the number of items are fixed ints, the number being written once the items are, all other integers are varints.
+ */
+public final class VersionSnapshot {
+    /**
+     * Default throttle of snapshot writes, in bytes per second.
+     */
+    public static final long DEFAULT_BYTES_PER_SECOND = 64L << 20;
+
+    private static final int MAGIC = 0x50445353;
+    private static final int FORMAT_VERSION = 2;
+
+    static final int MAP = 'M';
+    static final int LIST = 'L';
+    static final int ARRAY = 'A';
+
+    private VersionSnapshot() {
+    }
+
+    /**
+     * Writes the items of a snapshot and returns their number.
+     */
+    interface Body {
+        int write(BinaryWriter out) throws IOException;
+    }
+
+    private static final class DefaultExecutor {
+        static final ExecutorService INSTANCE = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the executor shared by snapshots taken without one, a single daemon thread so snapshots never compete with each other.
+     */
+    static Executor defaultExecutor() {
+        return DefaultExecutor.INSTANCE;
+    }
+
+    /**
+     * Writes a snapshot on the specified executor, completing the future with its path once the file is on disk.
+     */
+    static CompletableFuture<Path> writeAsync(Path path, int kind, int version, Executor executor, long bytesPerSecond, Body body) {
+        if (bytesPerSecond <= 0)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.ILLEGAL_RATE);
+        CompletableFuture<Path> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+                    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                        BinaryWriter out = new BinaryWriter(new ThrottledChannel(channel, bytesPerSecond));
+                        out.writeInt(MAGIC);
+                        out.writeByte(FORMAT_VERSION);
+                        out.writeByte(kind);
+                        out.writeVarInt(version);
+                        long countPosition = out.position();
+                        out.writeInt(0);
+                        int count = body.write(out);
+                        out.flush();
+                        ByteBuffer header = ByteBuffer.allocate(4).putInt(0, count);
+                        while (header.hasRemaining())
+                            channel.write(header, countPosition + header.position());
+                        channel.force(true);
+                    }
+                    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    result.complete(path);
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Writes a map entry of a snapshot.
+     */
+    static <K, V> void writeEntry(BinaryWriter out, K key, V value, Codec<? super K> keyCodec, Codec<? super V> valueCodec) throws IOException {
+        keyCodec.write(out, key);
+        out.writeNullable(value, valueCodec);
+    }
+
+    /**
+     * Returns the version a snapshot file was taken from.
+     *
+     * @param path snapshot file
+     * @return the version of the structure the snapshot holds
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static int versionOf(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            BinaryReader in = new BinaryReader(channel);
+            readHeader(in);
+            in.readByte();
+            return in.readVarInt();
+        }
+    }
+
+    /**
+     * Reads the entries of a map snapshot.
+     */
+    static <K, V> Map<K, V> readMap(Path path, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            BinaryReader in = new BinaryReader(channel);
+            int count = readCount(in, MAP);
+            Map<K, V> entries = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                K key = keyCodec.read(in);
+                entries.put(key, in.readNullable(valueCodec));
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Reads the elements of a list or array snapshot.
+     */
+    static <T> List<T> readElements(Path path, int kind, Codec<T> codec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            BinaryReader in = new BinaryReader(channel);
+            int count = readCount(in, kind);
+            List<T> elements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                elements.add(in.readNullable(codec));
+            }
+            return elements;
+        }
+    }
+
+    private static void readHeader(BinaryReader in) throws IOException {
+        if (in.readInt() != MAGIC || in.readByte() != FORMAT_VERSION)
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+    }
+
+    private static int readCount(BinaryReader in, int kind) throws IOException {
+        readHeader(in);
+        if (in.readByte() != kind)
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+        in.readVarInt();
+        return in.readInt();
+    }
+
+    /**
+     * Channel which sleeps after each write as long as needed to stay under the specified rate.
+     */
+    private static final class ThrottledChannel implements WritableByteChannel {
+        private final WritableByteChannel channel;
+        private final long bytesPerSecond;
+        private final long start = System.nanoTime();
+        private long written;
+
+        ThrottledChannel(WritableByteChannel channel, long bytesPerSecond) {
+            this.channel = channel;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int count = channel.write(source);
+            written += count;
+            long due = (long) (written * (double) TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+            long ahead = due - (System.nanoTime() - start);
+            if (ahead > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(ahead);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import jdk.jfr.SettingControl;
+
+import java.util.Set;
+
+/**
+ * Setting {@code minLength} of {@link ListWalkEvent}, the number of nodes from which walks are recorded.
+ * When several recordings set it, the smallest value applies, and a value which is not a non-negative number is ignored.
+ */
+public final class WalkLengthSetting extends SettingControl {
+    static final long DEFAULT_MINIMUM = 1000;
+
+    private volatile long minimum = DEFAULT_MINIMUM;
+
+    @Override
+    public String combine(Set<String> values) {
+        long result = Long.MAX_VALUE;
+        for (String value : values) {
+            result = Math.min(result, parse(value));
+        }
+        return Long.toString(result == Long.MAX_VALUE ? DEFAULT_MINIMUM : result);
+    }
+
+    @Override
+    public void setValue(String value) {
+        long parsed = parse(value);
+        minimum = parsed == Long.MAX_VALUE ? DEFAULT_MINIMUM : parsed;
+    }
+
+    @Override
+    public String getValue() {
+        return Long.toString(minimum);
+    }
+
+    long getMinimum() {
+        return minimum;
+    }
+
+    private static long parse(String value) {
+        try {
+            long parsed = Long.parseLong(value.trim());
+            return parsed < 0 ? Long.MAX_VALUE : parsed;
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * Recorder of the calls made against persistent maps, lists and arrays into a compact trace file, which {@link WorkloadReplay}
+ * reproduces offline. Recording is opt-in per structure with {@code record}; a structure which is not recorded only pays one volatile read
+ * per call.
+ * <p>
+ * The trace keeps the shape of the workload, not its data: every call is stored with its operation, key or index, the version it read
+ * and the size of the value it wrote. Keys are replaced by small ids in the order they are first seen, values by their size,
+ * the length of byte arrays and character sequences by default, and versions written by their distance to the previous write,
+ * so most records take a few bytes. When recording starts, the current contents of the structure are stored the same way
+ * for the replay to start from.
+ * <p>
+ * The recorded calls are {@code get(key, version)}, {@code put} and {@code remove(key)} of maps, {@code get(index, version)},
+ * {@code add}, {@code add(index, element)}, {@code set} and {@code remove(index)} of lists and {@code get(index, version)},
+ * {@code add}, {@code replace} and {@code removeLast} of arrays, together with the methods reading the latest version through them.
+ * Other writes, such as bulk ones or transactions, are not recorded. Any thread may record; a failure to write the trace stops the recording
+ * and is thrown by {@link #close()}.
+ */
+public class WorkloadRecorder implements AutoCloseable {
+    static final int MAGIC = 0x50445357;
+    static final int FORMAT_VERSION = 1;
+
+    static final int STRUCTURE = 0;
+    static final int GET = 1;
+    static final int PUT = 2;
+    static final int INSERT = 3;
+    static final int APPEND = 4;
+    static final int REMOVE = 5;
+    static final int END = 6;
+
+    static final int MAP = 'M';
+    static final int LIST = 'L';
+    static final int ARRAY = 'A';
+
+    private final FileChannel channel;
+    private final BinaryWriter out;
+    private final ToIntFunction<Object> sizer;
+    private final List<Runnable> detachers = new ArrayList<>();
+    private long recordCount;
+    private IOException failure;
+    private boolean closed;
+
+    private WorkloadRecorder(FileChannel channel, ToIntFunction<Object> sizer) throws IOException {
+        this.channel = channel;
+        this.sizer = sizer;
+        out = new BinaryWriter(channel);
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+    }
+
+    /**
+     * Creates a trace file, replacing an existing one, sizing values by the length of byte arrays and character sequences.
+     *
+     * @param path trace file
+     * @return the recorder, which records no structure yet
+     * @throws IOException if the file cannot be created
+     */
+    public static WorkloadRecorder open(Path path) throws IOException {
+        return open(path, WorkloadRecorder::sizeOf);
+    }
+
+    /**
+     * Creates a trace file, replacing an existing one.
+     *
+     * @param path  trace file
+     * @param sizer size of the written values, in bytes, never called with null
+     * @return the recorder, which records no structure yet
+     * @throws IOException if the file cannot be created
+     */
+    public static WorkloadRecorder open(Path path, ToIntFunction<Object> sizer) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            return new WorkloadRecorder(channel, sizer);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts recording the calls made against the specified map. Must be called by the writer thread of the map.
+     *
+     * @param map map to be recorded
+     */
+    public synchronized void record(PersistentMap<?, ?> map) {
+        int version = map.getCurrentVersion();
+        Stream stream = new Stream(detachers.size(), MAP, version);
+        List<Object> keys = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        for (Map.Entry<?, ?> entry : map.entrySet(version)) {
+            keys.add(entry.getKey());
+            values.add(entry.getValue());
+        }
+        write(() -> {
+            header(stream, keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                out.writeVarInt(stream.keyId(keys.get(i)));
+                out.writeVarInt(sizeCode(values.get(i)));
+            }
+        });
+        map.attachRecorder(stream);
+        detachers.add(() -> map.attachRecorder(null));
+    }
+
+    /**
+     * Starts recording the calls made against the specified list. Must be called by the writer thread of the list.
+     *
+     * @param list list to be recorded
+     */
+    public synchronized void record(PersistentLinkedList<?> list) {
+        int version = list.getCurrentVersion();
+        Stream stream = new Stream(detachers.size(), LIST, version);
+        Object[] elements = list.toArray(version);
+        write(() -> {
+            header(stream, elements.length);
+            for (Object element : elements) {
+                out.writeVarInt(sizeCode(element));
+            }
+        });
+        list.attachRecorder(stream);
+        detachers.add(() -> list.attachRecorder(null));
+    }
+
+    /**
+     * Starts recording the calls made against the specified array. Must be called by the writer thread of the array.
+     *
+     * @param array array to be recorded
+     */
+    public synchronized void record(PersistentArray<?> array) {
+        int version = array.getCurrentVersion();
+        Stream stream = new Stream(detachers.size(), ARRAY, version);
+        int length = array.getLength(version);
+        Object[] elements = new Object[length];
+        for (int i = 0; i < length; i++) {
+            elements[i] = array.get(i, version);
+        }
+        write(() -> {
+            header(stream, length);
+            for (Object element : elements) {
+                out.writeVarInt(sizeCode(element));
+            }
+        });
+        array.attachRecorder(stream);
+        detachers.add(() -> array.attachRecorder(null));
+    }
+
+    /**
+     * Returns the number of calls recorded so far.
+     *
+     * @return the number of recorded calls
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Stops recording every structure, ends the trace and closes the file.
+     *
+     * @throws IOException if the trace could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        List<Runnable> recorded;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            recorded = new ArrayList<>(detachers);
+        }
+        // the structures are detached outside of the lock, a call still recording finds the recorder closed
+        for (Runnable detacher : recorded) {
+            detacher.run();
+        }
+        synchronized (this) {
+            try {
+                if (null == failure) {
+                    out.writeByte(END);
+                    out.flush();
+                }
+            } finally {
+                channel.close();
+            }
+            if (null != failure)
+                throw failure;
+        }
+    }
+
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    private void write(Write write) {
+        if (closed || null != failure)
+            return;
+        try {
+            write.run();
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private void header(Stream stream, int size) throws IOException {
+        out.writeByte(STRUCTURE);
+        out.writeVarInt(stream.id);
+        out.writeByte(stream.kind);
+        out.writeVarInt(stream.lastVersion);
+        out.writeVarInt(size);
+    }
+
+    private int sizeCode(Object value) {
+        return null == value ? 0 : sizer.applyAsInt(value) + 1;
+    }
+
+    private static int sizeOf(Object value) {
+        if (value instanceof byte[])
+            return ((byte[]) value).length;
+        if (value instanceof CharSequence)
+            return ((CharSequence) value).length();
+        return 0;
+    }
+
+    /**
+     * Recording of one structure, called by the structure after each recorded call completes.
+     */
+    final class Stream {
+        private final int id;
+        private final int kind;
+        private final Map<Object, Integer> keyIds = new HashMap<>();
+        private int lastVersion;
+
+        private Stream(int id, int kind, int version) {
+            this.id = id;
+            this.kind = kind;
+            lastVersion = version;
+        }
+
+        void get(Object key, int version) {
+            synchronized (WorkloadRecorder.this) {
+                write(() -> {
+                    start(GET);
+                    out.writeVarInt(keyId(key));
+                    out.writeVarInt(version);
+                });
+            }
+        }
+
+        void get(int index, int version) {
+            synchronized (WorkloadRecorder.this) {
+                write(() -> {
+                    start(GET);
+                    out.writeVarInt(index);
+                    out.writeVarInt(version);
+                });
+            }
+        }
+
+        void put(Object key, Object value, int version) {
+            synchronized (WorkloadRecorder.this) {
+                write(() -> {
+                    start(PUT);
+                    out.writeVarInt(keyId(key));
+                    out.writeVarInt(sizeCode(value));
+                    written(version);
+                });
+            }
+        }
+
+        void set(int index, Object value, int version) {
+            synchronized (WorkloadRecorder.this) {
+                write(() -> {
+                    start(PUT);
+                    out.writeVarInt(index);
+                    out.writeVarInt(sizeCode(value));
+                    written(version);
+                });
+            }
+        }
+
+        void insert(int index, Object value, int version) {
+            synchronized (WorkloadRecorder.this) {
+                write(() -> {
+                    start(INSERT);
+                    out.writeVarInt(index);
+                    out.writeVarInt(sizeCode(value));
+                    written(version);
+                });
+            }
+        }
+
+        void append(Object value, int version) {
+            synchronized (WorkloadRecorder.this) {
+                write(() -> {
+                    start(APPEND);
+                    out.writeVarInt(sizeCode(value));
+                    written(version);
+                });
+            }
+        }
+
+        void remove(Object key, int version) {
+            synchronized (WorkloadRecorder.this) {
+                write(() -> {
+                    start(REMOVE);
+                    out.writeVarInt(keyId(key));
+                    written(version);
+                });
+            }
+        }
+
+        void removeAt(int index, int version) {
+            synchronized (WorkloadRecorder.this) {
+                write(() -> {
+                    start(REMOVE);
+                    out.writeVarInt(index);
+                    written(version);
+                });
+            }
+        }
+
+        private void start(int operation) throws IOException {
+            recordCount++;
+            out.writeByte(operation);
+            out.writeVarInt(id);
+        }
+
+        private void written(int version) throws IOException {
+            out.writeVarInt(version - lastVersion);
+            lastVersion = version;
+        }
+
+        private int keyId(Object key) {
+            Integer id = keyIds.get(key);
+            if (null == id) {
+                id = keyIds.size();
+                keyIds.put(key, id);
+            }
+            return id;
+        }
+    }
+}
@@ -0,0 +1,432 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deterministic replay of a trace written by {@link WorkloadRecorder}, reporting the throughput and the latency of every operation type.
+ * <p>
+ * Every recorded structure is recreated with integer keys and byte array values of the recorded sizes, first with the contents it had
+ * when recording started, then the recorded calls are replayed in order. Versions are translated: a read of a recorded version reads
+ * the replayed version created by the newest write recorded at or before it, so every read sees the same state as in the trace.
+ * <p>
+ * The replay is single-threaded, or runs the writes on one thread, the single writer of the structures, and spreads the reads in turn
+ * across reader threads; a reader waits until the writes recorded before its read are replayed, so the results do not depend
+ * on the number of threads. The trace is loaded in memory once and can be replayed any number of times.
+ */
+public class WorkloadReplay {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final List<Structure> structures = new ArrayList<>();
+    private byte[] operations = new byte[INITIAL_CAPACITY];
+    private int[] targets = new int[INITIAL_CAPACITY];
+    private int[] keys = new int[INITIAL_CAPACITY];
+    private int[] sizes = new int[INITIAL_CAPACITY];
+    private int[] versions = new int[INITIAL_CAPACITY];
+    private int[] writesBefore = new int[INITIAL_CAPACITY];
+    private int count;
+    private int writeCount;
+    private int keyCount;
+    private Integer[] boxedKeys;
+
+    private WorkloadReplay() {
+    }
+
+    /**
+     * Recorded structure, with the contents it had when recording started.
+     */
+    private static final class Structure {
+        final int kind;
+        final int[] initialKeys;
+        final int[] initialSizes;
+        int lastVersion;
+
+        Structure(int kind, int baseVersion, int[] initialKeys, int[] initialSizes) {
+            this.kind = kind;
+            this.initialKeys = initialKeys;
+            this.initialSizes = initialSizes;
+            lastVersion = baseVersion;
+        }
+    }
+
+    /**
+     * Replayed structure and the translation of the recorded versions to its own.
+     */
+    private static final class Replica {
+        final PersistentMap<Integer, byte[]> map;
+        final PersistentLinkedList<byte[]> list;
+        final PersistentArray<byte[]> array;
+        final VersionHistory<Integer> versions = new VersionHistory<>();
+
+        Replica(PersistentMap<Integer, byte[]> map, PersistentLinkedList<byte[]> list, PersistentArray<byte[]> array, int version) {
+            this.map = map;
+            this.list = list;
+            this.array = array;
+            versions.put(0, version);
+        }
+    }
+
+    /**
+     * Throughput and latencies of a replay.
+     */
+    public static final class Result {
+        private final long operations;
+        private final long elapsedNanos;
+        private final LatencyHistogram[] latencies;
+
+        private Result(long operations, long elapsedNanos, LatencyHistogram[] latencies) {
+            this.operations = operations;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+        }
+
+        public long getOperations() {
+            return operations;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Returns the number of operations replayed per second.
+         *
+         * @return the throughput of the replay
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : operations * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Returns the latencies of the specified operation type, an index of {@link StructureMetrics#OPERATION_NAMES}.
+         *
+         * @param operation operation type
+         * @return the histogram of the latencies of the operation type
+         */
+        public LatencyHistogram getLatency(int operation) {
+            return latencies[operation];
+        }
+
+        /**
+         * Returns the latencies of the operation type with the specified name.
+         *
+         * @param operation name of the operation type, such as "get"
+         * @return the histogram of the latencies of the operation type
+         */
+        public LatencyHistogram getLatency(String operation) {
+            int index = Arrays.asList(StructureMetrics.OPERATION_NAMES).indexOf(operation);
+            if (index < 0)
+                throw new IllegalArgumentException(PersistentExceptionsMessege.UNKNOWN_OPERATION);
+            return latencies[index];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder(String.format(Locale.ROOT, "%d operations in %d ms, %.0f operations/s", operations,
+                    TimeUnit.NANOSECONDS.toMillis(elapsedNanos), getThroughput()));
+            for (int i = 0; i < StructureMetrics.OPERATION_NAMES.length; i++) {
+                if (latencies[i].getCount() > 0)
+                    result.append(System.lineSeparator()).append(StructureMetrics.OPERATION_NAMES[i]).append(": ").append(latencies[i]);
+            }
+            return result.toString();
+        }
+    }
+
+    /**
+     * Loads the specified trace.
+     *
+     * @param path trace file
+     * @return the replay of the trace
+     * @throws IOException if the file cannot be read or is not a complete trace
+     */
+    public static WorkloadReplay load(Path path) throws IOException {
+        WorkloadReplay replay = new WorkloadReplay();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            replay.read(new BinaryReader(channel));
+        } catch (RuntimeException e) {
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_TRACE, e);
+        }
+        return replay;
+    }
+
+    /**
+     * Returns the number of recorded calls.
+     *
+     * @return the number of operations of a replay
+     */
+    public int getOperationCount() {
+        return count;
+    }
+
+    /**
+     * Replays the trace on the calling thread.
+     *
+     * @return the throughput and latencies of the replay
+     */
+    public Result run() {
+        Replica[] replicas = replicas();
+        LatencyHistogram[] latencies = histograms();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            execute(replicas, i, latencies);
+        }
+        return new Result(count, System.nanoTime() - start, latencies);
+    }
+
+    /**
+     * Replays the writes of the trace on one thread and its reads on the specified number of reader threads.
+     *
+     * @param readers number of reader threads
+     * @return the throughput and latencies of the replay
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    public Result run(int readers) throws InterruptedException {
+        if (readers <= 0)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.ILLEGAL_THREAD_COUNT);
+        Replica[] replicas = replicas();
+        LatencyHistogram[] latencies = histograms();
+        AtomicInteger writesDone = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        RuntimeException[] failure = new RuntimeException[1];
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                if (operations[i] == WorkloadRecorder.GET)
+                    continue;
+                execute(replicas, i, latencies);
+                writesDone.incrementAndGet();
+            }
+        }, "replay-writer");
+        threads.add(writer);
+        for (int r = 0; r < readers; r++) {
+            int reader = r;
+            threads.add(new Thread(() -> {
+                int read = 0;
+                for (int i = 0; i < count; i++) {
+                    if (operations[i] != WorkloadRecorder.GET || read++ % readers != reader)
+                        continue;
+                    while (writesDone.get() < writesBefore[i]) {
+                        // the writer is at most a few writes behind, waiting on a lock would cost more than the operations
+                        Thread.yield();
+                    }
+                    execute(replicas, i, latencies);
+                }
+            }, "replay-reader"));
+        }
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler((t, e) -> {
+                synchronized (failure) {
+                    if (null == failure[0])
+                        failure[0] = e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e);
+                }
+                // release the readers waiting for writes which will not come
+                writesDone.set(Integer.MAX_VALUE);
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (null != failure[0])
+            throw failure[0];
+        return new Result(count, elapsed, latencies);
+    }
+
+    /**
+     * Replays a trace and prints the throughput and latencies.
+     *
+     * @param args path of the trace and optionally the number of reader threads, single-threaded if none
+     * @throws Exception if the trace cannot be read or replayed
+     */
+    public static void main(String[] args) throws Exception {
+        WorkloadReplay replay = load(Paths.get(args[0]));
+        System.out.println(args.length > 1 ? replay.run(Integer.parseInt(args[1])) : replay.run());
+    }
+
+    private void read(BinaryReader in) throws IOException {
+        if (in.readInt() != WorkloadRecorder.MAGIC || in.readByte() != WorkloadRecorder.FORMAT_VERSION)
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_TRACE);
+        while (true) {
+            int operation = in.readByte();
+            if (operation == WorkloadRecorder.END)
+                return;
+            int target = in.readVarInt();
+            if (operation == WorkloadRecorder.STRUCTURE) {
+                readStructure(in, target);
+                continue;
+            }
+            Structure structure = structures.get(target);
+            ensureCapacity();
+            operations[count] = (byte) operation;
+            targets[count] = target;
+            writesBefore[count] = writeCount;
+            switch (operation) {
+                case WorkloadRecorder.GET:
+                    keys[count] = in.readVarInt();
+                    versions[count] = in.readVarInt();
+                    break;
+                case WorkloadRecorder.PUT:
+                case WorkloadRecorder.INSERT:
+                    keys[count] = in.readVarInt();
+                    sizes[count] = in.readVarInt();
+                    break;
+                case WorkloadRecorder.APPEND:
+                    sizes[count] = in.readVarInt();
+                    break;
+                case WorkloadRecorder.REMOVE:
+                    keys[count] = in.readVarInt();
+                    break;
+                default:
+                    throw new IOException(PersistentExceptionsMessege.CORRUPTED_TRACE);
+            }
+            if (structure.kind == WorkloadRecorder.MAP)
+                keyCount = Math.max(keyCount, keys[count] + 1);
+            if (operation != WorkloadRecorder.GET) {
+                structure.lastVersion += in.readVarInt();
+                versions[count] = structure.lastVersion;
+                writeCount++;
+            }
+            count++;
+        }
+    }
+
+    private void readStructure(BinaryReader in, int id) throws IOException {
+        if (id != structures.size())
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_TRACE);
+        int kind = in.readByte();
+        int baseVersion = in.readVarInt();
+        int size = in.readVarInt();
+        int[] initialKeys = kind == WorkloadRecorder.MAP ? new int[size] : null;
+        int[] initialSizes = new int[size];
+        for (int i = 0; i < size; i++) {
+            if (null != initialKeys) {
+                initialKeys[i] = in.readVarInt();
+                keyCount = Math.max(keyCount, initialKeys[i] + 1);
+            }
+            initialSizes[i] = in.readVarInt();
+        }
+        if (kind != WorkloadRecorder.MAP && kind != WorkloadRecorder.LIST && kind != WorkloadRecorder.ARRAY)
+            throw new IOException(PersistentExceptionsMessege.CORRUPTED_TRACE);
+        structures.add(new Structure(kind, baseVersion, initialKeys, initialSizes));
+    }
+
+    private void ensureCapacity() {
+        if (count < operations.length)
+            return;
+        int capacity = operations.length * 2;
+        operations = Arrays.copyOf(operations, capacity);
+        targets = Arrays.copyOf(targets, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        versions = Arrays.copyOf(versions, capacity);
+        writesBefore = Arrays.copyOf(writesBefore, capacity);
+    }
+
+    private Replica[] replicas() {
+        if (null == boxedKeys) {
+            // boxed once, so that the replay does not measure boxing
+            boxedKeys = new Integer[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                boxedKeys[i] = i;
+            }
+        }
+        Replica[] replicas = new Replica[structures.size()];
+        for (int id = 0; id < replicas.length; id++) {
+            Structure structure = structures.get(id);
+            int[] initial = structure.initialSizes;
+            switch (structure.kind) {
+                case WorkloadRecorder.MAP:
+                    PersistentMap<Integer, byte[]> map = new PersistentMap<>();
+                    for (int i = 0; i < initial.length; i++) {
+                        map.put(boxedKeys[structure.initialKeys[i]], value(initial[i]));
+                    }
+                    replicas[id] = new Replica(map, null, null, map.getCurrentVersion());
+                    break;
+                case WorkloadRecorder.LIST:
+                    List<byte[]> elements = new ArrayList<>(initial.length);
+                    for (int size : initial) {
+                        elements.add(value(size));
+                    }
+                    PersistentLinkedList<byte[]> list = new PersistentLinkedList<>(elements);
+                    replicas[id] = new Replica(null, list, null, list.getCurrentVersion());
+                    break;
+                default:
+                    PersistentArray<byte[]> array = new PersistentArray<>(initial.length);
+                    for (int i = 0; i < initial.length; i++) {
+                        if (initial[i] != 0)
+                            array.replace(i, value(initial[i]));
+                    }
+                    replicas[id] = new Replica(null, null, array, array.getCurrentVersion());
+                    break;
+            }
+        }
+        return replicas;
+    }
+
+    private static LatencyHistogram[] histograms() {
+        LatencyHistogram[] histograms = new LatencyHistogram[StructureMetrics.OPERATION_NAMES.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    private static byte[] value(int sizeCode) {
+        return sizeCode == 0 ? null : new byte[sizeCode - 1];
+    }
+
+    private void execute(Replica[] replicas, int i, LatencyHistogram[] latencies) {
+        Replica replica = replicas[targets[i]];
+        int operation = operations[i];
+        int key = keys[i];
+        if (operation == WorkloadRecorder.GET) {
+            int version = replica.versions.get(versions[i]);
+            long start = System.nanoTime();
+            if (null != replica.map)
+                replica.map.get(boxedKeys[key], version);
+            else if (null != replica.list)
+                replica.list.get(key, version);
+            else
+                replica.array.get(key, version);
+            latencies[operation - WorkloadRecorder.GET].record(System.nanoTime() - start);
+            return;
+        }
+        byte[] value = value(sizes[i]);
+        long start = System.nanoTime();
+        int version;
+        if (null != replica.map) {
+            if (operation == WorkloadRecorder.PUT)
+                replica.map.put(boxedKeys[key], value);
+            else
+                replica.map.remove(boxedKeys[key]);
+            version = replica.map.getCurrentVersion();
+        } else if (null != replica.list) {
+            if (operation == WorkloadRecorder.PUT)
+                replica.list.set(key, value);
+            else if (operation == WorkloadRecorder.INSERT)
+                replica.list.add(key, value);
+            else if (operation == WorkloadRecorder.APPEND)
+                replica.list.add(value);
+            else
+                replica.list.remove(key);
+            version = replica.list.getCurrentVersion();
+        } else {
+            if (operation == WorkloadRecorder.PUT)
+                replica.array.replace(key, value);
+            else if (operation == WorkloadRecorder.APPEND)
+                replica.array.add(value);
+            else
+                replica.array.removeLast();
+            version = replica.array.getCurrentVersion();
+        }
+        latencies[operation - WorkloadRecorder.GET].record(System.nanoTime() - start);
+        replica.versions.put(versions[i], version);
+    }
+}
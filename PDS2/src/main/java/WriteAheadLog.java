@@ -0,0 +1,353 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of a persistent map: every published version is appended as a record of the keys it wrote and their new values,
+ * so the map survives a crash without being saved after each change.
+ * <p>
+ * The writer never waits for the disk. Records are buffered in memory and a flusher thread writes and fsyncs them in groups:
+ * a group is closed when the group commit delay since its first record elapses or when it reaches the maximum group size,
+ * so a longer delay trades the latency of durability for fewer fsyncs. Callers which need a version to be durable wait for its group
+ * with {@link #awaitDurable(int)}, and all of the callers waiting for the same group are released by the same fsync.
+ * <p>
+ * A checkpoint saves the full history of the map in the format of {@link HistoryFormat} and empties the log. Opening a log recovers the map
+ * from the last checkpoint and the valid records after it: every record carries a CRC, and a torn record at the end of the log is discarded.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public class WriteAheadLog<K, V> implements AutoCloseable {
+    public static final long DEFAULT_GROUP_COMMIT_MICROS = 2000;
+    public static final int DEFAULT_MAX_GROUP_BYTES = 1 << 20;
+
+    private static final String LOG_FILE = "wal.log";
+    private static final String CHECKPOINT_FILE = "checkpoint.bin";
+    private static final String CHECKPOINT_TEMPORARY_FILE = "checkpoint.tmp";
+
+    private final Path directory;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final long groupCommitNanos;
+    private final int maxGroupBytes;
+    private final PersistentMap<K, V> map;
+    private final FileChannel channel;
+
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final BinaryWriter recordWriter = new BinaryWriter(Channels.newChannel(record));
+    private final CRC32 crc = new CRC32();
+
+    private final Object lock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int appendedVersion;
+    private int durableVersion;
+    private IOException failure;
+    private boolean closed;
+    private final Thread flusher;
+
+    private WriteAheadLog(Path directory, Codec<K> keyCodec, Codec<V> valueCodec, long groupCommitNanos, int maxGroupBytes) throws IOException {
+        this.directory = directory;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.groupCommitNanos = groupCommitNanos;
+        this.maxGroupBytes = maxGroupBytes;
+        Files.createDirectories(directory);
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        map = Files.exists(checkpoint) ? PersistentMap.load(checkpoint, keyCodec, valueCodec) : new PersistentMap<>();
+        channel = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = replay();
+        // anything after the last valid record is a torn write of the crash
+        channel.truncate(end);
+        channel.position(end);
+        appendedVersion = map.getCurrentVersion();
+        durableVersion = appendedVersion;
+        map.attachLog(this);
+        flusher = new Thread(this::flush, "write-ahead-log");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Opens the log in the specified directory with the default group commit settings and recovers its map.
+     *
+     * @param directory  directory of the log, created if it does not exist
+     * @param keyCodec   codec of the keys
+     * @param valueCodec codec of the values
+     * @return the opened log
+     * @throws IOException if the log cannot be read or created
+     */
+    public static <K, V> WriteAheadLog<K, V> open(Path directory, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        return open(directory, keyCodec, valueCodec, DEFAULT_GROUP_COMMIT_MICROS, TimeUnit.MICROSECONDS, DEFAULT_MAX_GROUP_BYTES);
+    }
+
+    /**
+     * Opens the log in the specified directory and recovers its map.
+     *
+     * @param directory         directory of the log, created if it does not exist
+     * @param keyCodec          codec of the keys
+     * @param valueCodec        codec of the values
+     * @param groupCommitDelay  time a group stays open after its first record, zero to fsync as soon as possible
+     * @param unit              unit of the delay
+     * @param maxGroupBytes     size at which a group is written without waiting for the rest of the delay
+     * @return the opened log
+     * @throws IOException if the log cannot be read or created
+     */
+    public static <K, V> WriteAheadLog<K, V> open(Path directory, Codec<K> keyCodec, Codec<V> valueCodec,
+                                                  long groupCommitDelay, TimeUnit unit, int maxGroupBytes) throws IOException {
+        if (maxGroupBytes <= 0)
+            throw new IllegalArgumentException(PersistentExceptionsMessege.ILLEGAL_CAPACITY);
+        return new WriteAheadLog<>(directory, keyCodec, valueCodec, unit.toNanos(groupCommitDelay), maxGroupBytes);
+    }
+
+    /**
+     * Returns the map recovered by this log, whose versions are appended to it from now on.
+     *
+     * @return the map of this log
+     */
+    public PersistentMap<K, V> getMap() {
+        return map;
+    }
+
+    /**
+     * Returns the newest version known to be on disk.
+     *
+     * @return the newest durable version
+     */
+    public int getDurableVersion() {
+        synchronized (lock) {
+            return durableVersion;
+        }
+    }
+
+    /**
+     * Waits until the specified version of the map is on disk.
+     *
+     * @param version version of the map
+     * @throws IOException          if writing the log failed or the log was closed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitDurable(int version) throws IOException, InterruptedException {
+        synchronized (lock) {
+            while (durableVersion < version && null == failure && !closed) {
+                lock.wait();
+            }
+            if (durableVersion >= version)
+                return;
+            if (null != failure)
+                throw new IOException(failure);
+            throw new IOException(PersistentExceptionsMessege.LOG_CLOSED);
+        }
+    }
+
+    /**
+     * Saves the full history of the map as the new checkpoint and empties the log.
+     * Must be called by the writer thread of the map.
+     *
+     * @throws IOException          if the checkpoint cannot be written
+     * @throws InterruptedException if interrupted while waiting for the log
+     */
+    public void checkpoint() throws IOException, InterruptedException {
+        awaitDurable(map.getCurrentVersion());
+        Path temporary = directory.resolve(CHECKPOINT_TEMPORARY_FILE);
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            HistoryFormat.writeMap(map, out, keyCodec, valueCodec);
+            out.force(true);
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the rename is durable only once the directory is, and the log must not be emptied before it is
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        }
+        // records left behind by a crash before this point are older than the checkpoint and skipped by recovery
+        synchronized (lock) {
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Writes the pending records, stops the flusher and detaches the log from the map.
+     *
+     * @throws IOException if the pending records cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        map.attachLog(null);
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        synchronized (lock) {
+            if (null != failure)
+                throw failure;
+        }
+    }
+
+    /**
+     * Appends the records of the versions up to the specified one, called by the writer of the map as the version is published.
+     * The version is already visible by then, so this never throws: a version published while the log is being closed is not logged,
+     * as if the log had already been detached, and a record which cannot be encoded fails the log as a failed write would.
+     */
+    void append(int version) {
+        int from;
+        synchronized (lock) {
+            if (closed || null != failure)
+                return;
+            from = appendedVersion + 1;
+        }
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        BinaryWriter recordsWriter = new BinaryWriter(Channels.newChannel(records));
+        try {
+            for (int v = from; v <= version; v++) {
+                byte[] payload = encode(v);
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                recordsWriter.writeBytes(payload);
+                recordsWriter.writeInt((int) crc.getValue());
+            }
+            recordsWriter.flush();
+        } catch (IOException e) {
+            fail(e);
+            return;
+        } catch (RuntimeException e) {
+            fail(e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause() : new IOException(e));
+            return;
+        }
+        synchronized (lock) {
+            byte[] bytes = records.toByteArray();
+            pending.write(bytes, 0, bytes.length);
+            appendedVersion = version;
+            lock.notifyAll();
+        }
+    }
+
+    private byte[] encode(int version) {
+        List<K> keys = new ArrayList<>();
+        map.keysWrittenAt(version).forEachRemaining(keys::add);
+        record.reset();
+        try {
+            recordWriter.writeVarInt(version);
+            recordWriter.writeVarInt(keys.size());
+            for (K key : keys) {
+                keyCodec.write(recordWriter, key);
+                recordWriter.writeState(map.stateOf(key, version), valueCodec);
+            }
+            recordWriter.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return record.toByteArray();
+    }
+
+    private void flush() {
+        while (true) {
+            byte[] group;
+            int version;
+            synchronized (lock) {
+                try {
+                    while (!closed && pending.size() == 0) {
+                        lock.wait();
+                    }
+                    long deadline = System.nanoTime() + groupCommitNanos;
+                    long remaining = groupCommitNanos;
+                    while (!closed && pending.size() < maxGroupBytes && remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                        remaining = deadline - System.nanoTime();
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (pending.size() == 0) {
+                    lock.notifyAll();
+                    return;
+                }
+                group = pending.toByteArray();
+                pending = new ByteArrayOutputStream();
+                version = appendedVersion;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(group);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            synchronized (lock) {
+                durableVersion = version;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Records the failure of the log, which is rethrown to everyone waiting for durability and by close.
+     */
+    private void fail(IOException e) {
+        synchronized (lock) {
+            failure = e;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Replays the valid records newer than the checkpoint into the map.
+     *
+     * @return the length of the valid part of the log
+     */
+    private long replay() throws IOException {
+        BinaryReader in = new BinaryReader(channel);
+        long end = 0;
+        while (true) {
+            byte[] payload;
+            int checksum;
+            try {
+                // a length beyond the end of the log is a torn tail, not a record to allocate
+                payload = in.readBytes(channel.size() - end);
+                checksum = in.readInt();
+            } catch (EOFException e) {
+                return end;
+            }
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            if ((int) crc.getValue() != checksum)
+                return end;
+            BinaryReader recordReader = new BinaryReader(Channels.newChannel(new ByteArrayInputStream(payload)));
+            int version = recordReader.readVarInt();
+            int count = recordReader.readVarInt();
+            Map<K, Object> writes = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                K key = keyCodec.read(recordReader);
+                writes.put(key, recordReader.readState(valueCodec));
+            }
+            if (version > map.getCurrentVersion())
+                map.replay(version, count == 0 ? Collections.emptyMap() : writes);
+            end += BinaryWriter.varIntSize(payload.length) + payload.length + 4;
+        }
+    }
+}
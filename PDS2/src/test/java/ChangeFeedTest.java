@@ -0,0 +1,171 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChangeFeedTest {
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Test
+    public void mapEventsInVersionOrder() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        map.put(0, "before");
+        List<ChangeEvent<Integer, String>> events = new CopyOnWriteArrayList<>();
+        ChangeFeed<Integer, String>.Subscription subscription = map.getChangeFeed().subscribe(events::addAll);
+        map.put(1, "a");
+        map.put(1, "b");
+        map.remove(0);
+        Map<Integer, String> bulk = new HashMap<>();
+        bulk.put(2, "c");
+        bulk.put(3, "d");
+        map.putAll(bulk);
+        subscription.awaitDelivered(map.getCurrentVersion());
+        subscription.close();
+
+        assertEquals(5, events.size());
+        assertEquals(2, events.get(0).getVersion());
+        assertEquals(DiffEntry.Kind.ADDED, events.get(0).getKind());
+        assertEquals(Integer.valueOf(1), events.get(0).getKey());
+        assertEquals(DiffEntry.Kind.CHANGED, events.get(1).getKind());
+        assertEquals("a", events.get(1).getOldValue());
+        assertEquals("b", events.get(1).getNewValue());
+        assertEquals(DiffEntry.Kind.REMOVED, events.get(2).getKind());
+        assertEquals("before", events.get(2).getOldValue());
+        assertEquals(5, events.get(3).getVersion());
+        assertEquals(5, events.get(4).getVersion());
+    }
+
+    @Test
+    public void batchingCoalescesVersions() throws Exception {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        CountDownLatch release = new CountDownLatch(1);
+        List<List<ChangeEvent<Integer, Integer>>> batches = new CopyOnWriteArrayList<>();
+        ChangeFeed<Integer, Integer>.Subscription subscription = map.getChangeFeed().subscribe(events -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batches.add(events);
+        }, 100, true);
+        map.put(1, 1);
+        for (int i = 0; i < 50; i++)
+            map.put(2, i);
+        release.countDown();
+        subscription.awaitDelivered(map.getCurrentVersion());
+        subscription.close();
+
+        // the first batch may hold version 1 alone, the rest is coalesced into one event per key
+        int events = 0;
+        for (List<ChangeEvent<Integer, Integer>> batch : batches)
+            events += batch.size();
+        assertEquals(true, batches.size() <= 2);
+        assertEquals(true, events <= 3);
+        List<ChangeEvent<Integer, Integer>> last = batches.get(batches.size() - 1);
+        assertEquals(Integer.valueOf(49), last.get(last.size() - 1).getNewValue());
+        assertEquals(map.getCurrentVersion(), last.get(0).getVersion());
+    }
+
+    @Test
+    public void backpressureBoundsLag() throws Exception {
+        PersistentArray<Integer> array = new PersistentArray<>(0);
+        int capacity = 4;
+        List<Integer> lags = new CopyOnWriteArrayList<>();
+        ChangeFeed<Integer, Integer>.Subscription[] holder = new ChangeFeed.Subscription[1];
+        holder[0] = array.getChangeFeed().subscribe(events -> {
+            lags.add(array.getCurrentVersion() - events.get(0).getVersion());
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, capacity, false);
+        for (int i = 0; i < 100; i++)
+            array.add(i);
+        holder[0].awaitDelivered(array.getCurrentVersion());
+        holder[0].close();
+
+        assertEquals(100, lags.size());
+        for (int lag : lags)
+            assertEquals(true, lag <= capacity);
+    }
+
+    @Test
+    public void listEvents() throws Exception {
+        PersistentLinkedList<String> list = new PersistentLinkedList<>(Arrays.asList("a", "b"));
+        List<ChangeEvent<Integer, String>> events = new CopyOnWriteArrayList<>();
+        ChangeFeed<Integer, String>.Subscription subscription = list.getChangeFeed().subscribe(events::addAll);
+        list.set(0, "x");
+        list.clear();
+        subscription.awaitDelivered(list.getCurrentVersion());
+        subscription.close();
+
+        assertEquals(3, events.size());
+        assertEquals(DiffEntry.Kind.CHANGED, events.get(0).getKind());
+        assertEquals("x", events.get(0).getNewValue());
+        assertEquals(Integer.valueOf(0), events.get(0).getKey());
+        assertEquals(DiffEntry.Kind.REMOVED, events.get(1).getKind());
+        assertEquals(DiffEntry.Kind.REMOVED, events.get(2).getKind());
+        Set<Integer> removed = new HashSet<>(Arrays.asList(events.get(1).getKey(), events.get(2).getKey()));
+        assertEquals(new HashSet<>(Arrays.asList(0, 1)), removed);
+    }
+
+    @Test
+    public void listEventIndices() throws Exception {
+        PersistentLinkedList<String> list = new PersistentLinkedList<>(Arrays.asList("a", "b", "c"));
+        List<ChangeEvent<Integer, String>> events = new CopyOnWriteArrayList<>();
+        ChangeFeed<Integer, String>.Subscription subscription = list.getChangeFeed().subscribe(events::addAll);
+        list.add(1, "y");
+        list.remove(2);
+        list.set(2, "z");
+        subscription.awaitDelivered(list.getCurrentVersion());
+        subscription.close();
+
+        assertEquals(3, events.size());
+        assertEquals(DiffEntry.Kind.ADDED, events.get(0).getKind());
+        assertEquals(Integer.valueOf(1), events.get(0).getKey());
+        assertEquals(DiffEntry.Kind.REMOVED, events.get(1).getKind());
+        assertEquals("b", events.get(1).getOldValue());
+        assertEquals(Integer.valueOf(2), events.get(1).getKey());
+        assertEquals(DiffEntry.Kind.CHANGED, events.get(2).getKind());
+        assertEquals("c", events.get(2).getOldValue());
+        assertEquals(Integer.valueOf(2), events.get(2).getKey());
+    }
+
+    @Test
+    public void closedSubscriptionReleasesWriter() throws Exception {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        CountDownLatch never = new CountDownLatch(1);
+        ChangeFeed<Integer, Integer>.Subscription subscription = map.getChangeFeed().subscribe(events -> {
+            try {
+                never.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 1, false);
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 10; i++)
+                map.put(i, i);
+        });
+        writer.start();
+        while (map.getCurrentVersion() < 2)
+            Thread.yield();
+        subscription.close();
+        writer.join(5000);
+        assertEquals(10, map.getCurrentVersion());
+        never.countDown();
+    }
+
+    @Test
+    public void illegalCapacity() {
+        ex.expect(IllegalArgumentException.class);
+        new PersistentMap<Integer, Integer>().getChangeFeed().subscribe(events -> { }, 0, false);
+    }
+}
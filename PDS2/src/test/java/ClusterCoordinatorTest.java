@@ -0,0 +1,195 @@
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+
+public class ClusterCoordinatorTest {
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    @After
+    public void closeResources() throws Exception {
+        Collections.reverse(resources);
+        for (AutoCloseable resource : resources)
+            resource.close();
+    }
+
+    private InetSocketAddress startServer() throws Exception {
+        PersistentMapServer<Integer, String> server = PersistentMapServer.start(new PersistentMap<>(), Codec.INTEGER, Codec.STRING,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        resources.add(server);
+        return server.getAddress();
+    }
+
+    private ClusterCoordinator<Integer, String> connect(List<InetSocketAddress> addresses) throws Exception {
+        ClusterCoordinator<Integer, String> coordinator = ClusterCoordinator.connect(addresses, Codec.INTEGER, Codec.STRING);
+        resources.add(coordinator);
+        return coordinator;
+    }
+
+    /**
+     * Applies random writes and returns the expected state of every new global version.
+     */
+    private static void write(ClusterCoordinator<Integer, String> coordinator, Random random, int operations,
+                              List<Map<Integer, String>> states) throws Exception {
+        for (int i = 0; i < operations; i++) {
+            Map<Integer, String> state = new HashMap<>(states.get(states.size() - 1));
+            int key = random.nextInt(100);
+            int version;
+            if (random.nextInt(4) == 0) {
+                version = coordinator.remove(key);
+                state.remove(key);
+            } else {
+                String value = "v" + random.nextInt(1000);
+                version = coordinator.put(key, value);
+                state.put(key, value);
+            }
+            states.add(state);
+            assertEquals(states.size() - 1, version);
+        }
+    }
+
+    private static void assertStates(ClusterCoordinator<Integer, String> coordinator, List<Map<Integer, String>> states) throws Exception {
+        assertEquals(states.size() - 1, coordinator.getCurrentVersion());
+        for (int version = 0; version < states.size(); version += 7) {
+            Map<Integer, String> state = states.get(version);
+            assertEquals(state.size(), coordinator.size(version));
+            for (int key = 0; key < 100; key++)
+                assertEquals(state.get(key), coordinator.get(key, version));
+        }
+    }
+
+    @Test
+    public void globalVersionsAcrossPartitions() throws Exception {
+        ClusterCoordinator<Integer, String> coordinator = connect(Arrays.asList(startServer(), startServer(), startServer()));
+        List<Map<Integer, String>> states = new ArrayList<>(Collections.singletonList(new HashMap<>()));
+        write(coordinator, new Random(1), 600, states);
+        assertStates(coordinator, states);
+        assertEquals(3, coordinator.getPartitionCount());
+    }
+
+    @Test
+    public void rebalancesOntoNewPartitions() throws Exception {
+        ClusterCoordinator<Integer, String> coordinator = connect(Collections.singletonList(startServer()));
+        List<Map<Integer, String>> states = new ArrayList<>(Collections.singletonList(new HashMap<>()));
+        Random random = new Random(2);
+        write(coordinator, random, 300, states);
+
+        coordinator.addPartition(startServer());
+        coordinator.addPartition(startServer());
+        int before = coordinator.getCurrentVersion();
+        int after = coordinator.rebalance();
+        int[] counts = new int[3];
+        for (int bucket = 0; bucket < ClusterCoordinator.BUCKET_COUNT; bucket++)
+            counts[coordinator.getOwner(bucket)]++;
+        assertEquals(Arrays.asList(22, 21, 21), Arrays.asList(counts[0], counts[1], counts[2]));
+        assertEquals(0, coordinator.getOwner(ClusterCoordinator.BUCKET_COUNT - 1, before));
+        // moving a bucket changes no mapping
+        for (int version = before + 1; version <= after; version++)
+            states.add(states.get(before));
+
+        write(coordinator, random, 300, states);
+        assertStates(coordinator, states);
+    }
+
+    @Test
+    public void failedMoveIsUndone() throws Exception {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        PersistentMap<Integer, String> failingMap = new PersistentMap<Integer, String>() {
+            @Override
+            public Object put(Object key, Object value) {
+                if (failing.get() && (Integer) key >= 50)
+                    throw new IllegalStateException("failed write");
+                return super.put(key, value);
+            }
+        };
+        PersistentMapServer<Integer, String> failingServer = PersistentMapServer.start(failingMap, Codec.INTEGER, Codec.STRING,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        resources.add(failingServer);
+        ClusterCoordinator<Integer, String> coordinator = connect(Collections.singletonList(startServer()));
+        List<Map<Integer, String>> states = new ArrayList<>(Collections.singletonList(new HashMap<>()));
+        Random random = new Random(4);
+        write(coordinator, random, 300, states);
+        int target = coordinator.addPartition(failingServer.getAddress());
+
+        int bucket = 0;
+        while (bucketOfKeys(bucket, 0, 50) == 0 || bucketOfKeys(bucket, 50, 100) == 0)
+            bucket++;
+        boolean failed = false;
+        try {
+            coordinator.moveBucket(bucket, target);
+        } catch (IllegalStateException e) {
+            failed = true;
+        }
+        assertEquals(true, failed);
+        assertEquals(0, coordinator.getOwner(bucket));
+        assertEquals(0, failingMap.size());
+        assertStates(coordinator, states);
+
+        failing.set(false);
+        int before = coordinator.getCurrentVersion();
+        for (int version = before + 1; version <= coordinator.rebalance(); version++)
+            states.add(states.get(before));
+        write(coordinator, random, 300, states);
+        assertStates(coordinator, states);
+    }
+
+    private static int bucketOfKeys(int bucket, int from, int to) {
+        int count = 0;
+        for (int key = from; key < to; key++) {
+            if (ClusterCoordinator.bucketOf(key) == bucket)
+                count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void partitionProcesses() throws Exception {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            PersistentMapPartition partition = PersistentMapPartition.spawn("INTEGER", "STRING");
+            resources.add(partition);
+            addresses.add(partition.getAddress());
+        }
+        ClusterCoordinator<Integer, String> coordinator = connect(addresses);
+        List<Map<Integer, String>> states = new ArrayList<>(Collections.singletonList(new HashMap<>()));
+        Random random = new Random(3);
+        write(coordinator, random, 200, states);
+
+        PersistentMapPartition added = PersistentMapPartition.spawn("INTEGER", "STRING");
+        resources.add(added);
+        coordinator.addPartition(added.getAddress());
+        int before = coordinator.getCurrentVersion();
+        for (int version = before + 1; version <= coordinator.rebalance(); version++)
+            states.add(states.get(before));
+        write(coordinator, random, 200, states);
+        assertStates(coordinator, states);
+        assertEquals(true, added.isAlive());
+    }
+
+    @Test
+    public void readOfFutureVersion() throws Exception {
+        ClusterCoordinator<Integer, String> coordinator = connect(Collections.singletonList(startServer()));
+        coordinator.put(1, "one");
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        coordinator.get(1, 2);
+    }
+
+    @Test
+    public void unknownCodec() throws Exception {
+        ex.expect(IllegalArgumentException.class);
+        ex.expectMessage(PersistentExceptionsMessege.UNKNOWN_CODEC);
+        PersistentMapPartition.spawn("INTEGER", "OBJECT");
+    }
+}
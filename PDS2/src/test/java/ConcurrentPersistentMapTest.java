@@ -0,0 +1,257 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConcurrentPersistentMapTest {
+
+    private ConcurrentPersistentMap<Integer, String> persistentMap = null;
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Test
+    public void putGet() {
+        persistentMap = new ConcurrentPersistentMap<>();
+        assertEquals(null, persistentMap.put(0, "0"));
+        assertEquals("0", persistentMap.put(0, "1"));
+        assertEquals(2, persistentMap.getCurrentVersion());
+        assertEquals("0", persistentMap.get(0, 1));
+        assertEquals("1", persistentMap.get(0));
+        assertEquals(null, persistentMap.get(0, 0));
+        assertEquals(1, persistentMap.size());
+        assertEquals("1", persistentMap.remove(0));
+        assertEquals(0, persistentMap.size());
+        assertEquals(1, persistentMap.size(2));
+        assertEquals(false, persistentMap.containsKey(0));
+        assertEquals(true, persistentMap.containsKey(0, 1));
+    }
+
+    @Test
+    public void unchangedMapKeepsVersion() {
+        persistentMap = new ConcurrentPersistentMap<>();
+        persistentMap.remove(0);
+        persistentMap.put(0, "0");
+        persistentMap.putIfAbsent(0, "1");
+        assertEquals(1, persistentMap.getCurrentVersion());
+        assertEquals("0", persistentMap.get(0));
+    }
+
+    @Test
+    public void compute() {
+        persistentMap = new ConcurrentPersistentMap<>();
+        assertEquals("a", persistentMap.compute(1, (k, v) -> v == null ? "a" : v + "a"));
+        assertEquals("aa", persistentMap.compute(1, (k, v) -> v == null ? "a" : v + "a"));
+        assertEquals("aa", persistentMap.computeIfAbsent(1, k -> "b"));
+        assertEquals("b", persistentMap.computeIfAbsent(2, k -> "b"));
+        assertEquals(null, persistentMap.computeIfPresent(3, (k, v) -> "c"));
+        assertEquals("bc", persistentMap.merge(2, "c", (a, b) -> a + b));
+        assertEquals(null, persistentMap.computeIfPresent(2, (k, v) -> null));
+        assertEquals(1, persistentMap.size());
+    }
+
+    @Test
+    public void putAllIsOneVersion() {
+        persistentMap = new ConcurrentPersistentMap<>();
+        Map<Integer, String> m = new HashMap<>();
+        for (int i = 0; i < 100; i++)
+            m.put(i, String.valueOf(i));
+        persistentMap.putAll(m);
+        assertEquals(1, persistentMap.getCurrentVersion());
+        assertEquals(100, persistentMap.size());
+        Iterator<Map.Entry<Integer, String>> it = persistentMap.entryIterator(1);
+        for (int i = 0; i < 100; i++)
+            assertEquals(i, (int) it.next().getKey());
+        assertEquals(false, it.hasNext());
+    }
+
+    @Test
+    public void removeKeepsTreeSorted() {
+        persistentMap = new ConcurrentPersistentMap<>();
+        for (int i = 0; i < 200; i++)
+            persistentMap.put((i * 37) % 200, String.valueOf(i));
+        for (int i = 0; i < 200; i += 3)
+            persistentMap.remove(i);
+        Iterator<Map.Entry<Integer, String>> it = persistentMap.entryIterator(persistentMap.getCurrentVersion());
+        int previous = -1;
+        int count = 0;
+        while (it.hasNext()) {
+            int key = it.next().getKey();
+            assertEquals(true, key > previous && key % 3 != 0);
+            previous = key;
+            count++;
+        }
+        assertEquals(count, persistentMap.size());
+        assertEquals(200, persistentMap.size(200));
+    }
+
+    @Test
+    public void nullValue() {
+        ex.expect(NullPointerException.class);
+        new ConcurrentPersistentMap<Integer, String>().put(0, null);
+    }
+
+    @Test
+    public void getWrongVersion() {
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        new ConcurrentPersistentMap<Integer, String>().get(0, 3);
+    }
+
+    @Test
+    public void concurrentMerge() throws Exception {
+        concurrentMerge(true);
+        concurrentMerge(false);
+    }
+
+    private void concurrentMerge(boolean combining) throws Exception {
+        ConcurrentPersistentMap<Integer, Integer> counters = new ConcurrentPersistentMap<>(combining);
+        int threads = 8;
+        int increments = 2000;
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < increments; i++) {
+                    counters.merge(i % 10, 1, Integer::sum);
+                    counters.merge(100 + id, 1, Integer::sum);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers)
+            writer.join();
+        int total = 0;
+        for (int i = 0; i < 10; i++)
+            total += counters.get(i);
+        assertEquals(threads * increments, total);
+        for (int t = 0; t < threads; t++)
+            assertEquals(increments, (int) counters.get(100 + t));
+        assertEquals(10 + threads, counters.size());
+        int version = counters.getCurrentVersion();
+        assertEquals(true, version > 0 && version <= 2 * threads * increments);
+        assertEquals(0, counters.size(0));
+        if (combining)
+            return;
+        // without combining every merge takes its own version, and every version holds exactly the merges numbered before it
+        assertEquals(2 * threads * increments, version);
+        for (int v = 0; v <= version; v += 97) {
+            int sum = 0;
+            for (int i = 0; i < 10; i++)
+                sum += valueOrZero(counters.get(i, v));
+            for (int t = 0; t < threads; t++)
+                sum += valueOrZero(counters.get(100 + t, v));
+            assertEquals(v, sum);
+        }
+    }
+
+    private static int valueOrZero(Integer value) {
+        return null == value ? 0 : value;
+    }
+
+    @Test
+    public void putAllIsAtomicAcrossStripes() throws Exception {
+        ConcurrentPersistentMap<Integer, Integer> map = new ConcurrentPersistentMap<>(8, 4);
+        int keys = 32;
+        int rounds = 500;
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<String> violation = new AtomicReference<>();
+        Thread batchWriter = new Thread(() -> {
+            for (int r = 1; r <= rounds; r++) {
+                Map<Integer, Integer> m = new HashMap<>();
+                for (int k = 0; k < keys; k++)
+                    m.put(k, r);
+                map.putAll(m);
+            }
+        });
+        Thread singleWriter = new Thread(() -> {
+            for (int i = 0; running.get() || i < 8; i++)
+                map.merge(100 + i % 8, 1, (a, b) -> a + 1);
+        });
+        Thread reader = new Thread(() -> {
+            while (running.get()) {
+                int version = map.getCurrentVersion();
+                Integer first = map.get(0, version);
+                for (int k = 1; k < keys; k++) {
+                    if (!Objects.equals(first, map.get(k, version)))
+                        violation.set("version " + version + " mixes rounds");
+                }
+                int count = 0;
+                int previous = -1;
+                for (Iterator<Map.Entry<Integer, Integer>> it = map.entryIterator(version); it.hasNext(); count++) {
+                    int key = it.next().getKey();
+                    if (key <= previous)
+                        violation.set("version " + version + " is not sorted");
+                    previous = key;
+                }
+                if (count != map.size(version))
+                    violation.set("version " + version + " has size " + map.size(version) + " but " + count + " entries");
+            }
+        });
+        singleWriter.start();
+        reader.start();
+        batchWriter.start();
+        batchWriter.join(60000);
+        running.set(false);
+        singleWriter.join(60000);
+        reader.join(60000);
+        assertEquals(false, batchWriter.isAlive() || singleWriter.isAlive() || reader.isAlive());
+        assertEquals(null, violation.get());
+        for (int k = 0; k < keys; k++)
+            assertEquals(rounds, (int) map.get(k));
+        assertEquals(keys + 8, map.size());
+    }
+
+    @Test
+    public void failingFunctionFailsOnlyItsWriter() throws Exception {
+        ConcurrentPersistentMap<Integer, Integer> counters = new ConcurrentPersistentMap<>(0);
+        int threads = 4;
+        int increments = 1000;
+        AtomicInteger failures = new AtomicInteger();
+        AtomicReference<Throwable> wrongFailure = new AtomicReference<>();
+        CyclicBarrier start = new CyclicBarrier(threads);
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            writers[t] = new Thread(() -> {
+                Thread owner = Thread.currentThread();
+                try {
+                    start.await();
+                } catch (Exception e) {
+                    wrongFailure.set(e);
+                }
+                for (int i = 0; i < increments; i++) {
+                    try {
+                        // every write goes through the combiner, the function of writer 0 fails whenever another thread applies it
+                        counters.merge(0, 1, (a, b) -> {
+                            LockSupport.parkNanos(100000);
+                            if (id == 0 && Thread.currentThread() != owner)
+                                throw new IllegalStateException("combined");
+                            return a + b;
+                        });
+                    } catch (IllegalStateException e) {
+                        if (id == 0 && Thread.currentThread() == owner)
+                            failures.incrementAndGet();
+                        else
+                            wrongFailure.set(e);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join(60000);
+            assertEquals(false, writer.isAlive());
+        }
+        assertEquals(null, wrongFailure.get());
+        assertEquals(threads * increments - failures.get(), (int) counters.get(0));
+    }
+}
@@ -0,0 +1,72 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+
+public class FootprintSuiteTest {
+    private static final Properties thresholds = new Properties();
+    private static double tolerance;
+
+    @BeforeClass
+    public static void loadThresholds() throws IOException {
+        try (InputStream in = FootprintSuiteTest.class.getResourceAsStream("/footprint-thresholds.properties")) {
+            thresholds.load(in);
+        }
+        tolerance = Double.parseDouble(System.getProperty("footprint.tolerance", thresholds.getProperty("tolerance")));
+    }
+
+    private static void assertWithinThreshold(String workload, String metric, double value) {
+        String key = workload + "." + metric;
+        String threshold = thresholds.getProperty(key);
+        assertEquals("no threshold for " + key, true, null != threshold);
+        double limit = Double.parseDouble(threshold) * (1 + tolerance);
+        assertEquals(key + " = " + value + " exceeds " + threshold + " by more than " + tolerance, true, value <= limit);
+    }
+
+    private static void check(String workload) {
+        FootprintSuite.Measurement measurement = FootprintSuite.measure(workload);
+        assertEquals("objects of " + workload + " not walked, run with the jdk9+ profile", 0, measurement.getFootprint().getOpaqueObjects());
+        assertWithinThreshold(workload, "bytesPerElement", measurement.getBytesPerElement());
+        assertWithinThreshold(workload, "bytesPerVersion", measurement.getBytesPerVersion());
+        assertWithinThreshold(workload, "bytesPerEntry", measurement.getBytesPerEntry());
+    }
+
+    @Test
+    public void arrayFootprint() {
+        check("array-append");
+        check("array-replace");
+    }
+
+    @Test
+    public void listFootprint() {
+        check("list-append");
+        check("list-edit");
+    }
+
+    @Test
+    public void mapFootprint() {
+        check("map-insert");
+        check("map-overwrite");
+    }
+
+    @Test
+    public void everyWorkloadChecked() {
+        assertEquals(6, FootprintSuite.workloads().size());
+        for (String workload : FootprintSuite.workloads())
+            assertEquals(true, thresholds.containsKey(workload + ".bytesPerEntry"));
+    }
+
+    @Test
+    public void entriesOfFatNodes() {
+        FootprintSuite.Measurement measurement = FootprintSuite.measure("list-append");
+        assertEquals(10_000, measurement.getElements());
+        assertEquals(10_000, measurement.getVersions());
+        // one head, a tail per version, a length per version and the empty one,
+        // then data, previous and next of every node, whose next is written again when the next node is appended
+        assertEquals(1 + 10_000 + 10_001 + 10_000 + 10_000 + 2 * 10_000 - 1, measurement.getEntries());
+    }
+}
@@ -0,0 +1,82 @@
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class HeapFootprintTest {
+
+    private static class Pair {
+        Object first;
+        Object second;
+        long stamp;
+    }
+
+    @Test
+    public void shallowSizes() {
+        assertEquals(16, HeapFootprint.shallowSize(new Object()));
+        assertEquals(16, HeapFootprint.shallowSize(new long[0]));
+        assertEquals(32, HeapFootprint.shallowSize(new int[3]));
+        assertEquals(24, HeapFootprint.shallowSize(new Object[2]));
+        // header, two references and a long
+        assertEquals(32, HeapFootprint.shallowSize(new Pair()));
+    }
+
+    @Test
+    public void sharedObjectsCountedOnce() {
+        Pair pair = new Pair();
+        pair.first = new int[3];
+        pair.second = pair.first;
+        HeapFootprint footprint = HeapFootprint.of(pair);
+        assertEquals(2, footprint.getObjects());
+        assertEquals(32 + 32, footprint.getBytes());
+        assertEquals(1, footprint.getObjects(int[].class));
+    }
+
+    @Test
+    public void cycles() {
+        Pair a = new Pair();
+        Pair b = new Pair();
+        a.first = b;
+        b.first = a;
+        b.second = new Object[]{a, b};
+        HeapFootprint footprint = HeapFootprint.of(a);
+        assertEquals(3, footprint.getObjects());
+        assertEquals(2 * 32 + 24, footprint.getBytes());
+        assertEquals(Arrays.asList(Pair.class, Object[].class), footprint.getClasses());
+    }
+
+    @Test
+    public void excludedObjectsAndWhatTheyReach() {
+        Pair pair = new Pair();
+        Pair excluded = new Pair();
+        pair.first = excluded;
+        excluded.first = new long[100];
+        HeapFootprint footprint = HeapFootprint.of(pair, Collections.singleton(excluded));
+        assertEquals(1, footprint.getObjects());
+        assertEquals(0, footprint.getBytes(long[].class));
+    }
+
+    @Test
+    public void threadsAndClassesIgnored() {
+        Pair pair = new Pair();
+        pair.first = Thread.currentThread();
+        pair.second = String.class;
+        assertEquals(32, HeapFootprint.of(pair).getBytes());
+    }
+
+    @Test
+    public void fatNodesOfMap() {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        List<Object> values = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String value = "v" + i;
+            values.add(value);
+            map.put(i % 10, value);
+        }
+        HeapFootprint footprint = HeapFootprint.of(map, values);
+        assertEquals(0, footprint.getOpaqueObjects());
+        assertEquals(10, footprint.getObjects(PersistentMapNode.class));
+        assertEquals(true, footprint.getBytes() > footprint.getBytes(PersistentMapNode.class) + footprint.getBytes(VersionHistory.class));
+    }
+}
@@ -0,0 +1,190 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class HistoryFormatTest {
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mapRoundTrip() throws Exception {
+        Random random = new Random(1);
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        for (int i = 0; i < 3000; i++) {
+            int key = random.nextInt(200);
+            int operation = random.nextInt(20);
+            if (operation < 12) {
+                map.put(key, random.nextInt(10) == 0 ? null : "v" + random.nextInt(50));
+            } else if (operation < 16) {
+                map.remove(key);
+            } else if (operation < 18) {
+                Map<Integer, String> batch = new HashMap<>();
+                for (int j = 0; j < 10; j++)
+                    batch.put(random.nextInt(300), "b" + j);
+                map.putAll(batch);
+            } else if (operation < 19) {
+                map.replaceAll((k, v) -> v + "!");
+            } else if (random.nextInt(10) == 0) {
+                map.clear();
+            }
+        }
+        map.remove(-1);
+
+        Path path = folder.newFile().toPath();
+        map.save(path, Codec.INTEGER, Codec.STRING);
+        PersistentMap<Integer, String> loaded = PersistentMap.load(path, Codec.INTEGER, Codec.STRING);
+
+        assertEquals(map.getCurrentVersion(), loaded.getCurrentVersion());
+        for (int version = 0; version <= map.getCurrentVersion(); version++) {
+            assertEquals(map.size(version), loaded.size(version));
+            assertEquals(map.keySet(version), loaded.keySet(version));
+            for (Object key : map.keySet(version))
+                assertEquals(map.get(key, version), loaded.get(key, version));
+        }
+    }
+
+    @Test
+    public void mapSizesOfEveryMutator() throws Exception {
+        Random random = new Random(2);
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        for (int i = 0; i < 3000; i++) {
+            int key = random.nextInt(100);
+            int value = random.nextInt(5);
+            switch (random.nextInt(8)) {
+                case 0: map.putIfAbsent(key, value); break;
+                case 1: map.computeIfAbsent(key, k -> value == 0 ? null : value); break;
+                case 2: map.computeIfPresent(key, (k, v) -> value == 0 ? null : value); break;
+                case 3: map.compute(key, (k, v) -> value == 0 ? null : value); break;
+                case 4: map.merge(key, value, (a, b) -> a.equals(b) ? null : b); break;
+                case 5: map.remove(key, value); break;
+                case 6: map.remove(key); break;
+                default: map.put(key, value);
+            }
+        }
+
+        Path path = folder.newFile().toPath();
+        map.save(path, Codec.INTEGER, Codec.INTEGER);
+        PersistentMap<Integer, Integer> loaded = PersistentMap.load(path, Codec.INTEGER, Codec.INTEGER);
+
+        for (int version = 0; version <= map.getCurrentVersion(); version++) {
+            assertEquals(map.keySet(version).size(), map.size(version));
+            assertEquals(map.size(version), loaded.size(version));
+            assertEquals(map.keySet(version), loaded.keySet(version));
+        }
+    }
+
+    @Test
+    public void mapIsCompact() throws Exception {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        for (int i = 0; i < 100000; i++)
+            map.put(i % 100, i % 7);
+        Path path = folder.newFile().toPath();
+        map.save(path, Codec.INTEGER, Codec.INTEGER);
+        // gap, count, key number, presence tag and value take a byte each
+        assertEquals(true, Files.size(path) <= 5 * 100000 + 1000);
+        assertEquals(Integer.valueOf(99999 % 7), PersistentMap.load(path, Codec.INTEGER, Codec.INTEGER).get(99));
+    }
+
+    @Test
+    public void listRoundTrip() throws Exception {
+        Random random = new Random(2);
+        PersistentLinkedList<Integer> list = new PersistentLinkedList<>(Arrays.asList(1, 2, 3));
+        for (int i = 0; i < 2000; i++) {
+            int operation = random.nextInt(20);
+            int size = list.size();
+            if (operation < 6 || size == 0) {
+                list.add(random.nextInt(100));
+            } else if (operation < 9) {
+                list.add(random.nextInt(size + 1), random.nextInt(100));
+            } else if (operation < 12) {
+                list.remove(random.nextInt(size));
+            } else if (operation < 15) {
+                list.set(random.nextInt(size), random.nextInt(100));
+            } else if (operation < 17) {
+                list.addAll(random.nextInt(size + 1), Arrays.asList(random.nextInt(100), random.nextInt(100)));
+            } else if (operation < 18) {
+                list.removeAll(Collections.singleton(random.nextInt(100)));
+            } else if (operation < 19) {
+                list.remove(Integer.valueOf(1000));
+            } else if (random.nextInt(5) == 0) {
+                list.clear();
+            }
+        }
+
+        Path path = folder.newFile().toPath();
+        list.save(path, Codec.INTEGER);
+        PersistentLinkedList<Integer> loaded = PersistentLinkedList.load(path, Codec.INTEGER);
+
+        assertEquals(list.getCurrentVersion(), loaded.getCurrentVersion());
+        for (int version = 0; version <= list.getCurrentVersion(); version++)
+            assertEquals(Arrays.asList(list.toArray(version)), Arrays.asList(loaded.toArray(version)));
+    }
+
+    @Test
+    public void arrayRoundTrip() throws Exception {
+        Random random = new Random(3);
+        PersistentArray<String> array = new PersistentArray<>(4);
+        for (int i = 0; i < 2000; i++) {
+            int operation = random.nextInt(3);
+            if (operation == 0 || array.getLength() == 0)
+                array.add("a" + random.nextInt(100));
+            else if (operation == 1)
+                array.removeLast();
+            else
+                array.replace(random.nextInt(array.getLength()), random.nextInt(10) == 0 ? null : "r" + i);
+        }
+
+        Path path = folder.newFile().toPath();
+        array.save(path, Codec.STRING);
+        PersistentArray<String> loaded = PersistentArray.load(path, Codec.STRING);
+
+        assertEquals(array.getCurrentVersion(), loaded.getCurrentVersion());
+        for (int version = 0; version <= array.getCurrentVersion(); version++) {
+            assertEquals(array.getLength(version), loaded.getLength(version));
+            for (int index = 0; index < array.getLength(version); index++)
+                assertEquals(array.get(index, version), loaded.get(index, version));
+        }
+    }
+
+    @Test
+    public void emptyHistories() throws Exception {
+        Path path = folder.newFile().toPath();
+        new PersistentLinkedList<Integer>().save(path, Codec.INTEGER);
+        assertEquals(0, PersistentLinkedList.load(path, Codec.INTEGER).getCurrentVersion());
+        new PersistentMap<Integer, Integer>().save(path, Codec.INTEGER, Codec.INTEGER);
+        assertEquals(0, PersistentMap.load(path, Codec.INTEGER, Codec.INTEGER).size());
+    }
+
+    @Test
+    public void wrongStructure() throws Exception {
+        Path path = folder.newFile().toPath();
+        new PersistentArray<String>().save(path, Codec.STRING);
+        ex.expect(IOException.class);
+        PersistentMap.load(path, Codec.STRING, Codec.STRING);
+    }
+
+    @Test
+    public void truncatedFile() throws Exception {
+        Path path = folder.newFile().toPath();
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        for (int i = 0; i < 100; i++)
+            map.put(i, i);
+        map.save(path, Codec.INTEGER, Codec.INTEGER);
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length / 2));
+        ex.expect(IOException.class);
+        PersistentMap.load(path, Codec.INTEGER, Codec.INTEGER);
+    }
+}
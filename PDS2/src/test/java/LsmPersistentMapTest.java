@@ -0,0 +1,121 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class LsmPersistentMapTest {
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Applies random writes to the map and returns the expected state of every version.
+     */
+    private static List<Map<Integer, String>> write(LsmPersistentMap<Integer, String> map, Random random, int operations,
+                                                    List<Map<Integer, String>> states) {
+        for (int i = 0; i < operations; i++) {
+            Map<Integer, String> state = new HashMap<>(states.get(states.size() - 1));
+            int key = random.nextInt(200);
+            if (random.nextInt(4) == 0) {
+                map.remove(key);
+                state.remove(key);
+            } else {
+                String value = random.nextInt(20) == 0 ? null : "v" + random.nextInt(1000);
+                map.put(key, value);
+                state.put(key, value);
+            }
+            states.add(state);
+        }
+        return states;
+    }
+
+    private static void assertStates(LsmPersistentMap<Integer, String> map, List<Map<Integer, String>> states, int fromVersion) {
+        assertEquals(states.size() - 1, map.getCurrentVersion());
+        for (int version = fromVersion; version < states.size(); version++) {
+            Map<Integer, String> state = states.get(version);
+            for (int key = -1; key <= 200; key++) {
+                assertEquals(state.containsKey(key), map.containsKey(key, version));
+                assertEquals(state.get(key), map.get(key, version));
+            }
+        }
+    }
+
+    @Test
+    public void readsEveryVersion() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (LsmPersistentMap<Integer, String> map = LsmPersistentMap.open(directory, Codec.INTEGER, Codec.STRING, 100, 1000)) {
+            List<Map<Integer, String>> states = write(map, new Random(1), 1050, new ArrayList<>(Collections.singletonList(new HashMap<>())));
+            assertEquals(10, map.getSegmentCount());
+            assertStates(map, states, 0);
+        }
+    }
+
+    @Test
+    public void reopens() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<Map<Integer, String>> states = new ArrayList<>(Collections.singletonList(new HashMap<>()));
+        try (LsmPersistentMap<Integer, String> map = LsmPersistentMap.open(directory, Codec.INTEGER, Codec.STRING, 64, 4)) {
+            write(map, new Random(2), 1000, states);
+        }
+        try (LsmPersistentMap<Integer, String> map = LsmPersistentMap.open(directory, Codec.INTEGER, Codec.STRING, 64, 4)) {
+            assertEquals(true, map.getSegmentCount() < 8);
+            assertStates(map, states, 0);
+            write(map, new Random(3), 300, states);
+            assertStates(map, states, 0);
+        }
+    }
+
+    @Test
+    public void compactionRespectsRetentionFloor() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<Map<Integer, String>> states = new ArrayList<>(Collections.singletonList(new HashMap<>()));
+        try (LsmPersistentMap<Integer, String> map = LsmPersistentMap.open(directory, Codec.INTEGER, Codec.STRING, 100, 1000)) {
+            write(map, new Random(4), 2000, states);
+            map.setRetentionFloor(1500);
+            map.flush();
+            map.compact();
+            assertEquals(1, map.getSegmentCount());
+            assertEquals(1500, map.getRetentionFloor());
+            assertStates(map, states, 1500);
+        }
+        try (LsmPersistentMap<Integer, String> map = LsmPersistentMap.open(directory, Codec.INTEGER, Codec.STRING)) {
+            assertEquals(1500, map.getRetentionFloor());
+            assertStates(map, states, 1500);
+            ex.expect(NoSuchElementException.class);
+            ex.expectMessage(PersistentExceptionsMessege.NO_SUCH_VERSION);
+            map.get(1, 1499);
+        }
+    }
+
+    @Test
+    public void backgroundCompactionBoundsSegments() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<Map<Integer, String>> states = new ArrayList<>(Collections.singletonList(new HashMap<>()));
+        try (LsmPersistentMap<Integer, String> map = LsmPersistentMap.open(directory, Codec.INTEGER, Codec.STRING, 50, 3)) {
+            write(map, new Random(5), 3000, states);
+            assertStates(map, states, 0);
+        }
+        try (LsmPersistentMap<Integer, String> map = LsmPersistentMap.open(directory, Codec.INTEGER, Codec.STRING, 50, 3)) {
+            assertEquals(true, map.getSegmentCount() < 10);
+            assertStates(map, states, 0);
+        }
+    }
+
+    @Test
+    public void readOfFutureVersion() throws Exception {
+        try (LsmPersistentMap<Integer, String> map = LsmPersistentMap.open(folder.getRoot().toPath(), Codec.INTEGER, Codec.STRING)) {
+            map.put(1, "one");
+            ex.expect(NoSuchElementException.class);
+            ex.expectMessage(PersistentExceptionsMessege.NO_SUCH_VERSION);
+            map.get(1, 2);
+        }
+    }
+}
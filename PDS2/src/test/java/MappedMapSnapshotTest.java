@@ -0,0 +1,101 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class MappedMapSnapshotTest {
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<Integer> keys(Iterator<Map.Entry<Integer, String>> entries) {
+        List<Integer> keys = new ArrayList<>();
+        entries.forEachRemaining(entry -> keys.add(entry.getKey()));
+        return keys;
+    }
+
+    @Test
+    public void getAndContainsKey() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        for (int i = 0; i < 1000; i++)
+            map.put(i * 2, "v" + i);
+        map.put(10, null);
+        int version = map.getCurrentVersion();
+        map.put(1, "later");
+        Path path = folder.getRoot().toPath().resolve("map.mapped");
+        map.exportMapped(version, path, Codec.INTEGER, Codec.STRING);
+
+        MappedMapSnapshot<Integer, String> snapshot = MappedMapSnapshot.open(path, Codec.INTEGER, Codec.STRING);
+        assertEquals(version, snapshot.getVersion());
+        assertEquals(1000, snapshot.size());
+        for (int key = -1; key <= 2000; key++) {
+            assertEquals(map.containsKey(key, version), snapshot.containsKey(key));
+            assertEquals(map.get(key, version), snapshot.get(key));
+        }
+    }
+
+    @Test
+    public void conditionalWrites() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        for (int i = 0; i < 200; i++) {
+            map.put(i, "v" + i);
+            map.putIfAbsent(1000 + i, "w" + i);
+            map.computeIfAbsent(2000 + i, k -> "x");
+        }
+        Path path = folder.getRoot().toPath().resolve("map.mapped");
+        map.exportMapped(map.getCurrentVersion(), path, Codec.INTEGER, Codec.STRING);
+
+        MappedMapSnapshot<Integer, String> snapshot = MappedMapSnapshot.open(path, Codec.INTEGER, Codec.STRING);
+        assertEquals(600, snapshot.size());
+        assertEquals(new ArrayList<>(new TreeSet<>(map.keySet())), keys(snapshot.entryIterator()));
+        assertEquals("w7", snapshot.get(1007));
+        assertEquals(false, snapshot.containsKey(3000));
+    }
+
+    @Test
+    public void rangeScans() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        for (int i = 0; i < 500; i++)
+            map.put(i * 3, "v" + i);
+        Path path = folder.getRoot().toPath().resolve("map.mapped");
+        map.exportMapped(map.getCurrentVersion(), path, Codec.INTEGER, Codec.STRING);
+        MappedMapSnapshot<Integer, String> snapshot = MappedMapSnapshot.open(path, Codec.INTEGER, Codec.STRING);
+
+        assertEquals(new ArrayList<>(new TreeSet<>(map.keySet())), keys(snapshot.entryIterator()));
+        assertEquals(new ArrayList<>(map.subMap(100, 700).keySet()), keys(snapshot.entryIterator(100, 700)));
+        assertEquals(new ArrayList<>(map.subMap(99, 701).keySet()), keys(snapshot.entryIterator(99, 701)));
+        assertEquals(new ArrayList<>(map.headMap(200).keySet()), keys(snapshot.entryIterator(null, 200)));
+        assertEquals(new ArrayList<>(map.tailMap(1400).keySet()), keys(snapshot.entryIterator(1400, null)));
+        assertEquals(Collections.emptyList(), keys(snapshot.entryIterator(700, 100)));
+    }
+
+    @Test
+    public void emptyMap() throws Exception {
+        PersistentMap<String, String> map = new PersistentMap<>();
+        Path path = folder.getRoot().toPath().resolve("empty.mapped");
+        map.exportMapped(0, path, Codec.STRING, Codec.STRING);
+        MappedMapSnapshot<String, String> snapshot = MappedMapSnapshot.open(path, Codec.STRING, Codec.STRING);
+        assertEquals(true, snapshot.isEmpty());
+        assertEquals(false, snapshot.containsKey("a"));
+        assertEquals(false, snapshot.entryIterator().hasNext());
+    }
+
+    @Test
+    public void corruptedFile() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("corrupted.mapped");
+        Files.write(path, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24});
+        ex.expect(IOException.class);
+        ex.expectMessage(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+        MappedMapSnapshot.open(path, Codec.INTEGER, Codec.STRING);
+    }
+}
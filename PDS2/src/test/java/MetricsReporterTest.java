@@ -0,0 +1,61 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class MetricsReporterTest {
+
+    @Test
+    public void exportsPeriodicallyAndOnClose() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        List<String> exported = Collections.synchronizedList(new ArrayList<>());
+        MetricsReporter reporter = MetricsReporter.start((name, metrics) -> exported.add(name), 10, TimeUnit.MILLISECONDS);
+        reporter.register("orders", map.enableMetrics());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (exported.size() < 3 && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        reporter.close();
+        int exports = exported.size();
+        assertEquals(true, exports >= 4);
+        assertEquals(Collections.nCopies(exports, "orders"), exported);
+        Thread.sleep(30);
+        assertEquals(exports, exported.size());
+    }
+
+    @Test
+    public void textFormat() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        StructureMetrics metrics = map.enableMetrics();
+        map.put(1, "one");
+        map.remove(1);
+        StringBuilder out = new StringBuilder();
+        new TextMetricsExporter(out).export("orders", metrics);
+        List<String> names = new ArrayList<>();
+        for (String line : out.toString().split("\n"))
+            names.add(line.substring(0, line.indexOf(' ')));
+        assertEquals(true, out.toString().contains("orders.put.count 1\n"));
+        assertEquals(true, out.toString().contains("orders.tombstoneRatio 1.000\n"));
+        assertEquals(false, names.contains("orders.get.count"));
+        // six lines per operation type, the versions, four for the history lengths and the tombstone ratio
+        assertEquals(2 * 6 + 6, names.size());
+    }
+
+    @Test
+    public void failedExportRecorded() throws Exception {
+        MetricsReporter reporter = MetricsReporter.start((name, metrics) -> {
+            throw new IOException("unreachable");
+        }, 1, TimeUnit.MILLISECONDS);
+        reporter.register("list", new PersistentLinkedList<String>().enableMetrics());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (null == reporter.getFailure() && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        assertEquals("unreachable", reporter.getFailure().getMessage());
+        reporter.unregister("list");
+        reporter.close();
+    }
+}
@@ -0,0 +1,109 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class OffHeapPersistentMapTest {
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Test
+    public void readsEveryVersion() {
+        OffHeapPersistentMap<Integer, String> map = new OffHeapPersistentMap<>(Codec.STRING, 256);
+        List<Map<Integer, String>> states = new ArrayList<>(Collections.singletonList(new HashMap<>()));
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            Map<Integer, String> state = new HashMap<>(states.get(states.size() - 1));
+            int key = random.nextInt(50);
+            if (random.nextInt(4) == 0) {
+                map.remove(key);
+                state.remove(key);
+            } else {
+                String value = random.nextInt(20) == 0 ? null : "value" + random.nextInt(1000);
+                map.put(key, value);
+                state.put(key, value);
+            }
+            states.add(state);
+        }
+        assertEquals(2000, map.getCurrentVersion());
+        for (int version = 0; version <= 2000; version++) {
+            Map<Integer, String> state = states.get(version);
+            assertEquals(state.size(), map.size(version));
+            for (int key = 0; key < 50; key++) {
+                assertEquals(state.containsKey(key), map.containsKey(key, version));
+                assertEquals(state.get(key), map.get(key, version));
+            }
+        }
+    }
+
+    @Test
+    public void viewSharesSlab() {
+        OffHeapPersistentMap<String, byte[]> map = new OffHeapPersistentMap<>(Codec.BYTES);
+        map.put("a", new byte[]{1, 2, 3});
+        map.put("b", null);
+        ByteBuffer view = map.getView("a");
+        assertEquals(true, view.isDirect());
+        assertEquals(true, view.isReadOnly());
+        // the encoding of a byte array is its length followed by its bytes
+        assertEquals(4, view.remaining());
+        assertEquals(3, view.get(0));
+        assertEquals(2, view.get(2));
+        assertEquals(null, map.getView("b"));
+        assertEquals(null, map.getView("c"));
+        ex.expect(ReadOnlyBufferException.class);
+        view.put(0, (byte) 9);
+    }
+
+    @Test
+    public void pruningReclaimsSlabs() {
+        OffHeapPersistentMap<Integer, byte[]> map = new OffHeapPersistentMap<>(Codec.BYTES, 4096);
+        for (int i = 0; i < 10000; i++)
+            map.put(i % 100, new byte[100]);
+        long held = map.getOffHeapBytes();
+        assertEquals(true, held >= 10000 * 100);
+
+        map.pruneBefore(map.getCurrentVersion());
+        long live = map.getLiveOffHeapBytes();
+        assertEquals(100L * (4 + 101), live);
+        assertEquals(true, map.getOffHeapBytes() <= live + 3 * 4096);
+        for (int key = 0; key < 100; key++)
+            assertEquals(100, map.get(key).length);
+
+        // freed slabs are reused rather than allocated again
+        for (int i = 0; i < 10000; i++)
+            map.put(i % 100, new byte[100]);
+        map.pruneBefore(map.getCurrentVersion());
+        assertEquals(live, map.getLiveOffHeapBytes());
+    }
+
+    @Test
+    public void largeValuesGetDedicatedSlabs() {
+        OffHeapPersistentMap<Integer, byte[]> map = new OffHeapPersistentMap<>(Codec.BYTES, 1024);
+        map.put(1, new byte[5000]);
+        map.put(1, new byte[6000]);
+        map.remove(1);
+        assertEquals(true, map.getOffHeapBytes() >= 11000);
+        assertEquals(5000, map.get(1, 1).length);
+        map.pruneBefore(3);
+        assertEquals(0L, map.getOffHeapBytes());
+        assertEquals(false, map.containsKey(1));
+    }
+
+    @Test
+    public void readOfPrunedVersion() {
+        OffHeapPersistentMap<Integer, String> map = new OffHeapPersistentMap<>(Codec.STRING);
+        map.put(1, "one");
+        map.put(1, "uno");
+        map.pruneBefore(2);
+        assertEquals("uno", map.get(1, 2));
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        map.get(1, 1);
+    }
+}
@@ -3,7 +3,11 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 
@@ -112,4 +116,105 @@ public class PersistentArrayTest {
         array.removeLast();
     }
 
-}
\ No newline at end of file
+
+    @Test
+    public void getLengthAfterReplace() throws Exception {
+        array = new PersistentArray<>(2);
+        array.replace(0, 1);
+        assertEquals(array.getLength(1), 2);
+    }
+
+    @Test
+    public void concurrentReaders() throws Exception {
+        array = new PersistentArray<>(0);
+        PersistentArray<Integer> shared = array;
+        int size = 20000;
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                while (!done.get() && failure.get() == null) {
+                    int version = shared.getCurrentVersion();
+                    if (shared.getLength(version) != version)
+                        failure.set("length " + shared.getLength(version) + " at version " + version);
+                    if (version > 0 && shared.get(version - 1, version) != version - 1)
+                        failure.set("element " + (version - 1) + " at version " + version);
+                }
+            });
+            readers[r].start();
+        }
+        for (int i = 0; i < size; i++)
+            shared.add(i);
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        assertEquals(null, failure.get());
+        assertEquals(size, shared.getCurrentVersion());
+    }
+
+    @Test
+    public void readersNeverSeeUnpublishedLength() throws Exception {
+        array = new PersistentArray<>(0);
+        PersistentArray<Integer> shared = array;
+        int size = 20000;
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!done.get() && failure.get() == null) {
+                int next = shared.getCurrentVersion() + 1;
+                try {
+                    int length = shared.getLength(next);
+                    // the length of a version may only be read once the version is published
+                    if (shared.getCurrentVersion() < next || length != next)
+                        failure.set("length " + length + " of unpublished version " + next);
+                } catch (NoSuchElementException e) {
+                    // not published yet
+                } catch (RuntimeException e) {
+                    failure.set(e.toString());
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < size; i++)
+            shared.add(i);
+        done.set(true);
+        reader.join();
+        assertEquals(null, failure.get());
+    }
+
+    @Test
+    public void getLengthOfNegativeVersion() {
+        array = new PersistentArray<>(2);
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        array.getLength(-1);
+    }
+
+    @Test
+    public void diff() {
+        array = new PersistentArray<>(3);
+        array.replace(0, 1);
+        int from = array.getCurrentVersion();
+        array.replace(1, 2);
+        array.add(4);
+        array.replace(0, 5);
+        array.replace(0, 1);
+        array.removeLast();
+        array.removeLast();
+        int to = array.getCurrentVersion();
+
+        Map<Integer, DiffEntry<Integer, Integer>> diff = new HashMap<>();
+        array.diff(from, to).forEachRemaining(entry -> diff.put(entry.getKey(), entry));
+        assertEquals(2, diff.size());
+        assertEquals(DiffEntry.Kind.REMOVED, diff.get(2).getKind());
+        assertEquals(DiffEntry.Kind.CHANGED, diff.get(1).getKind());
+        assertEquals(null, diff.get(1).getOldValue());
+        assertEquals(Integer.valueOf(2), diff.get(1).getNewValue());
+
+        diff.clear();
+        array.diff(from, from + 2).forEachRemaining(entry -> diff.put(entry.getKey(), entry));
+        assertEquals(DiffEntry.Kind.ADDED, diff.get(3).getKind());
+        assertEquals(Integer.valueOf(4), diff.get(3).getNewValue());
+    }
+}
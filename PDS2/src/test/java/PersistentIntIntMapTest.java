@@ -0,0 +1,74 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+
+public class PersistentIntIntMapTest {
+
+    private PersistentIntIntMap persistentMap = null;
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Test
+    public void size() {
+        persistentMap = new PersistentIntIntMap();
+        assertEquals(0, persistentMap.size());
+        int size = 8;
+        for (int i = 0; i < size; i++) {
+            persistentMap.put(i, i);
+        }
+        assertEquals(size, persistentMap.size());
+        persistentMap.remove(0);
+        assertEquals(size - 1, persistentMap.size());
+        assertEquals(size, persistentMap.size(size));
+        persistentMap.remove(0);
+        assertEquals(size - 1, persistentMap.size());
+    }
+
+    @Test
+    public void get() {
+        persistentMap = new PersistentIntIntMap();
+        assertEquals(0, persistentMap.put(5, 10));
+        assertEquals(10, persistentMap.put(5, 0));
+        assertEquals(10, persistentMap.get(5, 1));
+        assertEquals(0, persistentMap.get(5));
+        assertEquals(true, persistentMap.containsKey(5));
+        assertEquals(0, persistentMap.remove(5));
+        assertEquals(false, persistentMap.containsKey(5));
+        assertEquals(-1, persistentMap.getOrDefault(5, -1));
+        assertEquals(0, persistentMap.getOrDefault(5, -1, 2));
+        assertEquals(-1, persistentMap.getOrDefault(6, -1, 2));
+        assertEquals(0, persistentMap.remove(5));
+        assertEquals(4, persistentMap.getCurrentVersion());
+        assertEquals(0, persistentMap.size(4));
+    }
+
+    @Test
+    public void rehashKeepsHistory() {
+        persistentMap = new PersistentIntIntMap();
+        int size = 1000;
+        for (int i = 0; i < size; i++) {
+            persistentMap.put(-i * 64, i);
+        }
+        for (int i = 0; i < size; i += 2) {
+            persistentMap.put(-i * 64, -i);
+        }
+        for (int i = 0; i < size; i++) {
+            assertEquals(i, persistentMap.get(-i * 64, size));
+            assertEquals(i % 2 == 0 ? -i : i, persistentMap.get(-i * 64));
+            assertEquals(false, persistentMap.containsKey(-i * 64, i));
+        }
+        assertEquals(size, persistentMap.size());
+    }
+
+    @Test
+    public void getWrongVersion() {
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        new PersistentIntIntMap().get(0, 3);
+    }
+}
@@ -3,6 +3,8 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 
@@ -370,4 +372,103 @@ public class PersistentLinkedListTest {
         ex.expect(UnsupportedOperationException.class);
         new PersistentLinkedList<>().toArray(new Object[5]);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void concurrentReaders() throws Exception {
+        persistentLinkedList = new PersistentLinkedList<>();
+        PersistentLinkedList<Integer> list = persistentLinkedList;
+        int size = 3000;
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                while (!done.get() && failure.get() == null) {
+                    int version = list.getCurrentVersion();
+                    Object[] array = list.toArray(version);
+                    if (array.length != version)
+                        failure.set("length " + array.length + " at version " + version);
+                    for (int i = 0; i < array.length; i++) {
+                        if (!Integer.valueOf(i).equals(array[i]))
+                            failure.set("element " + i + " at version " + version);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        for (int i = 0; i < size; i++)
+            list.add(i);
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        assertEquals(null, failure.get());
+        assertEquals(size, list.getCurrentVersion());
+    }
+
+    @Test
+    public void getHistoricalVersion() {
+        persistentLinkedList = new PersistentLinkedList<>();
+        persistentLinkedList.add(1);
+        persistentLinkedList.add(2);
+        persistentLinkedList.remove(1);
+        assertEquals(2, persistentLinkedList.get(1, 2));
+        assertEquals(1, persistentLinkedList.size());
+    }
+
+    @Test
+    public void diff() {
+        persistentLinkedList = new PersistentLinkedList<>(Arrays.asList(1, 2, 3, 4));
+        persistentLinkedList.remove(1);
+        persistentLinkedList.set(1, 30);
+        persistentLinkedList.add(5);
+        persistentLinkedList.add(0, 6);
+        persistentLinkedList.remove(0);
+
+        List<DiffEntry<Integer, Integer>> diff = new ArrayList<>();
+        persistentLinkedList.diff(0, persistentLinkedList.getCurrentVersion()).forEachRemaining(diff::add);
+        assertEquals(3, diff.size());
+        assertEquals(DiffEntry.Kind.REMOVED, diff.get(0).getKind());
+        assertEquals(Integer.valueOf(2), diff.get(0).getOldValue());
+        assertEquals(Integer.valueOf(1), diff.get(0).getKey());
+        assertEquals(DiffEntry.Kind.CHANGED, diff.get(1).getKind());
+        assertEquals(Integer.valueOf(1), diff.get(1).getKey());
+        assertEquals(Integer.valueOf(3), diff.get(1).getOldValue());
+        assertEquals(Integer.valueOf(30), diff.get(1).getNewValue());
+        assertEquals(DiffEntry.Kind.ADDED, diff.get(2).getKind());
+        assertEquals(Integer.valueOf(5), diff.get(2).getNewValue());
+        assertEquals(Integer.valueOf(3), diff.get(2).getKey());
+    }
+
+    @Test
+    public void diffAcrossClear() {
+        persistentLinkedList = new PersistentLinkedList<>(Arrays.asList(1, 2, 3));
+        persistentLinkedList.clear();
+        persistentLinkedList.add(4);
+        int to = persistentLinkedList.getCurrentVersion();
+
+        List<DiffEntry<Integer, Integer>> diff = new ArrayList<>();
+        persistentLinkedList.diff(0, to).forEachRemaining(diff::add);
+        assertEquals(4, diff.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(DiffEntry.Kind.REMOVED, diff.get(i).getKind());
+            assertEquals(Integer.valueOf(i + 1), diff.get(i).getOldValue());
+            assertEquals(Integer.valueOf(i), diff.get(i).getKey());
+        }
+        assertEquals(DiffEntry.Kind.ADDED, diff.get(3).getKind());
+        assertEquals(Integer.valueOf(0), diff.get(3).getKey());
+
+        diff.clear();
+        persistentLinkedList.diff(to, 0).forEachRemaining(diff::add);
+        assertEquals(4, diff.size());
+        assertEquals(DiffEntry.Kind.ADDED, diff.get(0).getKind());
+        assertEquals(DiffEntry.Kind.REMOVED, diff.get(3).getKind());
+    }
+
+    @Test
+    public void unpublishedVersionIsRejected() {
+        PersistentLinkedList<Integer> list = new PersistentLinkedList<>(Arrays.asList(1, 2));
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        list.replaceAll(e -> list.get(0, list.getCurrentVersion() + 1));
+    }
+}
@@ -0,0 +1,137 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+
+public class PersistentLongMapTest {
+
+    private PersistentLongMap<String> persistentMap = null;
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Test
+    public void size() {
+        persistentMap = new PersistentLongMap<>();
+        assertEquals(0, persistentMap.size());
+        int size = 8;
+        for (int i = 0; i < size; i++) {
+            persistentMap.put(i, "object");
+        }
+        assertEquals(size, persistentMap.size());
+        persistentMap.remove(0);
+        assertEquals(size - 1, persistentMap.size());
+        assertEquals(size, persistentMap.size(size));
+        persistentMap.remove(0);
+        assertEquals(size - 1, persistentMap.size());
+    }
+
+    @Test
+    public void sizeWrongVersion() {
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        new PersistentLongMap<>().size(3);
+    }
+
+    @Test
+    public void containsKey() {
+        persistentMap = new PersistentLongMap<>();
+        persistentMap.put(0, "0");
+        assertEquals(true, persistentMap.containsKey(0));
+        assertEquals(false, persistentMap.containsKey(1));
+        persistentMap.put(1, "1");
+        assertEquals(false, persistentMap.containsKey(1, 1));
+        assertEquals(true, persistentMap.containsKey(1, 2));
+        persistentMap.remove(0);
+        assertEquals(false, persistentMap.containsKey(0, 3));
+        assertEquals(true, persistentMap.containsKey(0, 2));
+    }
+
+    @Test
+    public void get() {
+        persistentMap = new PersistentLongMap<>();
+        persistentMap.put(0, "0");
+        assertEquals("0", persistentMap.get(0));
+        assertEquals("0", persistentMap.put(0, "1"));
+        assertEquals("0", persistentMap.get(0, 1));
+        assertEquals("1", persistentMap.get(0, 2));
+        assertEquals(null, persistentMap.get(1));
+        assertEquals("1", persistentMap.remove(0));
+        assertEquals(null, persistentMap.get(0));
+        assertEquals("default", persistentMap.getOrDefault(0, "default"));
+        assertEquals(null, persistentMap.put(0, "2"));
+        assertEquals("2", persistentMap.get(0));
+        assertEquals(null, persistentMap.get(0, 3));
+    }
+
+    @Test
+    public void getWrongVersion() {
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        new PersistentLongMap<>().get(0, 3);
+    }
+
+    @Test
+    public void rehashKeepsHistory() {
+        persistentMap = new PersistentLongMap<>();
+        int size = 1000;
+        for (int i = 0; i < size; i++) {
+            persistentMap.put(i * 64, String.valueOf(i));
+        }
+        for (int i = 0; i < size; i += 2) {
+            persistentMap.put(i * 64, "updated");
+        }
+        for (int i = 0; i < size; i++) {
+            assertEquals(String.valueOf(i), persistentMap.get(i * 64, size));
+            assertEquals(i % 2 == 0 ? "updated" : String.valueOf(i), persistentMap.get(i * 64));
+            assertEquals(false, persistentMap.containsKey(i * 64, i));
+        }
+        assertEquals(size, persistentMap.size());
+    }
+
+    @Test
+    public void wideKeys() {
+        persistentMap = new PersistentLongMap<>();
+        persistentMap.put(1L << 40, "high");
+        persistentMap.put(1L, "low");
+        assertEquals("high", persistentMap.get(1L << 40));
+        assertEquals("low", persistentMap.get(1L));
+        assertEquals(null, persistentMap.get((1L << 40) + 1));
+    }
+
+    @Test
+    public void concurrentReaders() throws Exception {
+        persistentMap = new PersistentLongMap<>();
+        PersistentLongMap<String> shared = persistentMap;
+        int size = 20000;
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                while (!done.get() && failure.get() == null) {
+                    int version = shared.getCurrentVersion();
+                    if (shared.size(version) != version)
+                        failure.set("size " + shared.size(version) + " at version " + version);
+                    if (version > 0 && !String.valueOf(version - 1).equals(shared.get((version - 1) * 64, version)))
+                        failure.set("key " + (version - 1) + " at version " + version);
+                    if (shared.containsKey(version * 64, version))
+                        failure.set("key " + version + " before its version");
+                }
+            });
+            readers[r].start();
+        }
+        for (int i = 0; i < size; i++)
+            shared.put(i * 64, String.valueOf(i));
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        assertEquals(null, failure.get());
+        assertEquals(size, shared.getCurrentVersion());
+    }
+}
@@ -0,0 +1,122 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+
+public class PersistentMapBranchTest {
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    private PersistentMap<String, Integer> mapOf(int size) {
+        PersistentMap<String, Integer> map = new PersistentMap<>();
+        for (int i = 0; i < size; i++)
+            map.put("k" + i, i);
+        return map;
+    }
+
+    @Test
+    public void forkSharesParentVersion() {
+        PersistentMap<String, Integer> map = mapOf(5);
+        PersistentMapBranch<String, Integer> branch = map.fork(3);
+        map.put("k0", 100);
+
+        assertEquals(0, branch.getCurrentVersion());
+        assertEquals(3, branch.size());
+        assertEquals(Integer.valueOf(0), branch.get("k0"));
+        assertEquals(false, branch.containsKey("k3"));
+
+        branch.put("k0", 7);
+        branch.put("x", 1);
+        branch.remove("k1");
+        branch.remove("absent");
+        assertEquals(3, branch.getCurrentVersion());
+        assertEquals(3, branch.size());
+        assertEquals(Integer.valueOf(7), branch.get("k0"));
+        assertEquals(null, branch.get("k1"));
+        assertEquals(false, branch.containsKey("k1"));
+        assertEquals(true, branch.containsKey("k1", 2));
+        assertEquals(4, branch.size(2));
+        assertEquals(Integer.valueOf(100), map.get("k0"));
+        assertEquals(false, map.containsKey("x"));
+    }
+
+    @Test
+    public void mergeWithoutConflicts() {
+        PersistentMap<String, Integer> map = mapOf(4);
+        PersistentMapBranch<String, Integer> branch = map.fork(map.getCurrentVersion());
+        branch.put("k0", 10);
+        branch.remove("k1");
+        branch.put("new", 1);
+        branch.put("k2", 20);
+        branch.put("k2", 2);
+        map.put("k3", 30);
+        map.put("other", 5);
+
+        int before = map.getCurrentVersion();
+        int version = map.merge(branch, (key, base, ours, theirs) -> {
+            throw new AssertionError("unexpected conflict on " + key);
+        });
+        assertEquals(before + 1, version);
+        assertEquals(Integer.valueOf(10), map.get("k0"));
+        assertEquals(false, map.containsKey("k1"));
+        assertEquals(Integer.valueOf(1), map.get("new"));
+        assertEquals(Integer.valueOf(2), map.get("k2"));
+        assertEquals(Integer.valueOf(30), map.get("k3"));
+        assertEquals(Integer.valueOf(5), map.get("other"));
+        assertEquals(5, map.size());
+    }
+
+    @Test
+    public void mergeResolvesConflicts() {
+        PersistentMap<String, Integer> map = mapOf(3);
+        PersistentMapBranch<String, Integer> branch = map.fork(map.getCurrentVersion());
+        branch.put("k0", 10);
+        branch.put("k1", 11);
+        branch.remove("k2");
+        map.put("k0", 100);
+        map.put("k1", 11);
+        map.put("k2", 200);
+
+        int before = map.getCurrentVersion();
+        map.merge(branch, (key, base, ours, theirs) -> {
+            if (key.equals("k0"))
+                return ours + theirs + base;
+            assertEquals("k2", key);
+            assertEquals(null, theirs);
+            return null;
+        });
+        assertEquals(Integer.valueOf(110), map.get("k0"));
+        assertEquals(Integer.valueOf(11), map.get("k1"));
+        assertEquals(false, map.containsKey("k2"));
+        assertEquals(2, map.size());
+        assertEquals(Integer.valueOf(100), map.get("k0", before));
+    }
+
+    @Test
+    public void mergeWithoutChanges() {
+        PersistentMap<String, Integer> map = mapOf(3);
+        PersistentMapBranch<String, Integer> branch = map.fork(1);
+        branch.put("k0", 5);
+        branch.put("k0", 0);
+        int before = map.getCurrentVersion();
+        assertEquals(before, map.merge(branch, (key, base, ours, theirs) -> theirs));
+        assertEquals(before, map.getCurrentVersion());
+    }
+
+    @Test
+    public void mergeForeignBranch() {
+        PersistentMapBranch<String, Integer> branch = mapOf(1).fork(0);
+        ex.expect(IllegalArgumentException.class);
+        mapOf(1).merge(branch, (key, base, ours, theirs) -> theirs);
+    }
+
+    @Test
+    public void forkMissingVersion() {
+        ex.expect(NoSuchElementException.class);
+        mapOf(1).fork(2);
+    }
+}
@@ -0,0 +1,138 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class PersistentMapServerTest {
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    private PersistentMapServer<Integer, String> server;
+
+    @Before
+    public void start() throws Exception {
+        server = PersistentMapServer.start(new PersistentMap<>(), Codec.INTEGER, Codec.STRING,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void stop() throws Exception {
+        server.close();
+    }
+
+    private PersistentMapClient<Integer, String> connect() throws Exception {
+        return PersistentMapClient.connect(server.getAddress(), Codec.INTEGER, Codec.STRING);
+    }
+
+    @Test
+    public void versionedReadsAndWrites() throws Exception {
+        try (PersistentMapClient<Integer, String> client = connect()) {
+            assertEquals(1, client.put(1, "one"));
+            assertEquals(2, client.put(2, null));
+            assertEquals(3, client.put(1, "uno"));
+            assertEquals(4, client.remove(2));
+            assertEquals(4, client.getCurrentVersion());
+            assertEquals("one", client.get(1, 1));
+            assertEquals("uno", client.get(1));
+            assertEquals(null, client.get(2, 2));
+            assertEquals(2, client.size(2));
+            assertEquals(1, client.size());
+            assertEquals("uno", server.getMap().get(1));
+        }
+    }
+
+    @Test
+    public void scansRanges() throws Exception {
+        try (PersistentMapClient<Integer, String> client = connect()) {
+            for (int i = 0; i < 10; i++)
+                client.put(i, "v" + i);
+            client.remove(3);
+            List<Map.Entry<Integer, String>> range = client.scan(2, 6, 11, 0);
+            assertEquals(Arrays.asList(2, 4, 5), keys(range));
+            assertEquals("v4", range.get(1).getValue());
+            assertEquals(Arrays.asList(2, 3, 4, 5), keys(client.scan(2, 6, 10, 0)));
+            assertEquals(Arrays.asList(7, 8, 9), keys(client.scan(7, null, 11, 0)));
+            assertEquals(Arrays.asList(0, 1), keys(client.scan(null, 2, 11, 0)));
+            assertEquals(Arrays.asList(0, 1, 2, 4), keys(client.scan(null, null, 11, 4)));
+        }
+    }
+
+    private static List<Integer> keys(List<Map.Entry<Integer, String>> entries) {
+        List<Integer> keys = new ArrayList<>();
+        for (Map.Entry<Integer, String> entry : entries)
+            keys.add(entry.getKey());
+        return keys;
+    }
+
+    @Test
+    public void pipelinesRequests() throws Exception {
+        try (PersistentMapClient<Integer, String> client = connect()) {
+            PersistentMapClient<Integer, String>.Pipeline pipeline = client.pipeline();
+            List<PersistentMapClient.Reply<Integer>> versions = new ArrayList<>();
+            for (int i = 0; i < 5000; i++)
+                versions.add(pipeline.put(i % 100, "v" + i));
+            PersistentMapClient.Reply<String> value = pipeline.get(42, 43);
+            PersistentMapClient.Reply<Integer> size = pipeline.size();
+            pipeline.sync();
+            for (int i = 0; i < 5000; i++)
+                assertEquals(i + 1, (int) versions.get(i).get());
+            assertEquals("v42", value.get());
+            assertEquals(100, (int) size.get());
+
+            // a failed request does not affect the others of its pipeline
+            PersistentMapClient.Reply<String> missing = pipeline.get(1, 6000);
+            PersistentMapClient.Reply<String> last = pipeline.get(1);
+            pipeline.sync();
+            assertEquals("v4901", last.get());
+            ex.expect(NoSuchElementException.class);
+            ex.expectMessage(PersistentExceptionsMessege.NO_SUCH_VERSION);
+            missing.get();
+        }
+    }
+
+    @Test
+    public void servesManyClients() throws Exception {
+        List<PersistentMapClient<Integer, String>> clients = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            clients.add(connect());
+        for (int round = 0; round < 50; round++)
+            for (int i = 0; i < clients.size(); i++)
+                clients.get(i).put(i * 1000 + round, "v");
+        for (PersistentMapClient<Integer, String> client : clients) {
+            assertEquals(200, client.size());
+            client.close();
+        }
+    }
+
+    @Test
+    public void replyBeforeSync() throws Exception {
+        try (PersistentMapClient<Integer, String> client = connect()) {
+            PersistentMapClient.Reply<String> reply = client.pipeline().get(1);
+            ex.expect(IllegalStateException.class);
+            ex.expectMessage(PersistentExceptionsMessege.REPLY_NOT_READY);
+            reply.get();
+        }
+    }
+
+    @Test
+    public void loadGenerator() throws Exception {
+        try (PersistentMapServer<Integer, byte[]> loaded = PersistentMapServer.start(new PersistentMap<>(), Codec.INTEGER, Codec.BYTES,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            PersistentMapLoadGenerator.Result result = new PersistentMapLoadGenerator(loaded.getAddress(), 2, 8, 0.5, 1000, 16)
+                    .run(200, TimeUnit.MILLISECONDS);
+            assertEquals(true, result.getRequests() > 0);
+            assertEquals(0, result.getRequests() % 8);
+            assertEquals(true, result.getLatencyNanos(50) <= result.getLatencyNanos(99));
+            assertEquals(true, loaded.getMap().getCurrentVersion() > 0);
+        }
+    }
+}
@@ -3,6 +3,8 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 
@@ -248,4 +250,290 @@ public class PersistentMapTest {
         assertEquals(true, persistentMap.replace(0, "0", "2"));
         assertEquals(false, persistentMap.replace(1, "0", "2"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void subMap() {
+        persistentMap = new PersistentMap<>();
+        for (int i = 0; i < 10; i++)
+            persistentMap.put(i, String.valueOf(i));
+        persistentMap.remove(4);
+        NavigableMap<Integer, String> range = persistentMap.subMap(2, 7);
+        assertEquals(Arrays.asList(2, 3, 5, 6), new ArrayList<>(range.keySet()));
+        assertEquals(Arrays.asList(2, 3, 4, 5, 6), new ArrayList<>(persistentMap.subMap(2, 7, 10).keySet()));
+        assertEquals(Arrays.asList(6, 5, 3, 2), new ArrayList<>(range.descendingKeySet()));
+    }
+
+    @Test
+    public void headTailMap() {
+        persistentMap = new PersistentMap<>();
+        for (int i = 0; i < 5; i++)
+            persistentMap.put(i, String.valueOf(i));
+        persistentMap.remove(0);
+        assertEquals(Arrays.asList(1, 2), new ArrayList<>(persistentMap.headMap(3).keySet()));
+        assertEquals(Arrays.asList(0, 1, 2, 3), new ArrayList<>(persistentMap.headMap(3, true, 5).keySet()));
+        assertEquals(Arrays.asList(3, 4), new ArrayList<>(persistentMap.tailMap(3).keySet()));
+        assertEquals(Arrays.asList(4), new ArrayList<>(persistentMap.tailMap(3, false, 5).keySet()));
+    }
+
+    @Test
+    public void rangeSkipsRemovedAndLaterKeys() {
+        persistentMap = new PersistentMap<>();
+        for (int i = 0; i < 1000; i++)
+            persistentMap.put(i, String.valueOf(i));
+        for (int i = 1; i < 999; i++)
+            persistentMap.remove(i);
+        int version = persistentMap.getCurrentVersion();
+        for (int i = 1000; i < 2000; i++)
+            persistentMap.put(i, String.valueOf(i));
+        assertEquals(999, (int) persistentMap.ceilingKey(1, version));
+        assertEquals(0, (int) persistentMap.lowerKey(999, version));
+        assertEquals(999, (int) persistentMap.lastKey(version));
+        assertEquals(Arrays.asList(0, 999), new ArrayList<>(persistentMap.tailMap(0, version).keySet()));
+        assertEquals(0, (int) persistentMap.firstKey(1));
+        assertEquals(0, (int) persistentMap.lastKey(1));
+
+        NavigableMap<Integer, String> range = persistentMap.subMap(1, true, 1500, false, version);
+        assertEquals(999, (int) range.firstKey());
+        assertEquals("999", range.get(999));
+        assertEquals(null, range.get(0));
+        assertEquals(false, range.containsKey(1200));
+        assertEquals(1, range.size());
+        NavigableMap<Integer, String> later = persistentMap.subMap(1, 1500);
+        assertEquals(999, (int) later.firstKey());
+        assertEquals(1499, (int) later.lastKey());
+        assertEquals(501, later.size());
+        assertEquals(1200, (int) later.ceilingKey(1200));
+        assertEquals(1499, (int) later.floorKey(2000));
+        assertEquals(null, later.lowerKey(999));
+        assertEquals(Arrays.asList(1499, 1498), new ArrayList<>(later.descendingMap().headMap(1497).keySet()));
+        assertEquals(Arrays.asList(1002, 1001, 1000), new ArrayList<>(later.subMap(1000, true, 1003, false).descendingKeySet().tailSet(1002)));
+        assertEquals(Arrays.asList(1499), new ArrayList<>(later.tailMap(1499, true).tailMap(0).keySet()));
+    }
+
+    @Test
+    public void rangeIsReadOnly() {
+        persistentMap = new PersistentMap<>();
+        persistentMap.put(0, "0");
+        ex.expect(UnsupportedOperationException.class);
+        persistentMap.headMap(1).pollFirstEntry();
+    }
+
+    @Test
+    public void subMapInvertedRange() {
+        persistentMap = new PersistentMap<>();
+        ex.expect(IllegalArgumentException.class);
+        ex.expectMessage(PersistentExceptionsMessege.ILLEGAL_RANGE);
+        persistentMap.subMap(7, 2);
+    }
+
+    @Test
+    public void navigationKeys() {
+        persistentMap = new PersistentMap<>();
+        persistentMap.put(10, "10");
+        persistentMap.put(20, "20");
+        persistentMap.put(30, "30");
+        persistentMap.remove(20);
+        assertEquals(10, (int) persistentMap.floorKey(25));
+        assertEquals(20, (int) persistentMap.floorKey(25, 3));
+        assertEquals("30", persistentMap.ceilingEntry(11).getValue());
+        assertEquals(20, (int) persistentMap.ceilingKey(11, 2));
+        assertEquals(10, (int) persistentMap.lowerKey(30, 4));
+        assertEquals(30, (int) persistentMap.higherKey(10, 4));
+        assertEquals(null, persistentMap.floorKey(5));
+        assertEquals(10, (int) persistentMap.firstKey());
+        assertEquals(30, (int) persistentMap.lastKey());
+        assertEquals(10, (int) persistentMap.lastKey(1));
+        assertEquals(null, persistentMap.firstEntry(0));
+    }
+
+    @Test
+    public void navigationCurrentVersion() {
+        persistentMap = new PersistentMap<>();
+        persistentMap.put(10, "10");
+        persistentMap.put(20, "20");
+        persistentMap.put(30, "30");
+        persistentMap.remove(20);
+        assertEquals("10", persistentMap.firstEntry().getValue());
+        assertEquals("30", persistentMap.lastEntry().getValue());
+        assertEquals(10, (int) persistentMap.floorEntry(25).getKey());
+        assertEquals(30, (int) persistentMap.ceilingKey(11));
+        assertEquals(10, (int) persistentMap.lowerEntry(30).getKey());
+        assertEquals(10, (int) persistentMap.lowerKey(30));
+        assertEquals(30, (int) persistentMap.higherEntry(10).getKey());
+        assertEquals(30, (int) persistentMap.higherKey(10));
+        Iterator<Map.Entry<Integer, String>> entries = persistentMap.entryIterator();
+        assertEquals(10, (int) entries.next().getKey());
+        assertEquals(30, (int) entries.next().getKey());
+        assertEquals(false, entries.hasNext());
+    }
+
+    @Test
+    public void firstKeyEmpty() {
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(PersistentExceptionsMessege.NO_SUCH_ELEMENT);
+        new PersistentMap<Integer, String>().firstKey();
+    }
+
+    @Test
+    public void subMapWrongVersion() {
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        new PersistentMap<Integer, String>().subMap(0, 1, 3);
+    }
+
+    @Test
+    public void descendingEntryIterator() {
+        persistentMap = new PersistentMap<>();
+        for (int i = 0; i < 4; i++)
+            persistentMap.put(i, String.valueOf(i));
+        persistentMap.remove(2);
+        Iterator<Map.Entry<Integer, String>> it = persistentMap.descendingEntryIterator();
+        List<Integer> keys = new ArrayList<>();
+        while (it.hasNext())
+            keys.add(it.next().getKey());
+        assertEquals(Arrays.asList(3, 1, 0), keys);
+        it = persistentMap.entryIterator(4);
+        keys.clear();
+        while (it.hasNext())
+            keys.add(it.next().getKey());
+        assertEquals(Arrays.asList(0, 1, 2, 3), keys);
+    }
+
+    @Test
+    public void putAllSize() {
+        HashMap<Integer, String> hashMap = new HashMap<>();
+        hashMap.put(0, "0");
+        hashMap.put(1, "1");
+        persistentMap = new PersistentMap<>();
+        persistentMap.put(0, "-1");
+        persistentMap.putAll(hashMap);
+        assertEquals(2, persistentMap.size());
+        assertEquals(1, persistentMap.size(1));
+        assertEquals(null, persistentMap.get(1, 1));
+    }
+
+    @Test
+    public void bulkLoad() {
+        TreeMap<Integer, String> sorted = new TreeMap<>();
+        HashMap<Integer, String> unsorted = new HashMap<>();
+        for (int i = 100; i > 0; i--) {
+            sorted.put(i, String.valueOf(i));
+            unsorted.put(i * 7, String.valueOf(i));
+        }
+        persistentMap = PersistentMap.bulkLoad(sorted);
+        assertEquals(100, persistentMap.size());
+        assertEquals(0, persistentMap.size(0));
+        assertEquals("42", persistentMap.get(42, 1));
+        assertEquals(1, (int) persistentMap.firstKey());
+        persistentMap = PersistentMap.bulkLoad(unsorted);
+        assertEquals(100, persistentMap.size(1));
+        assertEquals("6", persistentMap.get(42));
+        assertEquals(Arrays.asList(7, 14, 21), new ArrayList<>(persistentMap.headMap(22).keySet()));
+    }
+
+    @Test
+    public void collector() {
+        persistentMap = java.util.stream.IntStream.range(0, 50).boxed()
+                .collect(PersistentMap.collector(i -> i % 10, String::valueOf));
+        assertEquals(10, persistentMap.size());
+        assertEquals("41", persistentMap.get(1, 1));
+        persistentMap.remove(1);
+        assertEquals(9, persistentMap.size());
+        persistentMap = java.util.stream.IntStream.range(0, 1000).boxed().parallel()
+                .collect(PersistentMap.collector(i -> i, String::valueOf));
+        assertEquals(1000, persistentMap.size());
+        assertEquals("999", persistentMap.lastKey().toString());
+    }
+
+    @Test
+    public void concurrentReaders() throws Exception {
+        persistentMap = new PersistentMap<>();
+        PersistentMap<Integer, String> map = persistentMap;
+        int size = 20000;
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                while (!done.get() && failure.get() == null) {
+                    int version = map.getCurrentVersion();
+                    if (map.size(version) != version)
+                        failure.set("size " + map.size(version) + " at version " + version);
+                    if (version > 0 && !String.valueOf(version - 1).equals(map.get(version - 1, version)))
+                        failure.set("value of " + (version - 1) + " at version " + version);
+                    if (map.get(version, version) != null)
+                        failure.set("unpublished key " + version);
+                }
+            });
+            readers[r].start();
+        }
+        for (int i = 0; i < size; i++)
+            map.put(i, String.valueOf(i));
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        assertEquals(null, failure.get());
+        assertEquals(size, map.getCurrentVersion());
+    }
+
+    @Test
+    public void diff() {
+        persistentMap = new PersistentMap<>();
+        persistentMap.put(1, "a");
+        persistentMap.put(2, "b");
+        persistentMap.put(3, "c");
+        int from = persistentMap.getCurrentVersion();
+        persistentMap.put(1, "a2");
+        persistentMap.remove(2);
+        persistentMap.put(4, "d");
+        persistentMap.put(3, "x");
+        persistentMap.put(3, "c");
+        int to = persistentMap.getCurrentVersion();
+
+        Map<Integer, DiffEntry<Integer, String>> diff = new HashMap<>();
+        persistentMap.diff(from, to).forEachRemaining(entry -> diff.put(entry.getKey(), entry));
+        assertEquals(3, diff.size());
+        assertEquals(DiffEntry.Kind.CHANGED, diff.get(1).getKind());
+        assertEquals("a", diff.get(1).getOldValue());
+        assertEquals("a2", diff.get(1).getNewValue());
+        assertEquals(DiffEntry.Kind.REMOVED, diff.get(2).getKind());
+        assertEquals("b", diff.get(2).getOldValue());
+        assertEquals(DiffEntry.Kind.ADDED, diff.get(4).getKind());
+        assertEquals("d", diff.get(4).getNewValue());
+
+        Map<Integer, DiffEntry<Integer, String>> reverse = new HashMap<>();
+        persistentMap.diff(to, from).forEachRemaining(entry -> reverse.put(entry.getKey(), entry));
+        assertEquals(DiffEntry.Kind.ADDED, reverse.get(2).getKind());
+        assertEquals(DiffEntry.Kind.REMOVED, reverse.get(4).getKind());
+        assertEquals(false, persistentMap.diff(to, to).hasNext());
+    }
+
+    @Test
+    public void diffAfterClearAndBulkWrites() {
+        persistentMap = new PersistentMap<>();
+        Map<Integer, String> source = new HashMap<>();
+        for (int i = 0; i < 100; i++)
+            source.put(i, "v" + i);
+        persistentMap.putAll(source);
+        int loaded = persistentMap.getCurrentVersion();
+        persistentMap.clear();
+        persistentMap.put(7, "v7");
+
+        List<DiffEntry<Integer, String>> diff = new ArrayList<>();
+        persistentMap.diff(0, loaded).forEachRemaining(diff::add);
+        assertEquals(100, diff.size());
+        diff.clear();
+        persistentMap.diff(loaded, persistentMap.getCurrentVersion()).forEachRemaining(diff::add);
+        assertEquals(99, diff.size());
+        for (DiffEntry<Integer, String> entry : diff)
+            assertEquals(DiffEntry.Kind.REMOVED, entry.getKind());
+    }
+
+    @Test
+    public void diffOfMissingVersion() {
+        persistentMap = new PersistentMap<>();
+        persistentMap.put(1, "a");
+        ex.expect(NoSuchElementException.class);
+        persistentMap.diff(0, 2);
+    }
+}
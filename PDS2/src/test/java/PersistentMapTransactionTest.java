@@ -0,0 +1,109 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static org.junit.Assert.assertEquals;
+
+public class PersistentMapTransactionTest {
+
+    private PersistentMap<String, Integer> persistentMap = null;
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Test
+    public void commitIsOneVersion() {
+        persistentMap = new PersistentMap<>();
+        persistentMap.put("a", 1);
+        PersistentMapTransaction<String, Integer> transaction = persistentMap.beginTransaction();
+        assertEquals(1, (int) transaction.put("a", 2));
+        transaction.put("b", 3);
+        transaction.remove("c");
+        assertEquals(2, (int) transaction.get("a"));
+        assertEquals(1, persistentMap.get("a"));
+        assertEquals(true, transaction.commit());
+        assertEquals(2, transaction.getCommitVersion());
+        assertEquals(2, persistentMap.getCurrentVersion());
+        assertEquals(2, persistentMap.size());
+        assertEquals(2, persistentMap.get("a"));
+        assertEquals(3, persistentMap.get("b"));
+    }
+
+    @Test
+    public void conflictingCommitFails() {
+        persistentMap = new PersistentMap<>();
+        persistentMap.put("a", 1);
+        PersistentMapTransaction<String, Integer> first = persistentMap.beginTransaction();
+        PersistentMapTransaction<String, Integer> second = persistentMap.beginTransaction();
+        first.put("a", first.get("a") + 1);
+        second.put("a", second.get("a") + 10);
+        assertEquals(true, first.commit());
+        assertEquals(false, second.commit());
+        assertEquals(2, persistentMap.get("a"));
+    }
+
+    @Test
+    public void disjointCommitsSucceed() {
+        persistentMap = new PersistentMap<>();
+        PersistentMapTransaction<String, Integer> first = persistentMap.beginTransaction();
+        PersistentMapTransaction<String, Integer> second = persistentMap.beginTransaction();
+        first.put("a", 1);
+        second.put("b", 2);
+        assertEquals(true, first.commit());
+        assertEquals(true, second.commit());
+        assertEquals(2, persistentMap.size());
+    }
+
+    @Test
+    public void readOnlyNeverAborts() {
+        persistentMap = new PersistentMap<>();
+        persistentMap.put("a", 1);
+        PersistentMapTransaction<String, Integer> reader = persistentMap.beginTransaction();
+        assertEquals(1, (int) reader.get("a"));
+        persistentMap.put("a", 5);
+        assertEquals(1, (int) reader.get("a"));
+        assertEquals(true, reader.commit());
+        assertEquals(2, persistentMap.getCurrentVersion());
+    }
+
+    @Test
+    public void finishedTransaction() {
+        persistentMap = new PersistentMap<>();
+        PersistentMapTransaction<String, Integer> transaction = persistentMap.beginTransaction();
+        transaction.rollback();
+        ex.expect(IllegalStateException.class);
+        ex.expectMessage(PersistentExceptionsMessege.TRANSACTION_FINISHED);
+        transaction.get("a");
+    }
+
+    @Test
+    public void concurrentTransfers() throws Exception {
+        persistentMap = new PersistentMap<>();
+        PersistentMap<String, Integer> accounts = persistentMap;
+        int count = 10;
+        for (int i = 0; i < count; i++)
+            accounts.put("account" + i, 100);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            int seed = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    String from = "account" + ((seed + i) % count);
+                    String to = "account" + ((seed * 3 + i * 7 + 1) % count);
+                    accounts.transact(transaction -> {
+                        transaction.put(from, transaction.get(from) - 1);
+                        transaction.put(to, transaction.get(to) + 1);
+                        return null;
+                    });
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        int total = 0;
+        for (int i = 0; i < count; i++)
+            total += (Integer) accounts.get("account" + i);
+        assertEquals(count * 100, total);
+    }
+}
@@ -0,0 +1,138 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Pipe;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReplicationLeaderTest {
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    private static void assertSameMaps(PersistentMap<Integer, String> leader, PersistentMap<Integer, String> replica, int keys) {
+        for (int version = 0; version <= leader.getCurrentVersion(); version++) {
+            assertEquals(leader.size(version), replica.size(version));
+            for (int key = 0; key < keys; key++) {
+                assertEquals(leader.containsKey(key, version), replica.containsKey(key, version));
+                assertEquals(leader.get(key, version), replica.get(key, version));
+            }
+        }
+    }
+
+    private static void writeRandomly(PersistentMap<Integer, String> map, Random random, int operations) {
+        for (int i = 0; i < operations; i++) {
+            int key = random.nextInt(100);
+            if (random.nextInt(4) == 0)
+                map.remove(key);
+            else
+                map.put(key, random.nextInt(20) == 0 ? null : "v" + random.nextInt(1000));
+        }
+    }
+
+    @Test
+    public void replicatesMapOverSocket() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        Random random = new Random(1);
+        writeRandomly(map, random, 500);
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             ReplicationLeader leader = ReplicationLeader.forMap(map, Codec.INTEGER, Codec.STRING)) {
+            SocketChannel followerSide = SocketChannel.open(server.getLocalAddress());
+            leader.addFollower(server.accept());
+            try (ReplicationFollower<PersistentMap<Integer, String>> follower = ReplicationFollower.ofMap(followerSide, Codec.INTEGER, Codec.STRING)) {
+                // versions published while the follower catches up are shipped as they come
+                writeRandomly(map, random, 500);
+                follower.awaitVersion(1000);
+                assertEquals(1000, follower.replicatedVersion());
+                assertEquals(1000, follower.getReplica().getCurrentVersion());
+                assertSameMaps(map, follower.getReplica(), 100);
+                assertEquals(1000, leader.getFollowers().get(0).getShippedVersion());
+            }
+        }
+    }
+
+    @Test
+    public void replicatesListOverPipe() throws Exception {
+        PersistentLinkedList<String> list = new PersistentLinkedList<>();
+        Pipe pipe = Pipe.open();
+        try (ReplicationLeader leader = ReplicationLeader.forList(list, Codec.STRING);
+             ReplicationFollower<PersistentLinkedList<String>> follower = ReplicationFollower.ofList(pipe.source(), Codec.STRING)) {
+            leader.addFollower(pipe.sink());
+            Random random = new Random(2);
+            for (int i = 0; i < 600; i++) {
+                int operation = random.nextInt(10);
+                if (list.isEmpty() || operation < 4)
+                    list.add("e" + i);
+                else if (operation < 6)
+                    list.add(random.nextInt(list.size()), "i" + i);
+                else if (operation < 8)
+                    list.set(random.nextInt(list.size()), "s" + i);
+                else if (operation < 9)
+                    list.remove(random.nextInt(list.size()));
+                else if (i % 100 == 99)
+                    list.clear();
+            }
+            follower.awaitVersion(list.getCurrentVersion());
+            PersistentLinkedList<String> replica = follower.getReplica();
+            assertEquals(list.getCurrentVersion(), replica.getCurrentVersion());
+            for (int version = 0; version <= list.getCurrentVersion(); version++)
+                assertEquals(Arrays.asList(list.toArray(version)), Arrays.asList(replica.toArray(version)));
+        }
+    }
+
+    @Test
+    public void compressesAndSplitsBatches() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            value.append("repeated ");
+        for (int i = 0; i < 2000; i++)
+            map.put(i % 100, value.toString() + i);
+        Pipe pipe = Pipe.open();
+        try (ReplicationLeader leader = ReplicationLeader.forMap(map, Codec.INTEGER, Codec.STRING, 1, TimeUnit.MILLISECONDS, 16 << 10, 512);
+             ReplicationFollower<PersistentMap<Integer, String>> follower = ReplicationFollower.ofMap(pipe.source(), Codec.INTEGER, Codec.STRING)) {
+            ReplicationLeader.Follower shipped = leader.addFollower(pipe.sink());
+            follower.awaitVersion(2000);
+            assertSameMaps(map, follower.getReplica(), 100);
+            // 2000 values of about 900 bytes each
+            assertEquals(true, shipped.getShippedBytes() < 2000 * 900 / 10);
+        }
+    }
+
+    @Test
+    public void lagBeforeShipping() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        map.put(1, "one");
+        Pipe pipe = Pipe.open();
+        try (ReplicationFollower<PersistentMap<Integer, String>> follower = ReplicationFollower.ofMap(pipe.source(), Codec.INTEGER, Codec.STRING);
+             ReplicationLeader leader = ReplicationLeader.forMap(map, Codec.INTEGER, Codec.STRING)) {
+            assertEquals(-1, follower.replicatedVersion());
+            leader.addFollower(pipe.sink());
+            follower.awaitVersion(1);
+            map.put(2, "two");
+            follower.awaitVersion(2);
+            assertEquals("two", follower.getReplica().get(2));
+            assertEquals(0, map.getCurrentVersion() - follower.replicatedVersion());
+        }
+    }
+
+    @Test
+    public void rejectsStreamOfOtherStructure() throws Exception {
+        Pipe pipe = Pipe.open();
+        try (ReplicationLeader leader = ReplicationLeader.forList(new PersistentLinkedList<String>(), Codec.STRING);
+             ReplicationFollower<PersistentMap<Integer, String>> follower = ReplicationFollower.ofMap(pipe.source(), Codec.INTEGER, Codec.STRING)) {
+            leader.addFollower(pipe.sink());
+            ex.expect(IOException.class);
+            ex.expectMessage(PersistentExceptionsMessege.CORRUPTED_HISTORY);
+            follower.awaitVersion(0);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+
+public class ShardedPersistentMapTest {
+
+    private ShardedPersistentMap<Integer, String> shardedMap = null;
+
+    @Test
+    public void putGet() {
+        shardedMap = new ShardedPersistentMap<>(4);
+        ShardedPersistentMap.Snapshot empty = shardedMap.snapshot();
+        for (int i = 0; i < 100; i++)
+            shardedMap.put(i, String.valueOf(i));
+        ShardedPersistentMap.Snapshot full = shardedMap.snapshot();
+        shardedMap.remove(7);
+        assertEquals(99, shardedMap.size());
+        assertEquals(100, shardedMap.size(full));
+        assertEquals(0, shardedMap.size(empty));
+        assertEquals("7", shardedMap.get(7, full));
+        assertEquals(null, shardedMap.get(7));
+        assertEquals(false, shardedMap.containsKey(7));
+        assertEquals(false, shardedMap.containsKey(7, empty));
+    }
+
+    @Test
+    public void rangeShards() {
+        shardedMap = new ShardedPersistentMap<>(Arrays.asList(10, 20));
+        assertEquals(3, shardedMap.getShardCount());
+        for (int i = 0; i < 30; i++)
+            shardedMap.put(i, String.valueOf(i));
+        ShardedPersistentMap.Snapshot snapshot = shardedMap.snapshot();
+        assertEquals(10, snapshot.getVersion(0));
+        assertEquals(10, snapshot.getVersion(1));
+        assertEquals(10, snapshot.getVersion(2));
+        assertEquals("25", shardedMap.get(25, snapshot));
+    }
+
+    @Test
+    public void parallelWriters() throws Exception {
+        shardedMap = new ShardedPersistentMap<>(8);
+        ShardedPersistentMap<Integer, String> map = shardedMap;
+        int threads = 8;
+        int perThread = 5000;
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++)
+                    map.put(id * perThread + i, String.valueOf(i));
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers)
+            writer.join();
+        assertEquals(threads * perThread, map.size());
+    }
+
+    @Test
+    public void putAllIsAtomicForSnapshots() throws Exception {
+        shardedMap = new ShardedPersistentMap<>(Arrays.asList(1000));
+        ShardedPersistentMap<Integer, String> map = shardedMap;
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                ShardedPersistentMap.Snapshot snapshot = map.snapshot();
+                int size = map.size(snapshot);
+                if (size % 2 != 0)
+                    failure.set("torn snapshot " + snapshot);
+                for (int i = 0; i < size / 2; i++) {
+                    if (map.containsKey(i, snapshot) != map.containsKey(1000 + i, snapshot))
+                        failure.set("torn pair " + i + " in " + snapshot);
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 500; i++) {
+            Map<Integer, String> pair = new HashMap<>();
+            pair.put(i, "low");
+            pair.put(1000 + i, "high");
+            map.putAll(pair);
+        }
+        done.set(true);
+        reader.join();
+        assertEquals(null, failure.get());
+        assertEquals(1000, map.size());
+    }
+
+    @Test
+    public void snapshotKeepsTheOrderOfSingleKeyWrites() throws Exception {
+        shardedMap = new ShardedPersistentMap<>(Arrays.asList(100000));
+        ShardedPersistentMap<Integer, String> map = shardedMap;
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                ShardedPersistentMap.Snapshot snapshot = map.snapshot();
+                // every write to the second shard follows one to the first shard
+                int first = snapshot.getVersion(0);
+                int second = snapshot.getVersion(1);
+                if (second > first || first > second + 1)
+                    failure.set("state which never existed " + snapshot);
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 100000; i++) {
+            map.put(i / 2 + (i % 2 == 0 ? 0 : 100000), "v");
+        }
+        done.set(true);
+        reader.join();
+        assertEquals(null, failure.get());
+        assertEquals(100000, map.size());
+    }
+}
@@ -0,0 +1,204 @@
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class StructureEventTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private interface Action {
+        void run() throws Exception;
+    }
+
+    private List<RecordedEvent> record(String name, String setting, String value, Action action) throws Exception {
+        Path file = folder.newFile().toPath();
+        try (Recording recording = new Recording()) {
+            recording.enable(name).with(setting, value).withoutStackTrace();
+            recording.start();
+            action.run();
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> result = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            if (event.getEventType().getName().equals(name))
+                result.add(event);
+        }
+        return result;
+    }
+
+    private List<RecordedEvent> record(String name, Action action) throws Exception {
+        return record(name, "threshold", "0 ns", action);
+    }
+
+    private static List<String> operations(List<RecordedEvent> events) {
+        List<String> result = new ArrayList<>();
+        for (RecordedEvent event : events)
+            result.add(event.getString("operation"));
+        return result;
+    }
+
+    @Test
+    public void versionCreated() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        PersistentLinkedList<String> list = new PersistentLinkedList<>();
+        PersistentArray<String> array = new PersistentArray<>();
+        List<RecordedEvent> events = record("pds.VersionCreated", () -> {
+            map.put(1, "one");
+            map.put(1, "uno");
+            map.remove(1);
+            list.add("a");
+            list.add(0, "b");
+            list.set(1, "c");
+            list.remove(0);
+            array.add("a");
+            array.replace(0, "b");
+            array.removeLast();
+        });
+        assertEquals(Arrays.asList("put", "put", "remove", "add", "add", "set", "remove", "add", "replace", "removeLast"), operations(events));
+        int[] deltas = {1, 0, -1, 1, 1, 0, -1, 1, 0, -1};
+        int[] versions = {1, 2, 3, 1, 2, 3, 4, 1, 2, 3};
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(deltas[i], events.get(i).getInt("sizeDelta"));
+            assertEquals(versions[i], events.get(i).getInt("version"));
+        }
+        assertEquals("PersistentMap", events.get(0).getClass("structureClass").getName());
+        assertEquals(System.identityHashCode(map), events.get(0).getInt("structureId"));
+        assertEquals(System.identityHashCode(list), events.get(3).getInt("structureId"));
+        assertEquals(System.identityHashCode(array), events.get(7).getInt("structureId"));
+    }
+
+    @Test
+    public void versionCreatedByConditionalWrites() throws Exception {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        PersistentLinkedList<String> list = new PersistentLinkedList<>();
+        List<RecordedEvent> events = record("pds.VersionCreated", () -> {
+            map.putIfAbsent(1, 1);
+            map.replace(1, 2);
+            map.replace(1, 2, 3);
+            map.replace(1, 5, 6);
+            map.computeIfAbsent(2, k -> 2);
+            map.computeIfPresent(2, (k, v) -> null);
+            map.compute(3, (k, v) -> 3);
+            map.merge(3, 1, (a, b) -> 4);
+            map.remove(3, 4);
+            list.add("a");
+            list.remove("a");
+        });
+        assertEquals(Arrays.asList("putIfAbsent", "replace", "replace", "computeIfAbsent", "computeIfPresent", "compute", "merge",
+                "remove", "add", "remove"), operations(events));
+        int[] deltas = {1, 0, 0, 1, -1, 1, 0, -1, 1, -1};
+        for (int i = 0; i < events.size(); i++)
+            assertEquals(deltas[i], events.get(i).getInt("sizeDelta"));
+        assertEquals(map.getCurrentVersion(), events.get(7).getInt("version"));
+    }
+
+    @Test
+    public void threshold() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        List<RecordedEvent> events = record("pds.VersionCreated", "threshold", "1 h", () -> {
+            for (int i = 0; i < 100; i++)
+                map.put(i, "v" + i);
+        });
+        assertEquals(0, events.size());
+    }
+
+    @Test
+    public void listWalk() throws Exception {
+        PersistentLinkedList<Integer> list = new PersistentLinkedList<>();
+        List<Integer> elements = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+            elements.add(i);
+        list.addAll(elements);
+        List<RecordedEvent> events = record("pds.ListWalk", "enabled", "true", () -> {
+            list.get(10);
+            list.get(1500);
+            list.set(998, -1);
+            list.set(999, -1);
+            list.add(1998, -1);
+            list.remove(1998);
+        });
+        assertEquals(Arrays.asList("get", "set", "add", "remove"), operations(events));
+        assertEquals(1501, events.get(0).getInt("nodes"));
+        assertEquals(1000, events.get(1).getInt("nodes"));
+        assertEquals(System.identityHashCode(list), events.get(0).getInt("structureId"));
+
+        events = record("pds.ListWalk", "minLength", "100", () -> {
+            list.get(10);
+            list.get(150);
+        });
+        assertEquals(1, events.size());
+        assertEquals(151, events.get(0).getInt("nodes"));
+    }
+
+    @Test
+    public void fullScan() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        for (int i = 0; i < 10; i++)
+            map.put(i, "v" + i);
+        map.remove(9);
+        List<RecordedEvent> events = record("pds.FullScan", () -> {
+            map.keySet();
+            map.values();
+            map.entrySet();
+            map.containsValue("v4");
+            map.containsValue("absent");
+        });
+        assertEquals(Arrays.asList("keySet", "values", "entrySet", "containsValue", "containsValue"), operations(events));
+        int[] scanned = {10, 10, 10, 5, 10};
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(scanned[i], events.get(i).getInt("scanned"));
+            assertEquals(11, events.get(i).getInt("version"));
+        }
+    }
+
+    @Test
+    public void bulkOperation() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        PersistentLinkedList<Integer> list = new PersistentLinkedList<>();
+        List<RecordedEvent> events = record("pds.BulkOperation", () -> {
+            Map<Integer, String> entries = new HashMap<>();
+            for (int i = 0; i < 10; i++)
+                entries.put(i, "v" + i);
+            map.putAll(entries);
+            entries.put(10, "v10");
+            map.putAll(entries);
+            map.clear();
+            list.addAll(Arrays.asList(1, 2, 3, 2));
+            list.removeAll(Collections.singleton(2));
+            list.removeAll(Collections.singleton(5));
+            list.clear();
+        });
+        assertEquals(Arrays.asList("putAll", "putAll", "clear", "addAll", "removeAll", "clear"), operations(events));
+        int[] elements = {10, 11, 11, 4, 1, 2};
+        int[] deltas = {10, 1, -11, 4, -2, -2};
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(elements[i], events.get(i).getInt("elements"));
+            assertEquals(deltas[i], events.get(i).getInt("sizeDelta"));
+        }
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        try (LsmPersistentMap<Integer, String> map = LsmPersistentMap.open(directory, Codec.INTEGER, Codec.STRING, 100, 1000)) {
+            List<RecordedEvent> events = record("pds.Compaction", () -> {
+                for (int i = 0; i < 300; i++)
+                    map.put(i % 150, "v" + i);
+                map.compact();
+            });
+            assertEquals(1, events.size());
+            assertEquals(3, events.get(0).getInt("segments"));
+            assertEquals(300, events.get(0).getLong("recordsIn"));
+            assertEquals(System.identityHashCode(map), events.get(0).getInt("structureId"));
+        }
+    }
+}
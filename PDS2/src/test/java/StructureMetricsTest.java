@@ -0,0 +1,121 @@
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class StructureMetricsTest {
+
+    @Test
+    public void disabledByDefault() {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        assertEquals(null, map.getMetrics());
+        assertEquals(null, new PersistentLinkedList<String>().getMetrics());
+        assertEquals(null, new PersistentArray<String>().getMetrics());
+        StructureMetrics metrics = map.enableMetrics();
+        assertEquals(metrics, map.enableMetrics());
+        map.disableMetrics();
+        map.put(1, "one");
+        assertEquals(0, metrics.getCount(StructureMetrics.PUT));
+    }
+
+    @Test
+    public void mapOperationsAndTombstones() {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        StructureMetrics metrics = map.enableMetrics();
+        for (int i = 0; i < 10; i++)
+            map.put(i, "v" + i);
+        for (int i = 0; i < 3; i++)
+            map.remove(i);
+        map.put(9, "again");
+        for (int i = 0; i < 20; i++)
+            map.get(i % 10, i % 14);
+        map.get(5);
+
+        assertEquals(11, metrics.getCount(StructureMetrics.PUT));
+        assertEquals(3, metrics.getCount(StructureMetrics.REMOVE));
+        assertEquals(21, metrics.getCount(StructureMetrics.GET));
+        assertEquals(0, metrics.getCount(StructureMetrics.INSERT));
+        assertEquals(true, metrics.getLatency(StructureMetrics.GET).getMax() > 0);
+
+        Map<String, Double> gauges = metrics.getGauges();
+        assertEquals(15.0, gauges.get("versions"), 0);
+        assertEquals(0.3, gauges.get("tombstoneRatio"), 1e-9);
+        // three keys put and removed, key 9 put twice
+        assertEquals(1.4, gauges.get("historyLength.mean"), 1e-9);
+        assertEquals(1.0, gauges.get("historyLength.p50"), 0);
+        assertEquals(2.0, gauges.get("historyLength.max"), 0);
+    }
+
+    @Test
+    public void conditionalMapOperations() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        StructureMetrics metrics = map.enableMetrics();
+        map.putIfAbsent(1, 1);
+        map.replace(1, 2);
+        map.replace(1, 2, 3);
+        map.computeIfAbsent(2, k -> 2);
+        map.computeIfPresent(2, (k, v) -> 4);
+        map.compute(3, (k, v) -> 3);
+        map.merge(3, 1, (a, b) -> null);
+        map.remove(1, 3);
+        assertEquals(7, metrics.getCount(StructureMetrics.PUT));
+        assertEquals(1, metrics.getCount(StructureMetrics.REMOVE));
+
+        PersistentLinkedList<String> list = new PersistentLinkedList<>();
+        metrics = list.enableMetrics();
+        list.add("a");
+        list.remove("a");
+        assertEquals(1, metrics.getCount(StructureMetrics.REMOVE));
+    }
+
+    @Test
+    public void listWalks() {
+        PersistentLinkedList<String> list = new PersistentLinkedList<>();
+        StructureMetrics metrics = list.enableMetrics();
+        for (int i = 0; i < 10; i++)
+            list.add("e" + i);
+        list.add(0, "first");
+        list.set(1, "second");
+        list.remove(10);
+        for (int i = 0; i < 10; i++)
+            list.get(i);
+        list.listIterator(4);
+        assertEquals(10, metrics.getCount(StructureMetrics.APPEND));
+        assertEquals(1, metrics.getCount(StructureMetrics.INSERT));
+        assertEquals(1, metrics.getCount(StructureMetrics.PUT));
+        assertEquals(1, metrics.getCount(StructureMetrics.REMOVE));
+        assertEquals(10, metrics.getCount(StructureMetrics.GET));
+        // the gets walk 55 nodes, add, set, remove and the iterator 1, 2, 11 and 5
+        assertEquals(74.0 / 14, metrics.getMeanWalkLength(), 1e-9);
+
+        Map<String, Double> gauges = metrics.getGauges();
+        assertEquals(14.0, gauges.get("versions"), 0);
+        assertEquals(74.0 / 14, gauges.get("walkLength.mean"), 1e-9);
+        // every node has the histories of its element and of both links
+        assertEquals(true, gauges.get("historyLength.p50") >= 3);
+    }
+
+    @Test
+    public void arrayHistories() {
+        PersistentArray<String> array = new PersistentArray<>(0);
+        StructureMetrics metrics = array.enableMetrics();
+        for (int i = 0; i < 4; i++)
+            array.add("a" + i);
+        for (int i = 0; i < 6; i++)
+            array.replace(0, "r" + i);
+        array.removeLast();
+        array.get(0);
+        array.get(1, 2);
+        assertEquals(4, metrics.getCount(StructureMetrics.APPEND));
+        assertEquals(6, metrics.getCount(StructureMetrics.PUT));
+        assertEquals(1, metrics.getCount(StructureMetrics.REMOVE));
+        assertEquals(2, metrics.getCount(StructureMetrics.GET));
+
+        Map<String, Double> gauges = metrics.getGauges();
+        assertEquals(12.0, gauges.get("versions"), 0);
+        assertEquals(7.0, gauges.get("historyLength.max"), 0);
+        assertEquals(1.0, gauges.get("historyLength.p50"), 0);
+        assertEquals(3.0, gauges.get("historyLength.mean"), 1e-9);
+    }
+}
@@ -0,0 +1,127 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+
+public class TimestampIndexTest {
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    /**
+     * Clock moved by hand.
+     */
+    private static class ManualClock extends Clock {
+        private Instant now;
+
+        ManualClock(Instant now) {
+            this.now = now;
+        }
+
+        void set(Instant now) {
+            this.now = now;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+
+    private static final Instant START = Instant.parse("2024-03-01T14:00:00Z");
+
+    @Test
+    public void versionAt() {
+        ManualClock clock = new ManualClock(START);
+        TimestampIndex index = new TimestampIndex(clock, 3);
+        clock.set(START.plusSeconds(10));
+        index.record(4);
+        index.record(4);
+        clock.set(START.plusSeconds(20));
+        index.record(7);
+
+        assertEquals(3, index.versionAt(START));
+        assertEquals(3, index.versionAt(START.plusSeconds(9)));
+        assertEquals(4, index.versionAt(START.plusSeconds(10)));
+        assertEquals(4, index.versionAt(START.plusSeconds(19)));
+        assertEquals(7, index.versionAt(START.plusSeconds(20)));
+        assertEquals(7, index.versionAt(Instant.MAX));
+        assertEquals(START.plusSeconds(10), index.getTimestamp(4));
+        assertEquals(START.plusSeconds(20), index.getTimestamp(6));
+    }
+
+    @Test
+    public void clockSteppingBack() {
+        ManualClock clock = new ManualClock(START);
+        TimestampIndex index = new TimestampIndex(clock, 0);
+        clock.set(START.minusSeconds(5));
+        index.record(1);
+        assertEquals(START, index.getTimestamp(1));
+        assertEquals(1, index.versionAt(START));
+    }
+
+    @Test
+    public void instantBeforeFirstVersion() {
+        TimestampIndex index = new TimestampIndex(new ManualClock(START), 0);
+        ex.expect(NoSuchElementException.class);
+        index.versionAt(START.minusNanos(1));
+    }
+
+    @Test
+    public void mapAsOf() {
+        ManualClock clock = new ManualClock(START);
+        PersistentMap<String, Integer> map = new PersistentMap<>();
+        map.put("a", 1);
+        map.enableTimestamps(clock);
+        for (int i = 1; i <= 1000; i++) {
+            clock.set(START.plusSeconds(i));
+            map.put("a", i * 10);
+        }
+        assertEquals(1, map.get("a", START));
+        assertEquals(420, map.get("a", START.plusMillis(42_500)));
+        assertEquals(10000, map.get("a", Instant.MAX));
+        assertEquals(map.getCurrentVersion(), map.versionAt(START.plusSeconds(1000)));
+    }
+
+    @Test
+    public void listAndArrayAsOf() {
+        ManualClock clock = new ManualClock(START);
+        PersistentLinkedList<String> list = new PersistentLinkedList<>();
+        PersistentArray<String> array = new PersistentArray<>(0);
+        list.enableTimestamps(clock);
+        array.enableTimestamps(clock);
+        list.add("a");
+        array.add("a");
+        clock.set(START.plusSeconds(60));
+        list.set(0, "b");
+        array.replace(0, "b");
+
+        assertEquals("a", list.get(0, START.plusSeconds(59)));
+        assertEquals("b", list.get(0, START.plusSeconds(60)));
+        assertEquals("a", array.get(0, START.plusSeconds(59)));
+        assertEquals("b", array.get(0, START.plusSeconds(60)));
+    }
+
+    @Test
+    public void disabled() {
+        ex.expect(IllegalStateException.class);
+        new PersistentMap<String, Integer>().versionAt(START);
+    }
+}
@@ -0,0 +1,58 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static org.junit.Assert.assertEquals;
+
+public class VersionHistoryTest {
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Test
+    public void get() {
+        VersionHistory<String> history = new VersionHistory<>();
+        assertEquals(null, history.get(5));
+        assertEquals(false, history.contains(5));
+        history.put(2, "2");
+        history.put(5, "5");
+        history.put(9, "9");
+        assertEquals(null, history.get(1));
+        assertEquals("2", history.get(2));
+        assertEquals("2", history.get(4));
+        assertEquals("5", history.get(8));
+        assertEquals("9", history.get(100));
+        assertEquals(3, history.size());
+        assertEquals(9, history.lastVersion());
+    }
+
+    @Test
+    public void putSameVersion() {
+        VersionHistory<String> history = new VersionHistory<>(0, "0");
+        history.put(1, "1");
+        history.put(1, "one");
+        assertEquals(2, history.size());
+        assertEquals("one", history.get(1));
+        assertEquals("0", history.get(0));
+    }
+
+    @Test
+    public void putOlderVersion() {
+        VersionHistory<String> history = new VersionHistory<>(3, "3");
+        ex.expect(IllegalArgumentException.class);
+        history.put(2, "2");
+    }
+
+    @Test
+    public void growth() {
+        VersionHistory<Integer> history = new VersionHistory<>();
+        for (int i = 0; i < 1000; i += 2) {
+            history.put(i, i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i - i % 2, (int) history.get(i));
+            assertEquals(i / 2, history.floorIndex(i));
+        }
+        assertEquals(998, history.versionAt(499));
+    }
+}
@@ -0,0 +1,57 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class VersionLogTest {
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Test
+    public void distinct() {
+        VersionLog<String> log = new VersionLog<>();
+        log.record(0, "initial");
+        log.record(1, "a");
+        log.record(1, "b");
+        log.record(4, "a");
+        log.record(4, "c");
+        log.record(6, "d");
+
+        assertEquals(Arrays.asList("a", "b", "c", "d"), toList(log, 0, 6));
+        assertEquals(Arrays.asList("a", "c"), toList(log, 1, 4));
+        assertEquals(Arrays.asList("a", "c"), toList(log, 4, 1));
+        assertEquals(Arrays.asList(), toList(log, 2, 3));
+        assertEquals(Arrays.asList("d"), toList(log, 5, 100));
+        assertEquals(3, log.count(1, 6));
+    }
+
+    @Test
+    public void growth() {
+        VersionLog<Integer> log = new VersionLog<>();
+        for (int i = 1; i <= 1000; i++) {
+            log.record(i * 3, i);
+        }
+        assertEquals(1000, log.count(0, 3000));
+        assertEquals(Arrays.asList(500, 501), toList(log, 1497, 1503));
+    }
+
+    @Test
+    public void recordOldVersion() {
+        VersionLog<String> log = new VersionLog<>();
+        log.record(3, "a");
+        ex.expect(IllegalArgumentException.class);
+        log.record(2, "b");
+    }
+
+    private static <E> List<E> toList(VersionLog<E> log, int fromVersion, int toVersion) {
+        List<E> result = new ArrayList<>();
+        log.distinct(fromVersion, toVersion).forEachRemaining(result::add);
+        return result;
+    }
+}
@@ -0,0 +1,145 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+public class VersionSnapshotTest {
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mapSnapshotWhileWriting() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        for (int i = 0; i < 20000; i++)
+            map.put(i, "v" + i);
+        map.put(5, null);
+        int version = map.getCurrentVersion();
+        Path path = folder.getRoot().toPath().resolve("map.snapshot");
+        CompletableFuture<Path> snapshot = map.snapshotAsync(version, path, Codec.INTEGER, Codec.STRING);
+        for (int i = 0; i < 20000; i++) {
+            map.put(i, "w" + i);
+            map.remove(i + 1);
+        }
+        assertEquals(path, snapshot.get());
+
+        PersistentMap<Integer, String> loaded = PersistentMap.loadSnapshot(path, Codec.INTEGER, Codec.STRING);
+        assertEquals(version, VersionSnapshot.versionOf(path));
+        assertEquals(map.size(version), loaded.size());
+        for (int i = 0; i < 20000; i++)
+            assertEquals(map.get(i, version), loaded.get(i));
+        assertEquals(true, loaded.containsKey(5));
+    }
+
+    @Test
+    public void listSnapshot() throws Exception {
+        PersistentLinkedList<String> list = new PersistentLinkedList<>();
+        for (int i = 0; i < 1000; i++)
+            list.add("e" + i);
+        list.set(3, "three");
+        int version = list.getCurrentVersion();
+        list.clear();
+        list.add("after");
+        Path path = folder.getRoot().toPath().resolve("list.snapshot");
+        list.snapshotAsync(version, path, Codec.STRING).get();
+
+        PersistentLinkedList<String> loaded = PersistentLinkedList.loadSnapshot(path, Codec.STRING);
+        assertEquals(1000, loaded.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(list.get(i, version), loaded.get(i));
+    }
+
+    @Test
+    public void arraySnapshot() throws Exception {
+        PersistentArray<Double> array = new PersistentArray<>(3);
+        for (int i = 0; i < 500; i++)
+            array.add((double) i);
+        array.replace(1, 0.5);
+        int version = array.getCurrentVersion();
+        array.removeLast();
+        array.replace(0, -1.0);
+        Path path = folder.getRoot().toPath().resolve("array.snapshot");
+        array.snapshotAsync(version, path, Codec.DOUBLE).get();
+
+        PersistentArray<Double> loaded = PersistentArray.loadSnapshot(path, Codec.DOUBLE);
+        assertEquals(array.getLength(version), loaded.getLength(0));
+        for (int i = 0; i < loaded.getLength(0); i++)
+            assertEquals(array.get(i, version), loaded.get(i, 0));
+        loaded.add(1.0);
+        assertEquals(Double.valueOf(1.0), loaded.get(loaded.getLength(1) - 1, 1));
+    }
+
+    @Test
+    public void snapshotIsThrottled() throws Exception {
+        PersistentArray<byte[]> array = new PersistentArray<>(0);
+        for (int i = 0; i < 100; i++)
+            array.add(new byte[4096]);
+        Path path = folder.getRoot().toPath().resolve("throttled.snapshot");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            long start = System.nanoTime();
+            array.snapshotAsync(array.getCurrentVersion(), path, Codec.BYTES, executor, 2 << 20).get();
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            assertEquals(true, elapsedMillis >= 150);
+            assertEquals(true, Files.size(path) > 100 * 4096);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void failedSnapshotCompletesExceptionally() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        map.put(1, "one");
+        Path path = folder.getRoot().toPath().resolve("missing").resolve("map.snapshot");
+        ex.expect(ExecutionException.class);
+        map.snapshotAsync(1, path, Codec.INTEGER, Codec.STRING).get();
+    }
+
+    @Test
+    public void snapshotOfConditionalWrites() throws Exception {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        map.put(1, 1);
+        map.putIfAbsent(2, 2);
+        map.merge(3, 3, (a, b) -> b);
+        map.compute(4, (k, v) -> 4);
+        Path path = folder.getRoot().toPath().resolve("map.snapshot");
+        map.snapshotAsync(map.getCurrentVersion(), path, Codec.INTEGER, Codec.INTEGER).get();
+        PersistentMap<Integer, Integer> loaded = PersistentMap.loadSnapshot(path, Codec.INTEGER, Codec.INTEGER);
+        assertEquals(map.keySet(), loaded.keySet());
+        assertEquals(4, loaded.size());
+    }
+
+    @Test
+    public void rejectedSnapshotCompletesExceptionally() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        map.put(1, "one");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        CompletableFuture<Path> future = map.snapshotAsync(1, folder.getRoot().toPath().resolve("map.snapshot"), Codec.INTEGER, Codec.STRING,
+                executor, VersionSnapshot.DEFAULT_BYTES_PER_SECOND);
+        ex.expect(ExecutionException.class);
+        future.get();
+    }
+
+    @Test
+    public void snapshotOfMissingVersion() {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(PersistentExceptionsMessege.NO_SUCH_VERSION);
+        map.snapshotAsync(1, folder.getRoot().toPath().resolve("map.snapshot"), Codec.INTEGER, Codec.STRING);
+    }
+}
@@ -0,0 +1,144 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class WorkloadRecorderTest {
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void assertCounts(WorkloadReplay.Result result, long... counts) {
+        for (int operation = 0; operation < counts.length; operation++)
+            assertEquals(StructureMetrics.OPERATION_NAMES[operation], counts[operation], result.getLatency(operation).getCount());
+    }
+
+    @Test
+    public void replaysMapWithHistoricalReads() throws Exception {
+        Path trace = folder.getRoot().toPath().resolve("map.trace");
+        PersistentMap<String, String> map = new PersistentMap<>();
+        for (int i = 0; i < 50; i++)
+            map.put("k" + i, "initial");
+        long[] counts = new long[5];
+        try (WorkloadRecorder recorder = WorkloadRecorder.open(trace)) {
+            recorder.record(map);
+            Random random = new Random(1);
+            for (int i = 0; i < 2000; i++) {
+                String key = "k" + random.nextInt(100);
+                int operation = random.nextInt(4);
+                if (operation == 0) {
+                    map.put(key, "value" + i);
+                    counts[1]++;
+                } else if (operation == 1) {
+                    map.remove(key);
+                    counts[4]++;
+                } else {
+                    map.get(key, random.nextInt(map.getCurrentVersion() + 1));
+                    counts[0]++;
+                }
+            }
+            assertEquals(2000, recorder.getRecordCount());
+        }
+        // detached when closed
+        map.put("k0", "unrecorded");
+
+        WorkloadReplay replay = WorkloadReplay.load(trace);
+        assertEquals(2000, replay.getOperationCount());
+        WorkloadReplay.Result result = replay.run();
+        assertEquals(2000, result.getOperations());
+        assertCounts(result, counts);
+        assertCounts(replay.run(3), counts);
+        // one byte of operation, structure, key, and version or value size and version delta
+        assertEquals(true, Files.size(trace) < 2000 * 5);
+    }
+
+    @Test
+    public void replaysListEditsConcurrently() throws Exception {
+        Path trace = folder.getRoot().toPath().resolve("list.trace");
+        PersistentLinkedList<String> list = new PersistentLinkedList<>(Arrays.asList("a", "b", "c"));
+        try (WorkloadRecorder recorder = WorkloadRecorder.open(trace)) {
+            recorder.record(list);
+            Random random = new Random(2);
+            for (int i = 0; i < 1000; i++) {
+                int operation = random.nextInt(6);
+                if (list.isEmpty() || operation == 0)
+                    list.add("e" + i);
+                else if (operation == 1)
+                    list.add(random.nextInt(list.size() + 1), "i" + i);
+                else if (operation == 2)
+                    list.set(random.nextInt(list.size()), "s" + i);
+                else if (operation == 3)
+                    list.remove(random.nextInt(list.size()));
+                else {
+                    // indices valid only in the version read, so a replay out of order fails
+                    int version = random.nextInt(list.getCurrentVersion() + 1);
+                    if (list.size(version) > 0)
+                        list.get(list.size(version) - 1, version);
+                }
+            }
+        }
+        WorkloadReplay replay = WorkloadReplay.load(trace);
+        WorkloadReplay.Result single = replay.run();
+        WorkloadReplay.Result concurrent = replay.run(4);
+        for (int operation = 0; operation < StructureMetrics.OPERATION_NAMES.length; operation++)
+            assertEquals(single.getLatency(operation).getCount(), concurrent.getLatency(operation).getCount());
+        assertEquals(replay.getOperationCount(), concurrent.getOperations());
+        assertEquals(true, single.getLatency("insert").getCount() > 0);
+    }
+
+    @Test
+    public void replaysArraysAndValueSizes() throws Exception {
+        Path trace = folder.getRoot().toPath().resolve("array.trace");
+        PersistentArray<byte[]> first = new PersistentArray<>(3);
+        PersistentArray<byte[]> second = new PersistentArray<>(0);
+        try (WorkloadRecorder recorder = WorkloadRecorder.open(trace, value -> ((byte[]) value).length)) {
+            recorder.record(first);
+            recorder.record(second);
+            for (int i = 0; i < 100; i++) {
+                first.replace(i % 3, new byte[i]);
+                second.add(new byte[i]);
+                first.get(i % 3, first.getCurrentVersion() - 1);
+            }
+            second.removeLast();
+            second.get(98, second.getCurrentVersion() - 1);
+            assertEquals(302, recorder.getRecordCount());
+        }
+        WorkloadReplay.Result result = WorkloadReplay.load(trace).run(2);
+        assertCounts(result, 101, 100, 0, 100, 1);
+    }
+
+    @Test
+    public void truncatedTrace() throws Exception {
+        Path trace = folder.getRoot().toPath().resolve("truncated.trace");
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        try (WorkloadRecorder recorder = WorkloadRecorder.open(trace)) {
+            recorder.record(map);
+            for (int i = 0; i < 10; i++)
+                map.put(i, "v");
+        }
+        byte[] bytes = Files.readAllBytes(trace);
+        Files.write(trace, Arrays.copyOf(bytes, bytes.length - 1));
+        ex.expect(IOException.class);
+        WorkloadReplay.load(trace);
+    }
+
+    @Test
+    public void foreignFile() throws Exception {
+        Path trace = folder.newFile("foreign.trace").toPath();
+        Files.write(trace, new byte[]{1, 2, 3, 4, 5, 6});
+        ex.expect(IOException.class);
+        ex.expectMessage(PersistentExceptionsMessege.CORRUPTED_TRACE);
+        WorkloadReplay.load(trace);
+    }
+}
@@ -0,0 +1,180 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void write(PersistentMap<Integer, String> map, Random random, int operations) {
+        for (int i = 0; i < operations; i++) {
+            int key = random.nextInt(100);
+            int operation = random.nextInt(10);
+            if (operation < 6) {
+                map.put(key, random.nextInt(10) == 0 ? null : "v" + random.nextInt(50));
+            } else if (operation < 8) {
+                map.remove(key);
+            } else if (operation < 9) {
+                Map<Integer, String> batch = new HashMap<>();
+                for (int j = 0; j < 5; j++)
+                    batch.put(random.nextInt(150), "b" + j);
+                map.putAll(batch);
+            } else {
+                map.replaceAll((k, v) -> v + "!");
+            }
+        }
+    }
+
+    private static void assertSameHistory(PersistentMap<Integer, String> expected, PersistentMap<Integer, String> actual) {
+        assertEquals(expected.getCurrentVersion(), actual.getCurrentVersion());
+        for (int version = 0; version <= expected.getCurrentVersion(); version++) {
+            assertEquals(expected.size(version), actual.size(version));
+            assertEquals(expected.keySet(version), actual.keySet(version));
+            for (Object key : expected.keySet(version))
+                assertEquals(expected.get(key, version), actual.get(key, version));
+        }
+    }
+
+    @Test
+    public void recoversMapFromLog() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PersistentMap<Integer, String> expected = new PersistentMap<>();
+        try (WriteAheadLog<Integer, String> log = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING)) {
+            write(log.getMap(), new Random(1), 500);
+            write(expected, new Random(1), 500);
+            log.awaitDurable(log.getMap().getCurrentVersion());
+            assertEquals(log.getMap().getCurrentVersion(), log.getDurableVersion());
+        }
+        try (WriteAheadLog<Integer, String> log = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING)) {
+            assertSameHistory(expected, log.getMap());
+        }
+    }
+
+    @Test
+    public void recoversFromCheckpointAndLog() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PersistentMap<Integer, String> expected = new PersistentMap<>();
+        Random random = new Random(2);
+        Random expectedRandom = new Random(2);
+        try (WriteAheadLog<Integer, String> log = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING)) {
+            write(log.getMap(), random, 300);
+            log.checkpoint();
+            write(log.getMap(), random, 300);
+        }
+        write(expected, expectedRandom, 600);
+        try (WriteAheadLog<Integer, String> log = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING)) {
+            assertSameHistory(expected, log.getMap());
+            log.checkpoint();
+        }
+        try (WriteAheadLog<Integer, String> log = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING)) {
+            assertSameHistory(expected, log.getMap());
+        }
+    }
+
+    @Test
+    public void discardsTornRecord() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (WriteAheadLog<Integer, String> log = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING)) {
+            log.getMap().put(1, "one");
+            log.getMap().put(2, "two");
+        }
+        try (FileChannel channel = FileChannel.open(directory.resolve("wal.log"), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 2);
+        }
+        try (WriteAheadLog<Integer, String> log = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING)) {
+            PersistentMap<Integer, String> map = log.getMap();
+            assertEquals(1, map.getCurrentVersion());
+            assertEquals("one", map.get(1));
+            assertEquals(null, map.get(2));
+            map.put(3, "three");
+        }
+        try (WriteAheadLog<Integer, String> log = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING)) {
+            PersistentMap<Integer, String> map = log.getMap();
+            assertEquals(2, map.getCurrentVersion());
+            assertEquals("three", map.get(3));
+        }
+    }
+
+    @Test
+    public void discardsTornLengthBeyondEndOfLog() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (WriteAheadLog<Integer, String> log = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING)) {
+            log.getMap().put(1, "one");
+        }
+        long valid;
+        try (FileChannel channel = FileChannel.open(directory.resolve("wal.log"), StandardOpenOption.WRITE)) {
+            valid = channel.size();
+            // a varint length of Integer.MAX_VALUE with nothing after it
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07}), valid);
+        }
+        try (WriteAheadLog<Integer, String> log = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING)) {
+            assertEquals(1, log.getMap().getCurrentVersion());
+            assertEquals("one", log.getMap().get(1));
+        }
+        assertEquals(valid, Files.size(directory.resolve("wal.log")));
+    }
+
+    @Test
+    public void closeWritesPendingGroup() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (WriteAheadLog<Integer, String> log = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING, 1, TimeUnit.HOURS, 1 << 20)) {
+            log.getMap().put(1, "one");
+            assertEquals(0, log.getDurableVersion());
+        }
+        try (WriteAheadLog<Integer, String> log = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING)) {
+            assertEquals("one", log.getMap().get(1));
+        }
+    }
+
+    @Test
+    public void groupIsWrittenWhenFull() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (WriteAheadLog<Integer, String> log = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING, 1, TimeUnit.HOURS, 256)) {
+            for (int i = 0; i < 100; i++)
+                log.getMap().put(i, "value" + i);
+            log.awaitDurable(50);
+        }
+    }
+
+    @Test
+    public void detachedMapIsNotLogged() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog<Integer, String> log = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING);
+        log.getMap().put(1, "one");
+        log.close();
+        log.getMap().put(2, "two");
+        ex.expect(IOException.class);
+        log.awaitDurable(2);
+    }
+
+    @Test
+    public void versionPublishedWhileClosingIsNotLogged() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog<Integer, String> log = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING);
+        PersistentMap<Integer, String> map = log.getMap();
+        map.put(1, "one");
+        log.close();
+        map.put(2, "two");
+        // the writer read the log before close detached it
+        log.append(map.getCurrentVersion());
+        try (WriteAheadLog<Integer, String> reopened = WriteAheadLog.open(directory, Codec.INTEGER, Codec.STRING)) {
+            assertEquals(1, reopened.getMap().getCurrentVersion());
+        }
+    }
+}